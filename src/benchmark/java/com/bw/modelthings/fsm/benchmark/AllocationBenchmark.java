@@ -0,0 +1,137 @@
+package com.bw.modelthings.fsm.benchmark;
+
+import com.bw.modelthings.fsm.model.Event;
+import com.bw.modelthings.fsm.model.EventType;
+import com.bw.modelthings.fsm.model.FiniteStateMachine;
+import com.bw.modelthings.fsm.model.List;
+import com.bw.modelthings.fsm.model.NullDatamodel;
+import com.bw.modelthings.fsm.parser.XmlParser;
+import com.bw.modelthings.fsm.runtime.CompiledMachine;
+import com.bw.modelthings.fsm.runtime.Interpreter;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+
+/**
+ * Measures the garbage of the interpreter and of {@link List} in steady state, via the per-thread allocation
+ * counter of HotSpot.<br>
+ * The interpreter runs a machine with compound and parallel states, deep and shallow history, eventless
+ * transitions and raised events. After warm-up a macrostep must allocate nothing.
+ * For {@link List} the bytes per element must not grow with the length of the list, as tail() and append()
+ * must not copy.<br>
+ * Exits with 1 if a check fails. Run with "gradle allocationBenchmark".
+ */
+public final class AllocationBenchmark
+{
+	private static final String MACHINE = "<scxml xmlns='http://www.w3.org/2005/07/scxml' version='1.0' datamodel='null' name='alloc' initial='Main'>\n" +
+			"  <state id='Main' initial='A'>\n" +
+			"    <history id='Deep' type='deep'><transition target='A'/></history>\n" +
+			"    <history id='Shallow' type='shallow'><transition target='A'/></history>\n" +
+			"    <state id='A' initial='A1'>\n" +
+			"      <state id='A1'><transition event='next' target='A2'/></state>\n" +
+			"      <state id='A2'><onentry><raise event='auto'/></onentry><transition event='auto' target='A3'/></state>\n" +
+			"      <state id='A3'><transition event='next' target='P'/></state>\n" +
+			"    </state>\n" +
+			"    <parallel id='P'>\n" +
+			"      <state id='P1' initial='P1a'><state id='P1a'><transition event='next' target='P1b'/></state><state id='P1b'/></state>\n" +
+			"      <state id='P2' initial='P2a'><state id='P2a'><transition event='next' target='P2b'/></state>\n" +
+			"        <state id='P2b'><transition target='A1'/></state></state>\n" +
+			"    </parallel>\n" +
+			"    <transition event='out' target='Out'/>\n" +
+			"  </state>\n" +
+			"  <state id='Out'><transition event='deep' target='Deep'/><transition event='shallow' target='Shallow'/></state>\n" +
+			"</scxml>";
+
+	private static final String[] EVENTS = {"next", "out", "deep", "next", "next", "out", "shallow", "next", "next", "unknown", "next"};
+
+	private static final int ROUNDS = 5;
+	private static final int STEPS = 200000;
+
+	private AllocationBenchmark()
+	{
+	}
+
+	/**
+	 * Runs the benchmark.
+	 *
+	 * @param args Not used.
+	 * @throws Exception On errors.
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		final long thread = Thread.currentThread()
+								  .getId();
+		boolean failed = false;
+
+		FiniteStateMachine fsm = new XmlParser().parse(Paths.get("alloc.scxml")
+															   .toAbsolutePath(), MACHINE);
+		CompiledMachine machine = CompiledMachine.compile(fsm);
+		Event[] events = new Event[EVENTS.length];
+		for (int i = 0; i < events.length; ++i)
+			events[i] = fsm._eventSymbols.createEvent(EVENTS[i], EventType.external);
+		NullDatamodel datamodel = new NullDatamodel();
+		Interpreter interpreter = new Interpreter(machine, datamodel);
+		interpreter.start();
+
+		double bytes = 0;
+		for (int round = 0; round < ROUNDS; ++round)
+		{
+			final long start = threads.getThreadAllocatedBytes(thread);
+			for (int i = 0; i < STEPS; ++i)
+				interpreter.processExternalEvent(events[i % events.length]);
+			bytes = (threads.getThreadAllocatedBytes(thread) - start) / (double) STEPS;
+			System.out.printf("interpreter round %d: %.2f bytes/macrostep%n", round, bytes);
+		}
+		if (bytes > 0)
+		{
+			System.out.println("FAILED: macrosteps allocate in steady state");
+			failed = true;
+		}
+
+		final double small = measureList(threads, thread, 8);
+		final double large = measureList(threads, thread, 1024);
+		System.out.printf("list: %.2f bytes/element with 8 elements, %.2f bytes/element with 1024 elements%n", small, large);
+		if (large > 2 * small)
+		{
+			System.out.println("FAILED: list operations copy the elements");
+			failed = true;
+		}
+		if (failed)
+			System.exit(1);
+	}
+
+	/**
+	 * Runs the W3C list operations of a microstep on a list with "size" elements.
+	 *
+	 * @return The bytes per element of the last round.
+	 */
+	private static double measureList(com.sun.management.ThreadMXBean threads, long thread, int size)
+	{
+		List<Integer> list = new List<>();
+		for (int i = 0; i < size; ++i)
+			list.add(i);
+		// Same number of elements for all sizes.
+		final int iterations = STEPS * 8 / size;
+		double bytes = 0;
+		long sink = 0;
+		for (int round = 0; round < ROUNDS; ++round)
+		{
+			final long start = threads.getThreadAllocatedBytes(thread);
+			for (int i = 0; i < iterations; ++i)
+			{
+				// Walks with tail() and collects with append(), as the W3C algorithm does.
+				List<Integer> collected = new List<>();
+				for (List<Integer> l = list; !l.isEmpty(); l = l.tail())
+					collected = collected.append(l.head());
+				if (collected.some(x -> x < 0) || !collected.every(x -> x >= 0))
+					++sink;
+				sink += collected.size();
+			}
+			bytes = (threads.getThreadAllocatedBytes(thread) - start) / (double) iterations / size;
+		}
+		if (sink == 42)
+			System.out.println();
+		return bytes;
+	}
+}
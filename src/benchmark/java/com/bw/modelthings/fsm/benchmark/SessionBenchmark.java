@@ -0,0 +1,138 @@
+package com.bw.modelthings.fsm.benchmark;
+
+import com.bw.modelthings.fsm.model.Event;
+import com.bw.modelthings.fsm.model.EventType;
+import com.bw.modelthings.fsm.model.FiniteStateMachine;
+import com.bw.modelthings.fsm.parser.XmlParser;
+import com.bw.modelthings.fsm.runtime.CompiledMachine;
+import com.bw.modelthings.fsm.runtime.MachineMetrics;
+import com.bw.modelthings.fsm.runtime.Session;
+import com.bw.modelthings.fsm.runtime.SessionExecutor;
+import com.bw.modelthings.fsm.runtime.SessionManager;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link SessionExecutor#virtualThreads()} with {@link SessionExecutor#pooled(int)} for many mostly-idle
+ * sessions.<br>
+ * Each mode starts the same number of sessions (100000 by default) and then sends events to a random
+ * one percent of them per round. Reported are the time to start the sessions, the heap and the platform threads
+ * they occupy while idle, the throughput of the rounds and the event latency from enqueue to the end of the
+ * macrostep.<br>
+ * Virtual threads are skipped if the runtime doesn't support them.
+ * Run with "gradle sessionBenchmark", the number of sessions can be given as argument.
+ */
+public final class SessionBenchmark
+{
+	private static final String MACHINE = "<scxml xmlns='http://www.w3.org/2005/07/scxml' version='1.0' datamodel='null' name='idle' initial='Idle'>\n" +
+			"  <state id='Idle'><transition event='ping' target='Busy'/></state>\n" +
+			"  <state id='Busy'><transition event='ping' target='Idle'/></state>\n" +
+			"</scxml>";
+
+	private static final int DEFAULT_SESSIONS = 100000;
+	private static final int ROUNDS = 20;
+	private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+	private SessionBenchmark()
+	{
+	}
+
+	/**
+	 * Runs the benchmark.
+	 *
+	 * @param args Optional number of sessions.
+	 * @throws Exception On errors.
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		final int sessions = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SESSIONS;
+		FiniteStateMachine fsm = new XmlParser().parse(Paths.get("idle.scxml")
+															   .toAbsolutePath(), MACHINE);
+		CompiledMachine machine = CompiledMachine.compile(fsm);
+		Event ping = fsm._eventSymbols.createEvent("ping", EventType.external);
+
+		if (SessionExecutor.isVirtualThreadSupported())
+			run("virtual threads", SessionExecutor.virtualThreads(), machine, ping, sessions);
+		else
+			System.out.println("virtual threads: not supported by this runtime, skipped");
+		run("pooled carriers", SessionExecutor.pooled(Runtime.getRuntime()
+															 .availableProcessors()), machine, ping, sessions);
+	}
+
+	/**
+	 * Runs one mode.
+	 */
+	private static void run(String name, SessionExecutor executor, CompiledMachine machine, Event ping, int count) throws Exception
+	{
+		final SessionManager manager = new SessionManager(machine);
+		final MachineMetrics metrics = manager.enableMetrics();
+		final int threadsBefore = ManagementFactory.getThreadMXBean()
+												   .getThreadCount();
+		final long heapBefore = usedHeap();
+
+		long t0 = System.nanoTime();
+		final Session[] sessions = new Session[count];
+		for (int i = 0; i < count; ++i)
+		{
+			sessions[i] = manager.createSession();
+			executor.execute(sessions[i]);
+		}
+		final long startNanos = System.nanoTime() - t0;
+
+		// Sessions are idle now, let the executor settle before measuring.
+		Thread.sleep(1000);
+		final long heap = usedHeap() - heapBefore;
+		final int threads = ManagementFactory.getThreadMXBean()
+											 .getThreadCount() - threadsBefore;
+
+		final Random random = new Random(42);
+		final int perRound = Math.max(1, count / 100);
+		long expected = metrics.getEventCount();
+		t0 = System.nanoTime();
+		for (int round = 0; round < ROUNDS; ++round)
+		{
+			for (int i = 0; i < perRound; ++i)
+				sessions[random.nextInt(count)].getDatamodel()
+											   .global()._externalQueue.enqueue(ping);
+			expected += perRound;
+			final long deadline = System.nanoTime() + TIMEOUT_NANOS;
+			while (metrics.getEventCount() < expected)
+			{
+				if (System.nanoTime() > deadline)
+					throw new IllegalStateException(name + ": events were not processed in time");
+				Thread.sleep(1);
+			}
+		}
+		final long roundNanos = System.nanoTime() - t0;
+
+		System.out.printf("%s: %d sessions%n", name, count);
+		System.out.printf("  start:      %.1f ms (%.2f us/session)%n", startNanos / 1e6, startNanos / 1e3 / count);
+		System.out.printf("  idle heap:  %.1f MB (%d bytes/session)%n", heap / 1e6, heap / count);
+		System.out.printf("  threads:    %d platform threads%n", threads);
+		System.out.printf("  throughput: %.0f events/s%n", (double) ROUNDS * perRound / (roundNanos / 1e9));
+		System.out.printf("  latency:    p50 %.1f us, p99 %.1f us, max %.1f us%n", metrics.getEventLatencyP50() / 1e3,
+				metrics.getEventLatencyP99() / 1e3, metrics.getEventLatencyMax() / 1e3);
+
+		manager.destroyAll();
+		executor.close();
+		if (!executor.awaitTermination(1, TimeUnit.MINUTES))
+			System.out.printf("%s: sessions did not terminate%n", name);
+	}
+
+	/**
+	 * Gets the used heap after garbage collection.
+	 */
+	private static long usedHeap() throws InterruptedException
+	{
+		for (int i = 0; i < 3; ++i)
+		{
+			System.gc();
+			Thread.sleep(100);
+		}
+		final Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,29 @@
+package com.bw.modelthings.fsm.generator;
+
+/**
+ * Signals that a state machine can't be converted to Java.<br>
+ * Exceptions of this type indicate features that are not supported by the generator or an inconsistent model.
+ */
+public class GeneratorException extends Exception
+{
+	/**
+	 * Creates a new GeneratorException
+	 *
+	 * @param message The message.
+	 * @param cause   The cause, can be null.
+	 */
+	public GeneratorException(String message, Throwable cause)
+	{
+		super(message, cause);
+	}
+
+	/**
+	 * Creates a new GeneratorException
+	 *
+	 * @param message The message.
+	 */
+	public GeneratorException(String message)
+	{
+		this(message, null);
+	}
+}
@@ -0,0 +1,822 @@
+package com.bw.modelthings.fsm.generator;
+
+import com.bw.modelthings.fsm.model.BindingType;
+import com.bw.modelthings.fsm.model.DataDeclaration;
+import com.bw.modelthings.fsm.model.ExecutableContent;
+import com.bw.modelthings.fsm.model.FiniteStateMachine;
+import com.bw.modelthings.fsm.model.JavaDatamodel;
+import com.bw.modelthings.fsm.model.NullDatamodel;
+import com.bw.modelthings.fsm.model.State;
+import com.bw.modelthings.fsm.model.executablecontent.Assign;
+import com.bw.modelthings.fsm.model.executablecontent.Block;
+import com.bw.modelthings.fsm.model.executablecontent.Cancel;
+import com.bw.modelthings.fsm.model.executablecontent.If;
+import com.bw.modelthings.fsm.model.executablecontent.Log;
+import com.bw.modelthings.fsm.model.executablecontent.Raise;
+import com.bw.modelthings.fsm.model.executablecontent.Script;
+import com.bw.modelthings.fsm.model.executablecontent.Send;
+import com.bw.modelthings.fsm.parser.ParserException;
+import com.bw.modelthings.fsm.parser.XmlParser;
+import com.bw.modelthings.fsm.runtime.CompiledMachine;
+import com.bw.modelthings.fsm.runtime.CompilerException;
+import com.bw.modelthings.fsm.runtime.DatamodelFactory;
+import com.bw.modelthings.fsm.runtime.GeneratedMachine;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Generates a Java class for a state machine ("Offline-Generation").<br>
+ * The class extends {@link GeneratedMachine} and contains:
+ * <ul>
+ * <li>The states as int constants "S_id".</li>
+ * <li>The static tables of the machine.</li>
+ * <li>Transition selection as switch over the active atomic states, with event matching and conditions inline.</li>
+ * <li>The executable content of each state and transition as direct method.</li>
+ * <li>For the Java datamodel the &lt;data&gt; elements as typed fields.</li>
+ * </ul>
+ * The generated class needs neither the parser, the interpreter, a datamodel nor reflection at runtime.<br>
+ * <strong>Actual Implementation:</strong><br>
+ * Supported are the null datamodel and the Java datamodel, as only these have expressions that can be compiled as
+ * Java source. &lt;invoke&gt; is ignored (as by the interpreter), event data is not supported.
+ */
+public class JavaGenerator
+{
+	/**
+	 * Logger for this class.
+	 */
+	protected final static Logger LOG = Logger.getLogger(JavaGenerator.class.getName());
+
+	private static final Pattern IN_PREDICATE = Pattern.compile("\\bIn\\(\\s*\"([^\"\\\\]*)\"\\s*\\)");
+
+	private final FiniteStateMachine _fsm;
+	private final CompiledMachine _machine;
+
+	/**
+	 * True for the Java datamodel, false for the null datamodel.
+	 */
+	private final boolean _java;
+
+	/**
+	 * Data types for the Java datamodel by data id.
+	 */
+	private final Map<String, String> _types;
+
+	/**
+	 * Name of the constant for each state.
+	 */
+	private final String[] _constants;
+
+	/**
+	 * Name suffix of the methods for each state.
+	 */
+	private final String[] _methodNames;
+
+	/**
+	 * The generated methods.
+	 */
+	private final StringBuilder _methods = new StringBuilder(8192);
+
+	/**
+	 * Number of generated &lt;if&gt; conditions, used for the method names.
+	 */
+	private int _ifConditions;
+
+	/**
+	 * Creates a generator for a state machine.
+	 *
+	 * @param fsm The state machine.
+	 * @throws GeneratorException If the state machine can't be generated.
+	 */
+	public JavaGenerator(FiniteStateMachine fsm) throws GeneratorException
+	{
+		_fsm = fsm;
+		final String datamodel = fsm._dataModel == null ? "" : fsm._dataModel.toLowerCase(Locale.ROOT);
+		_java = JavaDatamodel.NAME.equals(datamodel);
+		if (!_java && !datamodel.isEmpty() && !DatamodelFactory.NULL_DATAMODEL.equals(datamodel))
+			throw new GeneratorException(String.format("Datamodel '%s' is not supported by the generator", fsm._dataModel));
+		try
+		{
+			// For the Java datamodel this also checks the expressions and infers the data types.
+			_machine = CompiledMachine.compile(fsm);
+		}
+		catch (CompilerException e)
+		{
+			throw new GeneratorException(e.getMessage(), e);
+		}
+		_types = _java ? JavaDatamodel.getDataTypes(fsm) : Map.of();
+
+		final int n = _machine.getStateCount();
+		_constants = new String[n];
+		_methodNames = new String[n];
+		Set<String> used = new HashSet<>();
+		for (int s = 0; s < n; ++s)
+		{
+			State state = _machine._states[s];
+			if (state == null)
+				continue;
+			String name = toIdentifier(state._name);
+			if (!used.add(name))
+			{
+				name = name + "_" + s;
+				used.add(name);
+			}
+			_constants[s] = "S_" + name;
+			_methodNames[s] = name;
+		}
+	}
+
+	/**
+	 * Generates the source of the class.
+	 *
+	 * @param packageName The package or null for the default package.
+	 * @param className   The simple name of the class.
+	 * @return The Java source.
+	 * @throws GeneratorException If the state machine contains unsupported elements.
+	 */
+	public String generate(String packageName, String className) throws GeneratorException
+	{
+		_methods.setLength(0);
+		StringBuilder sb = new StringBuilder(16384);
+		if (packageName != null && !packageName.isEmpty())
+			sb.append("package ")
+			  .append(packageName)
+			  .append(";\n\n");
+		sb.append("import ")
+		  .append(GeneratedMachine.class.getName())
+		  .append(";\n\n");
+		sb.append("/**\n * State machine \"")
+		  .append(_fsm._name == null ? className : _fsm._name.replace("*/", "*&#47;"))
+		  .append("\".<br>\n * Generated by ")
+		  .append(JavaGenerator.class.getName())
+		  .append(", do not edit.\n */\npublic class ")
+		  .append(className)
+		  .append(" extends GeneratedMachine\n{\n");
+
+		generateConstants(sb);
+		generateTables(sb);
+		generateData(sb);
+
+		sb.append("\n\t/**\n\t * Creates a new instance, not yet started.\n\t */\n\tpublic ")
+		  .append(className)
+		  .append("()\n\t{\n\t\tsuper(TABLES, ")
+		  .append(literal(_fsm._name))
+		  .append(");\n\t}\n");
+
+		generateDataInitialization(sb);
+		generateSelection(sb);
+		generateStateContent(sb, true);
+		generateStateContent(sb, false);
+		generateTransitionContent(sb);
+		generateScript(sb);
+
+		sb.append(_methods)
+		  .append("}\n");
+		return sb.toString();
+	}
+
+	private void generateConstants(StringBuilder sb)
+	{
+		for (int s = 0; s < _constants.length; ++s)
+		{
+			if (_constants[s] != null)
+				sb.append("\t/**\n\t * State \"")
+				  .append(javadoc(_machine._states[s]._name))
+				  .append("\".\n\t */\n\tpublic static final int ")
+				  .append(_constants[s])
+				  .append(" = ")
+				  .append(s)
+				  .append(";\n\n");
+		}
+	}
+
+	private void generateTables(StringBuilder sb)
+	{
+		final int n = _machine.getStateCount();
+		final int tn = _machine._transitions.length;
+		String[] names = new String[n];
+		boolean[] isFinal = new boolean[n];
+		int[] kind = new int[n];
+		for (int s = 0; s < n; ++s)
+		{
+			if (_machine._states[s] != null)
+			{
+				names[s] = _machine._states[s]._name;
+				isFinal[s] = _machine._final[s];
+				kind[s] = _machine._kind[s];
+			}
+		}
+		boolean[] internal = new boolean[tn];
+		for (int t = 0; t < tn; ++t)
+			internal[t] = _machine._transitionInternal[t];
+
+		sb.append("\tprivate static final Tables TABLES = new Tables(")
+		  .append(_machine._root)
+		  .append(",\n\t\t\tnew String[]{");
+		for (int s = 0; s < n; ++s)
+		{
+			if (s > 0)
+				sb.append(", ");
+			sb.append(literal(names[s]));
+		}
+		sb.append("},\n\t\t\tnew byte[]")
+		  .append(array(kind))
+		  .append(",\n\t\t\tnew boolean[]")
+		  .append(array(isFinal))
+		  .append(",\n\t\t\tnew int[]")
+		  .append(array(_machine._parent))
+		  .append(",\n\t\t\tnew boolean[]")
+		  .append(array(_machine._deepHistory))
+		  .append(",\n\t\t\tnew int[]")
+		  .append(array(_machine._initialTransition))
+		  .append(",\n\t\t\tnew int[]")
+		  .append(array(_machine._transitionSource))
+		  .append(",\n\t\t\tnew int[][]{");
+		for (int t = 0; t < tn; ++t)
+		{
+			if (t > 0)
+				sb.append(", ");
+			sb.append(array(_machine._transitionTargets[t]));
+		}
+		sb.append("},\n\t\t\tnew int[]")
+		  .append(array(_machine._transitionDomain))
+		  .append(",\n\t\t\tnew boolean[]")
+		  .append(array(internal))
+		  .append(",\n\t\t\t")
+		  .append(_fsm._binding == BindingType.Late)
+		  .append(");\n");
+	}
+
+	private void generateData(StringBuilder sb)
+	{
+		if (!_java || _types.isEmpty())
+			return;
+		for (Map.Entry<String, String> e : _types.entrySet())
+			sb.append("\n\t/**\n\t * Data \"")
+			  .append(e.getKey())
+			  .append("\".\n\t */\n\tpublic ")
+			  .append(e.getValue())
+			  .append(' ')
+			  .append(e.getKey())
+			  .append(";\n");
+	}
+
+	private void generateDataInitialization(StringBuilder sb)
+	{
+		if (!_java || _types.isEmpty())
+			return;
+		StringBuilder cases = new StringBuilder();
+		for (int s = 0; s < _constants.length; ++s)
+		{
+			State state = _machine._states[s];
+			if (state == null)
+				continue;
+			StringBuilder body = new StringBuilder();
+			for (DataDeclaration data : state._dataDeclarations)
+			{
+				final String source = data._expr != null ? data._expr : data._content;
+				if (source != null && _types.containsKey(data._id))
+					body.append("\t\ttry\n\t\t{\n\t\t\t")
+						.append(data._id)
+						.append(" = (")
+						.append(javaSource(source))
+						.append("\n);\n\t\t}\n\t\tcatch (RuntimeException e)\n\t\t{\n\t\t\tif (error == null)\n\t\t\t\terror = e;\n\t\t}\n");
+			}
+			if (body.length() > 0)
+			{
+				final String method = "initializeData_" + _methodNames[s];
+				_methods.append("\n\tprivate void ")
+						.append(method)
+						.append("()\n\t{\n\t\tRuntimeException error = null;\n")
+						.append(body)
+						.append("\t\tif (error != null)\n\t\t\tthrow error;\n\t}\n");
+				cases.append("\t\t\tcase ")
+					 .append(_constants[s])
+					 .append(":\n\t\t\t\t")
+					 .append(method)
+					 .append("();\n\t\t\t\tbreak;\n");
+			}
+		}
+		switchMethod(sb, "void initializeData(int state)", "state", cases, null);
+	}
+
+	private void generateSelection(StringBuilder sb)
+	{
+		// One method per state with transitions, checks the transitions of the state in document order.
+		final int n = _machine.getStateCount();
+		for (int s = 0; s < n; ++s)
+		{
+			if (_machine._states[s] == null || _machine._stateTransitions[s].length == 0)
+				continue;
+			StringBuilder method = new StringBuilder();
+			method.append("\n\tprivate int select_")
+				  .append(_methodNames[s])
+				  .append("(String event)\n\t{\n");
+			for (int t : _machine._stateTransitions[s])
+			{
+				method.append("\t\tif (")
+					  .append(eventMatch(t));
+				final String condition = _machine._transitions[t]._cond;
+				if (condition != null && !condition.isEmpty())
+					method.append(" && ")
+						  .append(transitionCondition(t, condition));
+				method.append(")\n\t\t\treturn ")
+					  .append(t)
+					  .append(";\n");
+			}
+			_methods.append(method)
+					.append("\t\treturn -1;\n\t}\n");
+		}
+
+		// Atomic states try their own transitions first, then these of the ancestors.
+		StringBuilder cases = new StringBuilder();
+		for (int s = 0; s < n; ++s)
+		{
+			if (_machine._states[s] == null || !_machine.isAtomic(s))
+				continue;
+			StringBuilder selects = new StringBuilder();
+			appendSelect(selects, s);
+			for (int a : _machine._ancestors[s])
+				appendSelect(selects, a);
+			if (selects.length() > 0)
+				cases.append("\t\t\tcase ")
+					 .append(_constants[s])
+					 .append(":\n")
+					 .append(selects)
+					 .append("\t\t\t\treturn -1;\n");
+		}
+		switchMethod(sb, "int selectTransition(int state, String event)", "state", cases, "\t\tint t;\n");
+	}
+
+	private void appendSelect(StringBuilder cases, int s)
+	{
+		if (_machine._stateTransitions[s].length > 0)
+			cases.append("\t\t\t\tif ((t = select_")
+				 .append(_methodNames[s])
+				 .append("(event)) >= 0)\n\t\t\t\t\treturn t;\n");
+	}
+
+	private String eventMatch(int t)
+	{
+		final String[] descriptors = _machine._transitionEvents[t];
+		if (descriptors.length == 0)
+			return "event == null";
+		StringBuilder sb = new StringBuilder("event != null");
+		if (Arrays.asList(descriptors)
+				  .contains("*"))
+			return sb.toString();
+		sb.append(descriptors.length > 1 ? " && (" : " && ");
+		for (int i = 0; i < descriptors.length; ++i)
+		{
+			if (i > 0)
+				sb.append(" || ");
+			sb.append("matches(event, ")
+			  .append(literal(descriptors[i]))
+			  .append(')');
+		}
+		if (descriptors.length > 1)
+			sb.append(')');
+		return sb.toString();
+	}
+
+	/**
+	 * Creates the condition of a transition. Java conditions get an own method that reports errors.
+	 */
+	private String transitionCondition(int t, String condition)
+	{
+		return _java ? conditionMethod("condition_" + t, condition) : nullCondition(condition);
+	}
+
+	/**
+	 * Creates a method for a Java condition of a transition or an &lt;if&gt;. As in the datamodels, an error
+	 * raises "error.execution" and the condition is false.
+	 *
+	 * @param method    The name of the method.
+	 * @param condition The condition.
+	 * @return The call of the method.
+	 */
+	private String conditionMethod(String method, String condition)
+	{
+		_methods.append("\n\tprivate boolean ")
+				.append(method)
+				.append("()\n\t{\n\t\ttry\n\t\t{\n\t\t\treturn (")
+				.append(javaSource(condition))
+				.append("\n);\n\t\t}\n\t\tcatch (RuntimeException e)\n\t\t{\n\t\t\traiseError(e);\n\t\t\treturn false;\n\t\t}\n\t}\n");
+		return method + "()";
+	}
+
+	private void generateStateContent(StringBuilder sb, boolean entry) throws GeneratorException
+	{
+		final String prefix = entry ? "onEntry_" : "onExit_";
+		StringBuilder cases = new StringBuilder();
+		for (int s = 0; s < _constants.length; ++s)
+		{
+			State state = _machine._states[s];
+			if (state == null)
+				continue;
+			if (entry && state._invoke != null && !state._invoke.isEmpty())
+				LOG.warning(String.format("<invoke> in state '%s' is not supported by the generator, ignored", state._name));
+			ExecutableContent content = entry ? state._onEntry : state._onExit;
+			if (content == null)
+				continue;
+			contentMethod(prefix + _methodNames[s], content);
+			cases.append("\t\t\tcase ")
+				 .append(_constants[s])
+				 .append(":\n\t\t\t\t")
+				 .append(prefix)
+				 .append(_methodNames[s])
+				 .append("();\n\t\t\t\tbreak;\n");
+		}
+		switchMethod(sb, entry ? "void onEntry(int state)" : "void onExit(int state)", "state", cases, null);
+	}
+
+	private void generateTransitionContent(StringBuilder sb) throws GeneratorException
+	{
+		StringBuilder cases = new StringBuilder();
+		for (int t = 0; t < _machine._transitions.length; ++t)
+		{
+			ExecutableContent content = _machine._transitions[t]._content;
+			if (content == null)
+				continue;
+			contentMethod("transition_" + t, content);
+			cases.append("\t\t\tcase ")
+				 .append(t)
+				 .append(":\n\t\t\t\ttransition_")
+				 .append(t)
+				 .append("();\n\t\t\t\tbreak;\n");
+		}
+		switchMethod(sb, "void onTransition(int transition)", "transition", cases, null);
+	}
+
+	private void generateScript(StringBuilder sb) throws GeneratorException
+	{
+		if (_fsm._script != null)
+		{
+			sb.append("\n\t@Override\n\tprotected void executeScript()\n\t{\n");
+			content(sb, _fsm._script, 2);
+			sb.append("\t}\n");
+		}
+	}
+
+	private void switchMethod(StringBuilder sb, String signature, String variable, StringBuilder cases, String prolog)
+	{
+		final boolean returnsInt = signature.startsWith("int ");
+		if (cases.length() == 0 && !returnsInt)
+			return;
+		sb.append("\n\t@Override\n\tprotected ")
+		  .append(signature)
+		  .append("\n\t{\n");
+		if (cases.length() == 0)
+		{
+			sb.append("\t\treturn -1;\n\t}\n");
+			return;
+		}
+		if (prolog != null)
+			sb.append(prolog);
+		sb.append("\t\tswitch (")
+		  .append(variable)
+		  .append(")\n\t\t{\n")
+		  .append(cases);
+		if (returnsInt)
+			sb.append("\t\t\tdefault:\n\t\t\t\treturn -1;\n");
+		sb.append("\t\t}\n\t}\n");
+	}
+
+	private void contentMethod(String name, ExecutableContent content) throws GeneratorException
+	{
+		StringBuilder body = new StringBuilder();
+		content(body, content, 2);
+		_methods.append("\n\tprivate void ")
+				.append(name)
+				.append("()\n\t{\n")
+				.append(body)
+				.append("\t}\n");
+	}
+
+	/**
+	 * Generates the statements of executable content. Semantics are the same as of the execute methods of the content
+	 * classes with the corresponding datamodel.
+	 */
+	private void content(StringBuilder sb, ExecutableContent content, int indent) throws GeneratorException
+	{
+		final String tabs = "\t".repeat(indent);
+		if (content instanceof Block)
+		{
+			for (ExecutableContent c : ((Block) content).content)
+				content(sb, c, indent);
+		}
+		else if (content instanceof If)
+		{
+			If ifContent = (If) content;
+			sb.append(tabs)
+			  .append("if (")
+			  .append(_java ? conditionMethod("ifCondition_" + (++_ifConditions), ifContent.condition) : nullCondition(ifContent.condition))
+			  .append(")\n")
+			  .append(tabs)
+			  .append("{\n");
+			if (ifContent.content != null)
+				content(sb, ifContent.content, indent + 1);
+			sb.append(tabs)
+			  .append("}\n");
+			if (ifContent.elseContent != null)
+			{
+				sb.append(tabs)
+				  .append("else\n")
+				  .append(tabs)
+				  .append("{\n");
+				content(sb, ifContent.elseContent, indent + 1);
+				sb.append(tabs)
+				  .append("}\n");
+			}
+		}
+		else if (content instanceof Raise)
+			sb.append(tabs)
+			  .append("raise(")
+			  .append(literal(((Raise) content).event._name))
+			  .append(");\n");
+		else if (content instanceof Log)
+		{
+			// The null datamodel doesn't log.
+			Log log = (Log) content;
+			if (_java)
+				sb.append(tabs)
+				  .append("log(")
+				  .append(literal(log.label))
+				  .append(", ")
+				  .append(value(log.expression))
+				  .append(");\n");
+		}
+		else if (content instanceof Assign)
+		{
+			// The null datamodel ignores assignments.
+			Assign assign = (Assign) content;
+			if (_java)
+				sb.append(tabs)
+				  .append(javaSource(assign.location))
+				  .append(" = ")
+				  .append(assign.expr == null ? "null" : "(" + javaSource(assign.expr) + "\n)")
+				  .append(";\n");
+		}
+		else if (content instanceof Script)
+		{
+			if (_java)
+				sb.append(tabs)
+				  .append("{\n")
+				  .append(javaSource(((Script) content).source))
+				  .append("\n;\n")
+				  .append(tabs)
+				  .append("}\n");
+		}
+		else if (content instanceof Send)
+		{
+			Send send = (Send) content;
+			sb.append(tabs)
+			  .append("send(")
+			  .append(literal(send.id))
+			  .append(", ")
+			  .append(value(send.event, send.eventExpr))
+			  .append(", ")
+			  .append(value(send.type, send.typeExpr))
+			  .append(", ")
+			  .append(value(send.target, send.targetExpr))
+			  .append(", ");
+			if (send.delay != null || send.delayExpr == null)
+				sb.append(Send.parseDelay(send.delay))
+				  .append('L');
+			else
+				sb.append("parseDelay(")
+				  .append(value(send.delayExpr))
+				  .append(')');
+			sb.append(");\n");
+		}
+		else if (content instanceof Cancel)
+		{
+			Cancel cancel = (Cancel) content;
+			sb.append(tabs)
+			  .append("cancel(")
+			  .append(value(cancel.sendId, cancel.sendIdExpr))
+			  .append(");\n");
+		}
+		else if (content != null)
+			throw new GeneratorException(String.format("Executable content '%s' is not supported by the generator", content.getType()));
+	}
+
+	/**
+	 * Creates a condition, see {@link #nullCondition(String)} for the null datamodel.
+	 */
+	/**
+	 * Creates the condition for the null datamodel, which supports only "In(id)".
+	 * Same as {@link com.bw.modelthings.fsm.model.NullDatamodel}, "In" with an unknown state is false,
+	 * other conditions raise "error.execution".
+	 */
+	private String nullCondition(String source)
+	{
+		final String id = NullDatamodel.getInPredicateId(source);
+		if (id != null)
+		{
+			final int docId = _machine.indexOf(id);
+			if (docId >= 0)
+				return "In(" + _constants[docId] + ")";
+			LOG.warning(String.format("Condition '%s' tests an unknown state, generated as false", source));
+			return "false";
+		}
+		LOG.warning(String.format("Condition '%s' is not supported by the null datamodel, generated as error", source));
+		return "unsupportedCondition(" + literal(source) + ")";
+	}
+
+	/**
+	 * Creates the value of an attribute that can be given as literal or expression.
+	 */
+	private String value(String literal, String expression)
+	{
+		return literal != null ? literal(literal) : value(expression);
+	}
+
+	/**
+	 * Creates the string value of an expression. The null datamodel evaluates all expressions to null.
+	 */
+	private String value(String expression)
+	{
+		if (expression == null || !_java)
+			return "null";
+		return "str(" + javaSource(expression) + "\n)";
+	}
+
+	/**
+	 * Resolves "In" predicates with constant ids to the state constants.
+	 */
+	private String javaSource(String source)
+	{
+		return IN_PREDICATE.matcher(source)
+						   .replaceAll(m ->
+						   {
+							   final int docId = _machine.indexOf(m.group(1));
+							   return Matcher.quoteReplacement(docId < 0 ? m.group() : "In(" + _constants[docId] + ")");
+						   });
+	}
+
+	private static String array(int[] values)
+	{
+		StringBuilder sb = new StringBuilder("{");
+		for (int i = 0; i < values.length; ++i)
+		{
+			if (i > 0)
+				sb.append(", ");
+			sb.append(values[i]);
+		}
+		return sb.append('}')
+				 .toString();
+	}
+
+	private static String array(boolean[] values)
+	{
+		StringBuilder sb = new StringBuilder("{");
+		for (int i = 0; i < values.length; ++i)
+		{
+			if (i > 0)
+				sb.append(", ");
+			sb.append(values[i]);
+		}
+		return sb.append('}')
+				 .toString();
+	}
+
+	/**
+	 * Creates a Java string literal.
+	 *
+	 * @param value The value, can be null.
+	 * @return The literal or "null".
+	 */
+	static String literal(String value)
+	{
+		if (value == null)
+			return "null";
+		StringBuilder sb = new StringBuilder(value.length() + 2);
+		sb.append('"');
+		for (int i = 0; i < value.length(); ++i)
+		{
+			final char c = value.charAt(i);
+			switch (c)
+			{
+				case '"' -> sb.append("\\\"");
+				case '\\' -> sb.append("\\\\");
+				case '\n' -> sb.append("\\n");
+				case '\r' -> sb.append("\\r");
+				case '\t' -> sb.append("\\t");
+				default ->
+				{
+					if (c < 0x20 || c > 0x7e)
+						sb.append(String.format("\\u%04x", (int) c));
+					else
+						sb.append(c);
+				}
+			}
+		}
+		return sb.append('"')
+				 .toString();
+	}
+
+	private static String javadoc(String text)
+	{
+		return text == null ? "" : text.replace("*/", "*&#47;")
+									   .replace("<", "&lt;");
+	}
+
+	/**
+	 * Converts a name to a Java identifier, invalid characters are replaced by '_'.
+	 *
+	 * @param name The name.
+	 * @return The identifier.
+	 */
+	static String toIdentifier(String name)
+	{
+		if (name == null || name.isEmpty())
+			return "_";
+		StringBuilder sb = new StringBuilder(name.length() + 1);
+		if (!Character.isJavaIdentifierStart(name.charAt(0)))
+			sb.append('_');
+		for (int i = 0; i < name.length(); ++i)
+		{
+			final char c = name.charAt(i);
+			sb.append(Character.isJavaIdentifierPart(c) && c != '$' ? c : '_');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Parses a SCXML file and writes the generated class into the source tree.<br>
+	 * The class is named by the "name" of the state machine or by the file name.
+	 *
+	 * @param scxmlFile       The SCXML file.
+	 * @param outputDirectory The root of the source tree.
+	 * @param packageName     The package of the class.
+	 * @return The written file.
+	 * @throws IOException        If a file can't be read or written.
+	 * @throws ParserException    If the SCXML file is invalid.
+	 * @throws GeneratorException If the state machine can't be generated.
+	 */
+	public static Path generate(Path scxmlFile, Path outputDirectory, String packageName) throws IOException, ParserException, GeneratorException
+	{
+		FiniteStateMachine fsm = new XmlParser().parse(scxmlFile, Files.readString(scxmlFile, StandardCharsets.UTF_8));
+		if (fsm == null)
+			throw new ParserException(String.format("Failed to parse '%s'", scxmlFile));
+		String name = fsm._name;
+		if (name == null || name.isEmpty())
+		{
+			name = scxmlFile.getFileName()
+							.toString();
+			final int dot = name.indexOf('.');
+			if (dot > 0)
+				name = name.substring(0, dot);
+		}
+		name = toIdentifier(name);
+		final String className = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+
+		Path directory = outputDirectory;
+		if (packageName != null && !packageName.isEmpty())
+			directory = directory.resolve(packageName.replace('.', '/'));
+		Files.createDirectories(directory);
+		Path file = directory.resolve(className + ".java");
+		Files.writeString(file, new JavaGenerator(fsm).generate(packageName, className), StandardCharsets.UTF_8);
+		return file;
+	}
+
+	/**
+	 * Command line entry, used by the Gradle task "generateStateMachines".<br>
+	 * Arguments: output directory, package, SCXML files.
+	 *
+	 * @param args The arguments.
+	 */
+	public static void main(String[] args)
+	{
+		if (args.length < 2)
+		{
+			System.err.println("Usage: JavaGenerator <output-directory> <package> <scxml-file>...");
+			System.exit(1);
+		}
+		try
+		{
+			for (int i = 2; i < args.length; ++i)
+			{
+				Path file = generate(Paths.get(args[i]), Paths.get(args[0]), args[1]);
+				System.out.println("Generated " + file);
+			}
+		}
+		catch (IOException | ParserException | GeneratorException e)
+		{
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+}
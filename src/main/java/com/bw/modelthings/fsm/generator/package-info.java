@@ -0,0 +1,4 @@
+/**
+ * Generation of Java classes from SCXML state machines.
+ */
+package com.bw.modelthings.fsm.generator;
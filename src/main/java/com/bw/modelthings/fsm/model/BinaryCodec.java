@@ -0,0 +1,199 @@
+package com.bw.modelthings.fsm.model;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary encoding of the values in snapshots and journals.<br>
+ * Integers are written as variable-length (7 bits per byte), strings as length and UTF-8 bytes, so the usual small
+ * numbers and short names need only few bytes.
+ */
+public final class BinaryCodec
+{
+	private static final byte EVENT_HAS_SEND_ID = 1;
+	private static final byte EVENT_HAS_ORIGIN = 2;
+	private static final byte EVENT_HAS_ORIGIN_TYPE = 4;
+	private static final byte EVENT_HAS_INVOKE_ID = 8;
+	private static final byte EVENT_HAS_DATA = 16;
+
+	private static final EventType[] EVENT_TYPES = EventType.values();
+
+	private BinaryCodec()
+	{
+	}
+
+	/**
+	 * Writes a non-negative integer with 1 to 5 bytes.
+	 *
+	 * @param out   The output.
+	 * @param value The value.
+	 * @throws IOException If writing fails.
+	 */
+	public static void writeVarInt(DataOutput out, int value) throws IOException
+	{
+		while ((value & ~0x7F) != 0)
+		{
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	/**
+	 * Reads an integer written by {@link #writeVarInt(DataOutput, int)}.
+	 *
+	 * @param in The input.
+	 * @return The value.
+	 * @throws IOException If reading fails or the data is corrupt.
+	 */
+	public static int readVarInt(DataInput in) throws IOException
+	{
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7)
+		{
+			final int b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Malformed variable-length integer");
+	}
+
+	/**
+	 * Writes a non-negative long with 1 to 10 bytes.
+	 *
+	 * @param out   The output.
+	 * @param value The value.
+	 * @throws IOException If writing fails.
+	 */
+	public static void writeVarLong(DataOutput out, long value) throws IOException
+	{
+		while ((value & ~0x7FL) != 0)
+		{
+			out.writeByte((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	/**
+	 * Reads a long written by {@link #writeVarLong(DataOutput, long)}.
+	 *
+	 * @param in The input.
+	 * @return The value.
+	 * @throws IOException If reading fails or the data is corrupt.
+	 */
+	public static long readVarLong(DataInput in) throws IOException
+	{
+		long value = 0;
+		for (int shift = 0; shift < 70; shift += 7)
+		{
+			final int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Malformed variable-length long");
+	}
+
+	/**
+	 * Writes a string of any length. Null is allowed.
+	 *
+	 * @param out   The output.
+	 * @param value The string or null.
+	 * @throws IOException If writing fails.
+	 */
+	public static void writeString(DataOutput out, String value) throws IOException
+	{
+		if (value == null)
+			writeVarInt(out, 0);
+		else
+		{
+			final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			writeVarInt(out, bytes.length + 1);
+			out.write(bytes);
+		}
+	}
+
+	/**
+	 * Reads a string written by {@link #writeString(DataOutput, String)}.
+	 *
+	 * @param in The input.
+	 * @return The string or null.
+	 * @throws IOException If reading fails.
+	 */
+	public static String readString(DataInput in) throws IOException
+	{
+		final int length = readVarInt(in);
+		if (length == 0)
+			return null;
+		final byte[] bytes = new byte[length - 1];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes an event with all fields.
+	 *
+	 * @param out   The output.
+	 * @param event The event.
+	 * @throws IOException If writing fails.
+	 */
+	public static void writeEvent(DataOutput out, Event event) throws IOException
+	{
+		writeString(out, event._name);
+		out.writeByte(event._eType.ordinal());
+		final int flags = (event._sendId != null ? EVENT_HAS_SEND_ID : 0) | (event._origin != null ? EVENT_HAS_ORIGIN : 0)
+				| (event._originType != null ? EVENT_HAS_ORIGIN_TYPE : 0) | (event._invokeId != null ? EVENT_HAS_INVOKE_ID : 0)
+				| (event._data != null ? EVENT_HAS_DATA : 0);
+		out.writeByte(flags);
+		if (event._sendId != null)
+			writeString(out, event._sendId);
+		if (event._origin != null)
+			writeString(out, event._origin);
+		if (event._originType != null)
+			writeString(out, event._originType);
+		if (event._invokeId != null)
+			writeString(out, event._invokeId);
+		if (event._data != null)
+		{
+			writeString(out, event._data.content);
+			writeString(out, event._data.contentExpr);
+		}
+	}
+
+	/**
+	 * Reads an event written by {@link #writeEvent(DataOutput, Event)}.
+	 *
+	 * @param in      The input.
+	 * @param symbols The symbols of the state machine, used to set the symbol of the event.
+	 * @return The event.
+	 * @throws IOException If reading fails or the data is corrupt.
+	 */
+	public static Event readEvent(DataInput in, EventSymbols symbols) throws IOException
+	{
+		final String name = readString(in);
+		final int type = in.readUnsignedByte();
+		if (name == null || type >= EVENT_TYPES.length)
+			throw new IOException("Malformed event");
+		final Event event = new Event(name, EVENT_TYPES[type], symbols.lookup(name));
+		final int flags = in.readUnsignedByte();
+		if ((flags & EVENT_HAS_SEND_ID) != 0)
+			event._sendId = readString(in);
+		if ((flags & EVENT_HAS_ORIGIN) != 0)
+			event._origin = readString(in);
+		if ((flags & EVENT_HAS_ORIGIN_TYPE) != 0)
+			event._originType = readString(in);
+		if ((flags & EVENT_HAS_INVOKE_ID) != 0)
+			event._invokeId = readString(in);
+		if ((flags & EVENT_HAS_DATA) != 0)
+		{
+			event._data = new DoneData();
+			event._data.content = readString(in);
+			event._data.contentExpr = readString(in);
+		}
+		return event;
+	}
+}
@@ -1,53 +1,380 @@
 package com.bw.modelthings.fsm.model;
 
+import java.util.Collection;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
 /**
  * <p>Implementation of the data-structures and algorithms described in the W3C scxml proposal.<br>
  * As reference each type and method has the w3c description as documentation.<br>
  * See <a href="https://www.w3.org/TR/scxml/#AlgorithmforSCXMLInterpretation">AlgorithmforSCXMLInterpretation</a>
  * </p>
  * <p>Structs and methods are designed to match the signatures in the W3c-Pseudo-code.</p>
+ * <p><b>Actual Implementation</b><br>
+ * Bounded lock-free ring-buffer for multiple producers and one consumer (the event loop of the session).
+ * Each slot has a sequence number: producers claim a position by CAS on the tail, write the element and
+ * publish it by setting the sequence of the slot. The consumer reads the slots in order without CAS.
+ * Enqueue doesn't lock and doesn't allocate. Waiting on an empty or full queue is done according to
+ * the {@link WaitStrategy}.<br>
+ * Sessions must never wait for a full queue: a session is the only consumer of its own queue, and sessions that
+ * wait for each other's queues (or for a carrier thread of a pool) deadlock. They use
+ * {@link #enqueueNonBlocking(Object)}, which puts elements that don't fit into an unbounded overflow.
+ * While the overflow is not empty, the ring takes no elements: {@link #offer(Object)} fails and
+ * {@link #enqueue(Object)} waits until the consumer has taken the overflow. So all elements in the ring are older than
+ * the elements in the overflow, and the consumer keeps the order by taking the ring first, then the overflow.</p>
  */
 public class BlockingQueue<T>
 {
-	java.util.concurrent.LinkedBlockingQueue<T> _queue;
-	boolean _stopped = false;
+	/**
+	 * Default capacity. Kept small, as each session owns a queue.
+	 */
+	public static final int DEFAULT_CAPACITY = 256;
 
 	/**
-	 * Creates a new BlockingQueue.
+	 * Time a producer parks if the queue is full and strategy is {@link WaitStrategy#park}.
+	 */
+	private static final long FULL_PARK_NANOS = 50_000L;
+
+	private final Object[] _buffer;
+	private final AtomicLongArray _sequences;
+	private final int _mask;
+	private final AtomicLong _tail = new AtomicLong();
+	private volatile long _head;
+	private volatile Thread _waitingConsumer;
+	private volatile Runnable _signal;
+	private final WaitStrategy _waitStrategy;
+
+	/**
+	 * Elements of {@link #enqueueNonBlocking(Object)} that didn't fit into the ring.
+	 */
+	private final ConcurrentLinkedQueue<T> _overflow = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Enqueue time of the element in each slot, null if not recorded.
+	 */
+	private long[] _enqueueNanos;
+
+	/**
+	 * Enqueue time of the element that {@link #poll()} returned last.
+	 */
+	private long _lastEnqueueNanos;
+	volatile boolean _stopped = false;
+
+	/**
+	 * Creates a new BlockingQueue with default capacity that parks waiting threads.
 	 */
 	public BlockingQueue()
 	{
+		this(DEFAULT_CAPACITY, WaitStrategy.park);
 	}
 
 	/**
-	 * Puts e last in the queue
+	 * Creates a new BlockingQueue.
+	 *
+	 * @param capacity     Maximal number of elements, rounded up to a power of 2.
+	 * @param waitStrategy How to wait on empty or full queue.
+	 */
+	public BlockingQueue(int capacity, WaitStrategy waitStrategy)
+	{
+		if (capacity < 1 || capacity > (1 << 30))
+			throw new IllegalArgumentException("Illegal capacity " + capacity);
+		final int size = Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+		_buffer = new Object[size];
+		_sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; ++i)
+			_sequences.set(i, i);
+		_mask = size - 1;
+		_waitStrategy = waitStrategy;
+	}
+
+	/**
+	 * Puts e last in the queue. Waits if the queue is full or the overflow is not empty.
+	 * Elements enqueued after {@link #stop()} are dropped.<br>
+	 * Only for threads that are not driven by a session, sessions use {@link #enqueueNonBlocking(Object)}.
 	 *
 	 * @param e The element to enqueue. Must not be null.
 	 */
 	public void enqueue(T e)
 	{
-		_queue.add(e);
+		while (!offer(e))
+		{
+			if (_stopped)
+				return;
+			switch (_waitStrategy)
+			{
+				case spin -> Thread.onSpinWait();
+				case yield -> Thread.yield();
+				case park -> LockSupport.parkNanos(this, FULL_PARK_NANOS);
+			}
+		}
 	}
 
 	/**
-	 * Removes and returns first element in queue, blocks if queue is empty.
+	 * Puts e last in the queue. Never waits: if the ring is full, or if earlier elements are already in the overflow,
+	 * the element is added to the unbounded overflow. Used by sessions, e.g. for events they send to themselves,
+	 * to their parent or to invoked sessions. Elements enqueued after {@link #stop()} are dropped.
 	 *
-	 * @return The element, null only if machine stops.
+	 * @param e The element to enqueue. Must not be null.
 	 */
-	public T dequeue()
+	public void enqueueNonBlocking(T e)
 	{
-		do
+		if (_stopped)
+			return;
+		if (!offer(e))
 		{
-			try
+			_overflow.add(e);
+			wakeUpConsumer();
+		}
+	}
+
+	/**
+	 * Puts e last in the queue if there is space. Doesn't wait. Fails while the overflow is not empty, as older
+	 * elements are waiting there.
+	 *
+	 * @param e The element to enqueue. Must not be null.
+	 * @return true if the element was added, false if the queue is full.
+	 */
+	public boolean offer(T e)
+	{
+		if (e == null)
+			throw new NullPointerException();
+		if (!_overflow.isEmpty())
+			return false;
+		long pos = _tail.get();
+		while (true)
+		{
+			final int slot = (int) pos & _mask;
+			final long dif = _sequences.get(slot) - pos;
+			if (dif == 0)
 			{
-				T e = _queue.take();
-				if (!_stopped)
-					return e;
+				if (_tail.compareAndSet(pos, pos + 1))
+				{
+					_buffer[slot] = e;
+					if (_enqueueNanos != null)
+						_enqueueNanos[slot] = System.nanoTime();
+					_sequences.set(slot, pos + 1);
+					wakeUpConsumer();
+					return true;
+				}
+				pos = _tail.get();
 			}
-			catch (InterruptedException e)
+			else if (dif < 0)
+				return false;
+			else
+				pos = _tail.get();
+		}
+	}
+
+	/**
+	 * Removes and returns first element in queue if there is one. Doesn't wait. Must only be called by the consumer.
+	 *
+	 * @return The element or null if the queue is empty.
+	 */
+	@SuppressWarnings("unchecked")
+	public T poll()
+	{
+		final long pos = _head;
+		final int slot = (int) pos & _mask;
+		if (_sequences.get(slot) != pos + 1)
+		{
+			final T e = _overflow.poll();
+			if (e != null && _enqueueNanos != null)
+				_lastEnqueueNanos = 0;
+			return e;
+		}
+		T e = (T) _buffer[slot];
+		_buffer[slot] = null;
+		if (_enqueueNanos != null)
+			_lastEnqueueNanos = _enqueueNanos[slot];
+		_sequences.set(slot, pos + _buffer.length);
+		_head = pos + 1;
+		return e;
+	}
+
+	/**
+	 * Records the time of each enqueue, see {@link #getLastEnqueueNanos()}. Must be called before the queue is used
+	 * by other threads.
+	 */
+	public void recordEnqueueTimes()
+	{
+		if (_enqueueNanos == null)
+			_enqueueNanos = new long[_buffer.length];
+	}
+
+	/**
+	 * Gets the time when the element that was removed last was enqueued. Must only be called by the consumer.
+	 *
+	 * @return The {@link System#nanoTime()} of the enqueue, 0 if times are not recorded or the element was taken
+	 * from the overflow.
+	 */
+	public long getLastEnqueueNanos()
+	{
+		return _lastEnqueueNanos;
+	}
+
+	/**
+	 * Removes and returns first element in queue, waits if queue is empty. Must only be called by the consumer.
+	 *
+	 * @return The element, null only if machine stops.
+	 */
+	public T dequeue()
+	{
+		while (!_stopped)
+		{
+			T e = poll();
+			if (e != null)
+				return _stopped ? null : e;
+			waitForElement();
+		}
+		return null;
+	}
+
+	/**
+	 * Removes up to maxElements elements and adds them to target. Doesn't wait. Must only be called by the consumer.
+	 *
+	 * @param target      The collection to add the elements to.
+	 * @param maxElements The maximal number of elements to remove.
+	 * @return The number of removed elements.
+	 */
+	public int drainTo(Collection<? super T> target, int maxElements)
+	{
+		int n = 0;
+		while (n < maxElements)
+		{
+			T e = poll();
+			if (e == null)
+				break;
+			target.add(e);
+			++n;
+		}
+		return n;
+	}
+
+	/**
+	 * Adds all elements in queue order to a collection, without removing them. Must only be called by the consumer.
+	 * Elements that producers add concurrently may be missing.
+	 *
+	 * @param target The collection.
+	 * @return The number of elements.
+	 */
+	@SuppressWarnings("unchecked")
+	public int copyTo(Collection<? super T> target)
+	{
+		int n = 0;
+		for (long pos = _head; _sequences.get((int) pos & _mask) == pos + 1; ++pos)
+		{
+			target.add((T) _buffer[(int) pos & _mask]);
+			++n;
+		}
+		for (T e : _overflow)
+		{
+			target.add(e);
+			++n;
+		}
+		return n;
+	}
+
+	private void waitForElement()
+	{
+		switch (_waitStrategy)
+		{
+			case spin -> Thread.onSpinWait();
+			case yield -> Thread.yield();
+			case park ->
 			{
+				_waitingConsumer = Thread.currentThread();
+				// Check again after announcing, a producer may have published before it could see us.
+				if (isEmpty() && !_stopped)
+					LockSupport.park(this);
+				_waitingConsumer = null;
+				// Interrupts are only used to wake us up, stop is signalled by the flag.
+				Thread.interrupted();
 			}
-		} while (!_stopped);
-		return null;
+		}
+	}
+
+	private void wakeUpConsumer()
+	{
+		final Thread consumer = _waitingConsumer;
+		if (consumer != null)
+			LockSupport.unpark(consumer);
+		final Runnable signal = _signal;
+		if (signal != null)
+			signal.run();
+	}
+
+	/**
+	 * Sets a signal that is called by producers after each added element and by {@link #stop()}.
+	 * Used for consumers that don't wait in {@link #dequeue()} but are scheduled on demand.
+	 * The signal is called by the producer threads and must be short and thread-safe.
+	 *
+	 * @param signal The signal or null.
+	 */
+	public void setSignal(Runnable signal)
+	{
+		_signal = signal;
+	}
+
+	/**
+	 * Stops the queue. Wakes up a parked consumer, further calls to {@link #dequeue()} return null.
+	 */
+	public void stop()
+	{
+		_stopped = true;
+		wakeUpConsumer();
+	}
+
+	/**
+	 * Checks if the queue was stopped.
+	 *
+	 * @return true if {@link #stop()} was called.
+	 */
+	public boolean isStopped()
+	{
+		return _stopped;
+	}
+
+	/**
+	 * Gets the strategy used to wait on empty or full queue.
+	 *
+	 * @return The strategy.
+	 */
+	public WaitStrategy getWaitStrategy()
+	{
+		return _waitStrategy;
+	}
+
+	/**
+	 * Is the queue empty?
+	 *
+	 * @return true if empty.
+	 */
+	public boolean isEmpty()
+	{
+		final long pos = _head;
+		return _sequences.get((int) pos & _mask) != pos + 1 && _overflow.isEmpty();
+	}
+
+	/**
+	 * Gets the current number of elements. The value may be outdated if producers are active.
+	 *
+	 * @return The number of elements, including the overflow.
+	 */
+	public int size()
+	{
+		final int size = (int) Math.max(0, _tail.get() - _head);
+		return _overflow.isEmpty() ? size : size + _overflow.size();
+	}
+
+	/**
+	 * Gets the capacity of the ring.
+	 *
+	 * @return The maximal number of elements without overflow.
+	 */
+	public int capacity()
+	{
+		return _buffer.length;
 	}
 }
@@ -0,0 +1,53 @@
+package com.bw.modelthings.fsm.model;
+
+/**
+ * <strong>W3C says:</strong><br>
+ * The &lt;data&gt; element is used to declare and populate portions of the data model.<br>
+ * <strong>Actual Implementation:</strong><br>
+ * Declarations are part of the definition and shared by all sessions. The value is created by the datamodel of each
+ * session in {@link Datamodel#initializeDataModel(FiniteStateMachine, State)}.
+ */
+public class DataDeclaration implements FsmElement
+{
+	/**
+	 * Creates a new empty declaration.
+	 */
+	public DataDeclaration()
+	{
+	}
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * The name of the data item.
+	 */
+	public String _id;
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * Gives the location from which the data object should be fetched.<br>
+	 * <strong>Actual Implementation:</strong><br>
+	 * Not supported, the parser logs a warning.
+	 */
+	public String _src;
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * Evaluates to provide the value of the data item.
+	 */
+	public String _expr;
+
+	/**
+	 * The text of the child content or null. The datamodel decides how to interpret it.
+	 */
+	public String _content;
+
+	/**
+	 * The compiled {@link #_expr}, null until compiled or if there is no expression.
+	 */
+	public Expression _compiledExpr;
+
+	/**
+	 * The slot of the value in the {@link DataStore} of a session, assigned when the definition is compiled.
+	 */
+	public int _slot = DataStore.NO_SLOT;
+}
@@ -1,22 +1,180 @@
 package com.bw.modelthings.fsm.model;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
 
 /**
- * Hold data. Simple wrapper around a hash-map.
+ * Holds the values of the variables of one session.<br>
+ * All &lt;data&gt; ids of a definition are known when the definition is compiled. Each id gets a slot
+ * (see {@link DataDeclaration#_slot}) and the values are stored in one flat array, so datamodels that know the slot
+ * access a value without hashing. Names without slot (variables created at run-time) are stored in a map.
  */
 public class DataStore
 {
+	/**
+	 * Slot of names that are not declared by a &lt;data&gt; element.
+	 */
+	public static final int NO_SLOT = -1;
+
+	/**
+	 * The slots of a definition. Immutable and shared by all sessions.
+	 */
+	public static final class Layout
+	{
+		/**
+		 * Layout without any declared data.
+		 */
+		public static final Layout EMPTY = new Layout(Collections.emptyMap());
+
+		private final Map<String, Integer> _slots;
+
+		private Layout(Map<String, Integer> slots)
+		{
+			_slots = slots;
+		}
+
+		/**
+		 * Assigns the slots of all &lt;data&gt; elements. Elements with the same id share the slot.
+		 *
+		 * @param states The states in document order.
+		 * @return The new layout.
+		 */
+		public static Layout create(Iterable<State> states)
+		{
+			HashMap<String, Integer> slots = new HashMap<>();
+			for (State state : states)
+			{
+				for (DataDeclaration data : state._dataDeclarations)
+				{
+					Integer slot = slots.get(data._id);
+					if (slot == null)
+					{
+						slot = slots.size();
+						slots.put(data._id, slot);
+					}
+					data._slot = slot;
+				}
+			}
+			return slots.isEmpty() ? EMPTY : new Layout(slots);
+		}
+
+		/**
+		 * Gets the slot of a name.
+		 *
+		 * @param name The name of the variable.
+		 * @return The slot or {@link #NO_SLOT}.
+		 */
+		public int slotOf(String name)
+		{
+			Integer slot = _slots.get(name);
+			return slot == null ? NO_SLOT : slot;
+		}
+
+		/**
+		 * Gets the number of slots.
+		 *
+		 * @return The size of the value array of a store.
+		 */
+		public int size()
+		{
+			return _slots.size();
+		}
+	}
+
+	private final Layout _layout;
+
+	private final Object[] _values;
+
+	/**
+	 * Values of names without slot, null until needed.
+	 */
+	private HashMap<String, Object> _dynamic;
+
 	/**
 	 * Create a new empty data-store.
+	 *
+	 * @param layout The slots of the definition.
+	 */
+	public DataStore(Layout layout)
+	{
+		_layout = layout;
+		_values = new Object[layout.size()];
+	}
+
+	/**
+	 * Gets the layout of this store.
+	 *
+	 * @return The layout.
+	 */
+	public Layout getLayout()
+	{
+		return _layout;
+	}
+
+	/**
+	 * Gets a value by slot.
+	 *
+	 * @param slot The slot.
+	 * @return The value, can be null.
+	 */
+	public Object get(int slot)
+	{
+		return _values[slot];
+	}
+
+	/**
+	 * Sets a value by slot.
+	 *
+	 * @param slot  The slot.
+	 * @param value The new value.
+	 * @return The previous value.
 	 */
-	public DataStore()
+	public Object set(int slot, Object value)
 	{
+		final Object previous = _values[slot];
+		_values[slot] = value;
+		return previous;
+	}
 
+	/**
+	 * Gets a value by name.
+	 *
+	 * @param name The name.
+	 * @return The value or null.
+	 */
+	public Object get(String name)
+	{
+		final int slot = _layout.slotOf(name);
+		if (slot != NO_SLOT)
+			return _values[slot];
+		return _dynamic == null ? null : _dynamic.get(name);
 	}
 
 	/**
-	 * The map that holds the data.
+	 * Sets a value by name.
+	 *
+	 * @param name  The name.
+	 * @param value The new value.
+	 * @return The previous value.
 	 */
-	public final HashMap<String, Data> values = new HashMap<>();
+	public Object set(String name, Object value)
+	{
+		final int slot = _layout.slotOf(name);
+		if (slot != NO_SLOT)
+			return set(slot, value);
+		if (_dynamic == null)
+			_dynamic = new HashMap<>();
+		return _dynamic.put(name, value);
+	}
+
+	/**
+	 * Removes all values.
+	 */
+	public void clear()
+	{
+		Arrays.fill(_values, null);
+		_dynamic = null;
+	}
 }
@@ -0,0 +1,28 @@
+package com.bw.modelthings.fsm.model;
+
+/**
+ * Wraps values of script based datamodels for {@link Datamodel#get(String)} and {@link Datamodel#set(String, Data)}.
+ */
+public final class DataValue implements Data
+{
+	/**
+	 * The value as used by the datamodel.
+	 */
+	public final Object _value;
+
+	/**
+	 * Creates a new value.
+	 *
+	 * @param value The value.
+	 */
+	public DataValue(Object value)
+	{
+		_value = value;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.valueOf(_value);
+	}
+}
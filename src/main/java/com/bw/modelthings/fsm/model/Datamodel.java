@@ -1,5 +1,9 @@
 package com.bw.modelthings.fsm.model;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /**
  * <strong>W3C says:</strong><br>
  * The Data Model offers the capability of storing, reading, and modifying a set of data that is internal to the state machine.
@@ -60,6 +64,21 @@ public interface Datamodel
 	 */
 	void clear();
 
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * The SCXML Processor must use the variable '_event' to hold a structure containing the current event's properties.
+	 * The Processor must bind _event when an event is pulled off the internal or external event queue to be processed,
+	 * and must keep the variable bound to that event until another event is processed.<br>
+	 * <strong>Actual Implementation:</strong><br>
+	 * Called by the interpreter before the transitions for the event are selected. The default implementation does
+	 * nothing, for datamodels without expressions.
+	 *
+	 * @param event The event.
+	 */
+	default void setEvent(Event event)
+	{
+	}
+
 	/**
 	 * "log" function, use for &lt;log&gt; content.
 	 *
@@ -69,13 +88,75 @@ public interface Datamodel
 	void log(String label, String msg);
 
 	/**
-	 * Execute a script.
+	 * Compiles an expression or script. Called once for each expression of the definition, the result is cached on the
+	 * model element and executed by all sessions.<br>
+	 * Errors are not reported here, but by the execution of the returned expression (resulting in "error.execution").
+	 *
+	 * @param fsm    The State Machine to work on.
+	 * @param source The source of the expression.
+	 * @return The compiled expression. Never null.
+	 */
+	Expression compile(FiniteStateMachine fsm, String source);
+
+	/**
+	 * Called after all expressions of a definition were compiled by {@link #compile(FiniteStateMachine, String)},
+	 * {@link #compileAssignment(FiniteStateMachine, String, String)} and for all &lt;data&gt; elements.
+	 * Datamodels that compile all expressions of a definition together do it here.
+	 *
+	 * @param fsm The State Machine.
+	 */
+	default void finishCompilation(FiniteStateMachine fsm)
+	{
+	}
+
+	/**
+	 * Compiles an assignment of a value to a location, used for &lt;assign&gt;.
+	 * The result is executed by {@link #execute(FiniteStateMachine, Expression)}.
+	 *
+	 * @param fsm      The State Machine to work on.
+	 * @param location The location expression.
+	 * @param expr     The value expression.
+	 * @return The compiled assignment. Never null.
+	 */
+	Expression compileAssignment(FiniteStateMachine fsm, String location, String expr);
+
+	/**
+	 * Compiles an assignment with the "type" and "attr" attributes of the XPath profile.<br>
+	 * Datamodels without assignment types ignore them.
+	 *
+	 * @param fsm      The State Machine to work on.
+	 * @param location The location expression.
+	 * @param expr     The value expression.
+	 * @param type     The type of the assignment, null for the default.
+	 * @param attr     The attribute name for type "addattribute", can be null.
+	 * @return The compiled assignment. Never null.
+	 */
+	default Expression compileAssignment(FiniteStateMachine fsm, String location, String expr, String type, String attr)
+	{
+		return compileAssignment(fsm, location, expr);
+	}
+
+	/**
+	 * Execute a compiled script.
 	 *
 	 * @param fsm    The State Machine to work on.
 	 * @param script The script to execute
 	 * @return The result value from script.
 	 */
-	String execute(FiniteStateMachine fsm, String script);
+	String execute(FiniteStateMachine fsm, Expression script);
+
+	/**
+	 * Execute a script. Compiles the script on each call, use {@link #execute(FiniteStateMachine, Expression)}
+	 * for all expressions that are known in advance.
+	 *
+	 * @param fsm    The State Machine to work on.
+	 * @param script The script to execute
+	 * @return The result value from script.
+	 */
+	default String execute(FiniteStateMachine fsm, String script)
+	{
+		return execute(fsm, compile(fsm, script));
+	}
 
 	/**
 	 * Executes a for-each.
@@ -98,11 +179,51 @@ public interface Datamodel
 	 * As no side-effects shall occur, this method should be some "const". But we assume that most script-engines have
 	 * no read-only "eval" function and such method may be hard to implement.
 	 *
+	 * @param fsm       The State Machine.
+	 * @param condition The compiled condition.
+	 * @return true if condition returns true.
+	 */
+	boolean executeCondition(FiniteStateMachine fsm, Expression condition);
+
+	/**
+	 * Evaluates a condition. Compiles the condition on each call,
+	 * use {@link #executeCondition(FiniteStateMachine, Expression)} for all conditions that are known in advance.
+	 *
 	 * @param fsm    The State Machine.
 	 * @param script The script to execute.
 	 * @return true if script returns true.
 	 */
-	boolean executeCondition(FiniteStateMachine fsm, String script);
+	default boolean executeCondition(FiniteStateMachine fsm, String script)
+	{
+		return executeCondition(fsm, compile(fsm, script));
+	}
+
+	/**
+	 * Writes the data of the session to a snapshot, see {@link #readSnapshot(FiniteStateMachine, DataInput)}.<br>
+	 * The default implementation doesn't support snapshots.
+	 *
+	 * @param fsm The State Machine.
+	 * @param out The output.
+	 * @throws IOException                   If writing fails.
+	 * @throws UnsupportedOperationException If the datamodel or a value can't be stored.
+	 */
+	default void writeSnapshot(FiniteStateMachine fsm, DataOutput out) throws IOException
+	{
+		throw new UnsupportedOperationException(String.format("Datamodel '%s' doesn't support snapshots", getName()));
+	}
+
+	/**
+	 * Restores the data of the session from a snapshot. The datamodel is new and was not initialized.
+	 *
+	 * @param fsm The State Machine.
+	 * @param in  The input.
+	 * @throws IOException                   If reading fails or the data is corrupt.
+	 * @throws UnsupportedOperationException If the datamodel doesn't support snapshots.
+	 */
+	default void readSnapshot(FiniteStateMachine fsm, DataInput in) throws IOException
+	{
+		throw new UnsupportedOperationException(String.format("Datamodel '%s' doesn't support snapshots", getName()));
+	}
 
 	/**
 	 * Executes content.
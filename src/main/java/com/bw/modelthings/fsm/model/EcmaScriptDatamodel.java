@@ -0,0 +1,807 @@
+package com.bw.modelthings.fsm.model;
+
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+import javax.script.SimpleScriptContext;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <strong>W3C says:</strong><br>
+ * The value "ecmascript" for the 'datamodel' attribute of the &lt;scxml&gt; element specifies that the ECMAScript
+ * data model is being used.<br>
+ * <strong>Actual Implementation:</strong><br>
+ * Uses a JSR-223 script engine ("graal.js", "nashorn" or any other engine registered as "javascript"), that must
+ * be on the class-path.
+ * <ul>
+ * <li>All sources are compiled by one shared engine into {@link CompiledScript}s. Compiled scripts are cached by
+ * source in the definition, so all sessions of a definition share them. The cache has at most
+ * {@link #MAX_CACHED_EXPRESSIONS} entries, further sources are compiled on each call.</li>
+ * <li>Each session needs its own global scope (a {@link ScriptContext}). Creating a scope is expensive (the engine
+ * creates all built-in objects), so scopes are taken from a pool when the session first needs one and returned
+ * by {@link #clear()} when the session ends. A scope is only returned if the session left the built-in objects
+ * and their prototypes as they were, otherwise it is dropped.</li>
+ * <li>"In(id)" is a function of the global scope that tests the bit of the state in the configuration. Calls with
+ * the quoted id of an existing state are compiled to a test of the document-id, so they don't look up the state.</li>
+ * </ul>
+ */
+public class EcmaScriptDatamodel implements Datamodel
+{
+	/**
+	 * The name of this datamodel.
+	 */
+	public static final String NAME = "ecmascript";
+
+	/**
+	 * Names of the engines to search for, in order of preference.
+	 */
+	public static final String[] ENGINE_NAMES = {"graal.js", "nashorn", "javascript"};
+
+	/**
+	 * Maximal number of pooled scopes.
+	 */
+	public static final int SCOPE_POOL_SIZE = 64;
+
+	/**
+	 * Maximal number of compiled expressions that are cached per definition.
+	 */
+	public static final int MAX_CACHED_EXPRESSIONS = 4096;
+
+	/**
+	 * Name of the global variable that holds the {@link Configuration} of the session.
+	 */
+	protected static final String CONFIGURATION_VARIABLE = "_scxmlConfiguration";
+
+	/**
+	 * Name of the system variable that holds the current event.
+	 */
+	protected static final String EVENT_VARIABLE = "_event";
+
+	/**
+	 * "In" predicate with a quoted state id, that is not part of another name.
+	 */
+	private static final Pattern IN_PREDICATE = Pattern.compile("(?<![\\w.$])In\\(\\s*(['\"])([^'\"\\\\]*)\\1\\s*\\)");
+
+	/**
+	 * Name of the global function that checks that the built-in objects of a scope are unchanged.
+	 */
+	protected static final String PRISTINE_FUNCTION = "_scxmlPristine";
+
+	/**
+	 * Script that is executed once for each new scope. Defines "In" and records the built-in objects, their
+	 * prototypes and their properties for {@link #PRISTINE_FUNCTION}.
+	 */
+	protected static final String PRELUDE = "function In(id) { return " + CONFIGURATION_VARIABLE + ".isIn(id); }\n" +
+			"var " + PRISTINE_FUNCTION + " = (function (g) {\n" +
+			"  var names = ['Object', 'Function', 'Array', 'String', 'Boolean', 'Number', 'Math', 'Date', 'RegExp', 'JSON',\n" +
+			"    'Error', 'EvalError', 'RangeError', 'ReferenceError', 'SyntaxError', 'TypeError', 'URIError',\n" +
+			"    'parseInt', 'parseFloat', 'isNaN', 'isFinite', 'decodeURI', 'decodeURIComponent', 'encodeURI',\n" +
+			"    'encodeURIComponent', 'In'];\n" +
+			"  var globals = [], objects = [], records = [];\n" +
+			"  function properties(o) {\n" +
+			"    var own = Object.getOwnPropertyNames(o), values = [Object.isExtensible(o)];\n" +
+			"    for (var i = 0; i < own.length; ++i) {\n" +
+			"      var d = Object.getOwnPropertyDescriptor(o, own[i]);\n" +
+			"      values.push(own[i], d.value, d.get, d.set);\n" +
+			"    }\n" +
+			"    return values;\n" +
+			"  }\n" +
+			"  function same(a, b) { return a === b || (a !== a && b !== b); }\n" +
+			"  for (var i = 0; i < names.length; ++i) {\n" +
+			"    var v = g[names[i]];\n" +
+			"    globals.push(v);\n" +
+			"    if (v !== null && (typeof v === 'object' || typeof v === 'function')) {\n" +
+			"      objects.push(v);\n" +
+			"      if (v.prototype) objects.push(v.prototype);\n" +
+			"    }\n" +
+			"  }\n" +
+			"  for (var k = 0; k < objects.length; ++k) records.push(properties(objects[k]));\n" +
+			"  function pristine() {\n" +
+			"    if (g." + PRISTINE_FUNCTION + " !== pristine) return false;\n" +
+			"    for (var i = 0; i < names.length; ++i) if (g[names[i]] !== globals[i]) return false;\n" +
+			"    for (var k = 0; k < objects.length; ++k) {\n" +
+			"      var o = objects[k], then = records[k], own = Object.getOwnPropertyNames(o);\n" +
+			"      if (Object.isExtensible(o) !== then[0] || 4 * own.length + 1 !== then.length) return false;\n" +
+			"      for (var i = 0, j = 1; i < own.length; ++i, j += 4) {\n" +
+			"        var d = Object.getOwnPropertyDescriptor(o, own[i]);\n" +
+			"        if (own[i] !== then[j] || !same(d.value, then[j + 1]) || d.get !== then[j + 2] || d.set !== then[j + 3]) return false;\n" +
+			"      }\n" +
+			"    }\n" +
+			"    return true;\n" +
+			"  }\n" +
+			"  return pristine;\n" +
+			"})(this);";
+
+	/**
+	 * Source of the call of {@link #PRISTINE_FUNCTION}.
+	 */
+	private static final String PRISTINE_CALL = PRISTINE_FUNCTION + "()";
+
+	/**
+	 * Variables that pass the name and the JSON of a variable to {@link #SNAPSHOT_WRITE} and {@link #SNAPSHOT_READ}.
+	 */
+	private static final String SNAPSHOT_NAME = "_scxmlSnapshotName";
+	private static final String SNAPSHOT_JSON = "_scxmlSnapshotJson";
+
+	/**
+	 * Converts the variable {@link #SNAPSHOT_NAME} to JSON, null if it is undefined.
+	 * Fails for values that JSON can't represent.
+	 */
+	private static final String SNAPSHOT_WRITE = "(function (v) {\n" +
+			"  if (v === undefined) return null;\n" +
+			"  var json = typeof v === 'function' ? undefined : JSON.stringify(v);\n" +
+			"  if (json === undefined) throw new TypeError('value has no JSON representation');\n" +
+			"  return json;\n" +
+			"})(this[" + SNAPSHOT_NAME + "])";
+
+	/**
+	 * Sets the variable {@link #SNAPSHOT_NAME} to the value of {@link #SNAPSHOT_JSON}.
+	 */
+	private static final String SNAPSHOT_READ = "this[" + SNAPSHOT_NAME + "] = " + SNAPSHOT_JSON + " === null ? undefined : JSON.parse(" + SNAPSHOT_JSON + ")";
+
+	protected final static Logger LOG = Logger.getLogger(EcmaScriptDatamodel.class.getName());
+
+	/**
+	 * The factory of the engine to use or null. The engine itself is created on first use.
+	 */
+	private static final ScriptEngineFactory FACTORY = findFactory();
+
+	private final GlobalData _globalData = new GlobalData();
+
+	/**
+	 * The scope of this session, null until needed.
+	 */
+	private Scope _scope;
+
+	/**
+	 * The "In" predicate of this session.
+	 */
+	private final Configuration _configuration = new Configuration(_globalData.configuration);
+
+	/**
+	 * The value of "_event", null before the first event.
+	 */
+	private EventVariable _event;
+
+	/**
+	 * Creates a new ECMAScript datamodel.
+	 */
+	public EcmaScriptDatamodel()
+	{
+	}
+
+	/**
+	 * Checks if a script engine is available.
+	 *
+	 * @return true if the datamodel can be used.
+	 */
+	public static boolean isSupported()
+	{
+		return FACTORY != null;
+	}
+
+	@Override
+	public GlobalData global()
+	{
+		return _globalData;
+	}
+
+	@Override
+	public String getName()
+	{
+		return NAME;
+	}
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * For each &lt;data&gt; element in the document, the SCXML Processor must create an ECMAScript variable object
+	 * whose name is the value of the id attribute of &lt;data&gt;. If the 'expr' attribute is present, the Platform must
+	 * assign its value to the variable. If no value is assigned, the SCXML Processor must assign it the null value.<br>
+	 * If the value specified for a &lt;data&gt; element (by 'src', children, or the environment) is not a legal data value,
+	 * the SCXML Processor must raise place error.execution in the internal event queue and must create an empty data
+	 * element in the data model with the specified id.
+	 *
+	 * @param fsm   The State Machine to work on.
+	 * @param state The State to initialize.
+	 */
+	@Override
+	public void initializeDataModel(FiniteStateMachine fsm, State state)
+	{
+		final Scope scope = scope(fsm);
+		RuntimeException error = null;
+		for (DataDeclaration data : state._dataDeclarations)
+		{
+			Object value = null;
+			try
+			{
+				if (data._compiledExpr != null)
+					value = eval(scope, data._compiledExpr);
+				else if (data._expr != null)
+					value = eval(scope, compile(fsm, data._expr));
+				else if (data._content != null)
+					// Content is a JSON or ECMAScript value, not a program. The compiled script is cached by source.
+					value = eval(scope, compile(fsm, "(" + data._content + ")"));
+			}
+			catch (RuntimeException e)
+			{
+				if (error == null)
+					error = e;
+			}
+			scope._bindings.put(data._id, value);
+		}
+		if (error != null)
+			throw error;
+	}
+
+	@Override
+	public void set(String name, Data data)
+	{
+		scope(null)._bindings.put(name, data instanceof DataValue ? ((DataValue) data)._value : data);
+	}
+
+	@Override
+	public Data get(String name)
+	{
+		if (_scope == null)
+			return null;
+		Object value = _scope._bindings.get(name);
+		return value == null || value instanceof Data ? (Data) value : new DataValue(value);
+	}
+
+	/**
+	 * Returns the scope of the session to the pool. The next access gets a new scope.
+	 */
+	@Override
+	public void clear()
+	{
+		Scope scope = _scope;
+		_scope = null;
+		if (scope != null)
+			Engine.INSTANCE.release(scope);
+	}
+
+	/**
+	 * Binds "_event" to an {@link EventVariable}.
+	 *
+	 * @param event The event.
+	 */
+	@Override
+	public void setEvent(Event event)
+	{
+		_event = new EventVariable(event);
+		if (_scope != null)
+			_scope._bindings.put(EVENT_VARIABLE, _event);
+	}
+
+	/**
+	 * Writes the variables of the session as JSON.<br>
+	 * Values are converted by JSON.stringify, so only JSON data is restored as it was: objects, arrays, strings,
+	 * finite numbers, booleans and null. Undefined variables stay undefined. Inside of objects and arrays, dates
+	 * become strings and functions are dropped.
+	 *
+	 * @param fsm The State Machine.
+	 * @param out The output.
+	 * @throws IOException                   If writing fails.
+	 * @throws UnsupportedOperationException If a variable holds a function or a value without JSON representation.
+	 */
+	@Override
+	public void writeSnapshot(FiniteStateMachine fsm, DataOutput out) throws IOException
+	{
+		final Scope scope = _scope;
+		out.writeBoolean(scope != null);
+		if (scope == null)
+			return;
+		final Engine engine = Engine.get();
+		final ArrayList<String> names = new ArrayList<>();
+		for (String name : scope._bindings.keySet())
+		{
+			if (!scope._baseline.contains(name) && !isSystemVariable(name))
+				names.add(name);
+		}
+		try
+		{
+			for (String name : names)
+			{
+				scope._bindings.put(SNAPSHOT_NAME, name);
+				final Object json;
+				try
+				{
+					json = eval(scope, engine._snapshotWrite);
+				}
+				catch (IllegalStateException e)
+				{
+					throw new UnsupportedOperationException(
+							String.format("Variable '%s' can't be stored, it holds a function or a value without JSON representation", name), e);
+				}
+				BinaryCodec.writeString(out, name);
+				BinaryCodec.writeString(out, json == null ? null : json.toString());
+			}
+		}
+		finally
+		{
+			scope._bindings.remove(SNAPSHOT_NAME);
+		}
+		BinaryCodec.writeString(out, null);
+	}
+
+	@Override
+	public void readSnapshot(FiniteStateMachine fsm, DataInput in) throws IOException
+	{
+		clear();
+		if (!in.readBoolean())
+			return;
+		final Scope scope = scope(fsm);
+		final Engine engine = Engine.get();
+		try
+		{
+			for (String name = BinaryCodec.readString(in); name != null; name = BinaryCodec.readString(in))
+			{
+				scope._bindings.put(SNAPSHOT_NAME, name);
+				scope._bindings.put(SNAPSHOT_JSON, BinaryCodec.readString(in));
+				eval(scope, engine._snapshotRead);
+			}
+		}
+		catch (IllegalStateException e)
+		{
+			throw new IOException("Malformed data in snapshot", e);
+		}
+		finally
+		{
+			scope._bindings.remove(SNAPSHOT_NAME);
+			scope._bindings.remove(SNAPSHOT_JSON);
+		}
+	}
+
+	/**
+	 * Checks if a variable is set by the datamodel for each session and is not stored in snapshots.
+	 */
+	private static boolean isSystemVariable(String name)
+	{
+		return CONFIGURATION_VARIABLE.equals(name) || EVENT_VARIABLE.equals(name) || "_sessionid".equals(name) || "_name".equals(name);
+	}
+
+	@Override
+	public void log(String label, String msg)
+	{
+		if (LOG.isLoggable(Level.INFO))
+			LOG.info(label == null || label.isEmpty() ? msg : label + ": " + msg);
+	}
+
+	/**
+	 * Compiles the source with the shared engine. The result is cached by source in the definition.
+	 *
+	 * @param fsm    The State Machine to work on, null to compile without cache.
+	 * @param source The source of the expression.
+	 * @return The compiled expression.
+	 */
+	@Override
+	public Expression compile(FiniteStateMachine fsm, String source)
+	{
+		if (fsm == null)
+			return Engine.get()
+						 .compile(source, source);
+		Expression e = fsm._compiledExpressions.get(source);
+		if (e == null)
+		{
+			e = Engine.get()
+					  .compile(source, resolveInPredicates(fsm, source));
+			// The size is only approximate with concurrent compiles, that's good enough for a bound.
+			if (fsm._compiledExpressions.size() < MAX_CACHED_EXPRESSIONS)
+			{
+				final Expression cached = fsm._compiledExpressions.putIfAbsent(source, e);
+				if (cached != null)
+					e = cached;
+			}
+		}
+		return e;
+	}
+
+	/**
+	 * Replaces "In" predicates with quoted ids of existing states by a test of the document-id.
+	 */
+	private static String resolveInPredicates(FiniteStateMachine fsm, String source)
+	{
+		if (!source.contains("In("))
+			return source;
+		return IN_PREDICATE.matcher(source)
+						   .replaceAll(m ->
+						   {
+							   State state = fsm._states.get(m.group(2));
+							   return state == null ? Matcher.quoteReplacement(m.group()) : CONFIGURATION_VARIABLE + ".isActive(" + state._docId + ")";
+						   });
+	}
+
+	/**
+	 * Compiles the assignment as one script "location = value".
+	 *
+	 * @param fsm      The State Machine to work on.
+	 * @param location The location expression.
+	 * @param expr     The value expression.
+	 * @return The compiled assignment.
+	 */
+	@Override
+	public Expression compileAssignment(FiniteStateMachine fsm, String location, String expr)
+	{
+		return compile(fsm, location + " = " + (expr == null ? "undefined" : "(" + expr + ")") + ";");
+	}
+
+	@Override
+	public String execute(FiniteStateMachine fsm, Expression script)
+	{
+		Object value = eval(scope(fsm), script);
+		return value == null ? null : value.toString();
+	}
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * The SCXML Processor must convert ECMAScript expressions used in conditional expressions into their effective
+	 * boolean value using the ToBoolean operator as described in Section 9.2 of [ECMASCRIPT-262].
+	 *
+	 * @param fsm       The State Machine.
+	 * @param condition The compiled condition.
+	 * @return The boolean value.
+	 */
+	@Override
+	public boolean executeCondition(FiniteStateMachine fsm, Expression condition)
+	{
+		return toBoolean(eval(scope(fsm), condition));
+	}
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * The &lt;foreach&gt; element allows an SCXML application to iterate through a collection in the data model and to
+	 * execute the actions contained within it for each item in the collection.<br>
+	 * <strong>Actual Implementation:</strong><br>
+	 * Iterates over a shallow copy, so changes of the array inside the body have no effect on the iteration.
+	 *
+	 * @param fsm             The State Machine.
+	 * @param arrayExpression The array expressions
+	 * @param item            The item variable name
+	 * @param index           The index variable name.
+	 * @param executeBody     The code to execute.
+	 */
+	@Override
+	public void executeForEach(FiniteStateMachine fsm, String arrayExpression, String item, String index, Executor executeBody)
+	{
+		final Scope scope = scope(fsm);
+		final Object array = eval(scope, compile(fsm, arrayExpression));
+		final ArrayList<Object> items = new ArrayList<>();
+		if (array instanceof Map)
+			items.addAll(((Map<?, ?>) array).values());
+		else if (array instanceof Iterable)
+			((Iterable<?>) array).forEach(items::add);
+		else if (array != null && array.getClass()
+										.isArray())
+		{
+			for (int i = 0; i < Array.getLength(array); ++i)
+				items.add(Array.get(array, i));
+		}
+		else
+			throw new IllegalArgumentException(String.format("'%s' is not an array", arrayExpression));
+
+		for (int i = 0; i < items.size(); ++i)
+		{
+			scope._bindings.put(item, items.get(i));
+			if (index != null)
+				scope._bindings.put(index, i);
+			executeBody.execute(this);
+		}
+	}
+
+	@Override
+	public void executeContent(FiniteStateMachine fsm, ExecutableContent content)
+	{
+		content.execute(this, fsm);
+	}
+
+	/**
+	 * Searches the factory of the engine, without creating the engine.
+	 */
+	private static ScriptEngineFactory findFactory()
+	{
+		java.util.List<ScriptEngineFactory> factories = new ScriptEngineManager().getEngineFactories();
+		for (String name : ENGINE_NAMES)
+		{
+			for (ScriptEngineFactory factory : factories)
+			{
+				if (factory.getNames()
+						   .contains(name))
+				{
+					LOG.fine(String.format("Using script engine %s", factory.getEngineName()));
+					return factory;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the scope of this session, takes one from the pool if the session has none.
+	 */
+	private Scope scope(FiniteStateMachine fsm)
+	{
+		if (fsm != null)
+			_configuration._fsm = fsm;
+		Scope scope = _scope;
+		if (scope == null)
+		{
+			_scope = scope = Engine.get()
+								   .acquire();
+			scope._bindings.put(CONFIGURATION_VARIABLE, _configuration);
+			scope._bindings.put("_sessionid", _globalData._sessionId);
+			if (fsm != null)
+				scope._bindings.put("_name", fsm._name);
+			if (_event != null)
+				scope._bindings.put(EVENT_VARIABLE, _event);
+		}
+		return scope;
+	}
+
+	/**
+	 * Evaluates a compiled expression in a scope.
+	 *
+	 * @throws IllegalArgumentException if the expression was not compiled by this datamodel or is not valid.
+	 * @throws IllegalStateException    if the evaluation failed.
+	 */
+	private static Object eval(Scope scope, Expression expression)
+	{
+		if (!(expression instanceof EcmaScriptExpression))
+			throw new IllegalArgumentException(String.format("Expression '%s' was not compiled for ECMAScript", expression.getSource()));
+		EcmaScriptExpression e = (EcmaScriptExpression) expression;
+		if (e._script == null)
+			throw new IllegalArgumentException(String.format("Invalid expression '%s': %s", e._source, e._error));
+		try
+		{
+			return e._script.eval(scope._context);
+		}
+		catch (ScriptException ex)
+		{
+			throw new IllegalStateException(String.format("Failed to evaluate '%s': %s", e._source, ex.getMessage()), ex);
+		}
+	}
+
+	/**
+	 * ECMAScript ToBoolean for values converted to Java.
+	 */
+	private static boolean toBoolean(Object value)
+	{
+		if (value == null)
+			return false;
+		if (value instanceof Boolean)
+			return (Boolean) value;
+		if (value instanceof Number)
+		{
+			double d = ((Number) value).doubleValue();
+			return d != 0 && !Double.isNaN(d);
+		}
+		if (value instanceof CharSequence)
+			return ((CharSequence) value).length() > 0;
+		return true;
+	}
+
+	/**
+	 * Gives scripts access to the configuration of the session. Needs to be public for the script engine.
+	 */
+	public static final class Configuration
+	{
+		private final StateSet _configuration;
+		private FiniteStateMachine _fsm;
+
+		Configuration(StateSet configuration)
+		{
+			_configuration = configuration;
+		}
+
+		/**
+		 * Implements the "In" predicate.
+		 *
+		 * @param stateId The id of the state.
+		 * @return true if the state is active.
+		 */
+		public boolean isIn(String stateId)
+		{
+			State state = _fsm == null ? null : _fsm._states.get(stateId);
+			return state != null && _configuration.isMember(state._docId);
+		}
+
+		/**
+		 * Implements the "In" predicate for a state that was resolved at compile time.
+		 *
+		 * @param docId The document-id of the state.
+		 * @return true if the state is active.
+		 */
+		public boolean isActive(int docId)
+		{
+			return _configuration.isMember(docId);
+		}
+	}
+
+	/**
+	 * A compiled script or the compile error.
+	 */
+	private static final class EcmaScriptExpression implements Expression
+	{
+		final String _source;
+		final CompiledScript _script;
+		final String _error;
+
+		EcmaScriptExpression(String source, CompiledScript script, String error)
+		{
+			_source = source;
+			_script = script;
+			_error = error;
+		}
+
+		@Override
+		public String getSource()
+		{
+			return _source;
+		}
+	}
+
+	/**
+	 * The global scope of one session.
+	 */
+	private static final class Scope
+	{
+		final ScriptContext _context;
+		final Bindings _bindings;
+
+		/**
+		 * Names in the scope after the prelude, these are kept if the scope is returned to the pool.
+		 */
+		final Set<String> _baseline;
+
+		Scope(ScriptContext context, Bindings bindings)
+		{
+			_context = context;
+			_bindings = bindings;
+			_baseline = new HashSet<>(bindings.keySet());
+		}
+
+		/**
+		 * Removes all variables of the session.
+		 *
+		 * @param pristine The compiled call of {@link #PRISTINE_FUNCTION}.
+		 * @return true if the scope is clean. Variables declared by "var" can't be removed from a global scope,
+		 * changes of built-in objects can't be undone.
+		 */
+		boolean reset(CompiledScript pristine)
+		{
+			for (String name : new ArrayList<>(_bindings.keySet()))
+			{
+				if (!_baseline.contains(name))
+					_bindings.remove(name);
+			}
+			if (_bindings.size() != _baseline.size())
+				return false;
+			try
+			{
+				return Boolean.TRUE.equals(pristine.eval(_context));
+			}
+			catch (ScriptException | RuntimeException e)
+			{
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * The shared engine with the scope pool.
+	 */
+	private static final class Engine
+	{
+		static final Engine INSTANCE = FACTORY == null ? null : new Engine(FACTORY.getScriptEngine());
+
+		final ScriptEngine _engine;
+
+		/**
+		 * The engine, all known ECMAScript engines implement {@link Compilable}.
+		 */
+		final Compilable _compiler;
+		final AtomicReferenceArray<Scope> _pool = new AtomicReferenceArray<>(SCOPE_POOL_SIZE);
+
+		/**
+		 * The call of {@link #PRISTINE_FUNCTION}.
+		 */
+		final EcmaScriptExpression _pristine;
+
+		/**
+		 * {@link #SNAPSHOT_WRITE} and {@link #SNAPSHOT_READ}.
+		 */
+		final EcmaScriptExpression _snapshotWrite;
+		final EcmaScriptExpression _snapshotRead;
+
+		private Engine(ScriptEngine engine)
+		{
+			_engine = engine;
+			_compiler = (Compilable) engine;
+			_pristine = compile(PRISTINE_CALL, PRISTINE_CALL);
+			_snapshotWrite = compile(SNAPSHOT_WRITE, SNAPSHOT_WRITE);
+			_snapshotRead = compile(SNAPSHOT_READ, SNAPSHOT_READ);
+		}
+
+		static Engine get()
+		{
+			if (INSTANCE == null)
+				throw new IllegalStateException("No ECMAScript engine available");
+			return INSTANCE;
+		}
+
+		/**
+		 * Compiles a script.
+		 *
+		 * @param source The source, for messages.
+		 * @param script The script to compile, the source or a rewritten form of it.
+		 */
+		EcmaScriptExpression compile(String source, String script)
+		{
+			// Engines are not required to compile concurrently.
+			synchronized (this)
+			{
+				try
+				{
+					return new EcmaScriptExpression(source, _compiler.compile(script), null);
+				}
+				catch (ScriptException ex)
+				{
+					return new EcmaScriptExpression(source, null, ex.getMessage());
+				}
+			}
+		}
+
+		Scope acquire()
+		{
+			for (int i = 0; i < SCOPE_POOL_SIZE; ++i)
+			{
+				if (_pool.get(i) != null)
+				{
+					Scope scope = _pool.getAndSet(i, null);
+					if (scope != null)
+						return scope;
+				}
+			}
+			ScriptContext context = new SimpleScriptContext();
+			Bindings bindings = _engine.createBindings();
+			context.setBindings(bindings, ScriptContext.ENGINE_SCOPE);
+			try
+			{
+				_engine.eval(PRELUDE, context);
+			}
+			catch (ScriptException e)
+			{
+				throw new IllegalStateException("Failed to initialize scope", e);
+			}
+			return new Scope(context, bindings);
+		}
+
+		void release(Scope scope)
+		{
+			if (_pristine._script != null && scope.reset(_pristine._script))
+			{
+				for (int i = 0; i < SCOPE_POOL_SIZE; ++i)
+				{
+					if (_pool.compareAndSet(i, null, scope))
+						return;
+				}
+			}
+		}
+	}
+}
@@ -1,7 +1,9 @@
 package com.bw.modelthings.fsm.model;
 
 /**
- * Holds all data of an Event.
+ * Holds all data of an Event.<br>
+ * Events without individual data (e.g. from &lt;raise&gt; or "done.state.ID" events without done-data) are
+ * shared flyweights, created once per definition. Such events must not be modified.
  */
 public class Event
 {
@@ -12,9 +14,22 @@ public class Event
 	 * @param type The type.
 	 */
 	public Event(String name, EventType type)
+	{
+		this(name, type, EventSymbols.NO_SYMBOL);
+	}
+
+	/**
+	 * Creates a new event with minimal values and the symbol of the name.
+	 *
+	 * @param name   The name
+	 * @param type   The type.
+	 * @param symbol The symbol of the name in the {@link EventSymbols} of the state machine or {@link EventSymbols#NO_SYMBOL}.
+	 */
+	public Event(String name, EventType type, int symbol)
 	{
 		this._name = name;
 		this._eType = type;
+		this._symbol = symbol;
 	}
 
 	/**
@@ -27,10 +42,15 @@ public class Event
 	 */
 	public final EventType _eType;
 
+	/**
+	 * The interned symbol of the name or {@link EventSymbols#NO_SYMBOL}.
+	 */
+	public final int _symbol;
+
 	/**
 	 * The send-id of the event.
 	 */
-	public Integer _sendId;
+	public String _sendId;
 
 	/**
 	 * The origin of the event.
@@ -0,0 +1,56 @@
+package com.bw.modelthings.fsm.model;
+
+import java.util.function.Consumer;
+
+/**
+ * Delivers events after a delay, used for delayed &lt;send&gt;.<br>
+ * Implementations are shared by many sessions and must be thread-safe.
+ */
+public interface EventScheduler
+{
+	/**
+	 * Schedules an event.
+	 *
+	 * @param event       The event.
+	 * @param delayMillis The delay in milliseconds.
+	 * @param target      The queue to put the event into after the delay.
+	 * @return The handle to cancel the event.
+	 */
+	default ScheduledEvent schedule(Event event, long delayMillis, BlockingQueue<Event> target)
+	{
+		return schedule(event, delayMillis, target, null);
+	}
+
+	/**
+	 * Schedules an event and reports the delivery.
+	 *
+	 * @param event       The event.
+	 * @param delayMillis The delay in milliseconds.
+	 * @param target      The queue to put the event into after the delay.
+	 * @param delivered   Called with the handle after the event was put into the target queue, or dropped because
+	 *                    the queue was stopped. Not called for cancelled events. Called from the thread of the scheduler.
+	 *                    Can be null.
+	 * @return The handle to cancel the event.
+	 */
+	ScheduledEvent schedule(Event event, long delayMillis, BlockingQueue<Event> target, Consumer<ScheduledEvent> delivered);
+
+	/**
+	 * Cancels a scheduled event.
+	 *
+	 * @param scheduled The handle returned by {@link #schedule(Event, long, BlockingQueue)}.
+	 * @return true if the event was cancelled, false if it was already delivered or cancelled.
+	 */
+	boolean cancel(ScheduledEvent scheduled);
+
+	/**
+	 * Gets the time until a scheduled event is delivered, e.g. to store it in a snapshot.<br>
+	 * The default implementation doesn't know the time and returns 0.
+	 *
+	 * @param scheduled The handle returned by {@link #schedule(Event, long, BlockingQueue)}.
+	 * @return The remaining delay in milliseconds, -1 if the event was already delivered or cancelled.
+	 */
+	default long getRemainingDelay(ScheduledEvent scheduled)
+	{
+		return 0;
+	}
+}
@@ -0,0 +1,102 @@
+package com.bw.modelthings.fsm.model;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Symbol table of the event names and descriptors of one state machine definition.<br>
+ * Each distinct name gets a dense int id ("symbol"). The parser interns all names found in the document, the runtime
+ * uses the symbols as index for cached lookups, so events with a known symbol are matched without string compares.<br>
+ * Interning is thread-safe, lookups don't lock.
+ */
+public final class EventSymbols
+{
+	/**
+	 * Symbol for names that are not interned.
+	 */
+	public static final int NO_SYMBOL = -1;
+
+	private final ConcurrentHashMap<String, Integer> _ids = new ConcurrentHashMap<>();
+
+	private volatile String[] _names = new String[16];
+
+	private int _size;
+
+	/**
+	 * Creates a new empty symbol table.
+	 */
+	public EventSymbols()
+	{
+	}
+
+	/**
+	 * Gets the symbol of a name, creates a new symbol if the name is not yet known.
+	 *
+	 * @param name The event name or descriptor.
+	 * @return The symbol.
+	 */
+	public int intern(String name)
+	{
+		Integer id = _ids.get(name);
+		if (id != null)
+			return id;
+		synchronized (this)
+		{
+			id = _ids.get(name);
+			if (id != null)
+				return id;
+			String[] names = _names;
+			if (_size == names.length)
+				names = Arrays.copyOf(names, _size * 2);
+			names[_size] = name;
+			_names = names;
+			_ids.put(name, _size);
+			return _size++;
+		}
+	}
+
+	/**
+	 * Gets the symbol of a name.
+	 *
+	 * @param name The event name or descriptor.
+	 * @return The symbol or {@link #NO_SYMBOL} if the name was not interned.
+	 */
+	public int lookup(String name)
+	{
+		Integer id = _ids.get(name);
+		return id == null ? NO_SYMBOL : id;
+	}
+
+	/**
+	 * Gets the name of a symbol.
+	 *
+	 * @param symbol The symbol.
+	 * @return The name.
+	 */
+	public String name(int symbol)
+	{
+		return _names[symbol];
+	}
+
+	/**
+	 * Gets the number of symbols. All symbols are in range [0, size).
+	 *
+	 * @return The number of symbols.
+	 */
+	public synchronized int size()
+	{
+		return _size;
+	}
+
+	/**
+	 * Creates a new event with the symbol of the name, if the name is known.
+	 *
+	 * @param name The name.
+	 * @param type The type.
+	 * @return The new event.
+	 */
+	public Event createEvent(String name, EventType type)
+	{
+		return new Event(name, type, lookup(name));
+	}
+}
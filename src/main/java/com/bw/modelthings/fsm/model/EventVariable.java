@@ -0,0 +1,87 @@
+package com.bw.modelthings.fsm.model;
+
+/**
+ * <strong>W3C says:</strong><br>
+ * The SCXML Processor must use the variable '_event' to hold a structure containing the current event's properties.
+ * The fields are name, type, sendid, origin, origintype, invokeid and data.<br>
+ * <strong>Actual Implementation:</strong><br>
+ * The value of "_event" in the script based datamodels. The public fields have the names of the W3C properties, so
+ * "_event.name" works in ECMAScript and in Java expressions. Fields that the event doesn't have are null.
+ * The fields are final, as W3C requires "_event" to be read-only.
+ */
+public final class EventVariable
+{
+	/**
+	 * The name of the event.
+	 */
+	public final String name;
+
+	/**
+	 * "platform", "internal" or "external".
+	 */
+	public final String type;
+
+	/**
+	 * The send-id of the event.
+	 */
+	public final String sendid;
+
+	/**
+	 * The URI of the sender, e.g. "#_scxml_&lt;sessionid&gt;".
+	 */
+	public final String origin;
+
+	/**
+	 * The type of the event I/O processor of the sender.
+	 */
+	public final String origintype;
+
+	/**
+	 * The invoke-id if the event was sent by an invoked session.
+	 */
+	public final String invokeid;
+
+	/**
+	 * The data of the event, the content of the &lt;donedata&gt; of "done" events.
+	 */
+	public final Object data;
+
+	/**
+	 * Creates the variable of an event.
+	 *
+	 * @param event The event.
+	 */
+	public EventVariable(Event event)
+	{
+		this(event._name, event._eType, event._sendId, event._origin, event._originType, event._invokeId,
+				event._data == null ? null : event._data.content);
+	}
+
+	/**
+	 * Creates the variable of an event that exists only by name, e.g. in generated machines.
+	 *
+	 * @param name The name of the event.
+	 * @param type The type.
+	 */
+	public EventVariable(String name, EventType type)
+	{
+		this(name, type, null, null, null, null, null);
+	}
+
+	private EventVariable(String name, EventType type, String sendid, String origin, String origintype, String invokeid, Object data)
+	{
+		this.name = name;
+		this.type = type == null ? null : type.name();
+		this.sendid = sendid;
+		this.origin = origin;
+		this.origintype = origintype;
+		this.invokeid = invokeid;
+		this.data = data;
+	}
+
+	@Override
+	public String toString()
+	{
+		return name;
+	}
+}
@@ -20,4 +20,15 @@ public interface ExecutableContent extends FsmElement
 	 */
 	String getType();
 
+	/**
+	 * Compiles all expressions of this content (and of contained content) with the datamodel and caches them.
+	 * Called once per definition before any session executes the content.
+	 *
+	 * @param datamodel The datamodel that compiles.
+	 * @param fsm       The State Machine.
+	 */
+	default void compileExpressions(Datamodel datamodel, FiniteStateMachine fsm)
+	{
+	}
+
 }
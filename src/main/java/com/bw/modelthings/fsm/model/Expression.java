@@ -0,0 +1,16 @@
+package com.bw.modelthings.fsm.model;
+
+/**
+ * An expression compiled by {@link Datamodel#compile(FiniteStateMachine, String)}.<br>
+ * Expressions are compiled once per definition and cached on the model elements. They are immutable and shared by
+ * all sessions that use the same type of datamodel. Only the datamodel that created an expression can execute it.
+ */
+public interface Expression
+{
+	/**
+	 * Gets the source of the expression.
+	 *
+	 * @return The source text.
+	 */
+	String getSource();
+}
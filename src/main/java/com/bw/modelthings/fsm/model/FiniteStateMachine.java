@@ -1,13 +1,16 @@
 package com.bw.modelthings.fsm.model;
 
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Timer;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * The implementation of the FSM.
+ * The implementation of the FSM.<br>
+ * Holds only the definition. All run-time data of a session is owned by the datamodel of the session,
+ * see {@link GlobalData}.
  */
 public class FiniteStateMachine
 {
@@ -17,6 +20,18 @@ public class FiniteStateMachine
 	 */
 	public FiniteStateMachine()
 	{
+		this(new EventSymbols());
+	}
+
+	/**
+	 * Creates a new empty State Machine that shares the symbol table of other machines, e.g. of the
+	 * machine that invokes it. Events of all these machines can then be passed between their sessions as they are.
+	 *
+	 * @param eventSymbols The symbol table.
+	 */
+	public FiniteStateMachine(EventSymbols eventSymbols)
+	{
+		_eventSymbols = eventSymbols;
 	}
 
 
@@ -64,14 +79,25 @@ public class FiniteStateMachine
 	public ExecutableContent _script;
 
 	/**
-	 * The invoke-id of the caller or null.
+	 * Symbol table of all event names and descriptors.
+	 */
+	public final EventSymbols _eventSymbols;
+
+	/**
+	 * The file the machine was parsed from, used to resolve the "src" of &lt;invoke&gt;. Can be null.
+	 */
+	public Path _file;
+
+	/**
+	 * The slots of all &lt;data&gt; ids, assigned when the definition is compiled.
 	 */
-	public String _callerInvokeId;
+	public DataStore.Layout _dataLayout = DataStore.Layout.EMPTY;
 
 	/**
-	 * Timer used for delays.
+	 * Expressions that a datamodel compiled at run-time, by source. Belongs to the definition, so it is dropped
+	 * together with it.
 	 */
-	public Timer _timer;
+	public final ConcurrentHashMap<String, Expression> _compiledExpressions = new ConcurrentHashMap<>();
 
 	/**
 	 * Removes a state.
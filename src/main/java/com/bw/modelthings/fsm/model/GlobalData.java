@@ -1,5 +1,7 @@
 package com.bw.modelthings.fsm.model;
 
+import java.util.HashMap;
+
 /**
  * <p><b>W3C says:</b><br>
  * <em>Global variables</em><br>
@@ -20,21 +22,55 @@ public class GlobalData
 	}
 
 	/**
-	 * The list of currently active states.
+	 * The list of currently active states.<br>
+	 * Bitset by {@link State#_docId}, so iteration is in document order.
 	 */
-	public OrderedSet<StateId> configuration = new OrderedSet<>();
+	public final StateSet configuration = new StateSet();
 
 	/**
-	 * The list of states to invoke on next iteration.
+	 * The list of states to invoke on next iteration.<br>
+	 * Bitset by {@link State#_docId}.
 	 */
-	public OrderedSet<StateId> statesToInvoke = new OrderedSet<>();
-	;
+	public final StateSet statesToInvoke = new StateSet();
 
 	/**
 	 * The history for each state.
 	 */
 	public HashTable<StateId, OrderedSet<StateId>> historyValue = new HashTable<>();
 
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * The SCXML Processor must bind the variable _sessionid at load time to the system-generated id for the current
+	 * SCXML session.
+	 */
+	public String _sessionId;
+
+	/**
+	 * The invoke-id of the caller or null.
+	 */
+	public String _callerInvokeId;
+
+	/**
+	 * The external queue of the caller, target of "#_parent" and of the "done.invoke" event. Null if not invoked.
+	 */
+	public BlockingQueue<Event> _callerQueue;
+
+	/**
+	 * The external queues of the active invoked sessions by invoke-id, targets of "#_&lt;invokeid&gt;".
+	 * Null until the first invocation.
+	 */
+	public HashMap<String, BlockingQueue<Event>> _invokedQueues;
+
+	/**
+	 * The scheduler for delayed events.
+	 */
+	public EventScheduler _scheduler;
+
+	/**
+	 * Delayed events that are not yet delivered. The scheduler removes the entries on delivery.
+	 */
+	public final PendingSends _pendingSends = new PendingSends();
+
 	/**
 	 * True if running.
 	 */
@@ -46,8 +82,9 @@ public class GlobalData
 	public final Queue<Event> _internalQueue = new Queue<>();
 
 	/**
-	 * The queue of external events.
+	 * The queue of external events. Can be replaced, e.g. by one with another capacity or {@link WaitStrategy},
+	 * before the session is started.
 	 */
-	public final BlockingQueue<Event> _externalQueue = new BlockingQueue<>();
+	public BlockingQueue<Event> _externalQueue = new BlockingQueue<>();
 
 }
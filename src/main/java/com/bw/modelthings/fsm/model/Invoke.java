@@ -43,11 +43,19 @@ public class Invoke implements FsmElement
 	 */
 	public String _typeExpr;
 
+	/**
+	 * The compiled typeexpr, null until compiled.
+	 */
+	public Expression _compiledTypeExpr;
+
 	/**
 	 * W3c says:<br>
-	 * List of valid location expressions
+	 * List of valid location expressions<br>
+	 * <strong>Actual Implementation:</strong><br>
+	 * Passing data to the invoked session is not supported, the parser rejects 'namelist' and &lt;param&gt;.
+	 * The list is always empty.
 	 */
-	public java.util.List<String> _nameList;
+	public java.util.List<String> _nameList = new java.util.ArrayList<>();
 
 	/**
 	 * W3c says:<br>
@@ -64,6 +72,11 @@ public class Invoke implements FsmElement
 	 */
 	public String _srcExpr;
 
+	/**
+	 * The compiled srcexpr, null until compiled.
+	 */
+	public Expression _compiledSrcExpr;
+
 	/**
 	 * W3c says:<br>
 	 * Boolean.<br>
@@ -81,6 +94,11 @@ public class Invoke implements FsmElement
 	 */
 	public String _contentExpr;
 
+	/**
+	 * The compiled expr of the &lt;content&gt; child, null until compiled.
+	 */
+	public Expression _compiledContentExpr;
+
 	/**
 	 * W3c says:<br>
 	 * Executable content to massage the data returned from the invoked component. Occurs 0 or 1 times.<br>
@@ -0,0 +1,629 @@
+package com.bw.modelthings.fsm.model;
+
+import javax.tools.ToolProvider;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Datamodel with plain Java expressions for "cond", "expr", "location" and &lt;script&gt; bodies.<br>
+ * <strong>Actual Implementation:</strong><br>
+ * All expressions of a definition are compiled together when the definition is compiled
+ * (see {@link #finishCompilation(FiniteStateMachine)}), into one class:
+ * <ul>
+ * <li>Each &lt;data&gt; element becomes a typed field. The type is inferred by the compiler from the initial value,
+ * as if the data were declared by "var id = expr;" in document order.</li>
+ * <li>Each expression becomes a method. The class dispatches by the expression index, so evaluating a guard costs
+ * a switch and a direct method call.</li>
+ * </ul>
+ * Each session gets its own instance of the class, holding the values of the session.
+ * Sources that are not known at compile time can't be executed.
+ */
+public class JavaDatamodel implements Datamodel
+{
+	/**
+	 * The name of this datamodel.
+	 */
+	public static final String NAME = "java";
+
+	protected final static Logger LOG = Logger.getLogger(JavaDatamodel.class.getName());
+
+	/**
+	 * The compiled definitions. Definitions don't reference the state machine, so entries are removed together
+	 * with the state machine.
+	 */
+	private static final Map<FiniteStateMachine, Definition> DEFINITIONS = Collections.synchronizedMap(new WeakHashMap<>());
+
+	private final GlobalData _globalData = new GlobalData();
+
+	/**
+	 * The values of this session, null until needed.
+	 */
+	private Scope _scope;
+
+	/**
+	 * The value of "_event", null before the first event.
+	 */
+	private EventVariable _event;
+
+	// Tags of the values in snapshots.
+	private static final int VALUE_NULL = 0;
+	private static final int VALUE_BOOLEAN = 1;
+	private static final int VALUE_INTEGER = 2;
+	private static final int VALUE_LONG = 3;
+	private static final int VALUE_DOUBLE = 4;
+	private static final int VALUE_FLOAT = 5;
+	private static final int VALUE_SHORT = 6;
+	private static final int VALUE_BYTE = 7;
+	private static final int VALUE_CHARACTER = 8;
+	private static final int VALUE_STRING = 9;
+
+	/**
+	 * Gets the inferred types of the &lt;data&gt; elements of a compiled state machine.
+	 *
+	 * @param fsm The State Machine, compiled with this datamodel.
+	 * @return The Java types by data id in document order. Data with invalid ids is not included.
+	 * @throws IllegalStateException If the state machine was not compiled for the Java datamodel.
+	 */
+	public static Map<String, String> getDataTypes(FiniteStateMachine fsm)
+	{
+		Definition definition = DEFINITIONS.get(fsm);
+		if (definition == null || definition._types == null)
+			throw new IllegalStateException("State machine was not compiled for the Java datamodel");
+		return definition._types;
+	}
+
+	/**
+	 * Creates a new Java datamodel.
+	 */
+	public JavaDatamodel()
+	{
+	}
+
+	/**
+	 * Checks if a Java compiler is available, i.e. the process runs on a JDK.
+	 *
+	 * @return true if the datamodel can be used.
+	 */
+	public static boolean isSupported()
+	{
+		return ToolProvider.getSystemJavaCompiler() != null;
+	}
+
+	@Override
+	public GlobalData global()
+	{
+		return _globalData;
+	}
+
+	@Override
+	public String getName()
+	{
+		return NAME;
+	}
+
+	/**
+	 * Assigns the initial values to the fields of the &lt;data&gt; elements of the state.
+	 *
+	 * @param fsm   The State Machine to work on.
+	 * @param state The State to initialize.
+	 */
+	@Override
+	public void initializeDataModel(FiniteStateMachine fsm, State state)
+	{
+		if (!state._dataDeclarations.isEmpty())
+			scope(fsm).initialize(state._docId);
+	}
+
+	@Override
+	public void set(String name, Data data)
+	{
+		if (_scope == null || !_scope.set(name, data instanceof DataValue ? ((DataValue) data)._value : data))
+			throw new IllegalArgumentException(String.format("Unknown variable '%s'", name));
+	}
+
+	@Override
+	public Data get(String name)
+	{
+		if (_scope == null)
+			return null;
+		Object value = _scope.get(name);
+		return value == null || value == Scope.NO_VARIABLE ? null : value instanceof Data ? (Data) value : new DataValue(value);
+	}
+
+	/**
+	 * Sets the field "_event" of the generated class.
+	 *
+	 * @param event The event.
+	 */
+	@Override
+	public void setEvent(Event event)
+	{
+		_event = new EventVariable(event);
+		if (_scope != null)
+			_scope._event = _event;
+	}
+
+	/**
+	 * Discards the values of the session.
+	 */
+	@Override
+	public void clear()
+	{
+		_scope = null;
+	}
+
+	/**
+	 * Writes the values of all &lt;data&gt; fields in document order.<br>
+	 * Only primitive, boxed and String values are supported.
+	 *
+	 * @param fsm The State Machine.
+	 * @param out The output.
+	 * @throws IOException                   If writing fails.
+	 * @throws UnsupportedOperationException If a field holds some other type.
+	 */
+	@Override
+	public void writeSnapshot(FiniteStateMachine fsm, DataOutput out) throws IOException
+	{
+		out.writeBoolean(_scope != null);
+		if (_scope == null)
+			return;
+		for (String name : getDataTypes(fsm).keySet())
+		{
+			BinaryCodec.writeString(out, name);
+			writeValue(out, name, _scope.get(name));
+		}
+		BinaryCodec.writeString(out, null);
+	}
+
+	@Override
+	public void readSnapshot(FiniteStateMachine fsm, DataInput in) throws IOException
+	{
+		_scope = null;
+		if (!in.readBoolean())
+			return;
+		final Scope scope = scope(fsm);
+		for (String name = BinaryCodec.readString(in); name != null; name = BinaryCodec.readString(in))
+		{
+			if (!scope.set(name, readValue(in)))
+				throw new IOException(String.format("Unknown variable '%s' in snapshot", name));
+		}
+	}
+
+	private static void writeValue(DataOutput out, String name, Object value) throws IOException
+	{
+		if (value == null)
+			out.writeByte(VALUE_NULL);
+		else if (value instanceof Boolean)
+		{
+			out.writeByte(VALUE_BOOLEAN);
+			out.writeBoolean((Boolean) value);
+		}
+		else if (value instanceof Integer)
+		{
+			out.writeByte(VALUE_INTEGER);
+			out.writeInt((Integer) value);
+		}
+		else if (value instanceof Long)
+		{
+			out.writeByte(VALUE_LONG);
+			out.writeLong((Long) value);
+		}
+		else if (value instanceof Double)
+		{
+			out.writeByte(VALUE_DOUBLE);
+			out.writeDouble((Double) value);
+		}
+		else if (value instanceof Float)
+		{
+			out.writeByte(VALUE_FLOAT);
+			out.writeFloat((Float) value);
+		}
+		else if (value instanceof Short)
+		{
+			out.writeByte(VALUE_SHORT);
+			out.writeShort((Short) value);
+		}
+		else if (value instanceof Byte)
+		{
+			out.writeByte(VALUE_BYTE);
+			out.writeByte((Byte) value);
+		}
+		else if (value instanceof Character)
+		{
+			out.writeByte(VALUE_CHARACTER);
+			out.writeChar((Character) value);
+		}
+		else if (value instanceof String)
+		{
+			out.writeByte(VALUE_STRING);
+			BinaryCodec.writeString(out, (String) value);
+		}
+		else
+			throw new UnsupportedOperationException(
+					String.format("Value of '%s' of type %s can't be stored in a snapshot", name, value.getClass()
+																									.getName()));
+	}
+
+	private static Object readValue(DataInput in) throws IOException
+	{
+		final int tag = in.readUnsignedByte();
+		switch (tag)
+		{
+			case VALUE_NULL:
+				return null;
+			case VALUE_BOOLEAN:
+				return in.readBoolean();
+			case VALUE_INTEGER:
+				return in.readInt();
+			case VALUE_LONG:
+				return in.readLong();
+			case VALUE_DOUBLE:
+				return in.readDouble();
+			case VALUE_FLOAT:
+				return in.readFloat();
+			case VALUE_SHORT:
+				return in.readShort();
+			case VALUE_BYTE:
+				return in.readByte();
+			case VALUE_CHARACTER:
+				return in.readChar();
+			case VALUE_STRING:
+				return BinaryCodec.readString(in);
+			default:
+				throw new IOException("Unknown value tag " + tag);
+		}
+	}
+
+	@Override
+	public void log(String label, String msg)
+	{
+		if (LOG.isLoggable(Level.INFO))
+			LOG.info(label == null || label.isEmpty() ? msg : label + ": " + msg);
+	}
+
+	/**
+	 * Registers the source in the definition. The source is compiled by {@link #finishCompilation(FiniteStateMachine)}.
+	 * After that only sources that were registered before can be "compiled".
+	 *
+	 * @param fsm    The State Machine to work on.
+	 * @param source The source of the expression.
+	 * @return The expression.
+	 */
+	@Override
+	public Expression compile(FiniteStateMachine fsm, String source)
+	{
+		return DEFINITIONS.computeIfAbsent(fsm, f -> new Definition())
+						  .register(source);
+	}
+
+	/**
+	 * Compiles the assignment as one Java assignment expression.
+	 *
+	 * @param fsm      The State Machine to work on.
+	 * @param location The location expression.
+	 * @param expr     The value expression.
+	 * @return The compiled assignment.
+	 */
+	@Override
+	public Expression compileAssignment(FiniteStateMachine fsm, String location, String expr)
+	{
+		return compile(fsm, location + " = " + (expr == null ? "null" : "(" + expr + ")"));
+	}
+
+	/**
+	 * Generates and compiles the class of the definition.
+	 *
+	 * @param fsm The State Machine.
+	 */
+	@Override
+	public void finishCompilation(FiniteStateMachine fsm)
+	{
+		Definition definition = DEFINITIONS.get(fsm);
+		if (definition == null)
+		{
+			// No expressions at all, a class is still needed for the data.
+			compile(fsm, "null");
+			definition = DEFINITIONS.get(fsm);
+		}
+		synchronized (definition)
+		{
+			if (definition._factory == null)
+				JavaDatamodelCompiler.compile(definition, fsm);
+		}
+	}
+
+	@Override
+	public String execute(FiniteStateMachine fsm, Expression script)
+	{
+		Object value = scope(fsm).evaluate(index(script));
+		return value == null ? null : value.toString();
+	}
+
+	@Override
+	public boolean executeCondition(FiniteStateMachine fsm, Expression condition)
+	{
+		return scope(fsm).test(index(condition));
+	}
+
+	@Override
+	public void executeForEach(FiniteStateMachine fsm, String arrayExpression, String item, String index, Executor executeBody)
+	{
+		final Scope scope = scope(fsm);
+		final Object array = scope.evaluate(index(compile(fsm, arrayExpression)));
+		final ArrayList<Object> items = new ArrayList<>();
+		if (array instanceof Iterable)
+			((Iterable<?>) array).forEach(items::add);
+		else if (array != null && array.getClass()
+										.isArray())
+		{
+			for (int i = 0; i < Array.getLength(array); ++i)
+				items.add(Array.get(array, i));
+		}
+		else
+			throw new IllegalArgumentException(String.format("'%s' is not an array or iterable", arrayExpression));
+
+		for (int i = 0; i < items.size(); ++i)
+		{
+			if (!scope.set(item, items.get(i)))
+				throw new IllegalArgumentException(String.format("Unknown variable '%s'", item));
+			if (index != null && !scope.set(index, i))
+				throw new IllegalArgumentException(String.format("Unknown variable '%s'", index));
+			executeBody.execute(this);
+		}
+	}
+
+	@Override
+	public void executeContent(FiniteStateMachine fsm, ExecutableContent content)
+	{
+		content.execute(this, fsm);
+	}
+
+	/**
+	 * Gets the values of this session, creates them if the session has none.
+	 */
+	private Scope scope(FiniteStateMachine fsm)
+	{
+		Scope scope = _scope;
+		if (scope == null)
+		{
+			Definition definition = DEFINITIONS.get(fsm);
+			if (definition == null || definition._factory == null)
+				throw new IllegalStateException("State machine was not compiled for the Java datamodel");
+			try
+			{
+				scope = (Scope) definition._factory.invoke();
+			}
+			catch (Throwable e)
+			{
+				throw new IllegalStateException("Failed to create the data of the session", e);
+			}
+			scope._definition = definition;
+			scope._configuration = _globalData.configuration;
+			scope._sessionid = _globalData._sessionId;
+			scope._name = fsm._name;
+			scope._event = _event;
+			_scope = scope;
+		}
+		return scope;
+	}
+
+	private static int index(Expression expression)
+	{
+		if (!(expression instanceof JavaExpression))
+			throw new IllegalArgumentException(String.format("Expression '%s' was not compiled for Java", expression.getSource()));
+		return ((JavaExpression) expression)._index;
+	}
+
+	/**
+	 * Base class of the generated classes. Needs to be public for the generated code.
+	 */
+	public abstract static class Scope
+	{
+		/**
+		 * Returned by {@link #get(String)} for unknown names.
+		 */
+		public static final Object NO_VARIABLE = new Object();
+
+		Definition _definition;
+		StateSet _configuration;
+
+		/**
+		 * <strong>W3C says:</strong><br>
+		 * The SCXML Processor must bind the variable _sessionid at load time to the system-generated id for the current
+		 * SCXML session.
+		 */
+		protected String _sessionid;
+
+		/**
+		 * <strong>W3C says:</strong><br>
+		 * The SCXML Processor must bind the variable _name at load time to the value of the 'name' attribute of the &lt;scxml&gt; element.
+		 */
+		protected String _name;
+
+		/**
+		 * <strong>W3C says:</strong><br>
+		 * The SCXML Processor must use the variable '_event' to hold a structure containing the current event's properties.
+		 * Null before the first event.
+		 */
+		protected EventVariable _event;
+
+		/**
+		 * Creates the values of a session.
+		 */
+		protected Scope()
+		{
+		}
+
+		/**
+		 * The "In" predicate.
+		 *
+		 * @param stateId The id of the state.
+		 * @return true if the state is active.
+		 */
+		protected final boolean In(String stateId)
+		{
+			Integer docId = _definition._stateIds.get(stateId);
+			return docId != null && _configuration.isMember(docId);
+		}
+
+		/**
+		 * The "In" predicate for a state id that was resolved at compile time.
+		 *
+		 * @param docId The document-id of the state.
+		 * @return true if the state is active.
+		 */
+		protected final boolean In(int docId)
+		{
+			return _configuration.isMember(docId);
+		}
+
+		/**
+		 * Creates the error of an expression that didn't compile.
+		 *
+		 * @param index The expression index.
+		 * @return The exception to throw.
+		 */
+		protected final RuntimeException invalid(int index)
+		{
+			return new IllegalArgumentException(_definition.getError(index));
+		}
+
+		/**
+		 * Creates the error of a &lt;data&gt; element whose value didn't compile.
+		 *
+		 * @param id The data id.
+		 * @return The exception to throw.
+		 */
+		protected static RuntimeException invalidData(String id)
+		{
+			return new IllegalArgumentException(String.format("Invalid value of data '%s'", id));
+		}
+
+		/**
+		 * Assigns the initial values of the data of a state.
+		 *
+		 * @param docId The document-id of the state.
+		 */
+		public abstract void initialize(int docId);
+
+		/**
+		 * Evaluates an expression or executes a script.
+		 *
+		 * @param index The expression index.
+		 * @return The value or null for scripts.
+		 */
+		public abstract Object evaluate(int index);
+
+		/**
+		 * Evaluates a condition.
+		 *
+		 * @param index The expression index.
+		 * @return The result. Values that are not boolean are true only if they are {@link Boolean#TRUE}.
+		 */
+		public abstract boolean test(int index);
+
+		/**
+		 * Gets a variable by name.
+		 *
+		 * @param name The name.
+		 * @return The value or {@link #NO_VARIABLE}.
+		 */
+		public abstract Object get(String name);
+
+		/**
+		 * Sets a variable by name.
+		 *
+		 * @param name  The name.
+		 * @param value The value.
+		 * @return false if there is no such variable.
+		 * @throws ClassCastException if the value doesn't match the type of the variable.
+		 */
+		public abstract boolean set(String name, Object value);
+	}
+
+	/**
+	 * An expression of a definition.
+	 */
+	static final class JavaExpression implements Expression
+	{
+		final String _source;
+		final int _index;
+
+		JavaExpression(String source, int index)
+		{
+			_source = source;
+			_index = index;
+		}
+
+		@Override
+		public String getSource()
+		{
+			return _source;
+		}
+	}
+
+	/**
+	 * All expressions and the generated class of one state machine.
+	 */
+	static final class Definition
+	{
+		/**
+		 * Expressions by source.
+		 */
+		final HashMap<String, JavaExpression> _expressions = new HashMap<>();
+
+		/**
+		 * Sources by index.
+		 */
+		final ArrayList<String> _sources = new ArrayList<>();
+
+		/**
+		 * Compile errors by index, null for valid expressions.
+		 */
+		String[] _errors;
+
+		/**
+		 * Document-ids by state name.
+		 */
+		Map<String, Integer> _stateIds;
+
+		/**
+		 * Java types by data id in document order.
+		 */
+		Map<String, String> _types;
+
+		/**
+		 * Creates instances of the generated class. Null until compiled.
+		 */
+		volatile MethodHandle _factory;
+
+		synchronized JavaExpression register(String source)
+		{
+			JavaExpression e = _expressions.get(source);
+			if (e == null)
+			{
+				if (_factory != null)
+					throw new UnsupportedOperationException(String.format("Java expression '%s' is not part of the definition", source));
+				e = new JavaExpression(source, _sources.size());
+				_sources.add(source);
+				_expressions.put(source, e);
+			}
+			return e;
+		}
+
+		String getError(int index)
+		{
+			return String.format("Invalid expression '%s': %s", _sources.get(index), _errors[index] == null ? "not a condition" : _errors[index]);
+		}
+	}
+}
@@ -0,0 +1,649 @@
+package com.bw.modelthings.fsm.model;
+
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.tree.MethodTree;
+import com.sun.source.tree.VariableTree;
+import com.sun.source.util.JavacTask;
+import com.sun.source.util.TreePathScanner;
+import com.sun.source.util.Trees;
+
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Generates and compiles the class of a {@link JavaDatamodel} definition.<br>
+ * The compiler runs in three steps:
+ * <ol>
+ * <li>The types of the &lt;data&gt; elements are inferred by analyzing "var id = (expr);" declarations.</li>
+ * <li>Each expression is tried as value ("return (expr);"), as condition ("boolean") and as statement ("expr;").
+ * All variants are analyzed in one run, the variants with errors are dropped.</li>
+ * <li>The remaining methods are compiled to byte-code and loaded by a class-loader of the definition.</li>
+ * </ol>
+ */
+final class JavaDatamodelCompiler
+{
+	/**
+	 * Package of the generated classes.
+	 */
+	static final String PACKAGE = "com.bw.modelthings.fsm.generated";
+
+	private static final Logger LOG = Logger.getLogger(JavaDatamodelCompiler.class.getName());
+
+	/**
+	 * "In" predicate with a constant state id.
+	 */
+	private static final Pattern IN_PREDICATE = Pattern.compile("\\bIn\\(\\s*\"([^\"\\\\]*)\"\\s*\\)");
+
+	private static final Pattern IDENTIFIER = Pattern.compile("[\\p{javaJavaIdentifierStart}&&[^$]][\\p{javaJavaIdentifierPart}&&[^$]]*");
+
+	/**
+	 * Maximal number of compile runs to remove methods that break the class.
+	 */
+	private static final int MAX_RETRIES = 5;
+
+	private static final Map<String, String> BOXED = Map.of("boolean", "Boolean", "byte", "Byte", "char", "Character", "short", "Short",
+			"int", "Integer", "long", "Long", "float", "Float", "double", "Double");
+
+	private static final AtomicInteger CLASS_COUNTER = new AtomicInteger();
+
+	/**
+	 * Compiler options. Flow analysis shall not stop at the first error, so all errors are found by one run.
+	 */
+	private static final String[] OPTIONS = {"-proc:none", "-nowarn", "-Xmaxerrs", "100000", "-XDshould-stop.ifError=FLOW", "-classpath", classPath()};
+
+	/**
+	 * Kind of generated methods.
+	 */
+	private enum Variant
+	{
+		/**
+		 * Expression with value.
+		 */
+		value,
+		/**
+		 * Expression with boolean value.
+		 */
+		condition,
+		/**
+		 * Statements.
+		 */
+		statement
+	}
+
+	/**
+	 * A declared variable.
+	 */
+	private static final class Variable
+	{
+		final String _id;
+		final int _index;
+		final int _docId;
+		final String _source;
+		String _type = "Object";
+
+		Variable(String id, int index, int docId, String source)
+		{
+			_id = id;
+			_index = index;
+			_docId = docId;
+			_source = source;
+		}
+	}
+
+	private final JavaCompiler _compiler = ToolProvider.getSystemJavaCompiler();
+	private final JavaDatamodel.Definition _definition;
+	private final String _className = "ScxmlJava" + CLASS_COUNTER.incrementAndGet();
+	private final LinkedHashMap<String, Variable> _variables = new LinkedHashMap<>();
+	private final Map<String, Integer> _stateIds = new HashMap<>();
+
+	/**
+	 * The valid methods, bit (index * Variant count + variant ordinal) for expressions,
+	 * (expression count * Variant count + variable index) for data.
+	 */
+	private final BitSet _valid = new BitSet();
+
+	/**
+	 * Source ranges of the generated methods, [start, end, bit] with bit as in {@link #_valid}.
+	 */
+	private final ArrayList<int[]> _ranges = new ArrayList<>();
+
+	private JavaDatamodelCompiler(JavaDatamodel.Definition definition)
+	{
+		_definition = definition;
+	}
+
+	/**
+	 * Compiles the definition. Expressions that don't compile are marked as invalid and throw on evaluation.
+	 *
+	 * @param definition The definition.
+	 * @param fsm        The State Machine.
+	 */
+	static void compile(JavaDatamodel.Definition definition, FiniteStateMachine fsm)
+	{
+		new JavaDatamodelCompiler(definition).run(fsm);
+	}
+
+	private void run(FiniteStateMachine fsm)
+	{
+		final long start = System.nanoTime();
+		collect(fsm._pseudoRoot);
+		final int count = _definition._sources.size();
+		_definition._errors = new String[count];
+
+		inferTypes();
+
+		// Expect all variants to be valid, then remove all that have errors.
+		_valid.set(0, count * Variant.values().length);
+		for (Variable v : _variables.values())
+			if (v._source != null)
+				_valid.set(validBit(v));
+		Map<Integer, String> errors = analyze(generate());
+		removeInvalid(errors);
+
+		byte[] code = null;
+		for (int retry = 0; code == null && retry < MAX_RETRIES; ++retry)
+		{
+			HashMap<String, ByteArrayOutputStream> classes = new HashMap<>();
+			errors = compileClass(generate(), classes);
+			if (errors.isEmpty())
+				code = classes.get(PACKAGE + "." + _className)
+							  .toByteArray();
+			else
+				removeInvalid(errors);
+		}
+		if (code == null)
+			throw new IllegalStateException("Failed to compile the expressions of the Java datamodel");
+
+		for (int i = 0; i < count; ++i)
+		{
+			if (_definition._errors[i] == null && !isValid(i, Variant.value) && !isValid(i, Variant.statement))
+				_definition._errors[i] = "no valid expression or statement";
+		}
+		try
+		{
+			Class<?> generated = new DefinitionClassLoader(PACKAGE + "." + _className, code).loadClass(PACKAGE + "." + _className);
+			_definition._stateIds = _stateIds;
+			LinkedHashMap<String, String> types = new LinkedHashMap<>();
+			for (Variable v : _variables.values())
+				types.put(v._id, v._type);
+			_definition._types = Collections.unmodifiableMap(types);
+			_definition._factory = MethodHandles.publicLookup()
+												.findConstructor(generated, MethodType.methodType(void.class));
+		}
+		catch (ReflectiveOperationException e)
+		{
+			throw new IllegalStateException("Failed to load the generated class", e);
+		}
+		if (LOG.isLoggable(Level.FINE))
+			LOG.fine(String.format("Compiled %d Java expressions of '%s' in %d ms", count, fsm._name, (System.nanoTime() - start) / 1000000));
+	}
+
+	private void collect(State state)
+	{
+		if (state._name != null)
+			_stateIds.put(state._name, state._docId);
+		for (DataDeclaration data : state._dataDeclarations)
+		{
+			if (!IDENTIFIER.matcher(data._id)
+						   .matches())
+				LOG.warning(String.format("Data id '%s' is not a valid Java identifier, ignored", data._id));
+			else if (_variables.containsKey(data._id))
+				LOG.warning(String.format("Data '%s' is declared more than once, ignored", data._id));
+			else
+				_variables.put(data._id, new Variable(data._id, _variables.size(), state._docId, data._expr != null ? data._expr : data._content));
+		}
+		for (State child : state._states)
+			collect(child);
+	}
+
+	private int validBit(int index, Variant variant)
+	{
+		return index * Variant.values().length + variant.ordinal();
+	}
+
+	private int validBit(Variable v)
+	{
+		return _definition._sources.size() * Variant.values().length + v._index;
+	}
+
+	private boolean isValid(int index, Variant variant)
+	{
+		return _valid.get(validBit(index, variant));
+	}
+
+	/**
+	 * Infers the field types from the initial values.
+	 */
+	private void inferTypes()
+	{
+		if (_variables.isEmpty())
+			return;
+		StringBuilder sb = new StringBuilder(1024);
+		sb.append("package ")
+		  .append(PACKAGE)
+		  .append(";\nabstract class ")
+		  .append(_className)
+		  .append("Types extends ")
+		  .append(JavaDatamodel.Scope.class.getCanonicalName())
+		  .append(" {\nvoid $types() {\n");
+		for (Variable v : _variables.values())
+		{
+			sb.append("var ")
+			  .append(v._id)
+			  .append(" = ")
+			  .append(v._source == null ? "(Object) null" : "(" + v._source + "\n)")
+			  .append(";\n");
+		}
+		sb.append("}\n}\n");
+
+		JavacTask task = task(sb.toString(), null, new DiagnosticCollector<>());
+		try
+		{
+			final Trees trees = Trees.instance(task);
+			Iterable<? extends CompilationUnitTree> units = task.parse();
+			task.analyze();
+			for (CompilationUnitTree unit : units)
+			{
+				new TreePathScanner<Void, Void>()
+				{
+					@Override
+					public Void visitVariable(VariableTree node, Void unused)
+					{
+						Variable v = _variables.get(node.getName()
+														.toString());
+						if (v != null && getCurrentPath().getParentPath()
+														 .getParentPath()
+														 .getLeaf() instanceof MethodTree)
+							v._type = denotableType(task, trees.getTypeMirror(getCurrentPath()));
+						return null;
+					}
+				}.scan(unit, null);
+			}
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException("Failed to analyze the data types", e);
+		}
+	}
+
+	private static String denotableType(JavacTask task, TypeMirror type)
+	{
+		if (type == null)
+			return "Object";
+		TypeKind kind = type.getKind();
+		if (!kind.isPrimitive() && kind != TypeKind.DECLARED && kind != TypeKind.ARRAY)
+			return "Object";
+		String name = type.toString();
+		if (name.contains("capture#"))
+			name = task.getTypes()
+					   .erasure(type)
+					   .toString();
+		if (name.contains("<anonymous") || name.contains("capture#"))
+			return "Object";
+		return name;
+	}
+
+	/**
+	 * Generates the class with all valid methods.
+	 */
+	private String generate()
+	{
+		_ranges.clear();
+		final int count = _definition._sources.size();
+		StringBuilder sb = new StringBuilder(4096);
+		sb.append("package ")
+		  .append(PACKAGE)
+		  .append(";\n\npublic final class ")
+		  .append(_className)
+		  .append(" extends ")
+		  .append(JavaDatamodel.Scope.class.getCanonicalName())
+		  .append("\n{\n");
+
+		for (Variable v : _variables.values())
+			sb.append("\tpublic ")
+			  .append(v._type)
+			  .append(' ')
+			  .append(v._id)
+			  .append(";\n");
+
+		sb.append("\n\tpublic ")
+		  .append(_className)
+		  .append("()\n\t{\n\t}\n");
+
+		// initialize
+		sb.append("\n\t@Override\n\tpublic void initialize(int docId)\n\t{\n\t\tRuntimeException error = null;\n\t\tswitch (docId)\n\t\t{\n");
+		int docId = -1;
+		for (Variable v : _variables.values())
+		{
+			if (v._docId != docId)
+			{
+				if (docId >= 0)
+					sb.append("\t\t\t\tbreak;\n");
+				docId = v._docId;
+				sb.append("\t\t\tcase ")
+				  .append(docId)
+				  .append(":\n");
+			}
+			sb.append("\t\t\t\ttry { ")
+			  .append(v._id)
+			  .append(" = ");
+			if (v._source == null)
+				sb.append(defaultValue(v._type));
+			else if (_valid.get(validBit(v)))
+				sb.append("$d_")
+				  .append(v._id)
+				  .append("()");
+			else
+				sb.append("this.<")
+				  .append(boxed(v._type))
+				  .append(">fail(\"")
+				  .append(v._id)
+				  .append("\")");
+			sb.append("; } catch (RuntimeException e) { if (error == null) error = e; }\n");
+		}
+		if (docId >= 0)
+			sb.append("\t\t\t\tbreak;\n");
+		sb.append("\t\t}\n\t\tif (error != null)\n\t\t\tthrow error;\n\t}\n");
+		sb.append("\n\tprivate <T> T fail(String id)\n\t{\n\t\tthrow invalidData(id);\n\t}\n");
+
+		// evaluate
+		sb.append("\n\t@Override\n\tpublic Object evaluate(int index)\n\t{\n\t\tswitch (index)\n\t\t{\n");
+		for (int i = 0; i < count; ++i)
+		{
+			if (isValid(i, Variant.value))
+				sb.append("\t\t\tcase ")
+				  .append(i)
+				  .append(": return $v")
+				  .append(i)
+				  .append("();\n");
+			else if (isValid(i, Variant.statement))
+				sb.append("\t\t\tcase ")
+				  .append(i)
+				  .append(": $s")
+				  .append(i)
+				  .append("(); return null;\n");
+		}
+		sb.append("\t\t\tdefault: throw invalid(index);\n\t\t}\n\t}\n");
+
+		// test
+		sb.append("\n\t@Override\n\tpublic boolean test(int index)\n\t{\n\t\tswitch (index)\n\t\t{\n");
+		for (int i = 0; i < count; ++i)
+		{
+			if (isValid(i, Variant.condition))
+				sb.append("\t\t\tcase ")
+				  .append(i)
+				  .append(": return $c")
+				  .append(i)
+				  .append("();\n");
+			else if (isValid(i, Variant.value))
+				sb.append("\t\t\tcase ")
+				  .append(i)
+				  .append(": return Boolean.TRUE.equals($v")
+				  .append(i)
+				  .append("());\n");
+		}
+		sb.append("\t\t\tdefault: throw invalid(index);\n\t\t}\n\t}\n");
+
+		// get & set
+		sb.append("\n\t@Override\n\tpublic Object get(String name)\n\t{\n\t\tswitch (name)\n\t\t{\n");
+		for (Variable v : _variables.values())
+			sb.append("\t\t\tcase \"")
+			  .append(v._id)
+			  .append("\": return ")
+			  .append(v._id)
+			  .append(";\n");
+		sb.append("\t\t\tdefault: return NO_VARIABLE;\n\t\t}\n\t}\n");
+		sb.append("\n\t@Override\n\t@SuppressWarnings(\"unchecked\")\n\tpublic boolean set(String name, Object value)\n\t{\n\t\tswitch (name)\n\t\t{\n");
+		for (Variable v : _variables.values())
+			sb.append("\t\t\tcase \"")
+			  .append(v._id)
+			  .append("\": ")
+			  .append(v._id)
+			  .append(" = (")
+			  .append(boxed(v._type))
+			  .append(") value; return true;\n");
+		sb.append("\t\t\tdefault: return false;\n\t\t}\n\t}\n");
+
+		// The methods with the sources.
+		for (Variable v : _variables.values())
+		{
+			if (v._source != null && _valid.get(validBit(v)))
+				method(sb, validBit(v), "private " + v._type + " $d_" + v._id + "()", "return (" + v._source + "\n);");
+		}
+		for (int i = 0; i < count; ++i)
+		{
+			final String source = _definition._sources.get(i);
+			if (isValid(i, Variant.value))
+				method(sb, validBit(i, Variant.value), "private Object $v" + i + "()", "return (" + source + "\n);");
+			if (isValid(i, Variant.condition))
+				method(sb, validBit(i, Variant.condition), "private boolean $c" + i + "()", "return (" + source + "\n);");
+			if (isValid(i, Variant.statement))
+				method(sb, validBit(i, Variant.statement), "private void $s" + i + "()", source + "\n;");
+		}
+		sb.append("}\n");
+		return sb.toString();
+	}
+
+	private void method(StringBuilder sb, int bit, String signature, String body)
+	{
+		final int start = sb.length();
+		sb.append("\n\t")
+		  .append(signature)
+		  .append("\n\t{\n")
+		  .append(resolveInPredicates(body))
+		  .append("\n\t}\n");
+		_ranges.add(new int[]{start, sb.length(), bit});
+	}
+
+	/**
+	 * Replaces "In" predicates with constant names of existing states by the document-id,
+	 * so the predicate is a bit test without lookup.
+	 */
+	private String resolveInPredicates(String source)
+	{
+		return IN_PREDICATE.matcher(source)
+						   .replaceAll(m ->
+						   {
+							   Integer docId = _stateIds.get(m.group(1));
+							   return docId == null ? Matcher.quoteReplacement(m.group()) : "In(" + docId + ")";
+						   });
+	}
+
+	private static String boxed(String type)
+	{
+		return BOXED.getOrDefault(type, type);
+	}
+
+	private static String defaultValue(String type)
+	{
+		switch (type)
+		{
+			case "boolean":
+				return "false";
+			case "char":
+				return "'\\0'";
+			case "byte":
+			case "short":
+			case "int":
+			case "long":
+			case "float":
+			case "double":
+				return "(" + type + ") 0";
+			default:
+				return "null";
+		}
+	}
+
+	/**
+	 * Maps the errors to the methods.
+	 *
+	 * @return Error messages by bit (see {@link #_valid}).
+	 */
+	private Map<Integer, String> mapErrors(List<Diagnostic<? extends JavaFileObject>> diagnostics)
+	{
+		HashMap<Integer, String> errors = new HashMap<>();
+		for (Diagnostic<? extends JavaFileObject> d : diagnostics)
+		{
+			if (d.getKind() != Diagnostic.Kind.ERROR)
+				continue;
+			final long position = d.getPosition();
+			// Errors behind a method are caused by sources that break the structure, so take the last method that starts before.
+			int[] range = null;
+			for (int[] r : _ranges)
+			{
+				if (r[0] <= position)
+					range = r;
+				else
+					break;
+			}
+			if (range == null)
+				throw new IllegalStateException("Failed to compile Java datamodel: " + d.getMessage(null));
+			errors.putIfAbsent(range[2], d.getMessage(null));
+		}
+		return errors;
+	}
+
+	private void removeInvalid(Map<Integer, String> errors)
+	{
+		final int variants = Variant.values().length;
+		final int count = _definition._sources.size();
+		for (Map.Entry<Integer, String> e : errors.entrySet())
+		{
+			final int bit = e.getKey();
+			_valid.clear(bit);
+			if (bit < count * variants && bit % variants == Variant.value.ordinal())
+				_definition._errors[bit / variants] = e.getValue();
+			else if (bit >= count * variants)
+				LOG.warning(String.format("Invalid value of data: %s", e.getValue()));
+		}
+	}
+
+	private Map<Integer, String> analyze(String source)
+	{
+		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+		try
+		{
+			task(source, null, diagnostics).analyze();
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException("Failed to analyze the expressions", e);
+		}
+		return mapErrors(diagnostics.getDiagnostics());
+	}
+
+	private Map<Integer, String> compileClass(String source, Map<String, ByteArrayOutputStream> classes)
+	{
+		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+		task(source, classes, diagnostics).call();
+		return mapErrors(diagnostics.getDiagnostics());
+	}
+
+	private JavacTask task(String source, Map<String, ByteArrayOutputStream> classes, DiagnosticCollector<JavaFileObject> diagnostics)
+	{
+		StandardJavaFileManager standard = _compiler.getStandardFileManager(diagnostics, null, null);
+		ForwardingJavaFileManager<StandardJavaFileManager> fileManager = new ForwardingJavaFileManager<>(standard)
+		{
+			@Override
+			public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind, FileObject sibling)
+			{
+				return new SimpleJavaFileObject(URI.create("mem:///" + className.replace('.', '/') + kind.extension), kind)
+				{
+					@Override
+					public OutputStream openOutputStream()
+					{
+						ByteArrayOutputStream out = new ByteArrayOutputStream();
+						if (classes != null)
+							classes.put(className, out);
+						return out;
+					}
+				};
+			}
+		};
+		JavaFileObject file = new SimpleJavaFileObject(URI.create("mem:///" + PACKAGE.replace('.', '/') + "/" + _className + ".java"),
+				JavaFileObject.Kind.SOURCE)
+		{
+			@Override
+			public CharSequence getCharContent(boolean ignoreEncodingErrors)
+			{
+				return source;
+			}
+		};
+		return (JavacTask) _compiler.getTask(null, fileManager, diagnostics, Arrays.asList(OPTIONS), null, List.of(file));
+	}
+
+	/**
+	 * The class-path for the generated code: the class-path of the process and the location of the datamodel classes.
+	 */
+	private static String classPath()
+	{
+		StringBuilder sb = new StringBuilder(System.getProperty("java.class.path", ""));
+		try
+		{
+			File location = new File(JavaDatamodel.class.getProtectionDomain()
+														.getCodeSource()
+														.getLocation()
+														.toURI());
+			sb.append(File.pathSeparatorChar)
+			  .append(location.getPath());
+		}
+		catch (Exception e)
+		{
+			LOG.log(Level.FINE, "Location of datamodel classes not available", e);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Loads the class of one definition, so it can be unloaded with the definition.
+	 */
+	private static final class DefinitionClassLoader extends ClassLoader
+	{
+		private final String _name;
+		private final byte[] _code;
+
+		DefinitionClassLoader(String name, byte[] code)
+		{
+			super(JavaDatamodel.class.getClassLoader());
+			_name = name;
+			_code = code;
+		}
+
+		@Override
+		protected Class<?> findClass(String name) throws ClassNotFoundException
+		{
+			if (_name.equals(name))
+				return defineClass(name, _code, 0, _code.length);
+			return super.findClass(name);
+		}
+	}
+}
@@ -1,9 +1,11 @@
 package com.bw.modelthings.fsm.model;
 
 import java.util.AbstractCollection;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.ConcurrentModificationException;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.NoSuchElementException;
 import java.util.function.Predicate;
 
 /**
@@ -13,59 +15,152 @@ import java.util.function.Predicate;
  * </p>
  * <p>Structs and methods are designed to match the signatures in the W3c-Pseudo-code.</p>
  * <p>Additional it implements {@link Collection}</p>
+ * <p><b>Actual Implementation</b><br>
+ * The W3C methods {@link #tail()} and {@link #append(Object)} return new lists. To avoid copying, lists are views
+ * (offset and size) on a shared array. {@link #tail()} is a view on the same array. {@link #append(Object)} writes
+ * into the shared array if no other list has used the slot behind this list yet, otherwise the elements are copied.
+ * Modifications that would change elements visible to other lists (remove, clear) copy the array first.</p>
  */
 public class List<T> extends AbstractCollection<T>
 {
-	final LinkedList<T> _list = new LinkedList<>();
+	private static final Object[] EMPTY = new Object[0];
+
+	/**
+	 * The array shared by all lists created from each other.
+	 */
+	private static final class Storage
+	{
+		/**
+		 * The elements.
+		 */
+		Object[] _data;
+
+		/**
+		 * Number of used slots. Slots behind this index can be claimed by the next append.
+		 */
+		int _used;
+
+		/**
+		 * True if more than one list references this storage.
+		 */
+		boolean _shared;
+
+		Storage(Object[] data, int used)
+		{
+			_data = data;
+			_used = used;
+		}
+	}
+
+	private Storage _storage;
+	private int _offset;
+	private int _size;
 
 	/**
 	 * Creates a new empty list.
 	 */
 	public List()
 	{
+		_storage = new Storage(EMPTY, 0);
+	}
+
+	/**
+	 * Creates a list filled with all elements from l.
+	 *
+	 * @param l The original list to copy.
+	 */
+	public List(List<? extends T> l)
+	{
+		share(l);
 	}
 
 	@Override
 	public Iterator<T> iterator()
 	{
-		return _list.iterator();
+		return new Iterator<>()
+		{
+			int _next = 0;
+			int _last = -1;
+			Object[] _data = _storage._data;
+
+			@Override
+			public boolean hasNext()
+			{
+				return _next < _size;
+			}
+
+			@Override
+			@SuppressWarnings("unchecked")
+			public T next()
+			{
+				if (_next >= _size)
+					throw new NoSuchElementException();
+				if (_data != _storage._data)
+					throw new ConcurrentModificationException();
+				_last = _next;
+				return (T) _data[_offset + _next++];
+			}
+
+			@Override
+			public void remove()
+			{
+				if (_last < 0)
+					throw new IllegalStateException();
+				removeAt(_last);
+				_data = _storage._data;
+				_next = _last;
+				_last = -1;
+			}
+		};
 	}
 
 	@Override
 	public int size()
 	{
-		return _list.size();
+		return _size;
 	}
 
 	/**
-	 * Adds an element to the list.
+	 * Returns an element by index.
 	 *
-	 * @param l The element to add.
+	 * @param index The index of the element.
+	 * @return The element.
+	 * @throws IndexOutOfBoundsException if index is not valid.
 	 */
-	public boolean add(T l)
+	@SuppressWarnings("unchecked")
+	public T get(int index)
 	{
-		return _list.add(l);
+		if (index < 0 || index >= _size)
+			throw new IndexOutOfBoundsException(index);
+		return (T) _storage._data[_offset + index];
 	}
 
 	/**
-	 * Adds all elements to the list.
+	 * Adds an element to the list.
 	 *
-	 * @param l The list to add.
+	 * @param l The element to add.
 	 */
-	public void add(Collection<T> l)
+	public boolean add(T l)
 	{
-		_list.addAll(l);
+		prepareAppend(1);
+		_storage._data[_offset + _size] = l;
+		++_size;
+		++_storage._used;
+		return true;
 	}
 
-
 	/**
-	 * Creates a list filled with all elements from l.
+	 * Adds all elements to the list.
 	 *
-	 * @param l The original list to copy.
+	 * @param l The list to add.
 	 */
-	public List(List<? extends T> l)
+	@SuppressWarnings("unchecked")
+	public void add(Collection<T> l)
 	{
-		_list.addAll(l._list);
+		Object[] elements = l.toArray();
+		prepareAppend(elements.length);
+		for (Object e : elements)
+			add((T) e);
 	}
 
 	/**
@@ -74,20 +169,27 @@ public class List<T> extends AbstractCollection<T>
 	 * @return The first element.
 	 * @throws java.util.NoSuchElementException if list is empty.
 	 */
+	@SuppressWarnings("unchecked")
 	public T head()
 	{
-		return _list.getFirst();
+		if (_size == 0)
+			throw new NoSuchElementException();
+		return (T) _storage._data[_offset];
 	}
 
 	/**
 	 * Returns the tail of the list (i.e., the rest of the list once the head is removed)
 	 *
-	 * @return A clone of the list without the first element.
+	 * @return A view of the list without the first element.
+	 * @throws java.util.NoSuchElementException if list is empty.
 	 */
 	public List<T> tail()
 	{
+		if (_size == 0)
+			throw new NoSuchElementException();
 		List<T> t = new List<>(this);
-		t._list.removeFirst();
+		++t._offset;
+		--t._size;
 		return t;
 	}
 
@@ -95,12 +197,12 @@ public class List<T> extends AbstractCollection<T>
 	 * Returns the list appended with l
 	 *
 	 * @param l The Element to append.
-	 * @return A clone of the list with the additional element.
+	 * @return A new list with the additional element.
 	 */
 	public List<T> append(T l)
 	{
 		List<T> t = new List<>(this);
-		t._list.add(l);
+		t.add(l);
 		return t;
 	}
 
@@ -108,12 +210,14 @@ public class List<T> extends AbstractCollection<T>
 	 * Returns the list appended with l
 	 *
 	 * @param l The list to append.
-	 * @return A clone of the list with all elements from l appended at the end.
+	 * @return A new list with all elements from l appended at the end.
 	 */
 	public List<T> append(List<? extends T> l)
 	{
 		List<T> t = new List<>(this);
-		t._list.addAll(l._list);
+		t.prepareAppend(l._size);
+		for (int i = 0; i < l._size; ++i)
+			t.add(l.get(i));
 		return t;
 	}
 
@@ -121,12 +225,14 @@ public class List<T> extends AbstractCollection<T>
 	 * Returns the list appended with l
 	 *
 	 * @param l The set to append.
-	 * @return A clone of the list with all elements from l appended at the end.
+	 * @return A new list with all elements from l appended at the end.
 	 */
 	public List<T> append(OrderedSet<? extends T> l)
 	{
 		List<T> t = new List<>(this);
-		t._list.addAll(l._set);
+		t.prepareAppend(l._set.size());
+		for (T e : l._set)
+			t.add(e);
 		return t;
 	}
 
@@ -140,9 +246,12 @@ public class List<T> extends AbstractCollection<T>
 	public List<T> filter(Predicate<T> f)
 	{
 		List<T> t = new List<>();
-		_list.stream()
-			 .filter(f)
-			 .forEach(t._list::add);
+		for (int i = 0; i < _size; ++i)
+		{
+			T e = get(i);
+			if (f.test(e))
+				t.add(e);
+		}
 		return t;
 	}
 
@@ -154,8 +263,12 @@ public class List<T> extends AbstractCollection<T>
 	 */
 	public boolean some(Predicate<T> f)
 	{
-		return _list.stream()
-					.anyMatch(f);
+		for (int i = 0; i < _size; ++i)
+		{
+			if (f.test(get(i)))
+				return true;
+		}
+		return false;
 	}
 
 	/**
@@ -166,8 +279,12 @@ public class List<T> extends AbstractCollection<T>
 	 */
 	public boolean every(Predicate<T> f)
 	{
-		return _list.stream()
-					.allMatch(f);
+		for (int i = 0; i < _size; ++i)
+		{
+			if (!f.test(get(i)))
+				return false;
+		}
+		return true;
 	}
 
 	/**
@@ -175,6 +292,72 @@ public class List<T> extends AbstractCollection<T>
 	 */
 	public void clear()
 	{
-		_list.clear();
+		if (_storage._shared)
+		{
+			_storage = new Storage(EMPTY, 0);
+			_offset = 0;
+		}
+		else
+		{
+			Arrays.fill(_storage._data, _offset, _offset + _size, null);
+			_storage._used = _offset;
+		}
+		_size = 0;
+	}
+
+	/**
+	 * Makes this list a view on the storage of l.
+	 */
+	private void share(List<? extends T> l)
+	{
+		_storage = l._storage;
+		_storage._shared = true;
+		_offset = l._offset;
+		_size = l._size;
+	}
+
+	/**
+	 * Ensures that the next n elements can be written behind the end of this list without changing other lists.
+	 *
+	 * @param n The number of elements to append.
+	 */
+	private void prepareAppend(int n)
+	{
+		final int end = _offset + _size;
+		Storage st = _storage;
+		if (end != st._used)
+		{
+			// Slot is already used by some other list, we need our own copy.
+			Object[] data = new Object[Math.max(8, _size + n)];
+			System.arraycopy(st._data, _offset, data, 0, _size);
+			_storage = new Storage(data, _size);
+			_offset = 0;
+		}
+		else if (end + n > st._data.length)
+		{
+			// Grow the storage, indices stay valid for all lists that share it.
+			st._data = Arrays.copyOf(st._data, Math.max(8, Math.max(end + n, st._data.length + (st._data.length >> 1))));
+		}
+	}
+
+	/**
+	 * Removes one element. Copies the storage if it is shared.
+	 *
+	 * @param index The index of the element.
+	 */
+	private void removeAt(int index)
+	{
+		if (_storage._shared)
+		{
+			Object[] data = new Object[Math.max(8, _size)];
+			System.arraycopy(_storage._data, _offset, data, 0, _size);
+			_storage = new Storage(data, _size);
+			_offset = 0;
+		}
+		Object[] data = _storage._data;
+		System.arraycopy(data, _offset + index + 1, data, _offset + index, _size - index - 1);
+		--_size;
+		data[_offset + _size] = null;
+		_storage._used = _offset + _size;
 	}
-}
\ No newline at end of file
+}
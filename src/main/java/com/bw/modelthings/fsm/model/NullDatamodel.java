@@ -1,5 +1,8 @@
 package com.bw.modelthings.fsm.model;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+
 /**
  * The Null Data Model.
  */
@@ -58,7 +61,72 @@ public class NullDatamodel implements Datamodel
 	}
 
 	@Override
-	public String execute(FiniteStateMachine fsm, String script)
+	public void writeSnapshot(FiniteStateMachine fsm, DataOutput out)
+	{
+		// No data
+	}
+
+	@Override
+	public void readSnapshot(FiniteStateMachine fsm, DataInput in)
+	{
+		// No data
+	}
+
+	/**
+	 * Compiles "In(id)" predicates to the document-id of the state, so no lookup is needed at run-time.
+	 * The id can be quoted, as in the other datamodels.
+	 * All other expressions are not supported by the Null datamodel, conditions with them raise "error.execution".
+	 *
+	 * @param fsm    The State Machine to work on.
+	 * @param source The source of the expression.
+	 * @return The compiled expression.
+	 */
+	@Override
+	public Expression compile(FiniteStateMachine fsm, String source)
+	{
+		final String id = getInPredicateId(source);
+		if (id != null)
+		{
+			State state = fsm._states.get(id);
+			return new InPredicate(source, state == null ? -1 : state._docId);
+		}
+		return new Unsupported(source);
+	}
+
+	/**
+	 * Parses an "In(id)" predicate. The id can be quoted, as in the other datamodels.
+	 *
+	 * @param source The source of the expression.
+	 * @return The state id or null if the expression is no "In" predicate.
+	 */
+	public static String getInPredicateId(String source)
+	{
+		String s = source.trim();
+		if (!(s.startsWith("In(") && s.endsWith(")")))
+			return null;
+		String id = s.substring(3, s.length() - 1)
+					 .trim();
+		if (id.length() >= 2 && (id.charAt(0) == '\'' || id.charAt(0) == '"') && id.charAt(id.length() - 1) == id.charAt(0))
+			id = id.substring(1, id.length() - 1);
+		return id;
+	}
+
+	/**
+	 * The Null datamodel has no locations, assignments do nothing.
+	 *
+	 * @param fsm      The State Machine to work on.
+	 * @param location The location expression.
+	 * @param expr     The value expression.
+	 * @return The compiled assignment.
+	 */
+	@Override
+	public Expression compileAssignment(FiniteStateMachine fsm, String location, String expr)
+	{
+		return new Unsupported(location);
+	}
+
+	@Override
+	public String execute(FiniteStateMachine fsm, Expression script)
 	{
 		return null;
 	}
@@ -70,15 +138,66 @@ public class NullDatamodel implements Datamodel
 	}
 
 	@Override
-	public boolean executeCondition(FiniteStateMachine fsm, String script)
+	public boolean executeCondition(FiniteStateMachine fsm, Expression condition)
 	{
-		//  @TODO: support "In(id)"
-		return false;
+		if (condition instanceof InPredicate)
+		{
+			final int docId = ((InPredicate) condition)._docId;
+			return docId >= 0 && _globalData.configuration.isMember(docId);
+		}
+		throw new IllegalArgumentException(String.format("Condition '%s' is not supported by the Null datamodel", condition.getSource()));
 	}
 
 	@Override
 	public void executeContent(FiniteStateMachine fsm, ExecutableContent content)
 	{
-		// Nothing
+		content.execute(this, fsm);
+	}
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * The boolean expression language consists of the In predicate only. It has the form 'In(id)',
+	 * where id is the id of a state in the enclosing state machine.
+	 * The predicate must return 'true' if and only if that state is in the current state configuration.
+	 */
+	private static final class InPredicate implements Expression
+	{
+		private final String _source;
+
+		/**
+		 * Document-id of the state or -1 if the state doesn't exist.
+		 */
+		final int _docId;
+
+		InPredicate(String source, int docId)
+		{
+			_source = source;
+			_docId = docId;
+		}
+
+		@Override
+		public String getSource()
+		{
+			return _source;
+		}
+	}
+
+	/**
+	 * Any other expression.
+	 */
+	private static final class Unsupported implements Expression
+	{
+		private final String _source;
+
+		Unsupported(String source)
+		{
+			_source = source;
+		}
+
+		@Override
+		public String getSource()
+		{
+			return _source;
+		}
 	}
 }
@@ -19,7 +19,7 @@ public class OrderedSet<T>
 	/**
 	 * Created a new empty set.
 	 */
-	OrderedSet()
+	public OrderedSet()
 	{
 	}
 
@@ -51,7 +51,7 @@ public class OrderedSet<T>
 	 */
 	public void union(OrderedSet<T> s)
 	{
-		s._set.addAll(s._set);
+		_set.addAll(s._set);
 	}
 
 	/**
@@ -130,7 +130,8 @@ public class OrderedSet<T>
 	public List<T> toList()
 	{
 		List<T> list = new List<>();
-		list._list.addAll(_set);
+		for (T e : _set)
+			list.add(e);
 		return list;
 	}
 
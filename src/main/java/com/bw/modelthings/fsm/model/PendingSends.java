@@ -0,0 +1,120 @@
+package com.bw.modelthings.fsm.model;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * <strong>W3C says:</strong><br>
+ * The Processor SHOULD make its best attempt to cancel all delayed events with the specified id.<br>
+ * <strong>Actual Implementation:</strong><br>
+ * The delayed events of a session that are not yet delivered. Several events can have the same send-id, a
+ * &lt;send&gt; doesn't replace a pending event with the same id, only &lt;cancel&gt; removes them.<br>
+ * The handles are kept in scheduling order, so a restored session schedules events with equal delay in the same order.<br>
+ * The scheduler removes a handle from its thread when the event is delivered, so all methods are synchronized.
+ * The handle is added while the lock is held, so a delivery that is faster than the caller can't leave it behind.
+ */
+public final class PendingSends
+{
+	private final LinkedHashSet<ScheduledEvent> _pending = new LinkedHashSet<>();
+
+	private final Consumer<ScheduledEvent> _delivered = this::remove;
+
+	/**
+	 * Creates an empty instance.
+	 */
+	public PendingSends()
+	{
+	}
+
+	/**
+	 * Schedules an event and adds the handle until the event is delivered or cancelled.
+	 *
+	 * @param scheduler   The scheduler.
+	 * @param event       The event.
+	 * @param delayMillis The delay in milliseconds.
+	 * @param target      The queue to put the event into after the delay.
+	 */
+	public synchronized void schedule(EventScheduler scheduler, Event event, long delayMillis, BlockingQueue<Event> target)
+	{
+		_pending.add(scheduler.schedule(event, delayMillis, target, _delivered));
+	}
+
+	/**
+	 * Adds the handle of a scheduled event, e.g. of an event that a simulation never delivers.
+	 *
+	 * @param scheduled The handle.
+	 */
+	public synchronized void add(ScheduledEvent scheduled)
+	{
+		_pending.add(scheduled);
+	}
+
+	/**
+	 * Removes a handle.
+	 *
+	 * @param scheduled The handle.
+	 * @return true if the handle was pending.
+	 */
+	public synchronized boolean remove(ScheduledEvent scheduled)
+	{
+		return _pending.remove(scheduled);
+	}
+
+	/**
+	 * Removes all handles of events with the send-id.
+	 *
+	 * @param sendId The send-id.
+	 * @return The removed handles, in scheduling order. Empty if no event with the id is pending.
+	 */
+	public synchronized List<ScheduledEvent> remove(String sendId)
+	{
+		List<ScheduledEvent> removed = List.of();
+		for (Iterator<ScheduledEvent> it = _pending.iterator(); it.hasNext(); )
+		{
+			final ScheduledEvent scheduled = it.next();
+			if (sendId.equals(scheduled.getEvent()._sendId))
+			{
+				if (removed.isEmpty())
+					removed = new ArrayList<>(1);
+				removed.add(scheduled);
+				it.remove();
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Checks if no event is pending.
+	 *
+	 * @return true if empty.
+	 */
+	public synchronized boolean isEmpty()
+	{
+		return _pending.isEmpty();
+	}
+
+	/**
+	 * Gets the handles.
+	 *
+	 * @return A copy of the handles in scheduling order.
+	 */
+	public synchronized ScheduledEvent[] toArray()
+	{
+		return _pending.toArray(new ScheduledEvent[0]);
+	}
+
+	/**
+	 * Removes all handles.
+	 *
+	 * @return The removed handles in scheduling order.
+	 */
+	public synchronized ScheduledEvent[] clear()
+	{
+		final ScheduledEvent[] all = toArray();
+		_pending.clear();
+		return all;
+	}
+}
@@ -9,7 +9,7 @@ package com.bw.modelthings.fsm.model;
  */
 public class Queue<T>
 {
-	java.util.Deque<T> _queue = new java.util.LinkedList<>();
+	java.util.ArrayDeque<T> _queue = new java.util.ArrayDeque<>();
 
 	/**
 	 * Creates a new empty queue.
@@ -22,7 +22,7 @@ public class Queue<T>
 	/**
 	 * Puts e last in the queue.
 	 *
-	 * @param e The element to add.
+	 * @param e The element to add. Must not be null.
 	 */
 	public void enqueue(T e)
 	{
@@ -39,6 +39,16 @@ public class Queue<T>
 		return _queue.pollFirst();
 	}
 
+	/**
+	 * Adds all elements in queue order to a collection, without removing them.
+	 *
+	 * @param target The collection.
+	 */
+	public void copyTo(java.util.Collection<? super T> target)
+	{
+		target.addAll(_queue);
+	}
+
 	/**
 	 * Is the queue empty?
 	 *
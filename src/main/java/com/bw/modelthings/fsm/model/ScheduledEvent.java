@@ -0,0 +1,14 @@
+package com.bw.modelthings.fsm.model;
+
+/**
+ * Handle of an event scheduled by an {@link EventScheduler}.
+ */
+public interface ScheduledEvent
+{
+	/**
+	 * Gets the event.
+	 *
+	 * @return The scheduled event.
+	 */
+	Event getEvent();
+}
@@ -17,8 +17,12 @@ public class State implements FsmElement
 	}
 
 	/**
-	 * The unique id, counting in document order.<br>
-	 * "id" is increasing on references to states, not declaration and may not result in correct order.
+	 * The index of the state, counting in document order.<br>
+	 * "id" is increasing on references to states, not declaration and may not result in correct order.<br>
+	 * The parser assigns a dense counter, starting with 0 for the root and without gaps. The
+	 * {@link com.bw.modelthings.fsm.runtime.CompiledMachine CompiledMachine} indexes all its tables by this value and
+	 * rejects a model whose ids are not strictly increasing in document order. The configuration and all other sets of
+	 * states are {@link StateSet}s over the same index, so document order is the order of the bits.
 	 */
 	public int _docId;
 
@@ -78,12 +82,13 @@ public class State implements FsmElement
 	public java.util.List<State> _history;
 
 	/**
-	 * The local datamodel
+	 * The &lt;data&gt; elements of the &lt;datamodel&gt; of this state, in document order.
 	 */
-	public DataStore _data;
+	public final java.util.List<DataDeclaration> _dataDeclarations = new ArrayList<>();
 
 	/**
-	 * True if state was never entered.
+	 * True if state was never entered.<br>
+	 * Not used by the runtime: the state is shared by all sessions, the interpreter tracks the first entry per session.
 	 */
 	public boolean _isFirstEntry;
 
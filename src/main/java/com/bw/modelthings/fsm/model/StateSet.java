@@ -0,0 +1,221 @@
+package com.bw.modelthings.fsm.model;
+
+import java.util.Arrays;
+
+/**
+ * <p>Set of states, encoded as bitset over {@link State#_docId}.<br>
+ * Replaces the {@link OrderedSet} of {@link StateId}s for the configuration and similar sets of the W3C algorithm.</p>
+ * <p>As the document-id is a dense counter in document order, iterating the bits in ascending order is iterating
+ * the states in document order ("entryOrder"), descending order is "exitOrder". Sets of states don't need to be
+ * sorted and membership tests, union and intersection are simple word-wise operations without any allocation.</p>
+ * <p>Method names match the W3C pseudo-code of {@link OrderedSet}.</p>
+ */
+public final class StateSet
+{
+	private static final int WORD_SHIFT = 6;
+
+	/**
+	 * The bits, bit i of word (i &gt;&gt; 6) is set if state with document-id i is a member.
+	 */
+	long[] _words;
+
+	/**
+	 * Creates a new empty set.
+	 */
+	public StateSet()
+	{
+		this(64);
+	}
+
+	/**
+	 * Creates a new empty set for the given number of document-ids.
+	 * The set grows automatically if larger ids are added.
+	 *
+	 * @param capacity Maximal document-id + 1.
+	 */
+	public StateSet(int capacity)
+	{
+		_words = new long[Math.max(1, (capacity + 63) >>> WORD_SHIFT)];
+	}
+
+	/**
+	 * Adds e to the set if it is not already a member
+	 *
+	 * @param docId The document-id of the state to add.
+	 */
+	public void add(int docId)
+	{
+		final int w = docId >>> WORD_SHIFT;
+		if (w >= _words.length)
+			_words = Arrays.copyOf(_words, Math.max(w + 1, _words.length * 2));
+		_words[w] |= 1L << docId;
+	}
+
+	/**
+	 * Deletes e from the set
+	 *
+	 * @param docId The document-id of the state to remove.
+	 */
+	public void delete(int docId)
+	{
+		final int w = docId >>> WORD_SHIFT;
+		if (w < _words.length)
+			_words[w] &= ~(1L << docId);
+	}
+
+	/**
+	 * Adds all members of s that are not already members of the set.
+	 *
+	 * @param s The set to add.
+	 */
+	public void union(StateSet s)
+	{
+		if (s._words.length > _words.length)
+			_words = Arrays.copyOf(_words, s._words.length);
+		for (int i = 0; i < s._words.length; ++i)
+			_words[i] |= s._words[i];
+	}
+
+	/**
+	 * Is e a member of set?
+	 *
+	 * @param docId The document-id of the state to search for.
+	 * @return true if e is in the set.
+	 */
+	public boolean isMember(int docId)
+	{
+		final int w = docId >>> WORD_SHIFT;
+		return w < _words.length && (_words[w] & (1L << docId)) != 0;
+	}
+
+	/**
+	 * Checks for intersection.
+	 *
+	 * @param s The set to check.
+	 * @return true if this set and set s have at least one member in common
+	 */
+	public boolean hasIntersection(StateSet s)
+	{
+		final int n = Math.min(_words.length, s._words.length);
+		for (int i = 0; i < n; ++i)
+		{
+			if ((_words[i] & s._words[i]) != 0)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Checks if any document-id in [from, to) is a member.
+	 * Used to check for active descendants, as the descendants of a state form such a range.
+	 *
+	 * @param from First document-id, inclusive.
+	 * @param to   Last document-id, exclusive.
+	 * @return true if some state in the range is a member.
+	 */
+	public boolean intersectsRange(int from, int to)
+	{
+		final int next = nextMember(from);
+		return next >= 0 && next < to;
+	}
+
+	/**
+	 * Get the next member in document order.
+	 *
+	 * @param from The document-id to start the search at, inclusive.
+	 * @return The document-id of the next member or -1 if there is none.
+	 */
+	public int nextMember(int from)
+	{
+		int w = from >>> WORD_SHIFT;
+		if (from < 0 || w >= _words.length)
+			return -1;
+		long word = _words[w] & (-1L << from);
+		while (true)
+		{
+			if (word != 0)
+				return (w << WORD_SHIFT) + Long.numberOfTrailingZeros(word);
+			if (++w == _words.length)
+				return -1;
+			word = _words[w];
+		}
+	}
+
+	/**
+	 * Get the previous member in document order, used to iterate in "exitOrder".
+	 *
+	 * @param from The document-id to start the search at, inclusive.
+	 * @return The document-id of the previous member or -1 if there is none.
+	 */
+	public int previousMember(int from)
+	{
+		if (from < 0)
+			return -1;
+		int w = from >>> WORD_SHIFT;
+		if (w >= _words.length)
+		{
+			w = _words.length - 1;
+			from = (w << WORD_SHIFT) + 63;
+		}
+		long word = _words[w] & (-1L >>> (63 - (from & 63)));
+		while (true)
+		{
+			if (word != 0)
+				return (w << WORD_SHIFT) + 63 - Long.numberOfLeadingZeros(word);
+			if (w-- == 0)
+				return -1;
+			word = _words[w];
+		}
+	}
+
+	/**
+	 * Is the set empty?
+	 *
+	 * @return true if empty
+	 */
+	public boolean isEmpty()
+	{
+		for (long word : _words)
+		{
+			if (word != 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Get the number of members.
+	 *
+	 * @return The number of members.
+	 */
+	public int size()
+	{
+		int n = 0;
+		for (long word : _words)
+			n += Long.bitCount(word);
+		return n;
+	}
+
+	/**
+	 * Remove all elements from the set (make it empty)
+	 */
+	public void clear()
+	{
+		Arrays.fill(_words, 0L);
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append('{');
+		for (int i = nextMember(0); i >= 0; i = nextMember(i + 1))
+		{
+			if (sb.length() > 1)
+				sb.append(',');
+			sb.append(i);
+		}
+		return sb.append('}')
+				 .toString();
+	}
+}
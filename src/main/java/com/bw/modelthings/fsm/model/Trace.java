@@ -1,7 +1,7 @@
 package com.bw.modelthings.fsm.model;
 
 /**
- * Trace modes
+ * Trace modes. A {@link Tracer} selects the modes by a bit mask, see {@link #bit()}.
  */
 public enum Trace
 {
@@ -11,12 +11,12 @@ public enum Trace
 	METHODS,
 
 	/**
-	 * Trace state transitions.
+	 * Trace state transitions: states entered and exited, transitions taken.
 	 */
 	STATES,
 
 	/**
-	 * Trace events.
+	 * Trace events: each event that is processed, external and internal.
 	 */
 	EVENTS,
 
@@ -26,7 +26,7 @@ public enum Trace
 	ARGUMENTS,
 
 	/**
-	 * Trace also results for methods.
+	 * Trace also results for methods: the results of transition conditions.
 	 */
 	RESULTS,
 
@@ -34,4 +34,28 @@ public enum Trace
 	 * Trace all above.
 	 */
 	ALL;
+
+	/**
+	 * Gets the bit of the mode in a trace mask.
+	 *
+	 * @return The bit, all bits for {@link #ALL}.
+	 */
+	public int bit()
+	{
+		return this == ALL ? ~0 : 1 << ordinal();
+	}
+
+	/**
+	 * Gets the trace mask of some modes.
+	 *
+	 * @param modes The modes.
+	 * @return The mask.
+	 */
+	public static int mask(Trace... modes)
+	{
+		int mask = 0;
+		for (Trace mode : modes)
+			mask |= mode.bit();
+		return mask;
+	}
 }
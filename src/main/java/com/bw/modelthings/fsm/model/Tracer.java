@@ -1,8 +1,52 @@
 package com.bw.modelthings.fsm.model;
 
 /**
- * Tracer interface to trace the state machine.
+ * Tracer interface to trace the state machine.<br>
+ * The interpreter calls only the methods of the modes in {@link #getTraceMask()}, so a tracer costs nothing for
+ * disabled modes. The methods are called by the thread that processes the events and must not block.
  */
 public interface Tracer
 {
+	/**
+	 * Gets the enabled modes. Read once when the tracer is set.
+	 *
+	 * @return The mask of {@link Trace} bits, see {@link Trace#mask(Trace...)}.
+	 */
+	int getTraceMask();
+
+	/**
+	 * A state was entered. Called for {@link Trace#STATES}.
+	 *
+	 * @param state The state.
+	 */
+	void stateEntered(State state);
+
+	/**
+	 * A state was exited. Called for {@link Trace#STATES}.
+	 *
+	 * @param state The state.
+	 */
+	void stateExited(State state);
+
+	/**
+	 * A transition is taken. Called for {@link Trace#STATES}.
+	 *
+	 * @param transition The transition.
+	 */
+	void transitionTaken(Transition transition);
+
+	/**
+	 * An event is processed. Called for {@link Trace#EVENTS}.
+	 *
+	 * @param event The event.
+	 */
+	void eventProcessed(Event event);
+
+	/**
+	 * The condition of a transition was evaluated. Called for {@link Trace#RESULTS}.
+	 *
+	 * @param transition The transition.
+	 * @param result     The result.
+	 */
+	void conditionEvaluated(Transition transition, boolean result);
 }
@@ -38,6 +38,11 @@ public class Transition implements FsmElement
 	 */
 	public String _cond;
 
+	/**
+	 * The compiled guard condition, set by the compiler of the runtime.
+	 */
+	public Expression _condExpression;
+
 	/**
 	 * The source state.
 	 */
@@ -0,0 +1,23 @@
+package com.bw.modelthings.fsm.model;
+
+/**
+ * How a thread waits on a {@link BlockingQueue} that is empty (consumer) or full (producers).
+ */
+public enum WaitStrategy
+{
+	/**
+	 * Busy spin with {@link Thread#onSpinWait()}. Lowest latency, burns one core per waiting thread.
+	 * Use only if all producers and the consumer have their own cores.
+	 */
+	spin,
+
+	/**
+	 * Spin with {@link Thread#yield()}, gives other threads the chance to run.
+	 */
+	yield,
+
+	/**
+	 * Park the thread. Producers wake up the parked consumer. Highest latency, but no CPU usage while waiting.
+	 */
+	park
+}
@@ -0,0 +1,1107 @@
+package com.bw.modelthings.fsm.model;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.w3c.dom.ls.DOMImplementationLS;
+import org.w3c.dom.ls.LSSerializer;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathEvaluationResult;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import javax.xml.xpath.XPathFunction;
+import javax.xml.xpath.XPathFunctionResolver;
+import javax.xml.xpath.XPathVariableResolver;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * <strong>W3C says:</strong><br>
+ * The value "xpath" for the 'datamodel' attribute of the &lt;scxml&gt; element specifies that the XPath data model
+ * is being used. The data model is an XML tree, each &lt;data&gt; element is bound to the variable "$id".
+ * Expressions are XPath 1.0 expressions, locations must evaluate to a node-set.<br>
+ * <strong>Actual Implementation:</strong><br>
+ * Uses the JAXP XPath implementation of the platform.
+ * <ul>
+ * <li>Each "cond", "expr" and "location" is checked once per definition. An {@link XPathExpression} is not
+ * thread-safe, so each definition keeps a pool of compiled instances. An evaluation borrows an instance and returns
+ * it afterwards, a new instance is only compiled if all are in use. Sessions never wait for each other, and the
+ * number of instances is bounded by the number of concurrent evaluations, not by the number of threads.</li>
+ * <li>Each session owns a DOM document with the &lt;data&gt; elements. &lt;assign&gt; modifies the nodes of this
+ * document directly.</li>
+ * <li>XML content of &lt;data&gt; and &lt;assign&gt; is parsed without namespaces, so "$data/a/b" selects the
+ * content as written. Parsed content is cached by source.</li>
+ * <li>"In(id)" is rewritten to an extension function, as XPath 1.0 doesn't allow functions without prefix.</li>
+ * <li>"$_event" is an element with a child element for each property of the current event, e.g.
+ * "$_event/name". It is created when an expression first uses it.</li>
+ * </ul>
+ */
+public class XPathDatamodel implements Datamodel
+{
+	/**
+	 * The name of this datamodel.
+	 */
+	public static final String NAME = "xpath";
+
+	/**
+	 * Namespace of the extension functions.
+	 */
+	public static final String NS_FUNCTIONS = "http://www.w3.org/2005/07/scxml";
+
+	/**
+	 * Prefix of the extension functions.
+	 */
+	protected static final String FUNCTION_PREFIX = "scxml";
+
+	/**
+	 * Name of the element that holds the &lt;data&gt; elements.
+	 */
+	protected static final String ROOT_ELEMENT = "datamodel";
+
+	/**
+	 * Name of the element of each data item.
+	 */
+	protected static final String DATA_ELEMENT = "data";
+
+	/**
+	 * Name of the system variable that holds the current event.
+	 */
+	protected static final String EVENT_VARIABLE = "_event";
+
+	protected final static Logger LOG = Logger.getLogger(XPathDatamodel.class.getName());
+
+	/**
+	 * Calls of "In" that are not part of a name.
+	 */
+	private static final Pattern IN_CALL = Pattern.compile("(?<![\\w.:$-])In\\s*\\(");
+
+	/**
+	 * XPathFactory is not thread-safe, use only synchronized.
+	 */
+	private static final XPathFactory XPATH_FACTORY = XPathFactory.newInstance();
+
+	private static final DocumentBuilderFactory DOCUMENT_FACTORY = createDocumentFactory();
+
+	private static final NamespaceContext NAMESPACES = new NamespaceContext()
+	{
+		@Override
+		public String getNamespaceURI(String prefix)
+		{
+			return FUNCTION_PREFIX.equals(prefix) ? NS_FUNCTIONS : XMLConstants.NULL_NS_URI;
+		}
+
+		@Override
+		public String getPrefix(String namespaceURI)
+		{
+			return NS_FUNCTIONS.equals(namespaceURI) ? FUNCTION_PREFIX : null;
+		}
+
+		@Override
+		public Iterator<String> getPrefixes(String namespaceURI)
+		{
+			return NS_FUNCTIONS.equals(namespaceURI) ? Collections.singletonList(FUNCTION_PREFIX)
+																   .iterator() : Collections.emptyIterator();
+		}
+	};
+
+	/**
+	 * Parsed XML content by source. The documents are only read.
+	 */
+	private static final ConcurrentHashMap<String, Document> CONTENT_CACHE = new ConcurrentHashMap<>();
+
+	private final GlobalData _globalData = new GlobalData();
+
+	/**
+	 * The data of this session, null until needed.
+	 */
+	private Document _document;
+
+	/**
+	 * The variables of this session: the &lt;data&gt; elements, system variables and &lt;foreach&gt; variables.
+	 * Null until needed.
+	 */
+	private DataStore _variables;
+
+	/**
+	 * The state machine of the current call, for "In".
+	 */
+	private FiniteStateMachine _fsm;
+
+	/**
+	 * The current event, null before the first event.
+	 */
+	private Event _event;
+
+	/**
+	 * The element of "$_event", created when first used for {@link #_event}.
+	 */
+	private Element _eventElement;
+
+	/**
+	 * Creates a new XPath datamodel.
+	 */
+	public XPathDatamodel()
+	{
+	}
+
+	@Override
+	public GlobalData global()
+	{
+		return _globalData;
+	}
+
+	@Override
+	public String getName()
+	{
+		return NAME;
+	}
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * For each &lt;data&gt; element in the document, the SCXML Processor must create a &lt;data&gt; child of the root
+	 * &lt;datamodel&gt; with an attribute "id" and bind it to the variable "$id". The children are the value of "expr"
+	 * or the child content.<br>
+	 * If the value specified for a &lt;data&gt; element is not a legal data value, the SCXML Processor must raise
+	 * place error.execution in the internal event queue and must create an empty data element in the data model with
+	 * the specified id.
+	 *
+	 * @param fsm   The State Machine to work on.
+	 * @param state The State to initialize.
+	 */
+	@Override
+	public void initializeDataModel(FiniteStateMachine fsm, State state)
+	{
+		_fsm = fsm;
+		final Document document = document(fsm);
+		final Element root = document.getDocumentElement();
+		RuntimeException error = null;
+		for (DataDeclaration data : state._dataDeclarations)
+		{
+			Element element = document.createElement(DATA_ELEMENT);
+			element.setAttribute("id", data._id);
+			try
+			{
+				if (data._compiledExpr != null)
+					appendValue(element, evaluate(data._compiledExpr));
+				else if (data._expr != null)
+					appendValue(element, evaluate(compile(fsm, data._expr)));
+				else if (data._content != null)
+					appendContent(element, data._content);
+			}
+			catch (RuntimeException e)
+			{
+				removeChildren(element);
+				if (error == null)
+					error = e;
+			}
+			Object previous = data._slot != DataStore.NO_SLOT && _variables.getLayout() == fsm._dataLayout ? _variables.set(data._slot, element)
+					: _variables.set(data._id, element);
+			if (previous instanceof Element && ((Element) previous).getParentNode() == root)
+				root.replaceChild(element, (Element) previous);
+			else
+				root.appendChild(element);
+		}
+		if (error != null)
+			throw error;
+	}
+
+	/**
+	 * Sets a variable. If the variable is a &lt;data&gt; element, the value replaces the children of the element.
+	 *
+	 * @param name The case-sensitive name of the variable.
+	 * @param data The data.
+	 */
+	@Override
+	public void set(String name, Data data)
+	{
+		final Object value = data instanceof DataValue ? ((DataValue) data)._value : data;
+		document(_fsm);
+		final Object current = _variables.get(name);
+		if (current instanceof Element && _document != null && ((Element) current).getOwnerDocument() == _document
+				&& DATA_ELEMENT.equals(((Element) current).getTagName()))
+		{
+			removeChildren((Element) current);
+			appendValue((Element) current, value);
+		}
+		else
+			_variables.set(name, value);
+	}
+
+	@Override
+	public Data get(String name)
+	{
+		final Object value = _variables == null ? null : _variables.get(name);
+		return value == null || value instanceof Data ? (Data) value : new DataValue(value);
+	}
+
+	/**
+	 * Binds "$_event" to the event. The element is only created if an expression uses the variable.
+	 *
+	 * @param event The event.
+	 */
+	@Override
+	public void setEvent(Event event)
+	{
+		_event = event;
+		_eventElement = null;
+	}
+
+	/**
+	 * Drops the data of the session.
+	 */
+	@Override
+	public void clear()
+	{
+		_document = null;
+		_variables = null;
+		_eventElement = null;
+	}
+
+	/**
+	 * Writes the &lt;datamodel&gt; element of the session as XML. Variables of &lt;foreach&gt; are not stored.
+	 *
+	 * @param fsm The State Machine.
+	 * @param out The output.
+	 * @throws IOException If writing fails.
+	 */
+	@Override
+	public void writeSnapshot(FiniteStateMachine fsm, DataOutput out) throws IOException
+	{
+		if (_document == null)
+		{
+			BinaryCodec.writeString(out, null);
+			return;
+		}
+		LSSerializer serializer = ((DOMImplementationLS) _document.getImplementation()).createLSSerializer();
+		serializer.getDomConfig()
+				  .setParameter("xml-declaration", false);
+		BinaryCodec.writeString(out, serializer.writeToString(_document.getDocumentElement()));
+	}
+
+	/**
+	 * Parses the stored &lt;datamodel&gt; element and binds the &lt;data&gt; elements to their variables.
+	 *
+	 * @param fsm The State Machine.
+	 * @param in  The input.
+	 * @throws IOException If reading fails or the XML is not well-formed.
+	 */
+	@Override
+	public void readSnapshot(FiniteStateMachine fsm, DataInput in) throws IOException
+	{
+		_fsm = fsm;
+		clear();
+		final String xml = BinaryCodec.readString(in);
+		if (xml == null)
+			return;
+		final Document document;
+		try
+		{
+			document = DOCUMENT_FACTORY.newDocumentBuilder()
+									   .parse(new InputSource(new StringReader(xml)));
+		}
+		catch (ParserConfigurationException | SAXException e)
+		{
+			throw new IOException("Malformed data in snapshot", e);
+		}
+		document(fsm);
+		_document = document;
+		for (Node n = document.getDocumentElement()
+							  .getFirstChild(); n != null; n = n.getNextSibling())
+		{
+			if (n instanceof Element && DATA_ELEMENT.equals(((Element) n).getTagName()))
+				_variables.set(((Element) n).getAttribute("id"), n);
+		}
+	}
+
+	@Override
+	public void log(String label, String msg)
+	{
+		if (LOG.isLoggable(Level.INFO))
+			LOG.info(label == null || label.isEmpty() ? msg : label + ": " + msg);
+	}
+
+	/**
+	 * Compiles the source into an {@link XPathExpression}. Compile errors are reported on execution.
+	 *
+	 * @param fsm    The State Machine to work on.
+	 * @param source The source of the expression.
+	 * @return The compiled expression.
+	 */
+	@Override
+	public Expression compile(FiniteStateMachine fsm, String source)
+	{
+		return XPathExpr.compile(source);
+	}
+
+	@Override
+	public Expression compileAssignment(FiniteStateMachine fsm, String location, String expr)
+	{
+		return compileAssignment(fsm, location, expr, null, null);
+	}
+
+	/**
+	 * Compiles location and value of an assignment. A value that starts with "&lt;" is XML content, not an expression.
+	 *
+	 * @param fsm      The State Machine to work on.
+	 * @param location The location expression.
+	 * @param expr     The value expression or the XML content.
+	 * @param type     The type of the assignment, null for "replacechildren".
+	 * @param attr     The attribute name for type "addattribute".
+	 * @return The compiled assignment.
+	 */
+	@Override
+	public Expression compileAssignment(FiniteStateMachine fsm, String location, String expr, String type, String attr)
+	{
+		AssignType assignType = AssignType.of(type);
+		String error = null;
+		if (assignType == null)
+			error = String.format("Unsupported <assign> type '%s'", type);
+		else if (assignType == AssignType.ADD_ATTRIBUTE && (attr == null || attr.isEmpty()))
+			error = "<assign> with type 'addattribute' requires 'attr'";
+		final boolean content = expr != null && expr.startsWith("<");
+		return new Assignment(location, XPathExpr.compile(location), content || expr == null ? null : XPathExpr.compile(expr), content ? expr : null,
+				assignType, attr, error);
+	}
+
+	/**
+	 * Executes an assignment or evaluates an expression to a string.
+	 *
+	 * @param fsm    The State Machine to work on.
+	 * @param script The compiled expression.
+	 * @return The string value, null for assignments.
+	 */
+	@Override
+	public String execute(FiniteStateMachine fsm, Expression script)
+	{
+		_fsm = fsm;
+		if (script instanceof Assignment)
+		{
+			assign((Assignment) script);
+			return null;
+		}
+		return (String) evaluate(script, XPathConstants.STRING);
+	}
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * The SCXML Processor must convert XPath expressions used in conditional expressions into their effective boolean
+	 * value using the boolean() function.
+	 *
+	 * @param fsm       The State Machine.
+	 * @param condition The compiled condition.
+	 * @return The boolean value.
+	 */
+	@Override
+	public boolean executeCondition(FiniteStateMachine fsm, Expression condition)
+	{
+		_fsm = fsm;
+		return (Boolean) evaluate(condition, XPathConstants.BOOLEAN);
+	}
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * The &lt;foreach&gt; element allows an SCXML application to iterate through a collection in the data model and to
+	 * execute the actions contained within it for each item in the collection.<br>
+	 * <strong>Actual Implementation:</strong><br>
+	 * The array expression must evaluate to a node-set. "item" is bound to each node, "index" to the position,
+	 * starting at 0.
+	 *
+	 * @param fsm             The State Machine.
+	 * @param arrayExpression The array expressions
+	 * @param item            The item variable name
+	 * @param index           The index variable name.
+	 * @param executeBody     The code to execute.
+	 */
+	@Override
+	public void executeForEach(FiniteStateMachine fsm, String arrayExpression, String item, String index, Executor executeBody)
+	{
+		_fsm = fsm;
+		final NodeList nodes = (NodeList) evaluate(compile(fsm, arrayExpression), XPathConstants.NODESET);
+		final ArrayList<Node> items = new ArrayList<>(nodes.getLength());
+		for (int i = 0; i < nodes.getLength(); ++i)
+			items.add(nodes.item(i));
+		for (int i = 0; i < items.size(); ++i)
+		{
+			_variables.set(item, items.get(i));
+			if (index != null)
+				_variables.set(index, (double) i);
+			executeBody.execute(this);
+		}
+	}
+
+	@Override
+	public void executeContent(FiniteStateMachine fsm, ExecutableContent content)
+	{
+		content.execute(this, fsm);
+	}
+
+	/**
+	 * Gets the document of this session, creates it on first use.
+	 */
+	private Document document(FiniteStateMachine fsm)
+	{
+		Document document = _document;
+		if (document == null)
+		{
+			_document = document = newDocument();
+			document.appendChild(document.createElement(ROOT_ELEMENT));
+			_variables = new DataStore(fsm == null ? DataStore.Layout.EMPTY : fsm._dataLayout);
+			_variables.set("_sessionid", _globalData._sessionId == null ? "" : _globalData._sessionId);
+			if (fsm != null)
+				_variables.set("_name", fsm._name);
+		}
+		return document;
+	}
+
+	/**
+	 * Gets the element of "$_event": a &lt;data id="_event"&gt; element of the session document, that is not part
+	 * of the &lt;datamodel&gt;, with a child element for each property of the event that is set.
+	 *
+	 * @return The element or null before the first event.
+	 */
+	private Element eventElement()
+	{
+		if (_eventElement == null && _event != null)
+		{
+			final EventVariable event = new EventVariable(_event);
+			final Document document = document(_fsm);
+			final Element element = document.createElement(DATA_ELEMENT);
+			element.setAttribute("id", EVENT_VARIABLE);
+			appendProperty(element, "name", event.name);
+			appendProperty(element, "type", event.type);
+			appendProperty(element, "sendid", event.sendid);
+			appendProperty(element, "origin", event.origin);
+			appendProperty(element, "origintype", event.origintype);
+			appendProperty(element, "invokeid", event.invokeid);
+			if (event.data != null)
+			{
+				final Element data = document.createElement("data");
+				appendContent(data, event.data.toString());
+				element.appendChild(data);
+			}
+			_eventElement = element;
+		}
+		return _eventElement;
+	}
+
+	private static void appendProperty(Element element, String name, String value)
+	{
+		if (value != null)
+		{
+			final Element property = element.getOwnerDocument()
+											.createElement(name);
+			property.setTextContent(value);
+			element.appendChild(property);
+		}
+	}
+
+	/**
+	 * Implements the "In" predicate.
+	 */
+	private boolean isIn(String stateId)
+	{
+		State state = _fsm == null ? null : _fsm._states.get(stateId);
+		return state != null && _globalData.configuration.isMember(state._docId);
+	}
+
+	/**
+	 * Evaluates an expression to a value of the given type.
+	 */
+	private Object evaluate(Expression expression, QName returnType)
+	{
+		final XPathExpr e = XPathExpr.of(expression);
+		final Document document = document(_fsm);
+		final Compiled compiled = e.borrow();
+		compiled._binding._session = this;
+		try
+		{
+			return compiled._xpath.evaluate(document, returnType);
+		}
+		catch (XPathExpressionException ex)
+		{
+			throw new IllegalStateException(String.format("Failed to evaluate '%s': %s", e._source, message(ex)), ex);
+		}
+		finally
+		{
+			compiled._binding._session = null;
+			e.release(compiled);
+		}
+	}
+
+	/**
+	 * Evaluates an expression to a node-set, string, number or boolean.
+	 */
+	private Object evaluate(Expression expression)
+	{
+		final XPathExpr e = XPathExpr.of(expression);
+		final Document document = document(_fsm);
+		final Compiled compiled = e.borrow();
+		compiled._binding._session = this;
+		try
+		{
+			XPathEvaluationResult<?> result = compiled._xpath.evaluateExpression(document, XPathEvaluationResult.class);
+			return result.type() == XPathEvaluationResult.XPathResultType.NODE ? Collections.singletonList(result.value()) : result.value();
+		}
+		catch (XPathExpressionException ex)
+		{
+			throw new IllegalStateException(String.format("Failed to evaluate '%s': %s", e._source, message(ex)), ex);
+		}
+		finally
+		{
+			compiled._binding._session = null;
+			e.release(compiled);
+		}
+	}
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * If the location expression does not denote a valid location in the data model, the processor must place the
+	 * error error.execution on the internal event queue.<br>
+	 * <strong>Actual Implementation:</strong><br>
+	 * The location must select at least one node. The value is evaluated once and copied to each selected node.
+	 */
+	private void assign(Assignment assignment)
+	{
+		if (assignment._error != null)
+			throw new IllegalArgumentException(assignment._error);
+		final NodeList locations = (NodeList) evaluate(assignment._location, XPathConstants.NODESET);
+		if (locations.getLength() == 0)
+			throw new IllegalStateException(String.format("<assign> location '%s' selects no node", assignment._source));
+		final Object value = assignment._value != null ? evaluate(assignment._value) : null;
+		final ArrayList<Node> targets = new ArrayList<>(locations.getLength());
+		for (int i = 0; i < locations.getLength(); ++i)
+			targets.add(locations.item(i));
+		for (Node target : targets)
+		{
+			if (assignment._type == AssignType.DELETE)
+			{
+				remove(target);
+				continue;
+			}
+			if (assignment._type == AssignType.ADD_ATTRIBUTE)
+			{
+				if (!(target instanceof Element))
+					throw new IllegalStateException(String.format("<assign> location '%s' is not an element", assignment._source));
+				((Element) target).setAttribute(assignment._attr, value == null ? "" : toText(value));
+				continue;
+			}
+			if (target instanceof Attr)
+			{
+				// Attributes have no children, only the value can be replaced.
+				((Attr) target).setValue(value == null ? toText(assignment._content) : toText(value));
+				continue;
+			}
+			final ArrayList<Node> nodes = new ArrayList<>();
+			if (assignment._content != null)
+				collectContent(target.getOwnerDocument(), assignment._content, nodes);
+			else
+				collectValue(target.getOwnerDocument(), value, nodes);
+			final Node parent = target.getParentNode();
+			switch (assignment._type)
+			{
+				case REPLACE_CHILDREN:
+					removeChildren(target);
+					nodes.forEach(target::appendChild);
+					break;
+				case FIRST_CHILD:
+					final Node first = target.getFirstChild();
+					nodes.forEach(n -> target.insertBefore(n, first));
+					break;
+				case LAST_CHILD:
+					nodes.forEach(target::appendChild);
+					break;
+				case PREVIOUS_SIBLING:
+					checkParent(parent, assignment);
+					nodes.forEach(n -> parent.insertBefore(n, target));
+					break;
+				case NEXT_SIBLING:
+					checkParent(parent, assignment);
+					final Node next = target.getNextSibling();
+					nodes.forEach(n -> parent.insertBefore(n, next));
+					break;
+				case REPLACE:
+					checkParent(parent, assignment);
+					nodes.forEach(n -> parent.insertBefore(n, target));
+					parent.removeChild(target);
+					break;
+				default:
+					break;
+			}
+		}
+	}
+
+	private void checkParent(Node parent, Assignment assignment)
+	{
+		if (parent == null || parent == _document || parent == _document.getDocumentElement())
+			throw new IllegalStateException(String.format("<assign> location '%s' has no parent to modify", assignment._source));
+	}
+
+	private void remove(Node node)
+	{
+		if (node instanceof Attr)
+		{
+			Element owner = ((Attr) node).getOwnerElement();
+			if (owner != null)
+				owner.removeAttributeNode((Attr) node);
+		}
+		else if (node.getParentNode() != null && node.getParentNode() != _document.getDocumentElement())
+			node.getParentNode()
+				.removeChild(node);
+		else
+			throw new IllegalStateException("<assign> can't delete a <data> element");
+	}
+
+	/**
+	 * Adds the value of an expression as children of an element.
+	 */
+	private static void appendValue(Element element, Object value)
+	{
+		ArrayList<Node> nodes = new ArrayList<>();
+		collectValue(element.getOwnerDocument(), value, nodes);
+		nodes.forEach(element::appendChild);
+	}
+
+	/**
+	 * Adds parsed XML content as children of an element. Content that is not well-formed is added as text.
+	 */
+	private static void appendContent(Element element, String content)
+	{
+		ArrayList<Node> nodes = new ArrayList<>();
+		collectContent(element.getOwnerDocument(), content, nodes);
+		nodes.forEach(element::appendChild);
+	}
+
+	/**
+	 * Creates copies of the nodes of a value, or a text node for strings, numbers and booleans.
+	 */
+	private static void collectValue(Document document, Object value, ArrayList<Node> nodes)
+	{
+		if (value == null)
+			return;
+		if (value instanceof Iterable)
+		{
+			for (Object node : (Iterable<?>) value)
+				collectValue(document, node, nodes);
+		}
+		else if (value instanceof Document)
+			collectValue(document, ((Document) value).getDocumentElement(), nodes);
+		else if (value instanceof Attr)
+			nodes.add(document.createTextNode(((Attr) value).getValue()));
+		else if (value instanceof Node)
+			nodes.add(((Node) value).getOwnerDocument() == document ? ((Node) value).cloneNode(true) : document.importNode((Node) value, true));
+		else
+			nodes.add(document.createTextNode(toText(value)));
+	}
+
+	private static void collectContent(Document document, String content, ArrayList<Node> nodes)
+	{
+		final Document parsed = parseContent(content);
+		if (parsed == null)
+			nodes.add(document.createTextNode(content));
+		else
+		{
+			synchronized (parsed)
+			{
+				for (Node n = parsed.getDocumentElement()
+									.getFirstChild(); n != null; n = n.getNextSibling())
+					nodes.add(document.importNode(n, true));
+			}
+		}
+	}
+
+	/**
+	 * Parses content as XML fragment.
+	 *
+	 * @return The document with the content as children of the root or null if the content is not well-formed.
+	 */
+	private static Document parseContent(String content)
+	{
+		Document parsed = CONTENT_CACHE.get(content);
+		if (parsed == null)
+		{
+			try
+			{
+				parsed = DOCUMENT_FACTORY.newDocumentBuilder()
+										 .parse(new InputSource(new StringReader("<content>" + content + "</content>")));
+			}
+			catch (ParserConfigurationException | SAXException | IOException e)
+			{
+				return null;
+			}
+			Document existing = CONTENT_CACHE.putIfAbsent(content, parsed);
+			if (existing != null)
+				parsed = existing;
+		}
+		return parsed;
+	}
+
+	private static void removeChildren(Node node)
+	{
+		for (Node child = node.getFirstChild(); child != null; child = node.getFirstChild())
+			node.removeChild(child);
+	}
+
+	/**
+	 * XPath string() of a value.
+	 */
+	private static String toText(Object value)
+	{
+		if (value == null)
+			return "";
+		if (value instanceof Double)
+		{
+			final double d = (Double) value;
+			if (d == Math.rint(d) && !Double.isInfinite(d) && Math.abs(d) < 1e15)
+				return Long.toString((long) d);
+			return Double.isNaN(d) ? "NaN" : Double.toString(d);
+		}
+		if (value instanceof Node)
+			return ((Node) value).getTextContent();
+		if (value instanceof Iterable)
+		{
+			Iterator<?> it = ((Iterable<?>) value).iterator();
+			return it.hasNext() ? toText(it.next()) : "";
+		}
+		return value.toString();
+	}
+
+	private static String message(XPathExpressionException e)
+	{
+		Throwable cause = e;
+		while (cause.getMessage() == null && cause.getCause() != null)
+			cause = cause.getCause();
+		return cause.getMessage();
+	}
+
+	private static DocumentBuilderFactory createDocumentFactory()
+	{
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setNamespaceAware(false);
+		try
+		{
+			factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+			// Shared documents are read by many threads, a deferred DOM is modified on access.
+			factory.setFeature("http://apache.org/xml/features/dom/defer-node-expansion", false);
+		}
+		catch (ParserConfigurationException e)
+		{
+			LOG.fine("DOM parser doesn't support all features: " + e.getMessage());
+		}
+		return factory;
+	}
+
+	private static Document newDocument()
+	{
+		try
+		{
+			return DOCUMENT_FACTORY.newDocumentBuilder()
+								   .newDocument();
+		}
+		catch (ParserConfigurationException e)
+		{
+			throw new IllegalStateException("Failed to create XML document", e);
+		}
+	}
+
+	/**
+	 * Types of &lt;assign&gt; in the XPath profile.
+	 */
+	private enum AssignType
+	{
+		REPLACE_CHILDREN, FIRST_CHILD, LAST_CHILD, PREVIOUS_SIBLING, NEXT_SIBLING, REPLACE, DELETE, ADD_ATTRIBUTE;
+
+		/**
+		 * Gets the type by the attribute value.
+		 *
+		 * @return The type or null if the value is unknown.
+		 */
+		static AssignType of(String type)
+		{
+			if (type == null)
+				return REPLACE_CHILDREN;
+			for (AssignType t : values())
+			{
+				if (t.name()
+					 .replace("_", "")
+					 .equals(type.toUpperCase(Locale.ROOT)))
+					return t;
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Binds a compiled expression to the session that evaluates it.
+	 * Resolvers of an {@link XPath} are fixed at compile time, so they delegate to the current session.
+	 */
+	private static final class Binding implements XPathVariableResolver, XPathFunctionResolver
+	{
+		/**
+		 * The session during evaluation. Only used by the evaluation that borrowed the compiled instance.
+		 */
+		XPathDatamodel _session;
+
+		/**
+		 * The variables of the expression that were resolved to a slot. Only used by the evaluation that borrowed the
+		 * compiled instance.
+		 * All sessions that evaluate the expression use the same layout.
+		 */
+		private DataStore.Layout _layout;
+		private String[] _names = new String[0];
+		private int[] _slots = new int[0];
+
+		/**
+		 * Nodes are returned as node-list, the JDK implementation converts single nodes not correctly.
+		 */
+		@Override
+		public Object resolveVariable(QName variableName)
+		{
+			final DataStore variables = _session._variables;
+			final String name = variableName.getLocalPart();
+			final Object value;
+			if (EVENT_VARIABLE.equals(name))
+				value = _session.eventElement();
+			else
+			{
+				final int slot = slotOf(variables, name);
+				value = slot != DataStore.NO_SLOT ? variables.get(slot) : variables.get(name);
+			}
+			if (value instanceof Node)
+			{
+				return new NodeList()
+				{
+					@Override
+					public Node item(int index)
+					{
+						return index == 0 ? (Node) value : null;
+					}
+
+					@Override
+					public int getLength()
+					{
+						return 1;
+					}
+				};
+			}
+			return value;
+		}
+
+		@Override
+		public XPathFunction resolveFunction(QName functionName, int arity)
+		{
+			if (NS_FUNCTIONS.equals(functionName.getNamespaceURI()) && "In".equals(functionName.getLocalPart()) && arity == 1)
+				return args -> _session.isIn(toText(args.get(0) instanceof NodeList ? nodeList((NodeList) args.get(0)) : args.get(0)));
+			return null;
+		}
+
+		/**
+		 * Gets the slot of a variable. The names of an expression are the same instances on each evaluation,
+		 * so the lookup doesn't hash.
+		 */
+		private int slotOf(DataStore variables, String name)
+		{
+			if (_layout != variables.getLayout())
+			{
+				_layout = variables.getLayout();
+				_names = new String[0];
+				_slots = new int[0];
+			}
+			for (int i = 0; i < _names.length; ++i)
+			{
+				if (_names[i].equals(name))
+					return _slots[i];
+			}
+			final int slot = _layout.slotOf(name);
+			if (slot != DataStore.NO_SLOT)
+			{
+				_names = Arrays.copyOf(_names, _names.length + 1);
+				_slots = Arrays.copyOf(_slots, _slots.length + 1);
+				_names[_names.length - 1] = name;
+				_slots[_slots.length - 1] = slot;
+			}
+			return slot;
+		}
+
+		private static Object nodeList(NodeList nodes)
+		{
+			return nodes.getLength() == 0 ? "" : nodes.item(0);
+		}
+	}
+
+	/**
+	 * An {@link XPathExpression} with the resolvers it was compiled with, used by one evaluation at a time.
+	 */
+	private static final class Compiled
+	{
+		final XPathExpression _xpath;
+		final Binding _binding;
+
+		Compiled(String rewritten) throws XPathExpressionException
+		{
+			_binding = new Binding();
+			synchronized (XPATH_FACTORY)
+			{
+				XPath xpath = XPATH_FACTORY.newXPath();
+				xpath.setNamespaceContext(NAMESPACES);
+				xpath.setXPathVariableResolver(_binding);
+				xpath.setXPathFunctionResolver(_binding);
+				_xpath = xpath.compile(rewritten);
+			}
+		}
+	}
+
+	/**
+	 * A checked XPath expression or the compile error.
+	 */
+	private static final class XPathExpr implements Expression
+	{
+		final String _source;
+		final String _error;
+
+		/**
+		 * The rewritten source that is compiled.
+		 */
+		private final String _rewritten;
+
+		/**
+		 * The compiled instances that are not in use. Null if the expression is not valid.
+		 */
+		final ConcurrentLinkedQueue<Compiled> _pool;
+
+		private XPathExpr(String source, String rewritten, Compiled compiled, String error)
+		{
+			_source = source;
+			_rewritten = rewritten;
+			_error = error;
+			_pool = error != null ? null : new ConcurrentLinkedQueue<>();
+			if (compiled != null)
+				_pool.offer(compiled);
+		}
+
+		/**
+		 * Takes a compiled instance from the pool or compiles a new one if all are in use.
+		 * The caller has to {@link #release(Compiled) release} it after the evaluation.
+		 */
+		Compiled borrow()
+		{
+			final Compiled compiled = _pool.poll();
+			if (compiled != null)
+				return compiled;
+			try
+			{
+				return new Compiled(_rewritten);
+			}
+			catch (XPathExpressionException e)
+			{
+				// Was compiled before without errors.
+				throw new IllegalStateException(String.format("Failed to compile '%s': %s", _source, message(e)), e);
+			}
+		}
+
+		/**
+		 * Returns a borrowed instance to the pool.
+		 */
+		void release(Compiled compiled)
+		{
+			_pool.offer(compiled);
+		}
+
+		static XPathExpr compile(String source)
+		{
+			final String rewritten = IN_CALL.matcher(source)
+											.replaceAll(FUNCTION_PREFIX + ":In(");
+			try
+			{
+				return new XPathExpr(source, rewritten, new Compiled(rewritten), null);
+			}
+			catch (XPathExpressionException e)
+			{
+				return new XPathExpr(source, rewritten, null, message(e));
+			}
+		}
+
+		/**
+		 * Checks that the expression was compiled without errors by this datamodel.
+		 *
+		 * @throws IllegalArgumentException if the expression was not compiled for XPath or is not valid.
+		 */
+		static XPathExpr of(Expression expression)
+		{
+			if (!(expression instanceof XPathExpr))
+				throw new IllegalArgumentException(String.format("Expression '%s' was not compiled for XPath", expression.getSource()));
+			XPathExpr e = (XPathExpr) expression;
+			if (e._pool == null)
+				throw new IllegalArgumentException(String.format("Invalid expression '%s': %s", e._source, e._error));
+			return e;
+		}
+
+		@Override
+		public String getSource()
+		{
+			return _source;
+		}
+	}
+
+	/**
+	 * A compiled &lt;assign&gt;.
+	 */
+	private static final class Assignment implements Expression
+	{
+		final String _source;
+		final XPathExpr _location;
+
+		/**
+		 * The value expression, null if the value is XML content or empty.
+		 */
+		final XPathExpr _value;
+
+		/**
+		 * XML content as value, null if the value is an expression.
+		 */
+		final String _content;
+		final AssignType _type;
+		final String _attr;
+		final String _error;
+
+		Assignment(String source, XPathExpr location, XPathExpr value, String content, AssignType type, String attr, String error)
+		{
+			_source = source;
+			_location = location;
+			_value = value;
+			_content = content;
+			_type = type;
+			_attr = attr;
+			_error = error;
+		}
+
+		@Override
+		public String getSource()
+		{
+			return _source;
+		}
+	}
+}
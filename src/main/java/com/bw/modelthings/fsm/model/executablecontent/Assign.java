@@ -2,10 +2,15 @@ package com.bw.modelthings.fsm.model.executablecontent;
 
 import com.bw.modelthings.fsm.model.Datamodel;
 import com.bw.modelthings.fsm.model.ExecutableContent;
+import com.bw.modelthings.fsm.model.Expression;
 import com.bw.modelthings.fsm.model.FiniteStateMachine;
 
 /**
- * Assignment.
+ * <strong>W3C says:</strong><br>
+ * The &lt;assign&gt; element is used to modify the data model.<br>
+ * <strong>Actual Implementation:</strong><br>
+ * The location and the value are compiled together by {@link Datamodel#compileAssignment(FiniteStateMachine, String, String)},
+ * so the datamodel can choose the most efficient way to perform the assignment.
  */
 public class Assign implements ExecutableContent
 {
@@ -16,15 +21,52 @@ public class Assign implements ExecutableContent
 	{
 	}
 
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * The location in the data model into which to insert the new value.
+	 */
+	public String location;
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * An expression returning the value to be assigned.<br>
+	 * <strong>Actual Implementation:</strong><br>
+	 * Also holds the text of child content if no "expr" attribute is given.
+	 */
+	public String expr;
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * XPath profile only: Specifies how the value is inserted at the location, default is "replacechildren".
+	 */
+	public String type;
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * XPath profile only: The name of the attribute to add, if type is "addattribute".
+	 */
+	public String attr;
+
+	/**
+	 * The compiled assignment, null until compiled.
+	 */
+	public Expression compiledAssignment;
+
 	@Override
 	public void execute(Datamodel datamodel, FiniteStateMachine fsm)
 	{
-		// @TODO
+		datamodel.execute(fsm, compiledAssignment == null ? datamodel.compileAssignment(fsm, location, expr, type, attr) : compiledAssignment);
+	}
+
+	@Override
+	public void compileExpressions(Datamodel datamodel, FiniteStateMachine fsm)
+	{
+		compiledAssignment = datamodel.compileAssignment(fsm, location, expr, type, attr);
 	}
 
 	@Override
 	public String getType()
 	{
-		return "Assign";
+		return "assign";
 	}
 }
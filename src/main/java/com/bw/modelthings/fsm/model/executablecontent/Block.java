@@ -32,6 +32,15 @@ public class Block implements ExecutableContent
 		}
 	}
 
+	@Override
+	public void compileExpressions(Datamodel datamodel, FiniteStateMachine fsm)
+	{
+		for (ExecutableContent e : content)
+		{
+			e.compileExpressions(datamodel, fsm);
+		}
+	}
+
 	@Override
 	public String getType()
 	{
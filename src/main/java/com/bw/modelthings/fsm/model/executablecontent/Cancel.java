@@ -0,0 +1,71 @@
+package com.bw.modelthings.fsm.model.executablecontent;
+
+import com.bw.modelthings.fsm.model.Datamodel;
+import com.bw.modelthings.fsm.model.ExecutableContent;
+import com.bw.modelthings.fsm.model.Expression;
+import com.bw.modelthings.fsm.model.FiniteStateMachine;
+import com.bw.modelthings.fsm.model.GlobalData;
+import com.bw.modelthings.fsm.model.ScheduledEvent;
+
+/**
+ * <strong>W3C says:</strong><br>
+ * The &lt;cancel&gt; element is used to cancel a delayed &lt;send&gt; event. The SCXML Processor must not allow
+ * &lt;cancel&gt; to affect events that were not raised in the same session. The Processor should make its best
+ * attempt to cancel all delayed events with the specified id. Note, however, that it can not be guaranteed to
+ * succeed, for example if the event has already been delivered by the time the &lt;cancel&gt; tag executes.
+ */
+public class Cancel implements ExecutableContent
+{
+	/**
+	 * Creates a new cancel operation.
+	 *
+	 * @param sendId     The send-id, can be null if sendIdExpr is given.
+	 * @param sendIdExpr The expression for the send-id, can be null if sendId is given.
+	 */
+	public Cancel(String sendId, String sendIdExpr)
+	{
+		this.sendId = sendId;
+		this.sendIdExpr = sendIdExpr;
+	}
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * The ID of the event which is to be cancelled.
+	 */
+	public final String sendId;
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * A dynamic alternative to 'sendid'.
+	 */
+	public final String sendIdExpr;
+
+	/**
+	 * The compiled sendIdExpr, null until compiled.
+	 */
+	public Expression compiledSendIdExpr;
+
+	@Override
+	public void execute(Datamodel datamodel, FiniteStateMachine fsm)
+	{
+		final String id = sendId != null ? sendId : (compiledSendIdExpr != null ? datamodel.execute(fsm, compiledSendIdExpr) : datamodel.execute(fsm, sendIdExpr));
+		if (id == null)
+			throw new IllegalArgumentException("<cancel> without sendid");
+		final GlobalData global = datamodel.global();
+		for (ScheduledEvent scheduled : global._pendingSends.remove(id))
+			global._scheduler.cancel(scheduled);
+	}
+
+	@Override
+	public void compileExpressions(Datamodel datamodel, FiniteStateMachine fsm)
+	{
+		if (sendIdExpr != null)
+			compiledSendIdExpr = datamodel.compile(fsm, sendIdExpr);
+	}
+
+	@Override
+	public String getType()
+	{
+		return "cancel";
+	}
+}
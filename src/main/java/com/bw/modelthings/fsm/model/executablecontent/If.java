@@ -1,7 +1,9 @@
 package com.bw.modelthings.fsm.model.executablecontent;
 
 import com.bw.modelthings.fsm.model.Datamodel;
+import com.bw.modelthings.fsm.model.EventType;
 import com.bw.modelthings.fsm.model.ExecutableContent;
+import com.bw.modelthings.fsm.model.Expression;
 import com.bw.modelthings.fsm.model.FiniteStateMachine;
 
 /**
@@ -9,6 +11,10 @@ import com.bw.modelthings.fsm.model.FiniteStateMachine;
  */
 public class If implements ExecutableContent
 {
+	/**
+	 * Event raised for conditions that can't be evaluated.
+	 */
+	public static final String EVENT_ERROR_EXECUTION = "error.execution";
 
 	/**
 	 * Creates a new "if" element.
@@ -25,6 +31,11 @@ public class If implements ExecutableContent
 	 */
 	public final String condition;
 
+	/**
+	 * The compiled condition, null until compiled.
+	 */
+	public Expression compiledCondition;
+
 	/**
 	 * The Content to execute if condition is true.
 	 */
@@ -38,16 +49,70 @@ public class If implements ExecutableContent
 	@Override
 	public void execute(Datamodel datamodel, FiniteStateMachine fsm)
 	{
-		if (datamodel.executeCondition(fsm, this.condition))
+		boolean result;
+		try
+		{
+			result = compiledCondition == null ? datamodel.executeCondition(fsm, condition) : datamodel.executeCondition(fsm, compiledCondition);
+		}
+		catch (RuntimeException e)
+		{
+			result = conditionFailed(datamodel, fsm);
+		}
+		if (result)
 		{
 			if (content != null)
 				content.execute(datamodel, fsm);
-			;
 		}
 		else if (elseContent != null)
 			elseContent.execute(datamodel, fsm);
 	}
 
+	/**
+	 * Evaluates a compiled condition of an &lt;if&gt; or &lt;elseif&gt;.
+	 *
+	 * @param datamodel The datamodel.
+	 * @param fsm       The state machine.
+	 * @param condition The compiled condition.
+	 * @return The result, false if the evaluation failed.
+	 */
+	public static boolean evaluate(Datamodel datamodel, FiniteStateMachine fsm, Expression condition)
+	{
+		try
+		{
+			return datamodel.executeCondition(fsm, condition);
+		}
+		catch (RuntimeException e)
+		{
+			return conditionFailed(datamodel, fsm);
+		}
+	}
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * If a conditional expression cannot be evaluated as a boolean value ('true' or 'false') or if its evaluation causes
+	 * an error, the SCXML Processor must treat the expression as if it evaluated to 'false' and must place the error
+	 * 'error.execution' in the internal event queue.
+	 *
+	 * @param datamodel The datamodel.
+	 * @param fsm       The state machine.
+	 * @return Always false.
+	 */
+	private static boolean conditionFailed(Datamodel datamodel, FiniteStateMachine fsm)
+	{
+		datamodel.global()._internalQueue.enqueue(fsm._eventSymbols.createEvent(EVENT_ERROR_EXECUTION, EventType.platform));
+		return false;
+	}
+
+	@Override
+	public void compileExpressions(Datamodel datamodel, FiniteStateMachine fsm)
+	{
+		compiledCondition = datamodel.compile(fsm, condition);
+		if (content != null)
+			content.compileExpressions(datamodel, fsm);
+		if (elseContent != null)
+			elseContent.compileExpressions(datamodel, fsm);
+	}
+
 	@Override
 	public String getType()
 	{
@@ -2,6 +2,7 @@ package com.bw.modelthings.fsm.model.executablecontent;
 
 import com.bw.modelthings.fsm.model.Datamodel;
 import com.bw.modelthings.fsm.model.ExecutableContent;
+import com.bw.modelthings.fsm.model.Expression;
 import com.bw.modelthings.fsm.model.FiniteStateMachine;
 
 /**
@@ -37,10 +38,25 @@ public class Log implements ExecutableContent
 	 */
 	public String expression;
 
+	/**
+	 * The compiled expression, null until compiled.
+	 */
+	public Expression compiledExpression;
+
 	@Override
 	public void execute(Datamodel datamodel, FiniteStateMachine fsm)
 	{
-		datamodel.log(label, datamodel.execute(fsm, expression));
+		if (compiledExpression != null)
+			datamodel.log(label, datamodel.execute(fsm, compiledExpression));
+		else
+			datamodel.log(label, expression == null ? null : datamodel.execute(fsm, expression));
+	}
+
+	@Override
+	public void compileExpressions(Datamodel datamodel, FiniteStateMachine fsm)
+	{
+		if (expression != null)
+			compiledExpression = datamodel.compile(fsm, expression);
 	}
 
 	@Override
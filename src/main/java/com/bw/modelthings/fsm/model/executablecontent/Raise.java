@@ -0,0 +1,46 @@
+package com.bw.modelthings.fsm.model.executablecontent;
+
+import com.bw.modelthings.fsm.model.Datamodel;
+import com.bw.modelthings.fsm.model.Event;
+import com.bw.modelthings.fsm.model.EventType;
+import com.bw.modelthings.fsm.model.ExecutableContent;
+import com.bw.modelthings.fsm.model.FiniteStateMachine;
+
+/**
+ * <strong>W3C says:</strong><br>
+ * The &lt;raise&gt; element raises an event in the current SCXML session. Note that the event will not be processed
+ * until the current block of executable content has completed and all events that are already in the internal event
+ * queue have been processed.<br>
+ * <strong>Actual Implementation:</strong><br>
+ * As &lt;raise&gt; has no data, the event is created once and the same instance is put into the queue each time.
+ */
+public class Raise implements ExecutableContent
+{
+	/**
+	 * Creates a new raise operation.
+	 *
+	 * @param event The event to raise.
+	 */
+	public Raise(Event event)
+	{
+		this.event = event;
+	}
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * Specifies the name of the event. This will be converted into an internal event and inserted into the internal event queue.
+	 */
+	public final Event event;
+
+	@Override
+	public void execute(Datamodel datamodel, FiniteStateMachine fsm)
+	{
+		datamodel.global()._internalQueue.enqueue(event);
+	}
+
+	@Override
+	public String getType()
+	{
+		return "raise";
+	}
+}
@@ -0,0 +1,54 @@
+package com.bw.modelthings.fsm.model.executablecontent;
+
+import com.bw.modelthings.fsm.model.Datamodel;
+import com.bw.modelthings.fsm.model.ExecutableContent;
+import com.bw.modelthings.fsm.model.Expression;
+import com.bw.modelthings.fsm.model.FiniteStateMachine;
+
+/**
+ * <strong>W3C says:</strong><br>
+ * The &lt;script&gt; element adds scripting capability to the state machine.
+ */
+public class Script implements ExecutableContent
+{
+	/**
+	 * Creates a new script.
+	 *
+	 * @param source The script source.
+	 */
+	public Script(String source)
+	{
+		this.source = source;
+	}
+
+	/**
+	 * The script source, in the language of the datamodel.
+	 */
+	public final String source;
+
+	/**
+	 * The compiled script, null until compiled.
+	 */
+	public Expression compiledSource;
+
+	@Override
+	public void execute(Datamodel datamodel, FiniteStateMachine fsm)
+	{
+		if (compiledSource != null)
+			datamodel.execute(fsm, compiledSource);
+		else
+			datamodel.execute(fsm, source);
+	}
+
+	@Override
+	public void compileExpressions(Datamodel datamodel, FiniteStateMachine fsm)
+	{
+		compiledSource = datamodel.compile(fsm, source);
+	}
+
+	@Override
+	public String getType()
+	{
+		return "script";
+	}
+}
@@ -0,0 +1,281 @@
+package com.bw.modelthings.fsm.model.executablecontent;
+
+import com.bw.modelthings.fsm.model.BlockingQueue;
+import com.bw.modelthings.fsm.model.DataValue;
+import com.bw.modelthings.fsm.model.Datamodel;
+import com.bw.modelthings.fsm.model.Event;
+import com.bw.modelthings.fsm.model.EventType;
+import com.bw.modelthings.fsm.model.ExecutableContent;
+import com.bw.modelthings.fsm.model.Expression;
+import com.bw.modelthings.fsm.model.FiniteStateMachine;
+import com.bw.modelthings.fsm.model.GlobalData;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <strong>W3C says:</strong><br>
+ * &lt;send&gt; is used to send events and data to external systems, including external SCXML Interpreters,
+ * or to raise events in the current SCXML session.<br>
+ * <strong>Actual Implementation:</strong><br>
+ * Supports the SCXML event I/O processor with targets of the own session (no target or "#_internal"), of the
+ * invoking session ("#_parent") and of invoked sessions ("#_&lt;invokeid&gt;").
+ * Delayed events are handed over to the {@link com.bw.modelthings.fsm.model.EventScheduler} of the session.
+ * Data (namelist, param, content) is not yet supported.
+ */
+public class Send implements ExecutableContent
+{
+	/**
+	 * Type of the SCXML event I/O processor.
+	 */
+	public static final String TYPE_SCXML = "http://www.w3.org/TR/scxml/#SCXMLEventProcessor";
+
+	/**
+	 * Target for the internal queue of the own session.
+	 */
+	public static final String TARGET_INTERNAL = "#_internal";
+
+	/**
+	 * Target for the external queue of the invoking session.
+	 */
+	public static final String TARGET_PARENT = "#_parent";
+
+	/**
+	 * Name of the event raised if the target can't be reached.
+	 */
+	public static final String EVENT_ERROR_COMMUNICATION = "error.communication";
+
+	/**
+	 * Counter to generate send-ids.
+	 */
+	private static final AtomicLong _sendIdCounter = new AtomicLong();
+
+	/**
+	 * Creates a new send operation.
+	 */
+	public Send()
+	{
+	}
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * A string indicating the name of message being generated.
+	 */
+	public String event;
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * A dynamic alternative to 'event'.
+	 */
+	public String eventExpr;
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * The unique identifier of the message target that the platform should send the event to.
+	 */
+	public String target;
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * A dynamic alternative to 'target'.
+	 */
+	public String targetExpr;
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * The URI that identifies the transport mechanism for the message.
+	 */
+	public String type;
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * A dynamic alternative to 'type'.
+	 */
+	public String typeExpr;
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * A string literal to be used as the identifier for this instance of &lt;send&gt;.
+	 */
+	public String id;
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * Any location expression evaluating to a data model location in which a system-generated id can be stored.
+	 */
+	public String idLocation;
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * Indicates how long the processor should wait before dispatching the message. A time designation as defined in CSS2 format.
+	 */
+	public String delay;
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * A value expression which returns a time designation as defined in CSS2 format.
+	 */
+	public String delayExpr;
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * A space-separated list of one or more data model locations to be included as attribute/value pairs with the message.
+	 */
+	public String nameList;
+
+	/**
+	 * The compiled eventExpr, null until compiled.
+	 */
+	public Expression compiledEventExpr;
+
+	/**
+	 * The compiled targetExpr, null until compiled.
+	 */
+	public Expression compiledTargetExpr;
+
+	/**
+	 * The compiled typeExpr, null until compiled.
+	 */
+	public Expression compiledTypeExpr;
+
+	/**
+	 * The compiled delayExpr, null until compiled.
+	 */
+	public Expression compiledDelayExpr;
+
+	@Override
+	public void execute(Datamodel datamodel, FiniteStateMachine fsm)
+	{
+		final GlobalData global = datamodel.global();
+		final String eventName = evaluate(datamodel, fsm, event, eventExpr, compiledEventExpr);
+		if (eventName == null || eventName.isEmpty())
+			throw new IllegalArgumentException("<send> without event");
+		final String sendType = evaluate(datamodel, fsm, type, typeExpr, compiledTypeExpr);
+		if (sendType != null && !sendType.isEmpty() && !TYPE_SCXML.equals(sendType) && !"scxml".equals(sendType))
+			throw new IllegalArgumentException(String.format("Unsupported <send> type '%s'", sendType));
+		final String sendTarget = evaluate(datamodel, fsm, target, targetExpr, compiledTargetExpr);
+		final long delayMillis = parseDelay(evaluate(datamodel, fsm, delay, delayExpr, compiledDelayExpr));
+
+		final String sendId = id != null ? id : createSendId(global._sessionId);
+		// W3C says: the id must be stored before the event is dispatched, so it can be used e.g. to cancel a delayed event.
+		if (idLocation != null)
+			datamodel.set(idLocation, new DataValue(sendId));
+
+		if (TARGET_INTERNAL.equals(sendTarget))
+		{
+			if (delayMillis > 0)
+				throw new IllegalArgumentException("Delayed <send> to #_internal is not supported");
+			Event e = new Event(eventName, EventType.internal, fsm._eventSymbols.lookup(eventName));
+			e._sendId = sendId;
+			global._internalQueue.enqueue(e);
+			return;
+		}
+		BlockingQueue<Event> queue = global._externalQueue;
+		if (sendTarget != null && !sendTarget.isEmpty())
+		{
+			queue = getTargetQueue(global, sendTarget);
+			if (queue == null)
+			{
+				global._internalQueue.enqueue(fsm._eventSymbols.createEvent(EVENT_ERROR_COMMUNICATION, EventType.platform));
+				return;
+			}
+		}
+
+		// Invoked sessions share the symbol table of the caller, so the symbol is valid for all targets.
+		Event e = new Event(eventName, EventType.external, fsm._eventSymbols.lookup(eventName));
+		e._sendId = sendId;
+		e._origin = "#_scxml_" + global._sessionId;
+		e._originType = TYPE_SCXML;
+		if (queue == global._callerQueue)
+			e._invokeId = global._callerInvokeId;
+		if (delayMillis > 0 && global._scheduler != null)
+		{
+			// A pending event with the same id is not replaced, only <cancel> removes it.
+			global._pendingSends.schedule(global._scheduler, e, delayMillis, queue);
+		}
+		else
+			queue.enqueueNonBlocking(e);
+	}
+
+	/**
+	 * Gets the queue of a target of another session.
+	 *
+	 * @return The queue or null if the target is not known.
+	 */
+	private static BlockingQueue<Event> getTargetQueue(GlobalData global, String target)
+	{
+		if (TARGET_PARENT.equals(target))
+			return global._callerQueue;
+		if (target.startsWith("#_") && global._invokedQueues != null)
+			return global._invokedQueues.get(target.substring(2));
+		return null;
+	}
+
+	private static String evaluate(Datamodel datamodel, FiniteStateMachine fsm, String value, String expression, Expression compiled)
+	{
+		if (value != null)
+			return value;
+		if (compiled != null)
+			return datamodel.execute(fsm, compiled);
+		if (expression != null)
+			return datamodel.execute(fsm, expression);
+		return null;
+	}
+
+	@Override
+	public void compileExpressions(Datamodel datamodel, FiniteStateMachine fsm)
+	{
+		if (eventExpr != null)
+			compiledEventExpr = datamodel.compile(fsm, eventExpr);
+		if (targetExpr != null)
+			compiledTargetExpr = datamodel.compile(fsm, targetExpr);
+		if (typeExpr != null)
+			compiledTypeExpr = datamodel.compile(fsm, typeExpr);
+		if (delayExpr != null)
+			compiledDelayExpr = datamodel.compile(fsm, delayExpr);
+	}
+
+	/**
+	 * Creates a new send-id for a &lt;send&gt; without "id".
+	 *
+	 * @param sessionId The id of the sending session.
+	 * @return The id, unique inside this process.
+	 */
+	public static String createSendId(String sessionId)
+	{
+		return sessionId + "." + _sendIdCounter.incrementAndGet();
+	}
+
+	/**
+	 * Parses a CSS2 time designation.
+	 *
+	 * @param delay The delay, e.g. "500ms" or "1.5s". Null or empty means no delay.
+	 * @return The delay in milliseconds.
+	 * @throws IllegalArgumentException If delay has a wrong format.
+	 */
+	public static long parseDelay(String delay)
+	{
+		if (delay == null)
+			return 0;
+		String d = delay.trim();
+		if (d.isEmpty())
+			return 0;
+		try
+		{
+			if (d.endsWith("ms"))
+				return Math.round(Double.parseDouble(d.substring(0, d.length() - 2)));
+			if (d.endsWith("s"))
+				return Math.round(Double.parseDouble(d.substring(0, d.length() - 1)) * 1000d);
+		}
+		catch (NumberFormatException e)
+		{
+			// Handled below
+		}
+		throw new IllegalArgumentException(String.format("Illegal delay '%s'", delay));
+	}
+
+	@Override
+	public String getType()
+	{
+		return "send";
+	}
+}
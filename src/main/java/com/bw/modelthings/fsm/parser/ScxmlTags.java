@@ -142,6 +142,16 @@ public interface ScxmlTags
 	 */
 	String TAG_HISTORY = "history";
 
+	/**
+	 * Possible value for attribute {@link #ATTR_TYPE type} of {@link #TAG_HISTORY &lt;history&gt;}.
+	 **/
+	String HISTORY_TYPE_SHALLOW = "shallow";
+
+	/**
+	 * Possible value for attribute {@link #ATTR_TYPE type} of {@link #TAG_HISTORY &lt;history&gt;}.
+	 **/
+	String HISTORY_TYPE_DEEP = "deep";
+
 	/**
 	 * Same as {@link #TAG_STATE &lt;state&gt;} but for parallel states.
 	 */
@@ -549,6 +559,11 @@ public interface ScxmlTags
 	 */
 	String ATTR_LOCATION = "location";
 
+	/**
+	 * Attr attribute of &lt;assign&gt; in the XPath profile.
+	 */
+	String ATTR_ATTR = "attr";
+
 	/**
 	 * Starts an If specification.
 	 */
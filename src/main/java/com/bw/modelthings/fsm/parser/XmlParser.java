@@ -1,23 +1,34 @@
 package com.bw.modelthings.fsm.parser;
 
 import com.bw.modelthings.fsm.model.BindingType;
+import com.bw.modelthings.fsm.model.DataDeclaration;
+import com.bw.modelthings.fsm.model.Event;
+import com.bw.modelthings.fsm.model.EventSymbols;
+import com.bw.modelthings.fsm.model.EventType;
 import com.bw.modelthings.fsm.model.ExecutableContent;
 import com.bw.modelthings.fsm.model.FiniteStateMachine;
 import com.bw.modelthings.fsm.model.FsmElement;
+import com.bw.modelthings.fsm.model.HistoryType;
 import com.bw.modelthings.fsm.model.Invoke;
 import com.bw.modelthings.fsm.model.PseudoRoot;
 import com.bw.modelthings.fsm.model.State;
 import com.bw.modelthings.fsm.model.Transition;
 import com.bw.modelthings.fsm.model.TransitionType;
+import com.bw.modelthings.fsm.model.executablecontent.Assign;
 import com.bw.modelthings.fsm.model.executablecontent.Block;
+import com.bw.modelthings.fsm.model.executablecontent.Cancel;
 import com.bw.modelthings.fsm.model.executablecontent.If;
 import com.bw.modelthings.fsm.model.executablecontent.Log;
-import com.bw.modelthings.intellij.ScXmlSdkBundle;
+import com.bw.modelthings.fsm.model.executablecontent.Raise;
+import com.bw.modelthings.fsm.model.executablecontent.Script;
+import com.bw.modelthings.fsm.model.executablecontent.Send;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
+import org.w3c.dom.ls.DOMImplementationLS;
+import org.w3c.dom.ls.LSSerializer;
 import org.xml.sax.EntityResolver;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
@@ -36,6 +47,8 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.MissingResourceException;
+import java.util.ResourceBundle;
 import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -45,6 +58,11 @@ import java.util.logging.Logger;
  */
 public class XmlParser implements ScxmlTags
 {
+	/**
+	 * The resource bundle with the messages of the parser.
+	 */
+	private static final String MESSAGE_BUNDLE = "messages.ScxmlSdkBundle";
+
 	/**
 	 * The fsm the parser is working on.
 	 */
@@ -133,6 +151,21 @@ public class XmlParser implements ScxmlTags
 	 * @throws ParserException in case something was wrong with the file.
 	 */
 	public FiniteStateMachine parse(Path file, String xml) throws ParserException
+	{
+		return parse(file, xml, new EventSymbols());
+	}
+
+	/**
+	 * Parses the SCXML file into a machine that uses the given symbol table, see
+	 * {@link FiniteStateMachine#FiniteStateMachine(EventSymbols)}.
+	 *
+	 * @param file         The file of the content. Used to retrieve the location.
+	 * @param xml          The XML content.
+	 * @param eventSymbols The symbol table of the new machine.
+	 * @return The created model.
+	 * @throws ParserException in case something was wrong with the file.
+	 */
+	public FiniteStateMachine parse(Path file, String xml, EventSymbols eventSymbols) throws ParserException
 	{
 		javax.xml.parsers.DocumentBuilderFactory factory = org.apache.xerces.jaxp.DocumentBuilderFactoryImpl.newInstance();
 		factory.setNamespaceAware(true);
@@ -169,15 +202,17 @@ public class XmlParser implements ScxmlTags
 		if (doc != null)
 		{
 			NodeList scxmlElements = doc.getElementsByTagNameNS(NS_SCXML, TAG_SCXML);
-			if (scxmlElements.getLength() != 1)
+			// Nested documents in <content> of <invoke> are parsed on invocation.
+			if (scxmlElements.getLength() < 1 || scxmlElements.item(0) != doc.getDocumentElement())
 			{
 				throw new ParserException("Exactly on <scxml> element expected");
 			}
 			Element root = (Element) scxmlElements.item(0);
 			if (ScxmlTags.TAG_SCXML.equals(root.getLocalName()))
 			{
-				_fsm = new FiniteStateMachine();
+				_fsm = new FiniteStateMachine(eventSymbols);
 
+				_fsm._file = file;
 				_fsm._name = getOptionalAttribute(root, ATTR_NAME);
 				_fsm._dataModel = getAttributeOrDefault(root, ATTR_DATAMODEL, "Null");
 				_fsm._binding = mapBindingType(getAttributeOrDefault(root, ATTR_BINDING, BindingType.Early.name()));
@@ -185,7 +220,7 @@ public class XmlParser implements ScxmlTags
 			}
 			else
 			{
-				throw new ParserException(ScXmlSdkBundle.message("parser.error.root_tag_is_not_scxml", root.getLocalName()));
+				throw new ParserException(message("parser.error.root_tag_is_not_scxml", root.getLocalName()));
 			}
 		}
 		return _fsm;
@@ -322,8 +357,16 @@ public class XmlParser implements ScxmlTags
 					State s = parseState(xmlChild, false, state);
 					s._isFinal = true;
 				}
-				case TAG_HISTORY -> parseToDo(xmlChild, state);
-				case TAG_DATAMODEL -> parseToDo(xmlChild, state);
+				case TAG_HISTORY -> parseHistory(xmlChild, state);
+				case TAG_DATAMODEL -> parseDatamodel(xmlChild, state);
+				case TAG_SCRIPT ->
+				{
+					// Only allowed as child of <scxml>.
+					if (parent == null)
+						_fsm._script = parseScript(xmlChild, _fsm._script);
+					else
+						debug("Unsupported tag %s", xmlChild.getLocalName());
+				}
 				case TAG_INVOKE -> parseInvoke(xmlChild, state);
 				default -> debug("Unsupported tag %s", xmlChild.getLocalName());
 			}
@@ -331,23 +374,88 @@ public class XmlParser implements ScxmlTags
 		return state;
 	}
 
+	/**
+	 * Parse a &lt;datamodel&gt; element.
+	 *
+	 * @param node  The XML node.
+	 * @param state The state that contains the datamodel.
+	 * @throws ParserException in case something was wrong with the file.
+	 */
+	protected void parseDatamodel(Element node, State state) throws ParserException
+	{
+		for (ScxmlElementIterator it = new ScxmlElementIterator(node, null); it.hasNext(); )
+		{
+			Element xmlChild = it.next();
+			if (TAG_DATA.equals(xmlChild.getLocalName()))
+			{
+				DataDeclaration data = new DataDeclaration();
+				data._id = getRequiredAttribute(xmlChild, ATTR_ID);
+				if (data._id.isEmpty())
+					throw new ParserException("<data> requires attribute 'id'");
+				data._src = getNonEmptyAttribute(xmlChild, ATTR_SRC);
+				data._expr = getNonEmptyAttribute(xmlChild, ATTR_EXPR);
+				data._content = getContent(xmlChild);
+				if ((data._src != null ? 1 : 0) + (data._expr != null ? 1 : 0) + (data._content != null ? 1 : 0) > 1)
+					throw new ParserException(String.format("<data> '%s' must specify at most one of 'src', 'expr' or content", data._id));
+				if (data._src != null)
+					LOG.warning(String.format("Attribute 'src' of <data> is not supported [data %s]", data._id));
+				processUnhandledAttributes(xmlChild, data);
+				state._dataDeclarations.add(data);
+			}
+			else
+				debug("Unsupported tag %s", xmlChild.getLocalName());
+		}
+	}
+
+	/**
+	 * Parse a history node.<br>
+	 * History states are not added to the sub-states of the parent, they are stored in {@link State#_history}.
+	 *
+	 * @param node   The history node.
+	 * @param parent The parent state.
+	 * @return The history state.
+	 * @throws ParserException in case something was wrong with the file.
+	 */
+	protected State parseHistory(Element node, State parent) throws ParserException
+	{
+		State hstate = getOrCreateStateWithAttributes(node, false, null);
+		hstate._parent = parent;
+		hstate._historyType = mapHistoryType(getOptionalAttribute(node, ATTR_TYPE));
+		if (parent._history == null)
+			parent._history = new ArrayList<>();
+		parent._history.add(hstate);
+
+		for (ScxmlElementIterator it = new ScxmlElementIterator(node, hstate); it.hasNext(); )
+		{
+			Element xmlChild = it.next();
+			if (TAG_TRANSITION.equals(xmlChild.getLocalName()))
+				parseTransition(xmlChild, hstate);
+			else
+				debug("Unsupported tag %s", xmlChild.getLocalName());
+		}
+		return hstate;
+	}
+
 	/**
 	 * Parse an invoke node.
 	 *
 	 * @param node        The node.
 	 * @param sourceState The parent-state
+	 * @throws ParserException in case something was wrong with the file.
 	 */
-	protected void parseInvoke(Element node, State sourceState)
+	protected void parseInvoke(Element node, State sourceState) throws ParserException
 	{
 		Invoke invoke = new Invoke();
 
-		invoke._typeName = getOptionalAttribute(node, ATTR_TYPE);
-		invoke._typeExpr = getOptionalAttribute(node, ATTR_TYPEEXPR);
-		invoke._src = getOptionalAttribute(node, ATTR_SRC);
-		invoke._srcExpr = getOptionalAttribute(node, ATTR_SRCEXPR);
-		invoke._id = getOptionalAttribute(node, ATTR_ID);
-		invoke._idLocation = getOptionalAttribute(node, ATTR_IDLOCATION);
-		parseSymbolList(getOptionalAttribute(node, ATTR_NAMELIST), invoke._nameList);
+		invoke._typeName = getNonEmptyAttribute(node, ATTR_TYPE);
+		invoke._typeExpr = getNonEmptyAttribute(node, ATTR_TYPEEXPR);
+		invoke._src = getNonEmptyAttribute(node, ATTR_SRC);
+		invoke._srcExpr = getNonEmptyAttribute(node, ATTR_SRCEXPR);
+		invoke._id = getNonEmptyAttribute(node, ATTR_ID);
+		invoke._idLocation = getNonEmptyAttribute(node, ATTR_IDLOCATION);
+		// Data for the invoked session is not supported. Better fail than start the child without the data.
+		if (getNonEmptyAttribute(node, ATTR_NAMELIST) != null)
+			throw new ParserException(String.format("<invoke> in state '%s': attribute 'namelist' is not supported", sourceState._name));
 		invoke._autoforward = parseBoolean(getOptionalAttribute(node, ATTR_AUTOFORWARD), false);
 
 		for (ScxmlElementIterator it = new ScxmlElementIterator(node, invoke); it.hasNext(); )
@@ -355,12 +463,20 @@ public class XmlParser implements ScxmlTags
 			Element xmlChild = it.next();
 			switch (xmlChild.getLocalName())
 			{
-				case TAG_PARAM -> parseToDo(node, sourceState);
-				case TAG_FINALIZE -> parseToDo(node, sourceState);
-				case TAG_CONTENT -> parseToDo(node, sourceState);
+				case TAG_PARAM -> throw new ParserException(String.format("<invoke> in state '%s': <param> is not supported", sourceState._name));
+				case TAG_FINALIZE -> invoke._finalize = parseExecutableContentBlock(xmlChild);
+				case TAG_CONTENT ->
+				{
+					invoke._contentExpr = getNonEmptyAttribute(xmlChild, ATTR_EXPR);
+					invoke._content = getContent(xmlChild);
+				}
 				default -> debug("Unsupported tag %s", xmlChild.getLocalName());
 			}
 		}
+		if ((invoke._src != null || invoke._srcExpr != null) && (invoke._content != null || invoke._contentExpr != null))
+			throw new ParserException(String.format("<invoke> in state '%s' must not specify 'src' and <content>", sourceState._name));
+		if (sourceState._invoke == null)
+			sourceState._invoke = new ArrayList<>();
 		sourceState._invoke.add(invoke);
 	}
 
@@ -454,6 +570,34 @@ public class XmlParser implements ScxmlTags
 	}
 
 
+	/**
+	 * Mapping from history type name to enum.
+	 */
+	protected static final Map<String, HistoryType> HISTORY_TYPE_MAP =
+			Map.of(HISTORY_TYPE_SHALLOW, HistoryType.Shallow,
+					HISTORY_TYPE_DEEP, HistoryType.Deep);
+
+	/**
+	 * Translates a history type name.
+	 *
+	 * @param type The name of the type. Can be null.
+	 * @return The History type, "shallow" if type is null or empty.
+	 * @throws ParserException If type is not empty or null but value is unknown.
+	 */
+	protected HistoryType mapHistoryType(String type) throws ParserException
+	{
+		HistoryType typeValue = HistoryType.Shallow;
+		if (type != null && !type.isEmpty())
+		{
+			typeValue = HISTORY_TYPE_MAP.get(type);
+			if (typeValue == null)
+			{
+				throw new ParserException(String.format("Unknown history type value '%s'", type));
+			}
+		}
+		return typeValue;
+	}
+
 	/**
 	 * Mapping from transition type name to enum.
 	 */
@@ -538,11 +682,14 @@ public class XmlParser implements ScxmlTags
 	 * @param node The XML node.
 	 * @param prev The previous content in the current chain.
 	 * @return The executable content.
+	 * @throws ParserException in case something was wrong with the file.
 	 */
-	protected ExecutableContent parseRaise(Element node, ExecutableContent prev)
+	protected ExecutableContent parseRaise(Element node, ExecutableContent prev) throws ParserException
 	{
-		// @TODO
-		return chainExecutableContent(prev, null);
+		final String name = getRequiredAttribute(node, ATTR_EVENT);
+		final Raise raise = new Raise(new Event(name, EventType.internal, _fsm._eventSymbols.intern(name)));
+		processUnhandledAttributes(node, raise);
+		return chainExecutableContent(prev, raise);
 	}
 
 	/**
@@ -631,11 +778,24 @@ public class XmlParser implements ScxmlTags
 	 * @param node The XML node.
 	 * @param prev The previous content in the current chain.
 	 * @return The executable content.
+	 * @throws ParserException in case something was wrong with the file.
 	 */
-	protected ExecutableContent parseAssign(Element node, ExecutableContent prev)
+	protected ExecutableContent parseAssign(Element node, ExecutableContent prev) throws ParserException
 	{
-		// @TODO
-		return chainExecutableContent(prev, null);
+		final Assign assign = new Assign();
+		assign.location = getRequiredAttribute(node, ATTR_LOCATION);
+		if (assign.location.isEmpty())
+			throw new ParserException("<assign> requires attribute 'location'");
+		assign.expr = getNonEmptyAttribute(node, ATTR_EXPR);
+		assign.type = getNonEmptyAttribute(node, ATTR_TYPE);
+		assign.attr = getNonEmptyAttribute(node, ATTR_ATTR);
+		final String content = getContent(node);
+		if (assign.expr != null && content != null)
+			throw new ParserException(String.format("<assign> to '%s' must not specify 'expr' and content", assign.location));
+		if (assign.expr == null)
+			assign.expr = content;
+		processUnhandledAttributes(node, assign);
+		return chainExecutableContent(prev, assign);
 	}
 
 	/**
@@ -647,8 +807,15 @@ public class XmlParser implements ScxmlTags
 	 */
 	protected ExecutableContent parseScript(Element node, ExecutableContent prev)
 	{
-		// @TODO
-		return chainExecutableContent(prev, null);
+		if (getNonEmptyAttribute(node, ATTR_SRC) != null)
+		{
+			LOG.warning("Attribute 'src' of <script> is not supported");
+			return prev;
+		}
+		final String source = getTextContent(node);
+		if (source == null)
+			return prev;
+		return chainExecutableContent(prev, new Script(source));
 	}
 
 	/**
@@ -657,11 +824,47 @@ public class XmlParser implements ScxmlTags
 	 * @param node The XML node.
 	 * @param prev The previous content in the current chain.
 	 * @return The executable content.
+	 * @throws ParserException in case something was wrong with the file.
 	 */
-	protected ExecutableContent parseSend(Element node, ExecutableContent prev)
+	protected ExecutableContent parseSend(Element node, ExecutableContent prev) throws ParserException
 	{
-		// @TODO
-		return chainExecutableContent(prev, null);
+		final Send send = new Send();
+		send.event = getNonEmptyAttribute(node, ATTR_EVENT);
+		send.eventExpr = getNonEmptyAttribute(node, ATTR_EVENTEXPR);
+		send.target = getNonEmptyAttribute(node, ATTR_TARGET);
+		send.targetExpr = getNonEmptyAttribute(node, ATTR_TARGETEXPR);
+		send.type = getNonEmptyAttribute(node, ATTR_TYPE);
+		send.typeExpr = getNonEmptyAttribute(node, ATTR_TYPEEXPR);
+		send.id = getNonEmptyAttribute(node, ATTR_ID);
+		send.idLocation = getNonEmptyAttribute(node, ATTR_IDLOCATION);
+		send.delay = getNonEmptyAttribute(node, ATTR_DELAY);
+		send.delayExpr = getNonEmptyAttribute(node, ATTR_DELAYEXPR);
+		send.nameList = getNonEmptyAttribute(node, ATTR_NAMELIST);
+
+		if (send.event != null && send.eventExpr != null)
+			throw new ParserException("<send> must not specify both 'event' and 'eventexpr'");
+		if (send.target != null && send.targetExpr != null)
+			throw new ParserException("<send> must not specify both 'target' and 'targetexpr'");
+		if (send.delay != null && send.delayExpr != null)
+			throw new ParserException("<send> must not specify both 'delay' and 'delayexpr'");
+		if (send.id != null && send.idLocation != null)
+			throw new ParserException("<send> must not specify both 'id' and 'idlocation'");
+		if (send.delay != null)
+		{
+			try
+			{
+				Send.parseDelay(send.delay);
+			}
+			catch (IllegalArgumentException e)
+			{
+				throw new ParserException(e.getMessage());
+			}
+		}
+		if (send.event != null)
+			_fsm._eventSymbols.intern(send.event);
+
+		processUnhandledAttributes(node, send);
+		return chainExecutableContent(prev, send);
 	}
 
 	/**
@@ -670,11 +873,58 @@ public class XmlParser implements ScxmlTags
 	 * @param node The XML node.
 	 * @param prev The previous content in the current chain.
 	 * @return The executable content.
+	 * @throws ParserException in case something was wrong with the file.
 	 */
-	protected ExecutableContent parseCancel(Element node, ExecutableContent prev)
+	protected ExecutableContent parseCancel(Element node, ExecutableContent prev) throws ParserException
 	{
-		// @TODO
-		return chainExecutableContent(prev, null);
+		final Cancel cancel = new Cancel(getNonEmptyAttribute(node, ATTR_SENDID), getNonEmptyAttribute(node, ATTR_SENDIDEXPR));
+		if ((cancel.sendId == null) == (cancel.sendIdExpr == null))
+			throw new ParserException("<cancel> must specify exactly one of 'sendid' and 'sendidexpr'");
+		processUnhandledAttributes(node, cancel);
+		return chainExecutableContent(prev, cancel);
+	}
+
+	/**
+	 * Gets the trimmed text content of an element.
+	 *
+	 * @param node The XML node.
+	 * @return The text or null if the element has no (non-whitespace) text.
+	 */
+	protected String getTextContent(Element node)
+	{
+		final String text = node.getTextContent();
+		if (text == null)
+			return null;
+		final String trimmed = text.trim();
+		return trimmed.isEmpty() ? null : trimmed;
+	}
+
+	/**
+	 * Gets the child content of &lt;data&gt; or &lt;assign&gt;.
+	 * Content with elements is returned as markup, so XML based datamodels can parse it again.
+	 *
+	 * @param node The XML node.
+	 * @return The trimmed content, null if empty.
+	 */
+	protected String getContent(Element node)
+	{
+		boolean hasElements = false;
+		for (Node child = node.getFirstChild(); child != null && !hasElements; child = child.getNextSibling())
+			hasElements = child.getNodeType() == Node.ELEMENT_NODE;
+		if (!hasElements)
+			return getTextContent(node);
+		DOMImplementationLS ls = (DOMImplementationLS) node.getOwnerDocument()
+															.getImplementation()
+															.getFeature("LS", "3.0");
+		LSSerializer serializer = ls.createLSSerializer();
+		serializer.getDomConfig()
+				  .setParameter("xml-declaration", false);
+		StringBuilder sb = new StringBuilder();
+		for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling())
+			sb.append(serializer.writeToString(child));
+		final String trimmed = sb.toString()
+								 .trim();
+		return trimmed.isEmpty() ? null : trimmed;
 	}
 
 	/**
@@ -724,7 +974,7 @@ public class XmlParser implements ScxmlTags
 			state = getOrCreateState(sname, parallel);
 		}
 		String initial = getSCXMLAttribute(node, ATTR_INITIAL);
-		state._docId = ++_docIdCounter;
+		state._docId = _stateDocIdCounter++;
 
 		if (initial != null)
 		{
@@ -797,6 +1047,19 @@ public class XmlParser implements ScxmlTags
 		return getAttributeOrDefault(tag, attribute, null);
 	}
 
+	/**
+	 * Gets an optional attribute, empty values are handled as missing.
+	 *
+	 * @param tag       The Element to get the attribute from.
+	 * @param attribute The case-sensitive name of the attribute.
+	 * @return The found attribute value or null if missing or empty.
+	 */
+	public String getNonEmptyAttribute(Element tag, String attribute)
+	{
+		String value = getOptionalAttribute(tag, attribute);
+		return (value == null || value.isEmpty()) ? null : value;
+	}
+
 
 	/**
 	 * Gets an attribute.
@@ -826,6 +1089,27 @@ public class XmlParser implements ScxmlTags
 		return (value == null || value.isEmpty()) ? supplier.get() : value;
 	}
 
+	/**
+	 * Gets a localized message of the parser. Reads the bundle of the plugin directly, without the IDE classes,
+	 * so the parser also works outside the IDE (e.g. in the generator task of the build).
+	 *
+	 * @param key    The text id.
+	 * @param params The parameters of the format.
+	 * @return The message. The key if the bundle has no such text.
+	 */
+	protected static String message(String key, Object... params)
+	{
+		try
+		{
+			return String.format(ResourceBundle.getBundle(MESSAGE_BUNDLE)
+											   .getString(key), params);
+		}
+		catch (MissingResourceException e)
+		{
+			return key;
+		}
+	}
+
 	/**
 	 * Gets a required attribute.
 	 *
@@ -838,7 +1122,7 @@ public class XmlParser implements ScxmlTags
 	{
 		final String value = getSCXMLAttribute(tag, attribute);
 		if (value == null)
-			throw new ParserException(ScXmlSdkBundle.message("parser.error.missing_attribute", attribute, tag.getLocalName()));
+			throw new ParserException(message("parser.error.missing_attribute", attribute, tag.getLocalName()));
 		return value;
 	}
 
@@ -852,6 +1136,11 @@ public class XmlParser implements ScxmlTags
 	 */
 	private int _docIdCounter = 0;
 
+	/**
+	 * Document-order-Id generator for states. Separated from {@link #_docIdCounter} to get dense ids for states.
+	 */
+	private int _stateDocIdCounter = 0;
+
 	/**
 	 * Parse a state-specification, a white-space separated list of stare references.
 	 *
@@ -883,13 +1172,18 @@ public class XmlParser implements ScxmlTags
 
 	/**
 	 * Parse a symbol list, a white-space separated list of symbols.
+	 * All symbols are interned in the symbol table of the state machine.
 	 *
 	 * @param eventNames The list of symbols
 	 * @param events     A list to add the symbols to.
 	 */
 	protected void parseSymbolList(String eventNames, java.util.List<String> events)
 	{
-		events.addAll(Arrays.asList(ScxmlTags.splitNameList(eventNames)));
+		for (String event : ScxmlTags.splitNameList(eventNames))
+		{
+			_fsm._eventSymbols.intern(event);
+			events.add(event);
+		}
 	}
 
 	/**
@@ -0,0 +1,814 @@
+package com.bw.modelthings.fsm.runtime;
+
+import com.bw.modelthings.fsm.model.DataDeclaration;
+import com.bw.modelthings.fsm.model.DataStore;
+import com.bw.modelthings.fsm.model.Datamodel;
+import com.bw.modelthings.fsm.model.Event;
+import com.bw.modelthings.fsm.model.EventType;
+import com.bw.modelthings.fsm.model.ExecutableContent;
+import com.bw.modelthings.fsm.model.Expression;
+import com.bw.modelthings.fsm.model.FiniteStateMachine;
+import com.bw.modelthings.fsm.model.HistoryType;
+import com.bw.modelthings.fsm.model.Invoke;
+import com.bw.modelthings.fsm.model.State;
+import com.bw.modelthings.fsm.model.StateId;
+import com.bw.modelthings.fsm.model.Transition;
+import com.bw.modelthings.fsm.model.TransitionType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pre-computed tables of a {@link FiniteStateMachine}.<br>
+ * The W3C algorithm walks the state tree over and over again (ancestors, descendants, document order, LCCA).
+ * All these relations are static, so they are computed once and stored as arrays indexed by {@link State#_docId}.<br>
+ * The document-id is a counter in document order (pre-order of the state tree),
+ * so descendants of a state <em>s</em> are exactly the states with index in <em>(s, _subtreeEnd[s])</em>,
+ * "document order" is plain integer order and the same index can be used in {@link com.bw.modelthings.fsm.model.StateSet}.
+ * Ids without state (e.g. of removed states) are left empty.<br>
+ * Instances are not modified after creation.
+ */
+public final class CompiledMachine
+{
+	/**
+	 * Kind of state: Atomic state.
+	 */
+	public static final byte KIND_ATOMIC = 0;
+
+	/**
+	 * Kind of state: Compound state (also used for the root).
+	 */
+	public static final byte KIND_COMPOUND = 1;
+
+	/**
+	 * Kind of state: Parallel state.
+	 */
+	public static final byte KIND_PARALLEL = 2;
+
+	/**
+	 * Kind of state: History pseudo-state.
+	 */
+	public static final byte KIND_HISTORY = 3;
+
+	/**
+	 * Marker in {@link #_transitionDomain} for transitions without targets.
+	 */
+	public static final int NO_DOMAIN = -1;
+
+	/**
+	 * Marker in {@link #_transitionDomain} for transitions with history targets. The domain depends on the
+	 * recorded history and has to be computed at runtime.
+	 */
+	public static final int DYNAMIC_DOMAIN = -2;
+
+	/**
+	 * Name of the platform event that is raised if executable content fails.
+	 */
+	public static final String EVENT_ERROR_EXECUTION = "error.execution";
+
+	/**
+	 * The source model.
+	 */
+	public final FiniteStateMachine _fsm;
+
+	/**
+	 * All states by document-id. Entries of unused ids are null.
+	 */
+	public final State[] _states;
+
+	/**
+	 * Index of the pseudo root.
+	 */
+	public final int _root;
+
+	/**
+	 * Pre-allocated ids of the states, same index as {@link #_states}.
+	 */
+	public final StateId[] _stateIds;
+
+	/**
+	 * The kind of each state, see KIND_XXX constants.
+	 */
+	public final byte[] _kind;
+
+	/**
+	 * True if the state is a final state.
+	 */
+	public final boolean[] _final;
+
+	/**
+	 * Index of the parent state, -1 for the root and unused ids.
+	 */
+	public final int[] _parent;
+
+	/**
+	 * Depth of the state in the tree, 0 for the root.
+	 */
+	public final int[] _depth;
+
+	/**
+	 * Proper ancestors of each state, nearest first, root last.
+	 */
+	public final int[][] _ancestors;
+
+	/**
+	 * Exclusive end of the sub-tree of each state. Descendants of s have indices s+1 .. _subtreeEnd[s]-1.
+	 */
+	public final int[] _subtreeEnd;
+
+	/**
+	 * Child states (without history states) in document order.
+	 */
+	public final int[][] _children;
+
+	/**
+	 * History pseudo-states of each state in document order.
+	 */
+	public final int[][] _historyStates;
+
+	/**
+	 * True for deep history states.
+	 */
+	public final boolean[] _deepHistory;
+
+	/**
+	 * Initial transition of compound states, default transition of history states, -1 otherwise.
+	 */
+	public final int[] _initialTransition;
+
+	/**
+	 * Name of the "done.state.ID" event for each state.
+	 */
+	public final String[] _doneEventName;
+
+	/**
+	 * Shared "done.state.ID" event without done-data for each state.
+	 */
+	public final Event[] _doneEvent;
+
+	/**
+	 * Shared "error.execution" event.
+	 */
+	public final Event _errorExecutionEvent;
+
+	/**
+	 * All transitions. Regular transitions are in document order, followed by initial transitions and
+	 * default transitions of history states.
+	 */
+	public final Transition[] _transitions;
+
+	/**
+	 * Number of regular transitions at the start of {@link #_transitions}.
+	 */
+	public final int _regularTransitionCount;
+
+	/**
+	 * Source state index of each transition.
+	 */
+	public final int[] _transitionSource;
+
+	/**
+	 * Target state indices of each transition in document order.
+	 */
+	public final int[][] _transitionTargets;
+
+	/**
+	 * True if the transition has at least one history state as target.
+	 */
+	public final boolean[] _transitionHasHistoryTarget;
+
+	/**
+	 * Pre-computed transition domain, see {@link #NO_DOMAIN} and {@link #DYNAMIC_DOMAIN}.
+	 */
+	public final int[] _transitionDomain;
+
+	/**
+	 * True if transition type is "internal".
+	 */
+	public final boolean[] _transitionInternal;
+
+	/**
+	 * Normalized event descriptors of each transition ("*" or the descriptor without trailing ".*" and ".").
+	 * Empty for eventless transitions.
+	 */
+	public final String[][] _transitionEvents;
+
+	/**
+	 * Compiled condition of each transition or null, same as {@link Transition#_condExpression}.
+	 */
+	public final Expression[] _transitionCondition;
+
+	/**
+	 * Regular transitions of each state in document order.
+	 */
+	public final int[][] _stateTransitions;
+
+	/**
+	 * True if the executable content is compiled to {@link ContentProgram}s.
+	 */
+	public final boolean _contentPrograms;
+
+	/**
+	 * Program of the &lt;onentry&gt; content of each state, null without content or programs.
+	 */
+	public final ContentProgram[] _onEntryProgram;
+
+	/**
+	 * Program of the &lt;onexit&gt; content of each state, null without content or programs.
+	 */
+	public final ContentProgram[] _onExitProgram;
+
+	/**
+	 * Program of the content of each transition, null without content or programs.
+	 */
+	public final ContentProgram[] _transitionProgram;
+
+	/**
+	 * Regular eventless transitions of each state in document order.
+	 */
+	public final int[][] _eventlessTransitions;
+
+	/**
+	 * Trie over the event descriptors of the regular transitions of each state.
+	 * Null if the state has no transitions with events.
+	 */
+	public final EventTrie[] _eventTries;
+
+	/**
+	 * Indices of all states with &lt;invoke&gt; elements in document order.
+	 */
+	public final int[] _invokingStates;
+
+	/**
+	 * Managers of the definitions that the sessions of this machine invoke, by resolved "src" or by inline
+	 * content. Loaded on the first invocation and shared by all sessions of this machine.
+	 */
+	final ConcurrentHashMap<String, SessionManager> _invokedDefinitions = new ConcurrentHashMap<>();
+
+	/**
+	 * Indices of all states with &lt;data&gt; elements in document order.
+	 */
+	public final int[] _dataStates;
+
+	/**
+	 * True for states with &lt;data&gt; elements, by index.
+	 */
+	public final boolean[] _hasData;
+
+	private CompiledMachine(FiniteStateMachine fsm, ArrayList<State> states, boolean contentPrograms) throws CompilerException
+	{
+		_fsm = fsm;
+		_contentPrograms = contentPrograms;
+
+		final int n = states.get(states.size() - 1)._docId + 1;
+		_root = states.get(0)._docId;
+		_states = new State[n];
+		_stateIds = new StateId[n];
+		_kind = new byte[n];
+		_final = new boolean[n];
+		_parent = new int[n];
+		_depth = new int[n];
+		_ancestors = new int[n][];
+		_subtreeEnd = new int[n];
+		_children = new int[n][];
+		_historyStates = new int[n][];
+		_deepHistory = new boolean[n];
+		_initialTransition = new int[n];
+		_doneEventName = new String[n];
+		_doneEvent = new Event[n];
+		_stateTransitions = new int[n][];
+
+		Arrays.fill(_parent, -1);
+		Arrays.fill(_initialTransition, -1);
+		for (State s : states)
+			_states[s._docId] = s;
+
+		for (State s : states)
+		{
+			final int i = s._docId;
+			_stateIds[i] = new StateId(i);
+			_final[i] = s._isFinal;
+			_doneEventName[i] = "done.state." + s._name;
+			_doneEvent[i] = new Event(_doneEventName[i], EventType.internal, fsm._eventSymbols.intern(_doneEventName[i]));
+			if (i != _root)
+			{
+				_parent[i] = s._parent._docId;
+				_depth[i] = _depth[_parent[i]] + 1;
+			}
+
+			int[] ancestors = new int[_depth[i]];
+			for (int a = 0, p = _parent[i]; p >= 0; p = _parent[p])
+				ancestors[a++] = p;
+			_ancestors[i] = ancestors;
+
+			_children[i] = indicesOf(s._states);
+			_historyStates[i] = indicesOf(s._history);
+			if (isHistory(s))
+			{
+				_kind[i] = KIND_HISTORY;
+				_deepHistory[i] = s._historyType == HistoryType.Deep;
+			}
+			else if (s._isParallel)
+				_kind[i] = KIND_PARALLEL;
+			else if (i == _root || _children[i].length > 0)
+				_kind[i] = KIND_COMPOUND;
+			else
+				_kind[i] = KIND_ATOMIC;
+		}
+		_invokingStates = states.stream()
+								.filter(s -> s._invoke != null && !s._invoke.isEmpty())
+								.mapToInt(s -> s._docId)
+								.toArray();
+		_dataStates = states.stream()
+							.filter(s -> !s._dataDeclarations.isEmpty())
+							.mapToInt(s -> s._docId)
+							.toArray();
+		_hasData = new boolean[n];
+		for (int s : _dataStates)
+			_hasData[s] = true;
+
+		for (int k = states.size() - 1; k >= 0; --k)
+		{
+			final int i = states.get(k)._docId;
+			if (_subtreeEnd[i] == 0)
+				_subtreeEnd[i] = i + 1;
+			if (i != _root && _subtreeEnd[_parent[i]] < _subtreeEnd[i])
+				_subtreeEnd[_parent[i]] = _subtreeEnd[i];
+		}
+
+		// Collect transitions, regular ones first.
+		ArrayList<Transition> transitions = new ArrayList<>();
+		for (State s : states)
+		{
+			final int i = s._docId;
+			if (_kind[i] == KIND_HISTORY)
+			{
+				_stateTransitions[i] = new int[0];
+				continue;
+			}
+			int[] st = new int[s._transitions.size()];
+			int ti = 0;
+			for (Transition t : s._transitions)
+			{
+				st[ti++] = transitions.size();
+				transitions.add(t);
+			}
+			_stateTransitions[i] = st;
+		}
+		_regularTransitionCount = transitions.size();
+
+		for (State s : states)
+		{
+			final int i = s._docId;
+			if (_kind[i] == KIND_COMPOUND)
+			{
+				Transition t = s._initial;
+				if (t == null || t._target.isEmpty())
+				{
+					// W3C: If not specified, the default initial state is the first child state in document order.
+					t = new Transition();
+					t._source = s;
+					t._transitionType = TransitionType.Internal;
+					t._target.add(_states[_children[i][0]]);
+				}
+				_initialTransition[i] = transitions.size();
+				transitions.add(t);
+			}
+			else if (_kind[i] == KIND_HISTORY && !s._transitions.isEmpty())
+			{
+				_initialTransition[i] = transitions.size();
+				transitions.add(s._transitions.iterator()
+											  .next());
+			}
+		}
+
+		final int tn = transitions.size();
+		_transitions = transitions.toArray(new Transition[tn]);
+		_transitionSource = new int[tn];
+		_transitionTargets = new int[tn][];
+		_transitionHasHistoryTarget = new boolean[tn];
+		_transitionDomain = new int[tn];
+		_transitionInternal = new boolean[tn];
+		_transitionEvents = new String[tn][];
+		_transitionCondition = new Expression[tn];
+
+		// Expressions are compiled once per definition, sessions only evaluate the compiled handles.
+		final Datamodel compiler = DatamodelFactory.create(fsm._dataModel);
+		for (int ti = 0; ti < tn; ++ti)
+		{
+			Transition t = _transitions[ti];
+			final int source = indexOf(t._source);
+			if (source < 0)
+				throw new CompilerException(String.format("Transition %s has no valid source", t));
+			_transitionSource[ti] = source;
+			_transitionInternal[ti] = t._transitionType == TransitionType.Internal;
+			t._condExpression = (t._cond == null || t._cond.isEmpty()) ? null : compiler.compile(fsm, t._cond);
+			_transitionCondition[ti] = t._condExpression;
+			compileExpressions(compiler, fsm, t._content);
+			_transitionEvents[ti] = normalizeEventDescriptors(t._events);
+			for (String descriptor : _transitionEvents[ti])
+				fsm._eventSymbols.intern(descriptor);
+
+			int[] targets = new int[t._target.size()];
+			int k = 0;
+			for (State target : t._target)
+			{
+				final int targetIndex = indexOf(target);
+				if (targetIndex < 0)
+					throw new CompilerException(String.format("Transition %s has undeclared target '%s'", t, target._name));
+				targets[k++] = targetIndex;
+				if (_kind[targetIndex] == KIND_HISTORY)
+					_transitionHasHistoryTarget[ti] = true;
+			}
+			Arrays.sort(targets);
+			_transitionTargets[ti] = targets;
+
+			if (targets.length == 0)
+				_transitionDomain[ti] = NO_DOMAIN;
+			else if (_transitionHasHistoryTarget[ti])
+				_transitionDomain[ti] = DYNAMIC_DOMAIN;
+			else
+				_transitionDomain[ti] = computeDomain(ti, targets);
+		}
+
+		compileExpressions(compiler, fsm, states);
+
+		_onEntryProgram = new ContentProgram[n];
+		_onExitProgram = new ContentProgram[n];
+		_transitionProgram = new ContentProgram[tn];
+		if (contentPrograms)
+		{
+			for (State s : states)
+			{
+				_onEntryProgram[s._docId] = ContentProgram.compile(s._onEntry);
+				_onExitProgram[s._docId] = ContentProgram.compile(s._onExit);
+			}
+			for (int ti = 0; ti < tn; ++ti)
+				_transitionProgram[ti] = ContentProgram.compile(_transitions[ti]._content);
+		}
+
+		_errorExecutionEvent = new Event(EVENT_ERROR_EXECUTION, EventType.platform, fsm._eventSymbols.intern(EVENT_ERROR_EXECUTION));
+
+		_eventlessTransitions = new int[n][];
+		_eventTries = new EventTrie[n];
+		final int symbolCount = fsm._eventSymbols.size();
+		for (State s : states)
+		{
+			final int i = s._docId;
+			final int[] st = _stateTransitions[i];
+			_eventlessTransitions[i] = Arrays.stream(st)
+											 .filter(t -> _transitionEvents[t].length == 0)
+											 .toArray();
+			if (_eventlessTransitions[i].length < st.length)
+				_eventTries[i] = new EventTrie(st, _transitionEvents, symbolCount);
+		}
+	}
+
+	/**
+	 * Compiles the expressions of all executable content of the machine.
+	 * The compiled handles are stored in the model elements. The slots of the data are assigned before.
+	 */
+	private static void compileExpressions(Datamodel compiler, FiniteStateMachine fsm, ArrayList<State> states)
+	{
+		fsm._dataLayout = DataStore.Layout.create(states);
+		compileExpressions(compiler, fsm, fsm._script);
+		for (State s : states)
+		{
+			for (DataDeclaration data : s._dataDeclarations)
+			{
+				if (data._expr != null)
+					data._compiledExpr = compiler.compile(fsm, data._expr);
+			}
+			compileExpressions(compiler, fsm, s._onEntry);
+			compileExpressions(compiler, fsm, s._onExit);
+			if (s._invoke != null)
+			{
+				for (Invoke invoke : s._invoke)
+				{
+					if (invoke._typeExpr != null)
+						invoke._compiledTypeExpr = compiler.compile(fsm, invoke._typeExpr);
+					if (invoke._srcExpr != null)
+						invoke._compiledSrcExpr = compiler.compile(fsm, invoke._srcExpr);
+					if (invoke._contentExpr != null)
+						invoke._compiledContentExpr = compiler.compile(fsm, invoke._contentExpr);
+					compileExpressions(compiler, fsm, invoke._finalize);
+				}
+			}
+		}
+		compiler.finishCompilation(fsm);
+	}
+
+	private static void compileExpressions(Datamodel compiler, FiniteStateMachine fsm, ExecutableContent content)
+	{
+		if (content != null)
+			content.compileExpressions(compiler, fsm);
+	}
+
+	/**
+	 * Compiles a state machine.
+	 *
+	 * @param fsm The state machine.
+	 * @return The compiled tables.
+	 * @throws CompilerException If the model is inconsistent.
+	 */
+	public static CompiledMachine compile(FiniteStateMachine fsm) throws CompilerException
+	{
+		return compile(fsm, false);
+	}
+
+	/**
+	 * Compiles a state machine.<br>
+	 * With "contentPrograms" the &lt;onentry&gt;, &lt;onexit&gt; and transition content is additionally compiled
+	 * to flat {@link ContentProgram}s, which the interpreter executes instead of the element tree.
+	 * Helps models with long blocks and deep &lt;if&gt;/&lt;elseif&gt; ladders.
+	 *
+	 * @param fsm             The state machine.
+	 * @param contentPrograms true to compile the content to programs.
+	 * @return The compiled tables.
+	 * @throws CompilerException If the model is inconsistent.
+	 */
+	public static CompiledMachine compile(FiniteStateMachine fsm, boolean contentPrograms) throws CompilerException
+	{
+		if (fsm._pseudoRoot == null)
+			throw new CompilerException("State machine has no root");
+		if (fsm._pseudoRoot._states.isEmpty())
+			throw new CompilerException("State machine has no states");
+		ArrayList<State> states = new ArrayList<>();
+		collectInDocumentOrder(fsm._pseudoRoot, states);
+		for (int i = 1; i < states.size(); ++i)
+		{
+			if (states.get(i)._docId <= states.get(i - 1)._docId)
+				throw new CompilerException(String.format("Document-id of state '%s' is not in document order", states.get(i)._name));
+		}
+		return new CompiledMachine(fsm, states, contentPrograms);
+	}
+
+	/**
+	 * Get the number of state indices.
+	 *
+	 * @return The maximal document-id of all states + 1.
+	 */
+	public int getStateCount()
+	{
+		return _states.length;
+	}
+
+	/**
+	 * Get the index of a state.
+	 *
+	 * @param state The state.
+	 * @return The index or -1 if the state is not part of the machine.
+	 */
+	public int indexOf(State state)
+	{
+		if (state == null || state._docId < 0 || state._docId >= _states.length)
+			return -1;
+		return _states[state._docId] == state ? state._docId : -1;
+	}
+
+	/**
+	 * Get the index of a state by its SCXML id.
+	 *
+	 * @param name The id of the state.
+	 * @return The index or -1 if no such state exists.
+	 */
+	public int indexOf(String name)
+	{
+		return indexOf(_fsm._states.get(name));
+	}
+
+	/**
+	 * Get the index of a state by its id.
+	 *
+	 * @param id The id of the state.
+	 * @return The index or -1 if no such state exists.
+	 */
+	public int indexOf(StateId id)
+	{
+		return (id._id >= 0 && id._id < _states.length && _states[id._id] != null) ? id._id : -1;
+	}
+
+	/**
+	 * W3C isDescendant.
+	 *
+	 * @param state1 Index of possible descendant.
+	 * @param state2 Index of possible ancestor.
+	 * @return true if state1 is a descendant of state2 (a child, or a child of a child, or a child of a child of a child, etc.)
+	 */
+	public boolean isDescendant(int state1, int state2)
+	{
+		return state2 < state1 && state1 < _subtreeEnd[state2];
+	}
+
+	/**
+	 * W3C isAtomicState: "True if state is an atomic state (a &lt;state&gt; or &lt;final&gt; with no child states)"
+	 *
+	 * @param state The state index.
+	 * @return true if atomic.
+	 */
+	public boolean isAtomic(int state)
+	{
+		return _kind[state] == KIND_ATOMIC;
+	}
+
+	/**
+	 * W3C isCompoundState, for the root also true.
+	 *
+	 * @param state The state index.
+	 * @return true if compound or root.
+	 */
+	public boolean isCompound(int state)
+	{
+		return _kind[state] == KIND_COMPOUND;
+	}
+
+	/**
+	 * W3C isParallelState.
+	 *
+	 * @param state The state index.
+	 * @return true if parallel.
+	 */
+	public boolean isParallel(int state)
+	{
+		return _kind[state] == KIND_PARALLEL;
+	}
+
+	/**
+	 * W3C isHistoryState.
+	 *
+	 * @param state The state index.
+	 * @return true if history pseudo-state.
+	 */
+	public boolean isHistory(int state)
+	{
+		return _kind[state] == KIND_HISTORY;
+	}
+
+	/**
+	 * W3C findLCCA: "The Least Common Compound Ancestor is the &lt;state&gt; or &lt;scxml&gt; element s such that s is a
+	 * proper ancestor of all states on stateList and no descendant of s has this property."
+	 *
+	 * @param states The state indices.
+	 * @param count  Number of valid entries in states.
+	 * @return The index of the LCCA.
+	 */
+	public int findLCCA(int[] states, int count)
+	{
+		return findLCCA(states[0], states, 1, count);
+	}
+
+	/**
+	 * findLCCA of the list "head" + states[from..count-1], without creating the list.
+	 */
+	private int findLCCA(int head, int[] states, int from, int count)
+	{
+		for (int anc : _ancestors[head])
+		{
+			if (_kind[anc] != KIND_COMPOUND)
+				continue;
+			boolean all = true;
+			for (int i = from; i < count; ++i)
+			{
+				if (!isDescendant(states[i], anc))
+				{
+					all = false;
+					break;
+				}
+			}
+			if (all)
+				return anc;
+		}
+		return _root;
+	}
+
+	/**
+	 * W3C getTransitionDomain for transitions whose effective targets are known.
+	 *
+	 * @param transition       The transition index.
+	 * @param effectiveTargets The effective target states.
+	 * @param count            Number of valid entries in effectiveTargets.
+	 * @return The domain index or {@link #NO_DOMAIN}.
+	 */
+	public int computeDomain(int transition, int[] effectiveTargets, int count)
+	{
+		if (count == 0)
+			return NO_DOMAIN;
+		final int source = _transitionSource[transition];
+		if (_transitionInternal[transition] && _kind[source] == KIND_COMPOUND)
+		{
+			boolean all = true;
+			for (int i = 0; i < count; ++i)
+			{
+				if (!isDescendant(effectiveTargets[i], source))
+				{
+					all = false;
+					break;
+				}
+			}
+			if (all)
+				return source;
+		}
+		return findLCCA(source, effectiveTargets, 0, count);
+	}
+
+	private int computeDomain(int transition, int[] targets)
+	{
+		return computeDomain(transition, targets, targets.length);
+	}
+
+	/**
+	 * W3C nameMatch for one transition.
+	 *
+	 * @param transition The transition index.
+	 * @param eventName  The name of the event.
+	 * @return true if one of the descriptors matches the event name.
+	 */
+	public boolean nameMatch(int transition, String eventName)
+	{
+		for (String descriptor : _transitionEvents[transition])
+		{
+			if (descriptorMatch(descriptor, eventName))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Checks if a normalized descriptor matches an event name.<br>
+	 * <strong>W3C says:</strong><br>
+	 * A transition matches an event if at least one of its event descriptors matches the event's name.
+	 * An event descriptor matches an event name if its string of tokens is an exact match or a prefix of the set of tokens in the event's name.
+	 *
+	 * @param descriptor The normalized descriptor.
+	 * @param eventName  The event name.
+	 * @return true if matching.
+	 */
+	public static boolean descriptorMatch(String descriptor, String eventName)
+	{
+		if (descriptor.length() == 1 && descriptor.charAt(0) == '*')
+			return true;
+		final int dl = descriptor.length();
+		return eventName.startsWith(descriptor) && (eventName.length() == dl || eventName.charAt(dl) == '.');
+	}
+
+	/**
+	 * Normalizes event descriptors: removes empty entries, trailing ".*" and ".".
+	 *
+	 * @param events The descriptors.
+	 * @return The normalized descriptors.
+	 */
+	static String[] normalizeEventDescriptors(java.util.List<String> events)
+	{
+		ArrayList<String> result = new ArrayList<>(events.size());
+		for (String e : events)
+		{
+			if (e == null)
+				continue;
+			if (e.endsWith(".*"))
+				e = e.substring(0, e.length() - 2);
+			else if (e.endsWith("."))
+				e = e.substring(0, e.length() - 1);
+			if (!e.isEmpty())
+				result.add(e);
+		}
+		return result.toArray(new String[0]);
+	}
+
+	/**
+	 * Checks if a state is a history pseudo-state.
+	 *
+	 * @param s The state.
+	 * @return true for history states.
+	 */
+	static boolean isHistory(State s)
+	{
+		return s._historyType != null && s._historyType != HistoryType.None;
+	}
+
+	private static int[] indicesOf(java.util.List<State> states)
+	{
+		if (states == null)
+			return new int[0];
+		return states.stream()
+					 .mapToInt(s -> s._docId)
+					 .sorted()
+					 .toArray();
+	}
+
+	private static void collectInDocumentOrder(State state, ArrayList<State> result) throws CompilerException
+	{
+		result.add(state);
+		ArrayList<State> children = new ArrayList<>(state._states);
+		if (state._history != null)
+			children.addAll(state._history);
+		children.sort(Comparator.comparingInt(s -> s._docId));
+		for (State child : children)
+		{
+			if (child._parent != state)
+				throw new CompilerException(String.format("State '%s' has inconsistent parent", child._name));
+			collectInDocumentOrder(child, result);
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package com.bw.modelthings.fsm.runtime;
+
+/**
+ * Signals that a state machine can't be prepared for execution.<br>
+ * Exceptions of this type normally indicate an inconsistent model, e.g. transitions to undeclared states.
+ */
+public class CompilerException extends Exception
+{
+	/**
+	 * Creates a new CompilerException
+	 *
+	 * @param message The message.
+	 * @param cause   The cause, can be null.
+	 */
+	public CompilerException(String message, Throwable cause)
+	{
+		super(message, cause);
+	}
+
+	/**
+	 * Creates a new CompilerException
+	 *
+	 * @param message The message.
+	 */
+	public CompilerException(String message)
+	{
+		this(message, null);
+	}
+}
@@ -0,0 +1,256 @@
+package com.bw.modelthings.fsm.runtime;
+
+import com.bw.modelthings.fsm.model.Datamodel;
+import com.bw.modelthings.fsm.model.Event;
+import com.bw.modelthings.fsm.model.ExecutableContent;
+import com.bw.modelthings.fsm.model.Expression;
+import com.bw.modelthings.fsm.model.FiniteStateMachine;
+import com.bw.modelthings.fsm.model.executablecontent.Assign;
+import com.bw.modelthings.fsm.model.executablecontent.Block;
+import com.bw.modelthings.fsm.model.executablecontent.If;
+import com.bw.modelthings.fsm.model.executablecontent.Log;
+import com.bw.modelthings.fsm.model.executablecontent.Raise;
+import com.bw.modelthings.fsm.model.executablecontent.Script;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Executable content compiled to a flat instruction stream.<br>
+ * Blocks are inlined and &lt;if&gt;/&lt;elseif&gt;/&lt;else&gt; become conditional and unconditional jumps, so a
+ * program runs in one loop without recursion. &lt;raise&gt;, &lt;assign&gt;, &lt;script&gt; and &lt;log&gt; with
+ * compiled expressions are executed directly, all other elements via {@link ExecutableContent#execute}.
+ * Created by {@link CompiledMachine#compile(FiniteStateMachine, boolean)} after the expressions are compiled.<br>
+ * An instruction is one int, the opcode in the lowest 8 bits and the operand (index of a constant or jump offset)
+ * in the upper 24 bits. {@link #OP_BRANCH_FALSE} is followed by an int with the jump offset. Jump offsets are
+ * relative to the next instruction.<br>
+ * As with the tree, an exception stops the whole content. Programs are immutable and shared by all sessions.
+ */
+public final class ContentProgram
+{
+	/**
+	 * End of the program.
+	 */
+	static final int OP_END = 0;
+
+	/**
+	 * Executes element [operand].
+	 */
+	static final int OP_EXECUTE = 1;
+
+	/**
+	 * Puts event [operand] into the internal queue.
+	 */
+	static final int OP_RAISE = 2;
+
+	/**
+	 * Evaluates expression [operand], the result is ignored.
+	 */
+	static final int OP_EVALUATE = 3;
+
+	/**
+	 * Logs expression [operand] with label [operand].
+	 */
+	static final int OP_LOG = 4;
+
+	/**
+	 * Evaluates condition [operand] and jumps by the offset in the next int if false.
+	 */
+	static final int OP_BRANCH_FALSE = 5;
+
+	/**
+	 * Jumps by [operand].
+	 */
+	static final int OP_JUMP = 6;
+
+	private static final int OPERAND_SHIFT = 8;
+	private static final int OPCODE_MASK = 0xFF;
+	private static final int MAX_OPERAND = (1 << 23) - 1;
+
+	private final int[] _code;
+	private final ExecutableContent[] _elements;
+	private final Event[] _events;
+	private final Expression[] _expressions;
+	private final String[] _labels;
+
+	private ContentProgram(Builder builder)
+	{
+		_code = Arrays.copyOf(builder._code, builder._size);
+		_elements = builder._elements.toArray(new ExecutableContent[0]);
+		_events = builder._events.toArray(new Event[0]);
+		_expressions = builder._expressions.toArray(new Expression[0]);
+		_labels = builder._labels.toArray(new String[0]);
+	}
+
+	/**
+	 * Compiles content. The expressions of the content must be compiled before.
+	 *
+	 * @param content The content, can be null.
+	 * @return The program or null if content is null.
+	 */
+	public static ContentProgram compile(ExecutableContent content)
+	{
+		if (content == null)
+			return null;
+		Builder builder = new Builder();
+		builder.compile(content);
+		builder.emit(OP_END, 0);
+		return new ContentProgram(builder);
+	}
+
+	/**
+	 * Executes the program.
+	 *
+	 * @param datamodel The datamodel of the session.
+	 * @param fsm       The state machine.
+	 */
+	public void execute(Datamodel datamodel, FiniteStateMachine fsm)
+	{
+		final int[] code = _code;
+		int pc = 0;
+		while (true)
+		{
+			final int instruction = code[pc++];
+			final int operand = instruction >> OPERAND_SHIFT;
+			switch (instruction & OPCODE_MASK)
+			{
+				case OP_END:
+					return;
+				case OP_EXECUTE:
+					_elements[operand].execute(datamodel, fsm);
+					break;
+				case OP_RAISE:
+					datamodel.global()._internalQueue.enqueue(_events[operand]);
+					break;
+				case OP_EVALUATE:
+					datamodel.execute(fsm, _expressions[operand]);
+					break;
+				case OP_LOG:
+					datamodel.log(_labels[operand], datamodel.execute(fsm, _expressions[operand]));
+					break;
+				case OP_BRANCH_FALSE:
+				{
+					final int offset = code[pc++];
+					if (!If.evaluate(datamodel, fsm, _expressions[operand]))
+						pc += offset;
+					break;
+				}
+				case OP_JUMP:
+					pc += operand;
+					break;
+				default:
+					throw new IllegalStateException("Illegal instruction " + instruction);
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of ints of the instruction stream.
+	 *
+	 * @return The length.
+	 */
+	public int getLength()
+	{
+		return _code.length;
+	}
+
+	/**
+	 * Creates the instruction stream.
+	 */
+	private static final class Builder
+	{
+		int[] _code = new int[16];
+		int _size;
+		final ArrayList<ExecutableContent> _elements = new ArrayList<>();
+		final ArrayList<Event> _events = new ArrayList<>();
+		final ArrayList<Expression> _expressions = new ArrayList<>();
+
+		/**
+		 * Labels of {@link #OP_LOG}, same index as the expression.
+		 */
+		final ArrayList<String> _labels = new ArrayList<>();
+
+		void compile(ExecutableContent content)
+		{
+			if (content == null)
+				return;
+			if (content instanceof Block)
+			{
+				for (ExecutableContent element : ((Block) content).content)
+					compile(element);
+			}
+			else if (content instanceof If)
+				compileIf((If) content);
+			else if (content instanceof Raise)
+				emit(OP_RAISE, add(_events, ((Raise) content).event));
+			else if (content instanceof Assign && ((Assign) content).compiledAssignment != null)
+				emit(OP_EVALUATE, addExpression(((Assign) content).compiledAssignment, null));
+			else if (content instanceof Script && ((Script) content).compiledSource != null)
+				emit(OP_EVALUATE, addExpression(((Script) content).compiledSource, null));
+			else if (content instanceof Log && ((Log) content).compiledExpression != null)
+				emit(OP_LOG, addExpression(((Log) content).compiledExpression, ((Log) content).label));
+			else
+				emit(OP_EXECUTE, add(_elements, content));
+		}
+
+		/**
+		 * An &lt;elseif&gt; ladder is compiled in a loop. All branches jump to the same end.
+		 */
+		private void compileIf(If ifC)
+		{
+			final ArrayList<Integer> jumpsToEnd = new ArrayList<>();
+			ExecutableContent next = ifC;
+			while (next instanceof If)
+			{
+				final If current = (If) next;
+				if (current.compiledCondition == null)
+				{
+					// Not compiled by the datamodel, let the element evaluate the source.
+					emit(OP_EXECUTE, add(_elements, current));
+					next = null;
+					break;
+				}
+				emit(OP_BRANCH_FALSE, addExpression(current.compiledCondition, null));
+				final int branch = _size;
+				emitWord(0);
+				compile(current.content);
+				next = current.elseContent;
+				if (next != null)
+				{
+					jumpsToEnd.add(_size);
+					emit(OP_JUMP, 0);
+				}
+				_code[branch] = _size - (branch + 1);
+			}
+			compile(next);
+			for (int jump : jumpsToEnd)
+				_code[jump] = ((_size - (jump + 1)) << OPERAND_SHIFT) | OP_JUMP;
+		}
+
+		private <T> int add(ArrayList<T> constants, T value)
+		{
+			constants.add(value);
+			return constants.size() - 1;
+		}
+
+		private int addExpression(Expression expression, String label)
+		{
+			_labels.add(label);
+			return add(_expressions, expression);
+		}
+
+		void emit(int opcode, int operand)
+		{
+			if (operand > MAX_OPERAND)
+				throw new IllegalStateException("Content too large");
+			emitWord((operand << OPERAND_SHIFT) | opcode);
+		}
+
+		private void emitWord(int word)
+		{
+			if (_size == _code.length)
+				_code = Arrays.copyOf(_code, _size * 2);
+			_code[_size++] = word;
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package com.bw.modelthings.fsm.runtime;
+
+import com.bw.modelthings.fsm.model.Datamodel;
+import com.bw.modelthings.fsm.model.EcmaScriptDatamodel;
+import com.bw.modelthings.fsm.model.JavaDatamodel;
+import com.bw.modelthings.fsm.model.NullDatamodel;
+import com.bw.modelthings.fsm.model.XPathDatamodel;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Creates datamodel instances by the name given in the "datamodel" attribute of &lt;scxml&gt;.<br>
+ * Names are case-insensitive. A missing or empty name selects the Null datamodel.
+ */
+public final class DatamodelFactory
+{
+	/**
+	 * Name of the Null datamodel.
+	 */
+	public static final String NULL_DATAMODEL = "null";
+
+	private static final Map<String, Supplier<Datamodel>> _factories = new HashMap<>();
+
+	static
+	{
+		register(NULL_DATAMODEL, NullDatamodel::new);
+		register(XPathDatamodel.NAME, XPathDatamodel::new);
+		if (EcmaScriptDatamodel.isSupported())
+			register(EcmaScriptDatamodel.NAME, EcmaScriptDatamodel::new);
+		if (JavaDatamodel.isSupported())
+			register(JavaDatamodel.NAME, JavaDatamodel::new);
+	}
+
+	private DatamodelFactory()
+	{
+	}
+
+	/**
+	 * Registers a datamodel. A previous registration with the same name is replaced.
+	 *
+	 * @param name    The name of the datamodel.
+	 * @param factory The factory that creates a new datamodel instance for each call.
+	 */
+	public static synchronized void register(String name, Supplier<Datamodel> factory)
+	{
+		_factories.put(name.toLowerCase(Locale.ROOT), factory);
+	}
+
+	/**
+	 * Checks if a datamodel is supported.
+	 *
+	 * @param name The name of the datamodel, can be null.
+	 * @return true if a datamodel with this name is registered.
+	 */
+	public static synchronized boolean isSupported(String name)
+	{
+		return _factories.containsKey(normalize(name));
+	}
+
+	/**
+	 * Creates a new datamodel instance.
+	 *
+	 * @param name The name of the datamodel, can be null.
+	 * @return The new datamodel.
+	 * @throws CompilerException If the datamodel is not supported.
+	 */
+	public static Datamodel create(String name) throws CompilerException
+	{
+		return getFactory(name).get();
+	}
+
+	/**
+	 * Gets the factory of a datamodel, e.g. to create the datamodels of many sessions without lookup.
+	 *
+	 * @param name The name of the datamodel, can be null.
+	 * @return The factory.
+	 * @throws CompilerException If the datamodel is not supported.
+	 */
+	public static synchronized Supplier<Datamodel> getFactory(String name) throws CompilerException
+	{
+		Supplier<Datamodel> factory = _factories.get(normalize(name));
+		if (factory == null)
+			throw new CompilerException(String.format("Unsupported datamodel '%s'", name));
+		return factory;
+	}
+
+	private static String normalize(String name)
+	{
+		return (name == null || name.isEmpty()) ? NULL_DATAMODEL : name.toLowerCase(Locale.ROOT);
+	}
+}
@@ -0,0 +1,422 @@
+package com.bw.modelthings.fsm.runtime;
+
+import com.bw.modelthings.fsm.model.BinaryCodec;
+import com.bw.modelthings.fsm.model.BlockingQueue;
+import com.bw.modelthings.fsm.model.Event;
+import com.bw.modelthings.fsm.model.EventSymbols;
+import com.bw.modelthings.fsm.model.GlobalData;
+import com.bw.modelthings.fsm.model.ScheduledEvent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only journal of the external events that a session processes, for crash recovery.<br>
+ * The journal is a directory of segment files of fixed size. Each segment is memory-mapped, so appending an event is a
+ * copy into memory and doesn't need a system call. The operating system writes the pages back, {@link #sync()} forces
+ * them to the device. If a segment is full, the next one is created and mapped.<br>
+ * Each segment starts with a header, followed by records of a length, a CRC-32C checksum and the event encoded by
+ * {@link BinaryCodec#writeEvent(java.io.DataOutput, Event)}. A length of 0 marks the end, as new segments are filled with
+ * zeros. Segment files are named by the position of their first record, the position is the number of records before.<br>
+ * The length of a record is written last. As the operating system may write the pages of a segment in any order,
+ * a crash can still leave an incomplete record at the end, which is detected by the checksum. Such a record was never
+ * completely appended: {@link #open(Path, int)} overwrites it and {@link #replay(Path, long, Interpreter)} stops
+ * before it.<br>
+ * Recovery: restore the last snapshot (see {@link Interpreter#writeSnapshot(java.io.DataOutput)}), together with
+ * the position of the journal at the time of the snapshot, then {@link #replay(Path, long, Interpreter)} the following events.
+ * Not thread-safe, appended only by the thread that processes the events.
+ */
+public final class EventJournal implements AutoCloseable
+{
+	/**
+	 * Logger for this class.
+	 */
+	protected final static Logger LOG = Logger.getLogger(EventJournal.class.getName());
+
+	/**
+	 * Default size of segments.
+	 */
+	public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * Minimal size of segments.
+	 */
+	public static final int MIN_SEGMENT_SIZE = 64 * 1024;
+
+	private static final int SEGMENT_MAGIC = 0x53435841;
+	private static final int SEGMENT_VERSION = 2;
+	private static final int HEADER_SIZE = 8;
+
+	/**
+	 * Length and checksum before the event of each record.
+	 */
+	private static final int RECORD_OVERHEAD = 8;
+
+	/**
+	 * Result of {@link #nextRecord(MappedByteBuffer, CRC32C)} for an incomplete record.
+	 */
+	private static final int INCOMPLETE = -1;
+	private static final String SEGMENT_SUFFIX = ".journal";
+
+	private final Path _directory;
+	private final int _segmentSize;
+
+	/**
+	 * The current segment, null if closed.
+	 */
+	private MappedByteBuffer _segment;
+
+	/**
+	 * Number of records appended before.
+	 */
+	private long _position;
+
+	/**
+	 * Buffer for encoding, reused for all events.
+	 */
+	private final RecordBuffer _record = new RecordBuffer();
+	private final DataOutputStream _recordOut = new DataOutputStream(_record);
+	private final CRC32C _crc = new CRC32C();
+
+	/**
+	 * Byte buffer that exposes its array.
+	 */
+	private static final class RecordBuffer extends ByteArrayOutputStream
+	{
+		RecordBuffer()
+		{
+			super(256);
+		}
+
+		byte[] array()
+		{
+			return buf;
+		}
+	}
+
+	private EventJournal(Path directory, int segmentSize)
+	{
+		_directory = directory;
+		_segmentSize = segmentSize;
+	}
+
+	/**
+	 * Opens a journal. Appends after the last record of an existing journal.
+	 *
+	 * @param directory   The directory of the segments, created if needed.
+	 * @param segmentSize The size of a segment file in bytes, at least {@link #MIN_SEGMENT_SIZE}.
+	 * @return The journal.
+	 * @throws IOException If the directory or a segment can't be accessed.
+	 */
+	public static EventJournal open(Path directory, int segmentSize) throws IOException
+	{
+		if (segmentSize < MIN_SEGMENT_SIZE)
+			throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+		Files.createDirectories(directory);
+		EventJournal journal = new EventJournal(directory, segmentSize);
+		final ArrayList<Path> segments = segments(directory);
+		if (segments.isEmpty())
+			journal.map(0);
+		else
+		{
+			final Path last = segments.get(segments.size() - 1);
+			journal._position = firstPosition(last);
+			journal._segment = map(last, Math.max(segmentSize, (int) Files.size(last)));
+			checkHeader(journal._segment, last);
+			int length;
+			while ((length = nextRecord(journal._segment, journal._crc)) > 0)
+				++journal._position;
+			if (length == INCOMPLETE)
+			{
+				LOG.warning(String.format("%s ends with an incomplete record at position %d, it is overwritten", last, journal._position));
+				// Clears the remains, so they can't be taken for records that are appended later.
+				final MappedByteBuffer segment = journal._segment;
+				for (int i = segment.position(), n = segment.limit(); i < n; ++i)
+					segment.put(i, (byte) 0);
+			}
+		}
+		return journal;
+	}
+
+	/**
+	 * Opens a journal with segments of {@link #DEFAULT_SEGMENT_SIZE}.
+	 *
+	 * @param directory The directory of the segments, created if needed.
+	 * @return The journal.
+	 * @throws IOException If the directory or a segment can't be accessed.
+	 */
+	public static EventJournal open(Path directory) throws IOException
+	{
+		return open(directory, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Gets the position of the next record, i.e. the number of records in the journal.
+	 *
+	 * @return The position.
+	 */
+	public long getPosition()
+	{
+		return _position;
+	}
+
+	/**
+	 * Appends an event.
+	 *
+	 * @param event The event.
+	 * @throws UncheckedIOException If a new segment can't be created.
+	 */
+	public void append(Event event)
+	{
+		try
+		{
+			_record.reset();
+			BinaryCodec.writeEvent(_recordOut, event);
+			final int length = _record.size();
+			if (length > _segmentSize - HEADER_SIZE - RECORD_OVERHEAD)
+				throw new IOException(String.format("Event '%s' is larger than a segment", event._name));
+			if (_segment.remaining() < length + RECORD_OVERHEAD)
+			{
+				_segment.force();
+				map(_position);
+			}
+			_crc.reset();
+			_crc.update(_record.array(), 0, length);
+			final int start = _segment.position();
+			_segment.putInt(start + 4, (int) _crc.getValue());
+			_segment.put(start + RECORD_OVERHEAD, _record.array(), 0, length);
+			// The length is written last, the record is complete when it becomes visible.
+			_segment.putInt(start, length);
+			_segment.position(start + RECORD_OVERHEAD + length);
+			++_position;
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Writes the appended records to the storage device.
+	 */
+	public void sync()
+	{
+		if (_segment != null)
+			_segment.force();
+	}
+
+	/**
+	 * Deletes the segments that only contain records before a position, e.g. after a snapshot.
+	 *
+	 * @param position The first position that is still needed.
+	 * @throws IOException If a file can't be deleted.
+	 */
+	public void deleteBefore(long position) throws IOException
+	{
+		final ArrayList<Path> segments = segments(_directory);
+		for (int i = 0; i + 1 < segments.size() && firstPosition(segments.get(i + 1)) <= position; ++i)
+			Files.delete(segments.get(i));
+	}
+
+	/**
+	 * Syncs and closes the journal.
+	 */
+	@Override
+	public void close()
+	{
+		sync();
+		_segment = null;
+	}
+
+	/**
+	 * Replays the events of a journal into a session. The session has to be started or restored from a snapshot
+	 * taken at position "from", it must not use a journal itself.<br>
+	 * Events that the session sends to itself during the replay are discarded, as they are part of the journal.
+	 * A replayed delayed event cancels the pending send with the same send-id and name. Sends that are still pending at the end
+	 * are scheduled with their full delay.<br>
+	 * An incomplete record at the end of the journal is not replayed.<br>
+	 * Must be called before other components can send events to the session.
+	 *
+	 * @param directory   The directory of the journal.
+	 * @param from        The position of the first record to replay.
+	 * @param interpreter The session.
+	 * @return The position after the last replayed record.
+	 * @throws IOException If reading fails or a segment is corrupt.
+	 */
+	public static long replay(Path directory, long from, Interpreter interpreter) throws IOException
+	{
+		if (interpreter.getJournal() != null)
+			throw new IllegalStateException("Session of replay must not use a journal");
+		final GlobalData global = interpreter.getDatamodel()
+											 .global();
+		final EventSymbols symbols = interpreter.getMachine()._fsm._eventSymbols;
+		final BlockingQueue<Event> queue = global._externalQueue;
+		final CRC32C crc = new CRC32C();
+		final ArrayList<Path> segments = segments(directory);
+		long position = from;
+		for (int s = 0; s < segments.size(); ++s)
+		{
+			final Path segment = segments.get(s);
+			long first = firstPosition(segment);
+			if (first > position)
+				throw new IOException(String.format("Journal has no record %d", position));
+			final MappedByteBuffer buffer = map(segment, (int) Files.size(segment));
+			checkHeader(buffer, segment);
+			int length;
+			for (length = nextRecord(buffer, crc); length > 0; length = nextRecord(buffer, crc), ++first)
+			{
+				if (first < position)
+					continue;
+				final byte[] record = new byte[length];
+				buffer.get(buffer.position() - length, record);
+				final Event event = BinaryCodec.readEvent(new DataInputStream(new ByteArrayInputStream(record)), symbols);
+				if (event._sendId != null)
+				{
+					final ScheduledEvent pending = findPendingSend(global, event);
+					if (pending != null)
+					{
+						global._pendingSends.remove(pending);
+						global._scheduler.cancel(pending);
+					}
+				}
+				interpreter.processExternalEvent(event);
+				while (queue.poll() != null)
+				{
+					// Discard, the events are part of the journal.
+				}
+				++position;
+			}
+			if (length == INCOMPLETE)
+			{
+				// Only the last record can be incomplete, a new segment is created after the previous was forced.
+				if (s + 1 < segments.size())
+					throw new IOException(String.format("Corrupt journal record at %d in %s", buffer.position(), segment));
+				LOG.warning(String.format("%s ends with an incomplete record at position %d, it is not replayed", segment, first));
+			}
+		}
+		if (LOG.isLoggable(Level.FINE))
+			LOG.fine(String.format("Replayed %d events from %s", position - from, directory));
+		return position;
+	}
+
+	/**
+	 * Finds the pending send of a replayed delayed event. Sends that are repeated during the replay get new generated
+	 * ids, so an event with a generated id matches the first pending send with a generated id and the same name.
+	 *
+	 * @param global The data of the session.
+	 * @param event  The replayed event.
+	 * @return The handle or null.
+	 */
+	private static ScheduledEvent findPendingSend(GlobalData global, Event event)
+	{
+		final String generatedPrefix = global._sessionId + ".";
+		ScheduledEvent generated = null;
+		for (ScheduledEvent pending : global._pendingSends.toArray())
+		{
+			final Event e = pending.getEvent();
+			if (e._name.equals(event._name))
+			{
+				if (event._sendId.equals(e._sendId))
+					return pending;
+				if (generated == null && e._sendId != null && e._sendId.startsWith(generatedPrefix) && event._sendId.startsWith(generatedPrefix))
+					generated = pending;
+			}
+		}
+		return generated;
+	}
+
+	/**
+	 * Creates and maps a new segment.
+	 */
+	private void map(long firstPosition) throws IOException
+	{
+		final Path path = _directory.resolve(String.format("%019d%s", firstPosition, SEGMENT_SUFFIX));
+		_segment = map(path, _segmentSize);
+		_segment.putInt(SEGMENT_MAGIC);
+		_segment.putInt(SEGMENT_VERSION);
+	}
+
+	private static MappedByteBuffer map(Path path, int size) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE))
+		{
+			// The mapping stays valid after the channel is closed.
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+	}
+
+	private static void checkHeader(MappedByteBuffer buffer, Path path) throws IOException
+	{
+		if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != SEGMENT_MAGIC || buffer.getInt() != SEGMENT_VERSION)
+			throw new IOException(String.format("%s is not a journal segment", path));
+	}
+
+	/**
+	 * Skips the next record and verifies its checksum.
+	 *
+	 * @return The length of the record, the buffer is positioned after it. 0 at the end, {@link #INCOMPLETE} if the
+	 * record is not complete, the buffer is positioned at its start.
+	 */
+	private static int nextRecord(MappedByteBuffer buffer, CRC32C crc)
+	{
+		if (buffer.remaining() < RECORD_OVERHEAD)
+			return 0;
+		final int start = buffer.position();
+		final int length = buffer.getInt(start);
+		if (length == 0)
+			return 0;
+		if (length < 0 || length > buffer.remaining() - RECORD_OVERHEAD)
+			return INCOMPLETE;
+		crc.reset();
+		crc.update(buffer.slice(start + RECORD_OVERHEAD, length));
+		if ((int) crc.getValue() != buffer.getInt(start + 4))
+			return INCOMPLETE;
+		buffer.position(start + RECORD_OVERHEAD + length);
+		return length;
+	}
+
+	private static long firstPosition(Path segment) throws IOException
+	{
+		final String name = segment.getFileName()
+								   .toString();
+		try
+		{
+			return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IOException("Illegal segment name " + name, e);
+		}
+	}
+
+	/**
+	 * Gets the segments in order of position.
+	 */
+	private static ArrayList<Path> segments(Path directory) throws IOException
+	{
+		final ArrayList<Path> segments = new ArrayList<>();
+		try (Stream<Path> files = Files.list(directory))
+		{
+			files.filter(p -> p.getFileName()
+							   .toString()
+							   .endsWith(SEGMENT_SUFFIX))
+				 .sorted()
+				 .forEach(segments::add);
+		}
+		return segments;
+	}
+}
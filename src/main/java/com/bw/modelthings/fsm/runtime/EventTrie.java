@@ -0,0 +1,219 @@
+package com.bw.modelthings.fsm.runtime;
+
+import com.bw.modelthings.fsm.model.EventSymbols;
+
+import java.util.ArrayList;
+import java.util.TreeSet;
+
+/**
+ * Trie over the dot-separated tokens of the event descriptors of the transitions of one state.<br>
+ * <strong>W3C says:</strong><br>
+ * An event descriptor matches an event name if its string of tokens is an exact match or a prefix of the set of tokens in the event's name.
+ * In all cases, the token matching is case sensitive.<br>
+ * <strong>Actual Implementation:</strong><br>
+ * A descriptor matches all events whose token path passes its trie node. Each node stores the transitions of all descriptors
+ * on the path from the root (including "*"), sorted in document order. So matching is a walk along the tokens
+ * of the event name, the deepest node reached holds the result. Tokens are compared in place, the walk doesn't allocate.<br>
+ * For events with an interned symbol, the result of the walk is cached by symbol, so repeated events need no string compares.<br>
+ * Instances are thread-safe.
+ */
+public final class EventTrie
+{
+	private static final int[] NONE = new int[0];
+
+	/**
+	 * A node in the trie.
+	 */
+	private static final class Node
+	{
+		/**
+		 * Open addressing table of child tokens, null if node is a leaf.
+		 */
+		String[] _keys;
+
+		/**
+		 * Children, same index as {@link #_keys}.
+		 */
+		Node[] _children;
+
+		/**
+		 * Transitions that match all events that reach this node, in document order.
+		 */
+		int[] _matches = NONE;
+
+		/**
+		 * Transitions of descriptors that end at this node. Only used during build.
+		 */
+		TreeSet<Integer> _ending;
+
+		/**
+		 * Child tokens during build.
+		 */
+		ArrayList<String> _buildKeys;
+
+		/**
+		 * Children during build.
+		 */
+		ArrayList<Node> _buildChildren;
+	}
+
+	private final Node _root = new Node();
+
+	/**
+	 * Results by event symbol, filled on demand. Entries are only set to arrays of the immutable nodes,
+	 * so concurrent threads may fill the same slot without harm.
+	 */
+	private final int[][] _bySymbol;
+
+	/**
+	 * Creates a trie for the given transitions.
+	 *
+	 * @param transitions The transition indices in document order.
+	 * @param descriptors The normalized descriptors of each transition, indexed by transition index.
+	 * See {@link CompiledMachine#_transitionEvents}.
+	 * @param symbolCount Number of interned event symbols to cache results for.
+	 */
+	public EventTrie(int[] transitions, String[][] descriptors, int symbolCount)
+	{
+		_bySymbol = new int[symbolCount][];
+		for (int t : transitions)
+		{
+			for (String descriptor : descriptors[t])
+				insert(descriptor, t);
+		}
+		finish(_root, NONE);
+	}
+
+	private void insert(String descriptor, int transition)
+	{
+		Node node = _root;
+		if (!"*".equals(descriptor))
+		{
+			int start = 0;
+			while (start <= descriptor.length())
+			{
+				int end = descriptor.indexOf('.', start);
+				if (end < 0)
+					end = descriptor.length();
+				node = buildChild(node, descriptor.substring(start, end));
+				start = end + 1;
+			}
+		}
+		if (node._ending == null)
+			node._ending = new TreeSet<>();
+		node._ending.add(transition);
+	}
+
+	private static Node buildChild(Node node, String token)
+	{
+		if (node._buildKeys == null)
+		{
+			node._buildKeys = new ArrayList<>();
+			node._buildChildren = new ArrayList<>();
+		}
+		int i = node._buildKeys.indexOf(token);
+		if (i >= 0)
+			return node._buildChildren.get(i);
+		Node child = new Node();
+		node._buildKeys.add(token);
+		node._buildChildren.add(child);
+		return child;
+	}
+
+	private static void finish(Node node, int[] inherited)
+	{
+		if (node._ending != null)
+		{
+			TreeSet<Integer> all = new TreeSet<>(node._ending);
+			for (int t : inherited)
+				all.add(t);
+			node._matches = all.stream()
+							   .mapToInt(Integer::intValue)
+							   .toArray();
+			node._ending = null;
+		}
+		else
+			node._matches = inherited;
+
+		if (node._buildKeys != null)
+		{
+			final int n = node._buildKeys.size();
+			int capacity = Integer.highestOneBit(n * 2 + 1) << 1;
+			node._keys = new String[capacity];
+			node._children = new Node[capacity];
+			for (int i = 0; i < n; ++i)
+			{
+				String key = node._buildKeys.get(i);
+				int slot = key.hashCode() & (capacity - 1);
+				while (node._keys[slot] != null)
+					slot = (slot + 1) & (capacity - 1);
+				node._keys[slot] = key;
+				node._children[slot] = node._buildChildren.get(i);
+				finish(node._children[slot], node._matches);
+			}
+			node._buildKeys = null;
+			node._buildChildren = null;
+		}
+	}
+
+	/**
+	 * Get all transitions with a descriptor that matches the event.
+	 *
+	 * @param eventName The name of the event.
+	 * @param symbol    The symbol of the name or {@link EventSymbols#NO_SYMBOL}.
+	 * @return The transition indices in document order. Never null. The caller must not modify the array.
+	 */
+	public int[] match(String eventName, int symbol)
+	{
+		if (symbol >= 0 && symbol < _bySymbol.length)
+		{
+			int[] matches = _bySymbol[symbol];
+			if (matches == null)
+				_bySymbol[symbol] = matches = match(eventName);
+			return matches;
+		}
+		return match(eventName);
+	}
+
+	/**
+	 * Get all transitions with a descriptor that matches the event name.
+	 *
+	 * @param eventName The name of the event.
+	 * @return The transition indices in document order. Never null. The caller must not modify the array.
+	 */
+	public int[] match(String eventName)
+	{
+		Node node = _root;
+		final int length = eventName.length();
+		int start = 0;
+		while (node._keys != null && start <= length)
+		{
+			int end = eventName.indexOf('.', start);
+			if (end < 0)
+				end = length;
+			Node child = findChild(node, eventName, start, end);
+			if (child == null)
+				break;
+			node = child;
+			start = end + 1;
+		}
+		return node._matches;
+	}
+
+	private static Node findChild(Node node, String name, int start, int end)
+	{
+		int hash = 0;
+		for (int i = start; i < end; ++i)
+			hash = 31 * hash + name.charAt(i);
+		final String[] keys = node._keys;
+		final int mask = keys.length - 1;
+		final int length = end - start;
+		for (int slot = hash & mask; keys[slot] != null; slot = (slot + 1) & mask)
+		{
+			String key = keys[slot];
+			if (key.length() == length && key.regionMatches(0, name, start, length))
+				return node._children[slot];
+		}
+		return null;
+	}
+}
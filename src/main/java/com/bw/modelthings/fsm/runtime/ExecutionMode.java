@@ -0,0 +1,30 @@
+package com.bw.modelthings.fsm.runtime;
+
+/**
+ * How a {@link SessionExecutor} runs the event loops of sessions.
+ */
+public enum ExecutionMode
+{
+	/**
+	 * Each session runs {@link Interpreter#mainEventLoop()} on its own platform thread.
+	 * Limited to some thousand sessions.
+	 */
+	platformThread,
+
+	/**
+	 * Each session runs {@link Interpreter#mainEventLoop()} on its own virtual thread (Java 21 and later).
+	 * Idle sessions are parked in the external queue and don't occupy a carrier thread.
+	 */
+	virtualThread,
+
+	/**
+	 * Sessions have no thread. A session is scheduled on a fixed pool of carrier threads if events arrive
+	 * and processes the queued events in batches.
+	 */
+	pooled,
+
+	/**
+	 * Sessions have no thread. They are executed by the thread that drives a {@link Simulation}.
+	 */
+	simulated
+}
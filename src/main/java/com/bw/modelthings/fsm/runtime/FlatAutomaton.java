@@ -0,0 +1,714 @@
+package com.bw.modelthings.fsm.runtime;
+
+import com.bw.modelthings.fsm.model.BlockingQueue;
+import com.bw.modelthings.fsm.model.Datamodel;
+import com.bw.modelthings.fsm.model.Event;
+import com.bw.modelthings.fsm.model.EventScheduler;
+import com.bw.modelthings.fsm.model.EventSymbols;
+import com.bw.modelthings.fsm.model.EventType;
+import com.bw.modelthings.fsm.model.ExecutableContent;
+import com.bw.modelthings.fsm.model.GlobalData;
+import com.bw.modelthings.fsm.model.NullDatamodel;
+import com.bw.modelthings.fsm.model.ScheduledEvent;
+import com.bw.modelthings.fsm.model.State;
+import com.bw.modelthings.fsm.model.StateSet;
+import com.bw.modelthings.fsm.model.Transition;
+import com.bw.modelthings.fsm.model.executablecontent.Assign;
+import com.bw.modelthings.fsm.model.executablecontent.Block;
+import com.bw.modelthings.fsm.model.executablecontent.Cancel;
+import com.bw.modelthings.fsm.model.executablecontent.If;
+import com.bw.modelthings.fsm.model.executablecontent.Log;
+import com.bw.modelthings.fsm.model.executablecontent.Raise;
+import com.bw.modelthings.fsm.model.executablecontent.Script;
+import com.bw.modelthings.fsm.model.executablecontent.Send;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Flat transition table of a state machine with the null datamodel.<br>
+ * With the null datamodel the behaviour of a session depends only on the configuration, the recorded history and the
+ * event: conditions can only test the configuration ("In") and executable content has no data to change.
+ * So the statechart can be flattened to a deterministic automaton. Each flat state ("configuration") is one reachable
+ * combination of configuration and history, each column one class of external events (all events that match the same
+ * event descriptors behave the same).<br>
+ * The table is built by running the {@link Interpreter} on each reachable configuration and event class, so the
+ * W3C semantics are preserved exactly. The observable actions of a step (external and delayed &lt;send&gt;, &lt;cancel&gt;,
+ * done-events to the caller) are recorded as action lists and replayed by the session. Internal events and eventless
+ * transitions are part of the step.<br>
+ * A step of a session is then a table lookup, see {@link Interpreter#processExternalEvent(Event)}.<br>
+ * Machines with other datamodels, &lt;invoke&gt;, unknown executable content or more reachable configurations than the
+ * limit are not flattened, they are executed by the interpreter.<br>
+ * Instances are immutable and shared by all sessions.
+ */
+public final class FlatAutomaton
+{
+	/**
+	 * Logger for this class.
+	 */
+	protected final static Logger LOG = Logger.getLogger(FlatAutomaton.class.getName());
+
+	/**
+	 * Default limit for the number of reachable configurations.
+	 */
+	public static final int DEFAULT_MAX_CONFIGURATIONS = 4096;
+
+	/**
+	 * Marker in the table for steps that terminate the session (top-level final state reached).
+	 */
+	public static final int TERMINATED = -1;
+
+	/**
+	 * Kind of action: Put the event into the external queue.
+	 */
+	static final byte ACTION_ENQUEUE = 0;
+
+	/**
+	 * Kind of action: Schedule a delayed event.
+	 */
+	static final byte ACTION_SCHEDULE = 1;
+
+	/**
+	 * Kind of action: Cancel a delayed event.
+	 */
+	static final byte ACTION_CANCEL = 2;
+
+	/**
+	 * Kind of action: Return the done-event of a top-level final state to the caller.
+	 */
+	static final byte ACTION_RETURN_DONE = 3;
+
+	/**
+	 * An observable action of a step.
+	 */
+	static final class Action
+	{
+		final byte _kind;
+
+		/**
+		 * Event name for enqueue and schedule.
+		 */
+		final String _event;
+
+		/**
+		 * Symbol of {@link #_event}.
+		 */
+		final int _symbol;
+
+		/**
+		 * The explicit send-id for schedule and cancel, null if the id is generated.
+		 */
+		final String _sendId;
+
+		/**
+		 * Delay for schedule.
+		 */
+		final long _delayMillis;
+
+		/**
+		 * The final state for return-done.
+		 */
+		final int _state;
+
+		Action(byte kind, String event, int symbol, String sendId, long delayMillis, int state)
+		{
+			_kind = kind;
+			_event = event;
+			_symbol = symbol;
+			_sendId = sendId;
+			_delayMillis = delayMillis;
+			_state = state;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Action))
+				return false;
+			Action a = (Action) o;
+			return _kind == a._kind && _delayMillis == a._delayMillis && _state == a._state && Objects.equals(_event, a._event)
+					&& Objects.equals(_sendId, a._sendId);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return Objects.hash(_kind, _event, _sendId, _delayMillis, _state);
+		}
+	}
+
+	/**
+	 * Column of each event descriptor.
+	 */
+	private final HashMap<String, Integer> _descriptorColumn;
+
+	/**
+	 * Column by event symbol, for symbols that existed at build time.
+	 */
+	private final int[] _symbolColumn;
+
+	/**
+	 * Column of events that match no descriptor.
+	 */
+	private final int _noneColumn;
+
+	/**
+	 * Number of columns.
+	 */
+	final int _columns;
+
+	/**
+	 * The configuration of each flat state.
+	 */
+	final StateSet[] _configurations;
+
+	/**
+	 * The recorded history of each flat state.
+	 */
+	private final StateSet[][] _histories;
+
+	/**
+	 * The flat state by configuration and history.
+	 */
+	private final HashMap<Key, Integer> _ids;
+
+	private final CompiledMachine _machine;
+	private final int[] _historyStates;
+
+	/**
+	 * The flat state after start or {@link #TERMINATED}.
+	 */
+	final int _initial;
+
+	/**
+	 * Actions of the start.
+	 */
+	final Action[] _startActions;
+
+	/**
+	 * The next flat state by (flat state * columns + column).
+	 */
+	final int[] _next;
+
+	/**
+	 * The actions by (flat state * columns + column), null if there are none.
+	 */
+	final Action[][] _actions;
+
+	private FlatAutomaton(Builder builder)
+	{
+		_descriptorColumn = builder._descriptorColumn;
+		_noneColumn = builder._representatives.size() - 1;
+		_columns = builder._representatives.size();
+		_configurations = builder._configurations.toArray(new StateSet[0]);
+		_histories = builder._histories.toArray(new StateSet[0][]);
+		_ids = builder._ids;
+		_machine = builder._machine;
+		_historyStates = builder._historyStates;
+		_initial = builder._initial;
+		_startActions = builder._startActions;
+		_next = Arrays.copyOf(builder._next, _configurations.length * _columns);
+		_actions = Arrays.copyOf(builder._actions, _configurations.length * _columns);
+
+		final EventSymbols symbols = builder._machine._fsm._eventSymbols;
+		_symbolColumn = new int[symbols.size()];
+		for (int s = 0; s < _symbolColumn.length; ++s)
+			_symbolColumn[s] = columnOf(symbols.name(s));
+	}
+
+	/**
+	 * Builds the flat automaton of a machine.
+	 *
+	 * @param machine           The compiled machine.
+	 * @param maxConfigurations The maximal number of reachable configurations. 0 disables flattening.
+	 * @return The automaton or null if the machine can't be flattened or has too many configurations.
+	 */
+	public static FlatAutomaton compile(CompiledMachine machine, int maxConfigurations)
+	{
+		if (maxConfigurations <= 0 || !isFlattenable(machine))
+			return null;
+		final long start = System.nanoTime();
+		Builder builder = new Builder(machine);
+		if (!builder.build(maxConfigurations))
+		{
+			if (LOG.isLoggable(Level.FINE))
+				LOG.fine(String.format("'%s' has more than %d configurations, not flattened", machine._fsm._name, maxConfigurations));
+			return null;
+		}
+		FlatAutomaton flat = new FlatAutomaton(builder);
+		if (LOG.isLoggable(Level.FINE))
+			LOG.fine(String.format("Flattened '%s' to %d configurations x %d event classes in %d ms", machine._fsm._name,
+					flat._configurations.length, flat._columns, (System.nanoTime() - start) / 1000000));
+		return flat;
+	}
+
+	/**
+	 * Gets the number of flat states.
+	 *
+	 * @return The number of reachable configurations.
+	 */
+	public int getConfigurationCount()
+	{
+		return _configurations.length;
+	}
+
+	/**
+	 * Gets the recorded history of a flat state. The sets must not be modified.
+	 *
+	 * @param flatState The flat state.
+	 * @return The history values by history state index, null if not recorded.
+	 */
+	StateSet[] history(int flatState)
+	{
+		return _histories[flatState];
+	}
+
+	/**
+	 * Gets the flat state of a configuration and history, e.g. of a restored session.
+	 *
+	 * @param configuration The configuration.
+	 * @param history       The history values by history state index.
+	 * @return The flat state or {@link #TERMINATED} if the combination is not reachable.
+	 */
+	int indexOf(StateSet configuration, StateSet[] history)
+	{
+		Integer id = _ids.get(new Key(configuration, history, _historyStates));
+		return id == null ? TERMINATED : id;
+	}
+
+	/**
+	 * Gets the column of an event.
+	 *
+	 * @param event The event.
+	 * @return The column.
+	 */
+	int column(Event event)
+	{
+		final int symbol = event._symbol;
+		if (symbol >= 0 && symbol < _symbolColumn.length)
+			return _symbolColumn[symbol];
+		return columnOf(event._name);
+	}
+
+	/**
+	 * The events that match a descriptor d match all descriptors that are prefixes of d, so the class of an event is
+	 * given by the longest matching descriptor.
+	 */
+	private int columnOf(String name)
+	{
+		String prefix = name;
+		while (true)
+		{
+			Integer column = _descriptorColumn.get(prefix);
+			if (column != null)
+				return column;
+			final int dot = prefix.lastIndexOf('.');
+			if (dot < 0)
+				return _noneColumn;
+			prefix = prefix.substring(0, dot);
+		}
+	}
+
+	/**
+	 * Checks if the model can be flattened.
+	 */
+	private static boolean isFlattenable(CompiledMachine machine)
+	{
+		try
+		{
+			if (!(DatamodelFactory.create(machine._fsm._dataModel) instanceof NullDatamodel))
+				return false;
+		}
+		catch (CompilerException e)
+		{
+			return false;
+		}
+		if (machine._invokingStates.length > 0 || !isKnownContent(machine._fsm._script))
+			return false;
+		for (State s : machine._states)
+		{
+			if (s != null && !(isKnownContent(s._onEntry) && isKnownContent(s._onExit)))
+				return false;
+		}
+		for (Transition t : machine._transitions)
+		{
+			if (!isKnownContent(t._content))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Checks that the content has no other effects than these recorded by the builder.
+	 */
+	private static boolean isKnownContent(ExecutableContent content)
+	{
+		if (content == null || content instanceof Raise || content instanceof Log || content instanceof Assign || content instanceof Script
+				|| content instanceof Cancel)
+			return true;
+		if (content instanceof Send)
+		{
+			// Targets of other sessions depend on the invocations of the session.
+			final Send send = (Send) content;
+			return send.targetExpr == null && (send.target == null || Send.TARGET_INTERNAL.equals(send.target) || !send.target.startsWith("#_"));
+		}
+		if (content instanceof Block)
+		{
+			for (ExecutableContent c : ((Block) content).content)
+				if (!isKnownContent(c))
+					return false;
+			return true;
+		}
+		if (content instanceof If)
+			return isKnownContent(((If) content).content) && isKnownContent(((If) content).elseContent);
+		return false;
+	}
+
+	/**
+	 * Explores the reachable configurations with an interpreter.
+	 */
+	private static final class Builder implements EventScheduler
+	{
+		final CompiledMachine _machine;
+		final Explorer _explorer;
+		final GlobalData _global;
+
+		/**
+		 * The history states, their values are part of the flat state.
+		 */
+		final int[] _historyStates;
+
+		/**
+		 * Literal send-ids of all &lt;send&gt; elements. During exploration these ids are always pending,
+		 * so each &lt;cancel&gt; can be recorded.
+		 */
+		final Set<String> _sendIds = new HashSet<>();
+
+		/**
+		 * One event name per column, the last column is for events that match no descriptor.
+		 */
+		final ArrayList<String> _representatives = new ArrayList<>();
+		final HashMap<String, Integer> _descriptorColumn = new HashMap<>();
+
+		final HashMap<Key, Integer> _ids = new HashMap<>();
+		final ArrayList<StateSet> _configurations = new ArrayList<>();
+		final ArrayList<StateSet[]> _histories = new ArrayList<>();
+		final HashMap<ArrayList<Action>, Action[]> _actionLists = new HashMap<>();
+
+		int _initial;
+		Action[] _startActions;
+		int[] _next = new int[0];
+		Action[][] _actions = new Action[0][];
+
+		/**
+		 * The actions of the current step.
+		 */
+		final ArrayList<Action> _recorded = new ArrayList<>();
+
+		/**
+		 * Prefix of generated send-ids, to distinguish them from explicit ids.
+		 */
+		final String _generatedIdPrefix;
+
+		Builder(CompiledMachine machine)
+		{
+			_machine = machine;
+			NullDatamodel datamodel = new NullDatamodel();
+			_global = datamodel.global();
+			_global._scheduler = this;
+			_global._sessionId = "flat-" + System.identityHashCode(this);
+			_generatedIdPrefix = _global._sessionId + ".";
+			_explorer = new Explorer(machine, datamodel, this);
+
+			_historyStates = Arrays.stream(machine._states)
+								   .filter(s -> s != null && machine.isHistory(s._docId))
+								   .mapToInt(s -> s._docId)
+								   .toArray();
+			collectSendIds(machine._fsm._script);
+			for (State s : machine._states)
+			{
+				if (s != null)
+				{
+					collectSendIds(s._onEntry);
+					collectSendIds(s._onExit);
+				}
+			}
+			for (Transition t : machine._transitions)
+				collectSendIds(t._content);
+
+			for (int t = 0; t < machine._regularTransitionCount; ++t)
+			{
+				for (String descriptor : machine._transitionEvents[t])
+				{
+					if (!"*".equals(descriptor) && !_descriptorColumn.containsKey(descriptor))
+					{
+						_descriptorColumn.put(descriptor, _representatives.size());
+						_representatives.add(descriptor);
+					}
+				}
+			}
+			// A name that is not prefixed by any descriptor.
+			String none = "_";
+			while (_descriptorColumn.containsKey(none))
+				none += "_";
+			_representatives.add(none);
+		}
+
+		private void collectSendIds(ExecutableContent content)
+		{
+			if (content instanceof Send && ((Send) content).id != null)
+				_sendIds.add(((Send) content).id);
+			else if (content instanceof Block)
+				((Block) content).content.forEach(this::collectSendIds);
+			else if (content instanceof If)
+			{
+				collectSendIds(((If) content).content);
+				collectSendIds(((If) content).elseContent);
+			}
+		}
+
+		boolean build(int maxConfigurations)
+		{
+			resetStep();
+			_explorer.start();
+			_startActions = finishStep();
+			_initial = flatState();
+
+			final int columns = _representatives.size();
+			final EventSymbols symbols = _machine._fsm._eventSymbols;
+			ArrayDeque<Integer> open = new ArrayDeque<>();
+			if (_initial != TERMINATED)
+				open.add(_initial);
+			while (!open.isEmpty())
+			{
+				final int from = open.poll();
+				if (_configurations.size() > maxConfigurations)
+					return false;
+				ensureCapacity((from + 1) * columns);
+				for (int c = 0; c < columns; ++c)
+				{
+					restore(from);
+					resetStep();
+					final String name = _representatives.get(c);
+					_explorer.processExternalEvent(new Event(name, EventType.external, symbols.lookup(name)));
+					_actions[from * columns + c] = finishStep();
+					final int known = _configurations.size();
+					final int to = flatState();
+					_next[from * columns + c] = to;
+					if (to >= known)
+						open.add(to);
+				}
+			}
+			return _configurations.size() <= maxConfigurations;
+		}
+
+		private void ensureCapacity(int size)
+		{
+			if (_next.length < size)
+			{
+				final int newSize = Math.max(size, 2 * _next.length);
+				_next = Arrays.copyOf(_next, newSize);
+				_actions = Arrays.copyOf(_actions, newSize);
+			}
+		}
+
+		/**
+		 * Gets the id of the current flat state of the explorer, adds new states.
+		 */
+		private int flatState()
+		{
+			if (!_global._running)
+				return TERMINATED;
+			Key key = new Key(_global.configuration, _explorer._history, _historyStates);
+			Integer id = _ids.get(key);
+			if (id == null)
+			{
+				id = _configurations.size();
+				_ids.put(key, id);
+				StateSet configuration = new StateSet(_machine.getStateCount());
+				configuration.union(_global.configuration);
+				_configurations.add(configuration);
+				// The interpreter reuses its sets, store a copy.
+				final StateSet[] history = new StateSet[_explorer._history.length];
+				for (int h : _historyStates)
+					history[h] = copy(_explorer._history[h], null);
+				_histories.add(history);
+			}
+			return id;
+		}
+
+		private void restore(int flatState)
+		{
+			_global.configuration.clear();
+			_global.configuration.union(_configurations.get(flatState));
+			final StateSet[] history = _histories.get(flatState);
+			for (int h : _historyStates)
+				_explorer._history[h] = copy(history[h], _explorer._history[h]);
+			_global._running = true;
+		}
+
+		/**
+		 * Copies a history value into "to", or into a new set if "to" is null.
+		 */
+		private StateSet copy(StateSet from, StateSet to)
+		{
+			if (from == null)
+				return null;
+			if (to == null)
+				to = new StateSet(_machine.getStateCount());
+			else
+				to.clear();
+			to.union(from);
+			return to;
+		}
+
+		private void resetStep()
+		{
+			_recorded.clear();
+			_global._pendingSends.clear();
+			for (String id : _sendIds)
+			{
+				final Event e = new Event(id, EventType.external);
+				e._sendId = id;
+				_global._pendingSends.add(new Scheduled(e));
+			}
+		}
+
+		private Action[] finishStep()
+		{
+			for (Event e = _global._externalQueue.poll(); e != null; e = _global._externalQueue.poll())
+				_recorded.add(new Action(ACTION_ENQUEUE, e._name, e._symbol, explicitSendId(e), 0, -1));
+			if (_recorded.isEmpty())
+				return null;
+			// Steps have often the same actions, share the lists.
+			return _actionLists.computeIfAbsent(new ArrayList<>(_recorded), l -> l.toArray(new Action[0]));
+		}
+
+		/**
+		 * Gets the send-id of a sent event, null if the id was generated. Generated ids are created again on replay.
+		 */
+		private String explicitSendId(Event event)
+		{
+			return event._sendId != null && event._sendId.startsWith(_generatedIdPrefix) ? null : event._sendId;
+		}
+
+		@Override
+		public ScheduledEvent schedule(Event event, long delayMillis, BlockingQueue<Event> target, Consumer<ScheduledEvent> delivered)
+		{
+			_recorded.add(new Action(ACTION_SCHEDULE, event._name, event._symbol, explicitSendId(event), delayMillis, -1));
+			return new Scheduled(event);
+		}
+
+		@Override
+		public boolean cancel(ScheduledEvent scheduled)
+		{
+			// Only <cancel> cancels, a <send> doesn't replace a pending event with the same id.
+			// One <cancel> cancels all events with the id, the replayed action too, so it is recorded once.
+			final String id = scheduled.getEvent()._sendId;
+			final Action last = _recorded.isEmpty() ? null : _recorded.get(_recorded.size() - 1);
+			if (last == null || last._kind != ACTION_CANCEL || !id.equals(last._sendId))
+				_recorded.add(new Action(ACTION_CANCEL, null, EventSymbols.NO_SYMBOL, id, 0, -1));
+			return true;
+		}
+
+		void returnDone(State state)
+		{
+			_recorded.add(new Action(ACTION_RETURN_DONE, null, EventSymbols.NO_SYMBOL, null, 0, state._docId));
+		}
+	}
+
+	/**
+	 * Interpreter that reports the done-events to the caller as action.
+	 */
+	private static final class Explorer extends Interpreter
+	{
+		private final Builder _builder;
+
+		Explorer(CompiledMachine machine, Datamodel datamodel, Builder builder)
+		{
+			super(machine, datamodel, null);
+			_builder = builder;
+		}
+
+		@Override
+		protected void returnDoneEvent(State finalState)
+		{
+			_builder.returnDone(finalState);
+		}
+	}
+
+	/**
+	 * Scheduled event during exploration, never delivered.
+	 */
+	private static final class Scheduled implements ScheduledEvent
+	{
+		private final Event _event;
+
+		Scheduled(Event event)
+		{
+			_event = event;
+		}
+
+		@Override
+		public Event getEvent()
+		{
+			return _event;
+		}
+	}
+
+	/**
+	 * Key of a flat state: members of the configuration and the recorded history of each history state.
+	 */
+	private static final class Key
+	{
+		private final int[] _values;
+		private final int _hash;
+
+		Key(StateSet configuration, StateSet[] history, int[] historyStates)
+		{
+			int[] values = new int[configuration.size() + 1];
+			int i = 0;
+			for (int s = configuration.nextMember(0); s >= 0; s = configuration.nextMember(s + 1))
+				values[i++] = s;
+			values[i++] = -1;
+			for (int h : historyStates)
+			{
+				final StateSet value = history[h];
+				final int size = value == null ? 0 : value.size();
+				final int needed = i + 1 + size;
+				if (values.length < needed)
+					values = Arrays.copyOf(values, needed);
+				if (value == null)
+					values[i++] = -2;
+				else
+				{
+					values[i++] = size;
+					for (int s = value.nextMember(0); s >= 0; s = value.nextMember(s + 1))
+						values[i++] = s;
+				}
+			}
+			_values = Arrays.copyOf(values, i);
+			_hash = Arrays.hashCode(_values);
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			return o instanceof Key && Arrays.equals(_values, ((Key) o)._values);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return _hash;
+		}
+	}
+}
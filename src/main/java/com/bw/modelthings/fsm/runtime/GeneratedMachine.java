@@ -0,0 +1,1062 @@
+package com.bw.modelthings.fsm.runtime;
+
+import com.bw.modelthings.fsm.model.EventType;
+import com.bw.modelthings.fsm.model.EventVariable;
+import com.bw.modelthings.fsm.model.StateSet;
+import com.bw.modelthings.fsm.model.executablecontent.Send;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Base class of the state machines generated by {@link com.bw.modelthings.fsm.generator.JavaGenerator}.<br>
+ * Implements the W3C algorithm on the static {@link Tables} of the generated class. The generated class selects
+ * transitions by switch statements, evaluates conditions inline and executes the executable content as direct methods,
+ * so neither the model, the parser, a datamodel nor reflection is needed at runtime.<br>
+ * Events are plain names, event data is not supported.<br>
+ * Not thread-safe. The owner has to serialize all calls, e.g. by calling {@link #dispatch(String)} from one thread only.
+ */
+public abstract class GeneratedMachine
+{
+	/**
+	 * Logger for this class.
+	 */
+	protected final static Logger LOG = Logger.getLogger(GeneratedMachine.class.getName());
+
+	/**
+	 * The static tables of the generated class.
+	 */
+	private final Tables _tables;
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * The SCXML Processor must bind the variable _sessionid at load time to the system-generated id for the current
+	 * SCXML session.
+	 */
+	protected String _sessionid;
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * The SCXML Processor must bind the variable _name at load time to the value of the 'name' attribute of the &lt;scxml&gt; element.
+	 */
+	protected final String _name;
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * The SCXML Processor must use the variable '_event' to hold a structure containing the current event's properties.<br>
+	 * <strong>Actual Implementation:</strong><br>
+	 * Only name and type are set, as events are plain names. Null before the first event.
+	 */
+	protected EventVariable _event;
+
+	private final StateSet _configuration;
+	private final StateSet _entered;
+	private final StateSet _statesToExit;
+	private final StateSet _statesToEnter;
+	private final StateSet _statesForDefaultEntry;
+	private final StateSet _effectiveTargetSet;
+	private final int[] _defaultHistoryContent;
+	private final int[] _effectiveTargets;
+	private final int[] _enabled;
+	private final int[] _filtered;
+	private int _enabledCount;
+
+	/**
+	 * Recorded history by history state, null if nothing was recorded.
+	 */
+	private final int[][] _history;
+
+	private final ArrayDeque<String> _internalQueue = new ArrayDeque<>();
+	private final ArrayDeque<String> _externalQueue = new ArrayDeque<>();
+	private boolean _running;
+	private boolean _processing;
+
+	/**
+	 * Creates a new machine, not yet started.
+	 *
+	 * @param tables The static tables of the generated class.
+	 * @param name   The name of the state machine.
+	 */
+	protected GeneratedMachine(Tables tables, String name)
+	{
+		_tables = tables;
+		_name = name;
+		final int n = tables._kind.length;
+		final int tn = tables._transitionSource.length;
+		_configuration = new StateSet(n);
+		_entered = new StateSet(n);
+		_statesToExit = new StateSet(n);
+		_statesToEnter = new StateSet(n);
+		_statesForDefaultEntry = new StateSet(n);
+		_effectiveTargetSet = new StateSet(n);
+		_defaultHistoryContent = new int[n];
+		Arrays.fill(_defaultHistoryContent, -1);
+		_effectiveTargets = new int[n];
+		_enabled = new int[tn];
+		_filtered = new int[tn];
+		_history = new int[n][];
+	}
+
+	/**
+	 * Initializes the data, enters the initial configuration and processes all events that are raised on the way.
+	 *
+	 * @throws IllegalStateException If the machine was already started.
+	 */
+	public void start()
+	{
+		if (_running || !_entered.isEmpty())
+			throw new IllegalStateException("State machine was already started");
+		_processing = true;
+		try
+		{
+			_running = true;
+			if (_tables._lateBinding)
+				initializeDataSafe(_tables._root);
+			else
+			{
+				for (int s = 0; s < _tables._kind.length; ++s)
+				{
+					if (_tables._stateNames[s] != null)
+						initializeDataSafe(s);
+				}
+			}
+			try
+			{
+				executeScript();
+			}
+			catch (RuntimeException e)
+			{
+				raiseError(e);
+			}
+			_enabled[0] = _tables._initialTransition[_tables._root];
+			_enabledCount = 1;
+			enterStates();
+			macrostep();
+			processExternalQueue();
+		}
+		finally
+		{
+			_processing = false;
+		}
+	}
+
+	/**
+	 * Processes an external event and the following macrostep.<br>
+	 * If called from executable content of this machine, the event is only queued and processed after the current event.
+	 *
+	 * @param event The name of the event.
+	 * @return true if the machine is still running.
+	 */
+	public boolean dispatch(String event)
+	{
+		_externalQueue.add(event);
+		if (!_processing)
+		{
+			_processing = true;
+			try
+			{
+				processExternalQueue();
+			}
+			finally
+			{
+				_processing = false;
+			}
+		}
+		return _running;
+	}
+
+	/**
+	 * Stops the machine. All active states are exited.
+	 */
+	public void stop()
+	{
+		if (_running)
+			exitInterpreter();
+	}
+
+	/**
+	 * Checks if the machine is running.
+	 *
+	 * @return true if started and not yet in a top-level final state.
+	 */
+	public boolean isRunning()
+	{
+		return _running;
+	}
+
+	/**
+	 * Checks if a state is active.
+	 *
+	 * @param state The state constant of the generated class.
+	 * @return true if the state is part of the current configuration.
+	 */
+	public boolean isActive(int state)
+	{
+		return _configuration.isMember(state);
+	}
+
+	/**
+	 * Gets the ids of all active states in document order.
+	 *
+	 * @return The state ids.
+	 */
+	public List<String> getConfiguration()
+	{
+		ArrayList<String> result = new ArrayList<>();
+		for (int s = _configuration.nextMember(0); s >= 0; s = _configuration.nextMember(s + 1))
+			result.add(_tables._stateNames[s]);
+		return result;
+	}
+
+	/**
+	 * The "In" predicate for a state that was resolved by the generator.
+	 *
+	 * @param state The state constant.
+	 * @return true if the state is active.
+	 */
+	protected final boolean In(int state)
+	{
+		return _configuration.isMember(state);
+	}
+
+	/**
+	 * The "In" predicate for state ids that are computed at runtime.
+	 *
+	 * @param stateId The id of the state.
+	 * @return true if the state is active.
+	 */
+	protected final boolean In(String stateId)
+	{
+		for (int s = _configuration.nextMember(0); s >= 0; s = _configuration.nextMember(s + 1))
+		{
+			if (_tables._stateNames[s].equals(stateId))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Puts an event into the internal queue, used for &lt;raise&gt;.
+	 *
+	 * @param event The name of the event.
+	 */
+	protected final void raise(String event)
+	{
+		_internalQueue.add(event);
+	}
+
+	/**
+	 * Puts a "error.execution" event into the internal queue.
+	 *
+	 * @param e The exception that caused the error.
+	 */
+	protected void raiseError(RuntimeException e)
+	{
+		LOG.log(Level.FINE, e.getMessage(), e);
+		_internalQueue.add(CompiledMachine.EVENT_ERROR_EXECUTION);
+	}
+
+	/**
+	 * Implements &lt;send&gt;.<br>
+	 * <strong>Actual Implementation:</strong><br>
+	 * Same as in the interpreter: Events to "#_internal" go to the internal queue, events without target to the
+	 * external queue of this machine. Other targets result in "error.communication".
+	 * Delayed events are handed to {@link #schedule(String, String, long)}.
+	 *
+	 * @param sendId      The id of the send or null.
+	 * @param event       The event name.
+	 * @param type        The type of the send or null.
+	 * @param target      The target or null.
+	 * @param delayMillis The delay in milliseconds.
+	 */
+	protected void send(String sendId, String event, String type, String target, long delayMillis)
+	{
+		if (event == null || event.isEmpty())
+			throw new IllegalArgumentException("<send> without event");
+		if (type != null && !type.isEmpty() && !Send.TYPE_SCXML.equals(type) && !"scxml".equals(type))
+			throw new IllegalArgumentException(String.format("Unsupported <send> type '%s'", type));
+		if (Send.TARGET_INTERNAL.equals(target))
+		{
+			if (delayMillis > 0)
+				throw new IllegalArgumentException("Delayed <send> to #_internal is not supported");
+			_internalQueue.add(event);
+		}
+		else if (target != null && !target.isEmpty())
+			_internalQueue.add(Send.EVENT_ERROR_COMMUNICATION);
+		else if (delayMillis > 0)
+			schedule(sendId, event, delayMillis);
+		else
+			_externalQueue.add(event);
+	}
+
+	/**
+	 * Schedules a delayed event. The generated machines have no timer, owners that use delayed events have to
+	 * override this method and call {@link #dispatch(String)} when the delay elapsed.
+	 *
+	 * @param sendId      The id of the send or null.
+	 * @param event       The event name.
+	 * @param delayMillis The delay in milliseconds.
+	 */
+	protected void schedule(String sendId, String event, long delayMillis)
+	{
+		throw new UnsupportedOperationException("Delayed <send> needs an implementation of schedule");
+	}
+
+	/**
+	 * Implements &lt;cancel&gt;. Nothing is scheduled by default, so nothing is done.
+	 *
+	 * @param sendId The id of the send.
+	 */
+	protected void cancel(String sendId)
+	{
+		if (sendId == null)
+			throw new IllegalArgumentException("<cancel> without sendid");
+	}
+
+	/**
+	 * "log" function, use for &lt;log&gt; content.
+	 *
+	 * @param label The optional label.
+	 * @param msg   The message.
+	 */
+	protected void log(String label, String msg)
+	{
+		if (LOG.isLoggable(Level.INFO))
+			LOG.info(label == null || label.isEmpty() ? msg : label + ": " + msg);
+	}
+
+	/**
+	 * Converts a value to the string representation used for events, targets and log messages.
+	 *
+	 * @param value The value or null.
+	 * @return The string or null.
+	 */
+	protected static String str(Object value)
+	{
+		return value == null ? null : value.toString();
+	}
+
+	/**
+	 * Parses a delay as in the "delay" attribute of &lt;send&gt;.
+	 *
+	 * @param delay The delay.
+	 * @return The delay in milliseconds.
+	 */
+	protected static long parseDelay(String delay)
+	{
+		return Send.parseDelay(delay);
+	}
+
+	/**
+	 * Evaluates a condition that the datamodel doesn't support. Raises "error.execution", as the interpreter does.
+	 *
+	 * @param condition The source of the condition.
+	 * @return false.
+	 */
+	protected final boolean unsupportedCondition(String condition)
+	{
+		raiseError(new IllegalArgumentException(String.format("Condition '%s' is not supported by the Null datamodel", condition)));
+		return false;
+	}
+
+	/**
+	 * Signals unsupported executable content at runtime.
+	 *
+	 * @param message The message.
+	 */
+	protected static void unsupported(String message)
+	{
+		throw new IllegalArgumentException(message);
+	}
+
+	/**
+	 * Checks if an event descriptor matches an event name, see {@link CompiledMachine#descriptorMatch(String, String)}.
+	 *
+	 * @param event      The event name.
+	 * @param descriptor The normalized descriptor.
+	 * @return true if matching.
+	 */
+	protected static boolean matches(String event, String descriptor)
+	{
+		return CompiledMachine.descriptorMatch(descriptor, event);
+	}
+
+	/**
+	 * Selects the first enabled transition of an atomic state or its ancestors.<br>
+	 * Errors in conditions shall be reported by {@link #raiseError(RuntimeException)}, the condition is then false.
+	 *
+	 * @param state The atomic state.
+	 * @param event The event name or null for eventless transitions.
+	 * @return The transition index or -1.
+	 */
+	protected abstract int selectTransition(int state, String event);
+
+	/**
+	 * Executes the &lt;onentry&gt; content of a state.
+	 *
+	 * @param state The state.
+	 */
+	protected void onEntry(int state)
+	{
+	}
+
+	/**
+	 * Executes the &lt;onexit&gt; content of a state.
+	 *
+	 * @param state The state.
+	 */
+	protected void onExit(int state)
+	{
+	}
+
+	/**
+	 * Executes the content of a transition.
+	 *
+	 * @param transition The transition index.
+	 */
+	protected void onTransition(int transition)
+	{
+	}
+
+	/**
+	 * Initializes the data of a state.
+	 *
+	 * @param state The state.
+	 */
+	protected void initializeData(int state)
+	{
+	}
+
+	/**
+	 * Executes the global &lt;script&gt;.
+	 */
+	protected void executeScript()
+	{
+	}
+
+	private void initializeDataSafe(int state)
+	{
+		try
+		{
+			initializeData(state);
+		}
+		catch (RuntimeException e)
+		{
+			raiseError(e);
+		}
+	}
+
+	private void processExternalQueue()
+	{
+		String event;
+		while (_running && (event = _externalQueue.poll()) != null)
+		{
+			_event = new EventVariable(event, EventType.external);
+			selectTransitions(event);
+			if (_enabledCount > 0)
+				microstep();
+			macrostep();
+		}
+		if (!_running && !_configuration.isEmpty())
+			exitInterpreter();
+	}
+
+	private void macrostep()
+	{
+		while (_running)
+		{
+			selectTransitions(null);
+			if (_enabledCount == 0)
+			{
+				final String internalEvent = _internalQueue.poll();
+				if (internalEvent == null)
+					return;
+				_event = new EventVariable(internalEvent, internalEvent.startsWith("error.") ? EventType.platform : EventType.internal);
+				selectTransitions(internalEvent);
+			}
+			if (_enabledCount > 0)
+				microstep();
+		}
+	}
+
+	private void exitInterpreter()
+	{
+		for (int s = _configuration.previousMember(Integer.MAX_VALUE); s >= 0; s = _configuration.previousMember(s - 1))
+		{
+			executeOnExit(s);
+			_configuration.delete(s);
+		}
+		_running = false;
+		_internalQueue.clear();
+		_externalQueue.clear();
+	}
+
+	private void microstep()
+	{
+		exitStates();
+		for (int i = 0; i < _enabledCount; ++i)
+			executeTransition(_enabled[i]);
+		enterStates();
+	}
+
+	private void selectTransitions(String event)
+	{
+		_enabledCount = 0;
+		for (int state = _configuration.nextMember(0); state >= 0; state = _configuration.nextMember(state + 1))
+		{
+			if (_tables._kind[state] != CompiledMachine.KIND_ATOMIC)
+				continue;
+			final int t = selectTransition(state, event);
+			if (t >= 0 && !isEnabled(t))
+				_enabled[_enabledCount++] = t;
+		}
+		if (_enabledCount > 1)
+			removeConflictingTransitions();
+	}
+
+	private boolean isEnabled(int t)
+	{
+		for (int i = 0; i < _enabledCount; ++i)
+		{
+			if (_enabled[i] == t)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * See {@link Interpreter#removeConflictingTransitions()}.
+	 */
+	private void removeConflictingTransitions()
+	{
+		int filteredCount = 0;
+		for (int i = 0; i < _enabledCount; ++i)
+		{
+			final int t1 = _enabled[i];
+			final int d1 = getTransitionDomain(t1);
+			boolean t1Preempted = false;
+			for (int j = 0; j < filteredCount; ++j)
+			{
+				final int t2 = _filtered[j];
+				if (exitSetsIntersect(d1, getTransitionDomain(t2))
+						&& !_tables.isDescendant(_tables._transitionSource[t1], _tables._transitionSource[t2]))
+				{
+					t1Preempted = true;
+					break;
+				}
+			}
+			if (!t1Preempted)
+			{
+				int keep = 0;
+				for (int j = 0; j < filteredCount; ++j)
+				{
+					final int t2 = _filtered[j];
+					if (!exitSetsIntersect(d1, getTransitionDomain(t2)))
+						_filtered[keep++] = t2;
+				}
+				filteredCount = keep;
+				_filtered[filteredCount++] = t1;
+			}
+		}
+		System.arraycopy(_filtered, 0, _enabled, 0, filteredCount);
+		_enabledCount = filteredCount;
+	}
+
+	private boolean exitSetsIntersect(int domain1, int domain2)
+	{
+		if (domain1 < 0 || domain2 < 0)
+			return false;
+		final int from = Math.max(domain1, domain2) + 1;
+		final int to = Math.min(_tables._subtreeEnd[domain1], _tables._subtreeEnd[domain2]);
+		return _configuration.intersectsRange(from, to);
+	}
+
+	private void exitStates()
+	{
+		for (int i = 0; i < _enabledCount; ++i)
+		{
+			final int domain = getTransitionDomain(_enabled[i]);
+			if (domain < 0)
+				continue;
+			final int end = _tables._subtreeEnd[domain];
+			for (int s = _configuration.nextMember(domain + 1); s >= 0 && s < end; s = _configuration.nextMember(s + 1))
+				_statesToExit.add(s);
+		}
+		if (_statesToExit.isEmpty())
+			return;
+		for (int s = _statesToExit.previousMember(Integer.MAX_VALUE); s >= 0; s = _statesToExit.previousMember(s - 1))
+		{
+			for (int h : _tables._historyStates[s])
+				recordHistory(h, s);
+		}
+		for (int s = _statesToExit.previousMember(Integer.MAX_VALUE); s >= 0; s = _statesToExit.previousMember(s - 1))
+		{
+			executeOnExit(s);
+			_configuration.delete(s);
+		}
+		_statesToExit.clear();
+	}
+
+	private void recordHistory(int h, int s)
+	{
+		final boolean deep = _tables._deepHistory[h];
+		final int end = _tables._subtreeEnd[s];
+		int count = 0;
+		int[] value = _effectiveTargets;
+		for (int s0 = _configuration.nextMember(s + 1); s0 >= 0 && s0 < end; s0 = _configuration.nextMember(s0 + 1))
+		{
+			if (deep ? _tables._kind[s0] == CompiledMachine.KIND_ATOMIC : _tables._parent[s0] == s)
+				value[count++] = s0;
+		}
+		_history[h] = Arrays.copyOf(value, count);
+	}
+
+	private void enterStates()
+	{
+		for (int i = 0; i < _enabledCount; ++i)
+		{
+			final int t = _enabled[i];
+			final int[] entrySet = _tables._entrySet[t];
+			if (entrySet != null)
+			{
+				// Static entry set, pre-computed for transitions that don't depend on history.
+				for (int s : entrySet)
+					_statesToEnter.add(s);
+				for (int s : _tables._defaultEntrySet[t])
+					_statesForDefaultEntry.add(s);
+			}
+			else
+			{
+				for (int s : _tables._transitionTargets[t])
+					_tables.addDescendantStatesToEnter(s, _history, _statesToEnter, _statesForDefaultEntry, _defaultHistoryContent);
+				final int ancestor = getTransitionDomain(t);
+				final int count = getEffectiveTargetStates(t);
+				for (int k = 0; k < count; ++k)
+					_tables.addAncestorStatesToEnter(_effectiveTargets[k], ancestor, _history, _statesToEnter, _statesForDefaultEntry, _defaultHistoryContent);
+			}
+		}
+
+		for (int s = _statesToEnter.nextMember(0); s >= 0; s = _statesToEnter.nextMember(s + 1))
+		{
+			_configuration.add(s);
+			if (_tables._lateBinding && !_entered.isMember(s))
+				initializeDataSafe(s);
+			_entered.add(s);
+			try
+			{
+				onEntry(s);
+			}
+			catch (RuntimeException e)
+			{
+				raiseError(e);
+			}
+			if (_statesForDefaultEntry.isMember(s))
+				executeTransition(_tables._initialTransition[s]);
+			if (_defaultHistoryContent[s] >= 0)
+			{
+				executeTransition(_defaultHistoryContent[s]);
+				_defaultHistoryContent[s] = -1;
+			}
+			if (_tables._final[s])
+			{
+				final int parent = _tables._parent[s];
+				if (parent == _tables._root)
+					_running = false;
+				else
+				{
+					_internalQueue.add(_tables._doneEvent[parent]);
+					final int grandparent = _tables._parent[parent];
+					if (grandparent >= 0 && _tables._kind[grandparent] == CompiledMachine.KIND_PARALLEL)
+					{
+						boolean allFinal = true;
+						for (int child : _tables._children[grandparent])
+						{
+							if (!isInFinalState(child))
+							{
+								allFinal = false;
+								break;
+							}
+						}
+						if (allFinal)
+							_internalQueue.add(_tables._doneEvent[grandparent]);
+					}
+				}
+			}
+		}
+		_statesToEnter.clear();
+		_statesForDefaultEntry.clear();
+	}
+
+	private boolean isInFinalState(int s)
+	{
+		final byte kind = _tables._kind[s];
+		if (kind == CompiledMachine.KIND_COMPOUND)
+		{
+			for (int child : _tables._children[s])
+				if (_tables._final[child] && _configuration.isMember(child))
+					return true;
+			return false;
+		}
+		else if (kind == CompiledMachine.KIND_PARALLEL)
+		{
+			for (int child : _tables._children[s])
+				if (!isInFinalState(child))
+					return false;
+			return true;
+		}
+		return false;
+	}
+
+	private int getTransitionDomain(int t)
+	{
+		final int domain = _tables._transitionDomain[t];
+		if (domain != CompiledMachine.DYNAMIC_DOMAIN)
+			return domain;
+		return _tables.computeDomain(t, _effectiveTargets, getEffectiveTargetStates(t));
+	}
+
+	private int getEffectiveTargetStates(int t)
+	{
+		final int[] targets = _tables._transitionTargets[t];
+		if (_tables._transitionDomain[t] != CompiledMachine.DYNAMIC_DOMAIN)
+		{
+			System.arraycopy(targets, 0, _effectiveTargets, 0, targets.length);
+			return targets.length;
+		}
+		_effectiveTargetSet.clear();
+		addEffectiveTargetStates(t);
+		int count = 0;
+		for (int s = _effectiveTargetSet.nextMember(0); s >= 0; s = _effectiveTargetSet.nextMember(s + 1))
+			_effectiveTargets[count++] = s;
+		return count;
+	}
+
+	private void addEffectiveTargetStates(int t)
+	{
+		for (int s : _tables._transitionTargets[t])
+		{
+			if (_tables._kind[s] == CompiledMachine.KIND_HISTORY)
+			{
+				if (_history[s] != null)
+				{
+					for (int h : _history[s])
+						_effectiveTargetSet.add(h);
+				}
+				else if (_tables._initialTransition[s] >= 0)
+					addEffectiveTargetStates(_tables._initialTransition[s]);
+			}
+			else
+				_effectiveTargetSet.add(s);
+		}
+	}
+
+	private void executeOnExit(int s)
+	{
+		try
+		{
+			onExit(s);
+		}
+		catch (RuntimeException e)
+		{
+			raiseError(e);
+		}
+	}
+
+	private void executeTransition(int t)
+	{
+		try
+		{
+			onTransition(t);
+		}
+		catch (RuntimeException e)
+		{
+			raiseError(e);
+		}
+	}
+
+	/**
+	 * The static structure of a generated machine, shared by all instances of the class.<br>
+	 * The generator writes the primary tables, all other relations are derived once when the class is loaded,
+	 * including the entry sets of all transitions that don't depend on history.
+	 */
+	public static final class Tables
+	{
+		final int _root;
+		final String[] _stateNames;
+		final byte[] _kind;
+		final boolean[] _final;
+		final int[] _parent;
+		final boolean[] _deepHistory;
+		final int[] _initialTransition;
+		final int[] _transitionSource;
+		final int[][] _transitionTargets;
+		final int[] _transitionDomain;
+		final boolean[] _transitionInternal;
+		final boolean _lateBinding;
+
+		final int[][] _ancestors;
+		final int[] _subtreeEnd;
+		final int[][] _children;
+		final int[][] _historyStates;
+		final String[] _doneEvent;
+
+		/**
+		 * Sorted states to enter for each transition, null if the entry set depends on history.
+		 */
+		final int[][] _entrySet;
+
+		/**
+		 * States whose initial transition is taken, for each transition with {@link #_entrySet}.
+		 */
+		final int[][] _defaultEntrySet;
+
+		/**
+		 * Creates the tables. The indices are the document-ids of the states and the transition indices of the
+		 * {@link CompiledMachine}.
+		 *
+		 * @param root               Index of the root.
+		 * @param stateNames         The state ids, null for unused indices.
+		 * @param kind               The kind of each state, see CompiledMachine.KIND_XXX.
+		 * @param isFinal            True for final states.
+		 * @param parent             The parent of each state, -1 for the root and unused indices.
+		 * @param deepHistory        True for deep history states.
+		 * @param initialTransition  Initial transition of compound states, default transition of history states, -1 otherwise.
+		 * @param transitionSource   Source of each transition.
+		 * @param transitionTargets  Sorted targets of each transition.
+		 * @param transitionDomain   Pre-computed domain of each transition, see {@link CompiledMachine#_transitionDomain}.
+		 * @param transitionInternal True for transitions of type "internal".
+		 * @param lateBinding        True if data is initialized at first entry of a state.
+		 */
+		public Tables(int root, String[] stateNames, byte[] kind, boolean[] isFinal, int[] parent, boolean[] deepHistory,
+					  int[] initialTransition, int[] transitionSource, int[][] transitionTargets, int[] transitionDomain,
+					  boolean[] transitionInternal, boolean lateBinding)
+		{
+			_root = root;
+			_stateNames = stateNames;
+			_kind = kind;
+			_final = isFinal;
+			_parent = parent;
+			_deepHistory = deepHistory;
+			_initialTransition = initialTransition;
+			_transitionSource = transitionSource;
+			_transitionTargets = transitionTargets;
+			_transitionDomain = transitionDomain;
+			_transitionInternal = transitionInternal;
+			_lateBinding = lateBinding;
+
+			final int n = kind.length;
+			_ancestors = new int[n][];
+			_subtreeEnd = new int[n];
+			_children = new int[n][];
+			_historyStates = new int[n][];
+			_doneEvent = new String[n];
+			int[] childCount = new int[n];
+			int[] historyCount = new int[n];
+			for (int s = 0; s < n; ++s)
+			{
+				if (parent[s] >= 0)
+				{
+					if (kind[s] == CompiledMachine.KIND_HISTORY)
+						++historyCount[parent[s]];
+					else
+						++childCount[parent[s]];
+				}
+			}
+			for (int s = 0; s < n; ++s)
+			{
+				_children[s] = new int[childCount[s]];
+				_historyStates[s] = new int[historyCount[s]];
+				childCount[s] = 0;
+				historyCount[s] = 0;
+				if (stateNames[s] != null)
+					_doneEvent[s] = "done.state." + stateNames[s];
+				int depth = 0;
+				for (int p = parent[s]; p >= 0; p = parent[p])
+					++depth;
+				_ancestors[s] = new int[depth];
+				for (int a = 0, p = parent[s]; p >= 0; p = parent[p])
+					_ancestors[s][a++] = p;
+			}
+			for (int s = 0; s < n; ++s)
+			{
+				final int p = parent[s];
+				if (p >= 0)
+				{
+					if (kind[s] == CompiledMachine.KIND_HISTORY)
+						_historyStates[p][historyCount[p]++] = s;
+					else
+						_children[p][childCount[p]++] = s;
+				}
+			}
+			for (int s = n - 1; s >= 0; --s)
+			{
+				if (_subtreeEnd[s] == 0)
+					_subtreeEnd[s] = s + 1;
+				if (parent[s] >= 0 && _subtreeEnd[parent[s]] < _subtreeEnd[s])
+					_subtreeEnd[parent[s]] = _subtreeEnd[s];
+			}
+
+			final int tn = transitionSource.length;
+			_entrySet = new int[tn][];
+			_defaultEntrySet = new int[tn][];
+			final StateSet toEnter = new StateSet(n);
+			final StateSet defaultEntry = new StateSet(n);
+			for (int t = 0; t < tn; ++t)
+			{
+				if (transitionDomain[t] == CompiledMachine.DYNAMIC_DOMAIN)
+					continue;
+				boolean dependsOnHistory = false;
+				for (int s : transitionTargets[t])
+					dependsOnHistory |= entersHistory(s);
+				if (dependsOnHistory)
+					continue;
+				toEnter.clear();
+				defaultEntry.clear();
+				for (int s : transitionTargets[t])
+					addDescendantStatesToEnter(s, null, toEnter, defaultEntry, null);
+				for (int s : transitionTargets[t])
+					addAncestorStatesToEnter(s, transitionDomain[t], null, toEnter, defaultEntry, null);
+				_entrySet[t] = members(toEnter);
+				_defaultEntrySet[t] = members(defaultEntry);
+			}
+		}
+
+		/**
+		 * Checks if the default entry of a state reaches a history state.
+		 */
+		private boolean entersHistory(int s)
+		{
+			if (_kind[s] == CompiledMachine.KIND_HISTORY)
+				return true;
+			if (_kind[s] == CompiledMachine.KIND_COMPOUND)
+			{
+				for (int target : _transitionTargets[_initialTransition[s]])
+					if (entersHistory(target))
+						return true;
+			}
+			else if (_kind[s] == CompiledMachine.KIND_PARALLEL)
+			{
+				for (int child : _children[s])
+					if (entersHistory(child))
+						return true;
+			}
+			return false;
+		}
+
+		private static int[] members(StateSet set)
+		{
+			int[] result = new int[set.size()];
+			int i = 0;
+			for (int s = set.nextMember(0); s >= 0; s = set.nextMember(s + 1))
+				result[i++] = s;
+			return result;
+		}
+
+		boolean isDescendant(int state1, int state2)
+		{
+			return state2 < state1 && state1 < _subtreeEnd[state2];
+		}
+
+		/**
+		 * See {@link CompiledMachine#computeDomain(int, int[], int)}.
+		 */
+		int computeDomain(int transition, int[] effectiveTargets, int count)
+		{
+			if (count == 0)
+				return CompiledMachine.NO_DOMAIN;
+			final int source = _transitionSource[transition];
+			if (_transitionInternal[transition] && _kind[source] == CompiledMachine.KIND_COMPOUND)
+			{
+				boolean all = true;
+				for (int i = 0; i < count && all; ++i)
+					all = isDescendant(effectiveTargets[i], source);
+				if (all)
+					return source;
+			}
+			for (int anc : _ancestors[source])
+			{
+				if (_kind[anc] != CompiledMachine.KIND_COMPOUND)
+					continue;
+				boolean all = true;
+				for (int i = 0; i < count && all; ++i)
+					all = isDescendant(effectiveTargets[i], anc);
+				if (all)
+					return anc;
+			}
+			return _root;
+		}
+
+		/**
+		 * See {@link Interpreter#addDescendantStatesToEnter(int)}.
+		 */
+		void addDescendantStatesToEnter(int state, int[][] history, StateSet toEnter, StateSet defaultEntry, int[] defaultHistoryContent)
+		{
+			if (_kind[state] == CompiledMachine.KIND_HISTORY)
+			{
+				final int parent = _parent[state];
+				if (history[state] != null)
+				{
+					for (int s : history[state])
+						addDescendantStatesToEnter(s, history, toEnter, defaultEntry, defaultHistoryContent);
+					for (int s : history[state])
+						addAncestorStatesToEnter(s, parent, history, toEnter, defaultEntry, defaultHistoryContent);
+				}
+				else
+				{
+					final int t = _initialTransition[state];
+					if (t >= 0)
+					{
+						defaultHistoryContent[parent] = t;
+						for (int s : _transitionTargets[t])
+							addDescendantStatesToEnter(s, history, toEnter, defaultEntry, defaultHistoryContent);
+						for (int s : _transitionTargets[t])
+							addAncestorStatesToEnter(s, parent, history, toEnter, defaultEntry, defaultHistoryContent);
+					}
+				}
+			}
+			else
+			{
+				toEnter.add(state);
+				if (_kind[state] == CompiledMachine.KIND_COMPOUND)
+				{
+					defaultEntry.add(state);
+					final int t = _initialTransition[state];
+					for (int s : _transitionTargets[t])
+						addDescendantStatesToEnter(s, history, toEnter, defaultEntry, defaultHistoryContent);
+					for (int s : _transitionTargets[t])
+						addAncestorStatesToEnter(s, state, history, toEnter, defaultEntry, defaultHistoryContent);
+				}
+				else if (_kind[state] == CompiledMachine.KIND_PARALLEL)
+					addMissingChildrenToEnter(state, history, toEnter, defaultEntry, defaultHistoryContent);
+			}
+		}
+
+		/**
+		 * See {@link Interpreter#addAncestorStatesToEnter(int, int)}.
+		 */
+		void addAncestorStatesToEnter(int state, int ancestor, int[][] history, StateSet toEnter, StateSet defaultEntry, int[] defaultHistoryContent)
+		{
+			for (int anc : _ancestors[state])
+			{
+				if (anc == ancestor)
+					break;
+				toEnter.add(anc);
+				if (_kind[anc] == CompiledMachine.KIND_PARALLEL)
+					addMissingChildrenToEnter(anc, history, toEnter, defaultEntry, defaultHistoryContent);
+			}
+		}
+
+		private void addMissingChildrenToEnter(int parallel, int[][] history, StateSet toEnter, StateSet defaultEntry, int[] defaultHistoryContent)
+		{
+			for (int child : _children[parallel])
+			{
+				if (!toEnter.intersectsRange(child, _subtreeEnd[child]))
+					addDescendantStatesToEnter(child, history, toEnter, defaultEntry, defaultHistoryContent);
+			}
+		}
+	}
+}
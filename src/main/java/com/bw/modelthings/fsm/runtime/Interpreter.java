@@ -0,0 +1,2034 @@
+package com.bw.modelthings.fsm.runtime;
+
+import com.bw.modelthings.fsm.model.BinaryCodec;
+import com.bw.modelthings.fsm.model.BindingType;
+import com.bw.modelthings.fsm.model.BlockingQueue;
+import com.bw.modelthings.fsm.model.DataValue;
+import com.bw.modelthings.fsm.model.Datamodel;
+import com.bw.modelthings.fsm.model.Event;
+import com.bw.modelthings.fsm.model.EventSymbols;
+import com.bw.modelthings.fsm.model.EventType;
+import com.bw.modelthings.fsm.model.ExecutableContent;
+import com.bw.modelthings.fsm.model.Expression;
+import com.bw.modelthings.fsm.model.FiniteStateMachine;
+import com.bw.modelthings.fsm.model.GlobalData;
+import com.bw.modelthings.fsm.model.Invoke;
+import com.bw.modelthings.fsm.model.NullDatamodel;
+import com.bw.modelthings.fsm.model.ScheduledEvent;
+import com.bw.modelthings.fsm.model.State;
+import com.bw.modelthings.fsm.model.StateSet;
+import com.bw.modelthings.fsm.model.Trace;
+import com.bw.modelthings.fsm.model.Tracer;
+import com.bw.modelthings.fsm.model.executablecontent.Block;
+import com.bw.modelthings.fsm.model.executablecontent.Send;
+import com.bw.modelthings.fsm.parser.ParserException;
+import com.bw.modelthings.fsm.parser.XmlParser;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Implementation of the W3C algorithm for SCXML interpretation on top of a {@link CompiledMachine}.<br>
+ * See <a href="https://www.w3.org/TR/scxml/#AlgorithmforSCXMLInterpretation">AlgorithmforSCXMLInterpretation</a><br>
+ * The method names follow the W3C pseudo-code, but all sets of states and transitions are handled as
+ * indices into the compiled tables and all sets of states are {@link StateSet}s. The scratch sets of a macrostep are
+ * borrowed from a workspace pool shared by all interpreters and returned when the macrostep ends, so a microstep
+ * doesn't allocate and idle sessions don't hold scratch memory.<br>
+ * With the Null datamodel and a {@link FlatAutomaton} each step is a table lookup instead.<br>
+ * The global data of the W3C algorithm is kept in the {@link GlobalData} of the datamodel.<br>
+ * Not thread-safe. Other threads shall communicate with the interpreter only via the external queue.
+ */
+public class Interpreter
+{
+	/**
+	 * Logger for this class.
+	 */
+	protected final static Logger LOG = Logger.getLogger(Interpreter.class.getName());
+
+	/**
+	 * Maximal number of external events the main event loop takes from the queue per wake-up.
+	 */
+	public static final int EXTERNAL_EVENT_BATCH_SIZE = 64;
+
+	/**
+	 * First bytes of a snapshot.
+	 */
+	public static final int SNAPSHOT_MAGIC = 0x53435853;
+
+	/**
+	 * Format version of snapshots. Snapshots of other versions are rejected.
+	 */
+	public static final int SNAPSHOT_VERSION = 1;
+
+	/**
+	 * Type of &lt;invoke&gt; for SCXML sessions.
+	 */
+	public static final String INVOKE_TYPE_SCXML = "http://www.w3.org/TR/scxml/";
+
+	/**
+	 * Prefix of the event that an invoked session sends to its caller when it terminates.
+	 */
+	private static final String DONE_INVOKE_PREFIX = "done.invoke.";
+
+	private static final int TRACE_STATES = Trace.STATES.bit();
+	private static final int TRACE_EVENTS = Trace.EVENTS.bit();
+	private static final int TRACE_RESULTS = Trace.RESULTS.bit();
+
+	/**
+	 * The compiled machine.
+	 */
+	protected final CompiledMachine _machine;
+
+	/**
+	 * The state machine model.
+	 */
+	protected final FiniteStateMachine _fsm;
+
+	/**
+	 * The datamodel.
+	 */
+	protected final Datamodel _datamodel;
+
+	/**
+	 * The global data, owned by the datamodel.
+	 */
+	protected final GlobalData _global;
+
+	/**
+	 * The current configuration, same as {@link GlobalData#configuration}.
+	 */
+	private final StateSet _configuration;
+
+	/**
+	 * States with data that were already entered, null if the data is not bound late.
+	 */
+	private final StateSet _entered;
+
+	/**
+	 * The recorded history by history state index, null if nothing was recorded. The sets are reused when the
+	 * history is recorded again, so exits don't allocate. {@link GlobalData#historyValue} is not used.
+	 */
+	final StateSet[] _history;
+
+	/**
+	 * Scratch data of the current macrostep, only set during {@link #start()} and {@link #processExternalEvent(Event)}.
+	 */
+	private Workspace _ws;
+
+	/**
+	 * Pool of workspaces, shared by all interpreters. A thread-local would not help with virtual threads, as
+	 * each session would get its own. Slots are taken and returned by CAS, the pool never blocks.
+	 */
+	private static final AtomicReferenceArray<Workspace> WORKSPACES =
+			new AtomicReferenceArray<>(Math.max(4, 2 * Runtime.getRuntime()
+															  .availableProcessors()));
+
+	/**
+	 * Scratch data that is only needed during a macrostep.<br>
+	 * As sessions don't need the data between events, it's taken from a pool shared by all sessions.
+	 */
+	private static final class Workspace
+	{
+		/**
+		 * Exit set.
+		 */
+		final StateSet _statesToExit = new StateSet();
+
+		/**
+		 * Entry set.
+		 */
+		final StateSet _statesToEnter = new StateSet();
+
+		/**
+		 * States for default entry.
+		 */
+		final StateSet _statesForDefaultEntry = new StateSet();
+
+		/**
+		 * Membership for effective targets.
+		 */
+		final StateSet _effectiveTargetSet = new StateSet();
+
+		/**
+		 * Default history content, transition index of the history default transition by parent index. -1 if not set.
+		 */
+		int[] _defaultHistoryContent = new int[0];
+
+		/**
+		 * Enabled transitions.
+		 */
+		int[] _enabled = new int[0];
+
+		/**
+		 * Number of enabled transitions.
+		 */
+		int _enabledCount;
+
+		/**
+		 * Filtered transitions in removeConflictingTransitions.
+		 */
+		int[] _filtered = new int[0];
+
+		/**
+		 * Effective targets.
+		 */
+		int[] _effectiveTargets = new int[0];
+
+		/**
+		 * Resets all data after an aborted macrostep.
+		 */
+		void reset()
+		{
+			_statesToExit.clear();
+			_statesToEnter.clear();
+			_statesForDefaultEntry.clear();
+			_effectiveTargetSet.clear();
+			Arrays.fill(_defaultHistoryContent, -1);
+			_enabledCount = 0;
+		}
+
+		/**
+		 * Grows the arrays for the machine.
+		 */
+		void ensureCapacity(CompiledMachine machine)
+		{
+			final int n = machine.getStateCount();
+			final int tn = machine._transitions.length;
+			if (_defaultHistoryContent.length < n)
+			{
+				_defaultHistoryContent = new int[n];
+				Arrays.fill(_defaultHistoryContent, -1);
+				_effectiveTargets = new int[n];
+			}
+			if (_enabled.length < tn)
+			{
+				_enabled = new int[tn];
+				_filtered = new int[tn];
+			}
+		}
+	}
+
+	/**
+	 * The thread that runs {@link #mainEventLoop()}.
+	 */
+	private volatile Thread _loopThread;
+
+	/**
+	 * The flat transition table, null if the W3C algorithm is executed.
+	 */
+	private final FlatAutomaton _flat;
+
+	/**
+	 * The current flat state if {@link #_flat} is used.
+	 */
+	private int _flatState;
+
+	/**
+	 * Journal of the processed external events, can be null.
+	 */
+	private EventJournal _journal;
+
+	/**
+	 * The tracer, can be null.
+	 */
+	private Tracer _tracer;
+
+	/**
+	 * The enabled {@link Trace} modes of {@link #_tracer}, 0 without tracer. Each trace point tests only this mask.
+	 */
+	private int _traceMask;
+
+	/**
+	 * Number of microsteps of the current macrostep, for {@link JfrEvents.Macrostep}.
+	 */
+	private int _microsteps;
+
+	/**
+	 * The metrics, can be null.
+	 */
+	private MachineMetrics _metrics;
+
+	/**
+	 * Entry time of each active state, for {@link #_metrics}. 0 if unknown.
+	 */
+	private long[] _enteredAt;
+
+	/**
+	 * Enqueue time of the external event that is processed next, 0 if unknown.
+	 */
+	private long _enqueueNanos;
+
+	/**
+	 * The active invocations in start order, null until the first invocation.
+	 */
+	private ArrayList<Invocation> _invocations;
+
+	/**
+	 * Executor of invoked sessions, null for {@link SessionExecutor#getShared()}.
+	 */
+	private SessionExecutor _invokeExecutor;
+
+	/**
+	 * An invoked session.
+	 */
+	private static final class Invocation
+	{
+		final Invoke _invoke;
+		final String _id;
+		final Session _session;
+		final BlockingQueue<Event> _queue;
+
+		Invocation(Invoke invoke, String id, Session session)
+		{
+			_invoke = invoke;
+			_id = id;
+			_session = session;
+			_queue = session.getDatamodel()
+							.global()._externalQueue;
+		}
+	}
+
+	/**
+	 * Creates a new interpreter.
+	 *
+	 * @param machine   The compiled machine.
+	 * @param datamodel The datamodel to use. Each interpreter needs its own instance.
+	 */
+	public Interpreter(CompiledMachine machine, Datamodel datamodel)
+	{
+		this(machine, datamodel, null);
+	}
+
+	/**
+	 * Creates a new interpreter that executes the steps by table lookup.
+	 *
+	 * @param machine   The compiled machine.
+	 * @param datamodel The datamodel to use. Each interpreter needs its own instance.
+	 * @param flat      The flat automaton of the machine, see {@link FlatAutomaton#compile(CompiledMachine, int)}.
+	 *                  Used only with the Null datamodel. Can be null.
+	 */
+	public Interpreter(CompiledMachine machine, Datamodel datamodel, FlatAutomaton flat)
+	{
+		_machine = machine;
+		_fsm = machine._fsm;
+		_datamodel = datamodel;
+		_global = datamodel.global();
+		_flat = datamodel instanceof NullDatamodel ? flat : null;
+
+		_configuration = _global.configuration;
+		_entered = _fsm._binding == BindingType.Late ? new StateSet(machine.getStateCount()) : null;
+		_history = new StateSet[machine.getStateCount()];
+		_tracer = _fsm._tracer;
+		_traceMask = _tracer == null ? 0 : _tracer.getTraceMask();
+		if (_global._scheduler == null)
+			_global._scheduler = TimingWheel.getShared();
+	}
+
+	/**
+	 * Creates a new interpreter for a model. The model is compiled and the datamodel is selected
+	 * by {@link FiniteStateMachine#_dataModel}.
+	 *
+	 * @param fsm The state machine.
+	 * @throws CompilerException If the model is inconsistent or the datamodel is not supported.
+	 */
+	public Interpreter(FiniteStateMachine fsm) throws CompilerException
+	{
+		this(CompiledMachine.compile(fsm), DatamodelFactory.create(fsm._dataModel));
+	}
+
+	/**
+	 * Get the compiled machine.
+	 *
+	 * @return The compiled machine.
+	 */
+	public CompiledMachine getMachine()
+	{
+		return _machine;
+	}
+
+	/**
+	 * Get the datamodel.
+	 *
+	 * @return The datamodel.
+	 */
+	public Datamodel getDatamodel()
+	{
+		return _datamodel;
+	}
+
+	/**
+	 * Sets the tracer of this interpreter. By default the tracer of the state machine is used.
+	 *
+	 * @param tracer The tracer or null.
+	 */
+	public void setTracer(Tracer tracer)
+	{
+		_tracer = tracer;
+		_traceMask = tracer == null ? 0 : tracer.getTraceMask();
+	}
+
+	/**
+	 * Gets the tracer.
+	 *
+	 * @return The tracer or null.
+	 */
+	public Tracer getTracer()
+	{
+		return _tracer;
+	}
+
+	/**
+	 * Sets the metrics that record the event latency, the state dwell times, the taken transitions and the
+	 * queue depth of this session. Call it before events are added to the external queue.
+	 *
+	 * @param metrics The metrics of the machine or null.
+	 */
+	public void setMetrics(MachineMetrics metrics)
+	{
+		_metrics = metrics;
+		if (metrics != null)
+		{
+			_global._externalQueue.recordEnqueueTimes();
+			if (_enteredAt == null)
+				_enteredAt = new long[_machine.getStateCount()];
+		}
+	}
+
+	/**
+	 * Gets the metrics.
+	 *
+	 * @return The metrics or null.
+	 */
+	public MachineMetrics getMetrics()
+	{
+		return _metrics;
+	}
+
+	/**
+	 * Sets the executor that runs the sessions that this session invokes. By default all invoked sessions run on
+	 * {@link SessionExecutor#getShared()}.
+	 *
+	 * @param executor The executor or null for the default.
+	 */
+	public void setInvokeExecutor(SessionExecutor executor)
+	{
+		_invokeExecutor = executor;
+	}
+
+	/**
+	 * Sets the journal that records each processed external event, see {@link EventJournal}.
+	 *
+	 * @param journal The journal or null.
+	 */
+	public void setJournal(EventJournal journal)
+	{
+		_journal = journal;
+	}
+
+	/**
+	 * Gets the journal.
+	 *
+	 * @return The journal or null.
+	 */
+	public EventJournal getJournal()
+	{
+		return _journal;
+	}
+
+	/**
+	 * Checks if a state is active.
+	 *
+	 * @param state The state index.
+	 * @return true if the state is in the current configuration.
+	 */
+	public boolean isActive(int state)
+	{
+		return _configuration.isMember(state);
+	}
+
+	/**
+	 * Checks if the interpreter is running.
+	 *
+	 * @return true if running.
+	 */
+	public boolean isRunning()
+	{
+		return _global._running;
+	}
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * The purpose of this procedure is to initialize the interpreter and to start processing.<br>
+	 * <strong>Actual Implementation:</strong><br>
+	 * Runs {@link #start()} and {@link #mainEventLoop()}. Returns if the machine reaches a top-level final state
+	 * or is stopped via {@link #stop()}.
+	 */
+	public void interpret()
+	{
+		start();
+		mainEventLoop();
+	}
+
+	/**
+	 * Initializes the datamodel, enters the initial configuration and processes the first macrostep.<br>
+	 * Doesn't block. Use this together with {@link #processExternalEvent(Event)} if the caller controls the event loop.<br>
+	 * <strong>W3C says:</strong><br>
+	 * When "binding" is "early", the SCXML Processor must create all data elements and assign their initial values at
+	 * document initialization time. When "binding" is "late", the SCXML Processor must create the data elements at
+	 * document initialization time, but must assign the specified initial value to a given data element only when the
+	 * state that contains it is entered for the first time.<br>
+	 * <strong>Actual Implementation:</strong><br>
+	 * With late binding only the top-level data is initialized here. The data of other states is created on their first
+	 * entry, states that are never entered cost nothing. States without data are skipped in both modes.
+	 */
+	public void start()
+	{
+		final JfrEvents.Macrostep jfr = beginMacrostep();
+		_microsteps = 0;
+		startSteps();
+		commitMacrostep(jfr, null);
+	}
+
+	/**
+	 * The steps of {@link #start()}.
+	 */
+	private void startSteps()
+	{
+		if (_flat != null)
+		{
+			_global._running = true;
+			executeFlatStep(_flat._startActions, _flat._initial);
+			return;
+		}
+		final boolean acquired = acquireWorkspace();
+		try
+		{
+			_global._running = true;
+			if (_entered != null)
+			{
+				_entered.add(_machine._root);
+				initializeDataModel(_fsm._pseudoRoot);
+			}
+			else
+			{
+				for (int s : _machine._dataStates)
+					initializeDataModel(_machine._states[s]);
+			}
+			executeContent(_fsm._script);
+
+			_ws._enabled[0] = _machine._initialTransition[_machine._root];
+			_ws._enabledCount = 1;
+			enterStates();
+			macrostep();
+			if (!_global._running)
+				exitInterpreter();
+		}
+		finally
+		{
+			releaseWorkspace(acquired);
+		}
+	}
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * This loop runs until we enter a top-level final state or an external entity cancels processing.
+	 * In either case 'running' will be set to false (see EnterStates, below, for termination by entering a top-level final state.)
+	 */
+	public void mainEventLoop()
+	{
+		_loopThread = Thread.currentThread();
+		try
+		{
+			final BlockingQueue<Event> queue = _global._externalQueue;
+			final ArrayList<Event> batch = new ArrayList<>(EXTERNAL_EVENT_BATCH_SIZE);
+			while (_global._running)
+			{
+				Event externalEvent = queue.dequeue();
+				if (externalEvent == null)
+				{
+					// Queue was stopped, handle as cancel.
+					_global._running = false;
+					break;
+				}
+				batch.add(externalEvent);
+				if (_metrics == null)
+					queue.drainTo(batch, EXTERNAL_EVENT_BATCH_SIZE - 1);
+				else
+				{
+					// One by one, the queue keeps only the enqueue time of the last dequeued event.
+					_metrics.recordQueueDepth(queue.size() + 1);
+					_enqueueNanos = queue.getLastEnqueueNanos();
+				}
+				final JfrEvents.Dequeue jfr = new JfrEvents.Dequeue();
+				if (jfr.shouldCommit())
+				{
+					jfr.sessionId = _global._sessionId;
+					jfr.depth = batch.size() + queue.size();
+					jfr.commit();
+				}
+				for (Event e : batch)
+				{
+					if (!processExternalEvent(e))
+						break;
+				}
+				batch.clear();
+			}
+		}
+		finally
+		{
+			_loopThread = null;
+		}
+		exitInterpreter();
+	}
+
+	/**
+	 * Processes the events that are currently in the external queue. Doesn't block.<br>
+	 * Replaces {@link #mainEventLoop()} if the caller schedules the session on demand, e.g. via
+	 * {@link BlockingQueue#setSignal(Runnable)}.
+	 *
+	 * @param maxEvents The maximal number of events to process.
+	 * @return true if the machine is still running.
+	 */
+	public boolean processQueuedEvents(int maxEvents)
+	{
+		final BlockingQueue<Event> queue = _global._externalQueue;
+		for (int i = 0; i < maxEvents && _global._running; ++i)
+		{
+			if (queue.isStopped())
+			{
+				// Handle as cancel.
+				exitInterpreter();
+				break;
+			}
+			Event externalEvent = queue.poll();
+			if (externalEvent == null)
+				break;
+			final JfrEvents.Dequeue jfr = new JfrEvents.Dequeue();
+			if (jfr.shouldCommit())
+			{
+				jfr.sessionId = _global._sessionId;
+				jfr.depth = queue.size() + 1;
+				jfr.commit();
+			}
+			if (_metrics != null)
+			{
+				_metrics.recordQueueDepth(queue.size() + 1);
+				_enqueueNanos = queue.getLastEnqueueNanos();
+			}
+			processExternalEvent(externalEvent);
+		}
+		return _global._running;
+	}
+
+	/**
+	 * Processes one external event and the following macrostep. Doesn't block.
+	 *
+	 * @param externalEvent The event.
+	 * @return true if the machine is still running.
+	 */
+	public boolean processExternalEvent(Event externalEvent)
+	{
+		final JfrEvents.Macrostep jfr = beginMacrostep();
+		_microsteps = 0;
+		final long started = _metrics == null ? 0 : System.nanoTime();
+		final boolean running = processEvent(externalEvent);
+		commitMacrostep(jfr, externalEvent);
+		// Events that were not taken from the queue count from the start of the processing.
+		if (_metrics != null)
+			_metrics.recordEvent(System.nanoTime() - (_enqueueNanos != 0 ? _enqueueNanos : started));
+		_enqueueNanos = 0;
+		return running;
+	}
+
+	/**
+	 * Creates and begins the flight recorder event of a macrostep.
+	 *
+	 * @return The event or null if no recording is interested.
+	 */
+	private static JfrEvents.Macrostep beginMacrostep()
+	{
+		if (!JfrEvents.MACROSTEP.isEnabled())
+			return null;
+		final JfrEvents.Macrostep jfr = new JfrEvents.Macrostep();
+		jfr.begin();
+		return jfr;
+	}
+
+	/**
+	 * Ends and commits the flight recorder event of a macrostep.
+	 *
+	 * @param jfr   The event, can be null.
+	 * @param event The external event, null for the start.
+	 */
+	private void commitMacrostep(JfrEvents.Macrostep jfr, Event event)
+	{
+		if (jfr == null)
+			return;
+		jfr.end();
+		if (jfr.shouldCommit())
+		{
+			jfr.sessionId = _global._sessionId;
+			jfr.event = event == null ? null : event._name;
+			jfr.microsteps = _microsteps;
+			jfr.flat = _flat != null;
+			jfr.configuration = getActiveStateNames();
+			jfr.commit();
+		}
+	}
+
+	/**
+	 * Gets the names of the active atomic states, e.g. for diagnostics.
+	 *
+	 * @return The comma separated names in document order.
+	 */
+	public String getActiveStateNames()
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int s = _configuration.nextMember(0); s >= 0; s = _configuration.nextMember(s + 1))
+		{
+			if (_machine.isAtomic(s))
+			{
+				if (sb.length() > 0)
+					sb.append(',');
+				sb.append(_machine._states[s]._name);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * The steps of {@link #processExternalEvent(Event)}.
+	 */
+	private boolean processEvent(Event externalEvent)
+	{
+		if (_flat != null)
+		{
+			if (!_global._running)
+				return false;
+			if (_journal != null)
+				_journal.append(externalEvent);
+			if ((_traceMask & TRACE_EVENTS) != 0)
+				_tracer.eventProcessed(externalEvent);
+			final int cell = _flatState * _flat._columns + _flat.column(externalEvent);
+			executeFlatStep(_flat._actions[cell], _flat._next[cell]);
+			return _global._running;
+		}
+		final boolean acquired = acquireWorkspace();
+		try
+		{
+			if (!_global._running)
+				return false;
+			if (_journal != null)
+				_journal.append(externalEvent);
+			if (_invocations != null)
+			{
+				final String invokeId = externalEvent._invokeId;
+				// W3C says: events of cancelled invocations must be ignored.
+				if (invokeId != null && !_global._invokedQueues.containsKey(invokeId))
+					return true;
+				for (int i = 0, n = _invocations.size(); i < n; ++i)
+				{
+					final Invocation invocation = _invocations.get(i);
+					if (invokeId != null && invokeId.equals(invocation._id))
+					{
+						applyFinalize(invocation._invoke, externalEvent);
+						if (externalEvent._name.startsWith(DONE_INVOKE_PREFIX))
+						{
+							// The invoked session terminated, its done event is the last event it sends.
+							removeInvocation(i--);
+							--n;
+							continue;
+						}
+					}
+					// Events are not modified after creation, so all children get the same instance.
+					if (invocation._invoke._autoforward)
+						invocation._queue.enqueueNonBlocking(externalEvent);
+				}
+			}
+			selectTransitions(externalEvent);
+			if (_ws._enabledCount > 0)
+				microstep();
+			macrostep();
+			if (!_global._running)
+				exitInterpreter();
+			return _global._running;
+		}
+		finally
+		{
+			releaseWorkspace(acquired);
+		}
+	}
+
+	/**
+	 * Executes a step of the flat automaton: replays the recorded actions and switches to the next configuration.
+	 *
+	 * @param actions The actions, can be null.
+	 * @param next    The next flat state or {@link FlatAutomaton#TERMINATED}.
+	 */
+	private void executeFlatStep(FlatAutomaton.Action[] actions, int next)
+	{
+		if (actions != null)
+		{
+			for (FlatAutomaton.Action action : actions)
+			{
+				switch (action._kind)
+				{
+					case FlatAutomaton.ACTION_ENQUEUE:
+						_global._externalQueue.enqueueNonBlocking(createSendEvent(action));
+						break;
+					case FlatAutomaton.ACTION_SCHEDULE:
+						Event e = createSendEvent(action);
+						_global._pendingSends.schedule(_global._scheduler, e, action._delayMillis, _global._externalQueue);
+						break;
+					case FlatAutomaton.ACTION_CANCEL:
+						for (ScheduledEvent scheduled : _global._pendingSends.remove(action._sendId))
+							_global._scheduler.cancel(scheduled);
+						break;
+					case FlatAutomaton.ACTION_RETURN_DONE:
+						returnDoneEvent(_machine._states[action._state]);
+						break;
+				}
+			}
+		}
+		if ((_traceMask & TRACE_STATES) != 0 || _metrics != null)
+			reportFlatStep(next);
+		_configuration.clear();
+		if (next == FlatAutomaton.TERMINATED)
+		{
+			cancelPendingSends();
+			_global._running = false;
+			_datamodel.clear();
+			closeTracer();
+		}
+		else
+		{
+			_flatState = next;
+			_configuration.union(_flat._configurations[next]);
+		}
+	}
+
+	/**
+	 * Reports the states that a flat step exits and enters to the tracer and the metrics. The transitions are not known.
+	 */
+	private void reportFlatStep(int next)
+	{
+		final StateSet target = next == FlatAutomaton.TERMINATED ? null : _flat._configurations[next];
+		for (int s = _configuration.previousMember(Integer.MAX_VALUE); s >= 0; s = _configuration.previousMember(s - 1))
+			if (target == null || !target.isMember(s))
+				reportStateChange(s, false);
+		if (target != null)
+			for (int s = target.nextMember(0); s >= 0; s = target.nextMember(s + 1))
+				if (!_configuration.isMember(s))
+					reportStateChange(s, true);
+	}
+
+	/**
+	 * Creates the event of a replayed &lt;send&gt;, same as {@link Send#execute}.
+	 */
+	private Event createSendEvent(FlatAutomaton.Action action)
+	{
+		Event e = new Event(action._event, EventType.external, action._symbol);
+		e._sendId = action._sendId != null ? action._sendId : Send.createSendId(_global._sessionId);
+		e._origin = "#_scxml_" + _global._sessionId;
+		e._originType = Send.TYPE_SCXML;
+		return e;
+	}
+
+	/**
+	 * Binds a workspace from the pool to this interpreter, if not already bound.
+	 *
+	 * @return true if the workspace was bound by this call.
+	 */
+	private boolean acquireWorkspace()
+	{
+		if (_ws != null)
+			return false;
+		final int n = WORKSPACES.length();
+		final int start = (int) (Thread.currentThread()
+									  .getId() % n);
+		Workspace ws = null;
+		for (int i = 0; i < n && ws == null; ++i)
+		{
+			final int slot = (start + i) % n;
+			final Workspace candidate = WORKSPACES.get(slot);
+			if (candidate != null && WORKSPACES.compareAndSet(slot, candidate, null))
+				ws = candidate;
+		}
+		if (ws == null)
+			ws = new Workspace();
+		ws.ensureCapacity(_machine);
+		_ws = ws;
+		return true;
+	}
+
+	/**
+	 * Releases the workspace.
+	 *
+	 * @param acquired The result of the corresponding {@link #acquireWorkspace()}.
+	 */
+	private void releaseWorkspace(boolean acquired)
+	{
+		if (acquired)
+		{
+			final Workspace ws = _ws;
+			_ws = null;
+			// After normal completion all sets are empty again. If not, the macrostep was aborted by some error.
+			if (!(ws._statesToExit.isEmpty() && ws._statesToEnter.isEmpty()))
+				ws.reset();
+			final int n = WORKSPACES.length();
+			final int start = (int) (Thread.currentThread()
+										  .getId() % n);
+			for (int i = 0; i < n; ++i)
+			{
+				final int slot = (start + i) % n;
+				if (WORKSPACES.get(slot) == null && WORKSPACES.compareAndSet(slot, null, ws))
+					break;
+			}
+		}
+	}
+
+	/**
+	 * Stops the machine. The main event loop terminates after the current event.
+	 */
+	public void stop()
+	{
+		_global._externalQueue.stop();
+		Thread t = _loopThread;
+		if (t != null)
+			t.interrupt();
+	}
+
+	/**
+	 * Writes the state of the session in a compact binary format: configuration, history values, the internal and
+	 * external queue, delayed events that are not yet delivered and the data. States are stored by document order,
+	 * so a snapshot can only be restored with the same definition.<br>
+	 * Must be called by the thread that processes the events, between two events, e.g. after each
+	 * {@link #processExternalEvent(Event)}. Events that other threads add concurrently may be missing.
+	 * Invoked sessions can't be stored, a snapshot can only be taken while no invocation is active.
+	 *
+	 * @param out The output.
+	 * @throws IOException                   If writing fails.
+	 * @throws UnsupportedOperationException If the datamodel doesn't support snapshots.
+	 * @throws IllegalStateException         If invocations are active.
+	 */
+	public void writeSnapshot(DataOutput out) throws IOException
+	{
+		if (_invocations != null && !_invocations.isEmpty())
+			throw new IllegalStateException(String.format("Session %s has %d active invocations, they can't be stored in a snapshot",
+					_global._sessionId, _invocations.size()));
+		out.writeInt(SNAPSHOT_MAGIC);
+		BinaryCodec.writeVarInt(out, SNAPSHOT_VERSION);
+		BinaryCodec.writeString(out, _fsm._name);
+		BinaryCodec.writeVarInt(out, _machine.getStateCount());
+		out.writeBoolean(_global._running);
+
+		writeStates(out, _configuration);
+		out.writeBoolean(_entered != null);
+		if (_entered != null)
+			writeStates(out, _entered);
+
+		final StateSet[] history = _flat != null && _global._running ? _flat.history(_flatState) : _history;
+		for (int h = 0; h < _machine.getStateCount(); ++h)
+		{
+			final StateSet value = _machine.isHistory(h) ? history[h] : null;
+			if (value != null)
+			{
+				BinaryCodec.writeVarInt(out, h + 1);
+				BinaryCodec.writeVarInt(out, value.size());
+				for (int s = value.nextMember(0); s >= 0; s = value.nextMember(s + 1))
+					BinaryCodec.writeVarInt(out, s);
+			}
+		}
+		BinaryCodec.writeVarInt(out, 0);
+
+		final ArrayList<Event> events = new ArrayList<>();
+		_global._internalQueue.copyTo(events);
+		writeEvents(out, events);
+		events.clear();
+		_global._externalQueue.copyTo(events);
+		writeEvents(out, events);
+
+		int pending = 0;
+		final ScheduledEvent[] sends = _global._pendingSends.toArray();
+		final long[] remaining = new long[sends.length];
+		for (ScheduledEvent scheduled : sends)
+		{
+			// Delivered events are already part of the external queue.
+			final long delay = _global._scheduler.getRemainingDelay(scheduled);
+			if (delay >= 0)
+			{
+				remaining[pending] = delay;
+				sends[pending++] = scheduled;
+			}
+		}
+		BinaryCodec.writeVarInt(out, pending);
+		for (int i = 0; i < pending; ++i)
+		{
+			BinaryCodec.writeVarLong(out, remaining[i]);
+			BinaryCodec.writeEvent(out, sends[i].getEvent());
+		}
+
+		_datamodel.writeSnapshot(_fsm, out);
+	}
+
+	/**
+	 * Restores the state of a session from {@link #writeSnapshot(DataOutput)}. The interpreter continues as the
+	 * stored session, no onentry or initialization is executed. The stored delayed events are scheduled again with
+	 * their remaining delay.<br>
+	 * The interpreter must not process events during the call. Events that are already queued are discarded.
+	 *
+	 * @param in The input.
+	 * @throws IOException                   If reading fails or the snapshot doesn't match the definition.
+	 * @throws UnsupportedOperationException If the datamodel doesn't support snapshots.
+	 */
+	public void restoreSnapshot(DataInput in) throws IOException
+	{
+		if (in.readInt() != SNAPSHOT_MAGIC)
+			throw new IOException("Not a snapshot");
+		final int version = BinaryCodec.readVarInt(in);
+		if (version != SNAPSHOT_VERSION)
+			throw new IOException("Unsupported snapshot version " + version);
+		final String name = BinaryCodec.readString(in);
+		final int stateCount = BinaryCodec.readVarInt(in);
+		if (!Objects.equals(name, _fsm._name) || stateCount != _machine.getStateCount())
+			throw new IOException(String.format("Snapshot of '%s' doesn't match '%s'", name, _fsm._name));
+
+		cancelPendingSends();
+		final boolean running = in.readBoolean();
+		readStates(in, _configuration);
+		if (in.readBoolean())
+		{
+			StateSet entered = _entered != null ? _entered : new StateSet(stateCount);
+			readStates(in, entered);
+		}
+
+		Arrays.fill(_history, null);
+		for (int h = BinaryCodec.readVarInt(in) - 1; h >= 0; h = BinaryCodec.readVarInt(in) - 1)
+		{
+			if (h >= stateCount || !_machine.isHistory(h))
+				throw new IOException("Illegal history state " + h);
+			final StateSet value = new StateSet(stateCount);
+			for (int i = BinaryCodec.readVarInt(in); i > 0; --i)
+				value.add(readState(in));
+			_history[h] = value;
+		}
+		if (_flat != null && running)
+		{
+			_flatState = _flat.indexOf(_configuration, _history);
+			if (_flatState == FlatAutomaton.TERMINATED)
+				throw new IOException("Configuration of snapshot is not reachable");
+		}
+
+		final EventSymbols symbols = _fsm._eventSymbols;
+		while (!_global._internalQueue.isEmpty())
+			_global._internalQueue.dequeue();
+		for (int i = BinaryCodec.readVarInt(in); i > 0; --i)
+			_global._internalQueue.enqueue(BinaryCodec.readEvent(in, symbols));
+		final BlockingQueue<Event> queue = _global._externalQueue;
+		while (queue.poll() != null)
+		{
+			// Discard
+		}
+		for (int i = BinaryCodec.readVarInt(in); i > 0; --i)
+			queue.enqueueNonBlocking(BinaryCodec.readEvent(in, symbols));
+		for (int i = BinaryCodec.readVarInt(in); i > 0; --i)
+		{
+			final long delay = BinaryCodec.readVarLong(in);
+			final Event e = BinaryCodec.readEvent(in, symbols);
+			_global._pendingSends.schedule(_global._scheduler, e, delay, queue);
+		}
+
+		_datamodel.readSnapshot(_fsm, in);
+		_global._running = running;
+	}
+
+	private static void writeStates(DataOutput out, StateSet states) throws IOException
+	{
+		BinaryCodec.writeVarInt(out, states.size());
+		for (int s = states.nextMember(0); s >= 0; s = states.nextMember(s + 1))
+			BinaryCodec.writeVarInt(out, s);
+	}
+
+	private void readStates(DataInput in, StateSet states) throws IOException
+	{
+		states.clear();
+		for (int i = BinaryCodec.readVarInt(in); i > 0; --i)
+			states.add(readState(in));
+	}
+
+	private int readState(DataInput in) throws IOException
+	{
+		final int s = BinaryCodec.readVarInt(in);
+		if (s < 0 || s >= _machine.getStateCount())
+			throw new IOException("Illegal state " + s);
+		return s;
+	}
+
+	private static void writeEvents(DataOutput out, ArrayList<Event> events) throws IOException
+	{
+		BinaryCodec.writeVarInt(out, events.size());
+		for (Event e : events)
+			BinaryCodec.writeEvent(out, e);
+	}
+
+	/**
+	 * The inner loops of the W3C main event loop: takes eventless transitions and internal events until
+	 * the machine is stable, then starts invocations.
+	 */
+	protected void macrostep()
+	{
+		while (true)
+		{
+			boolean macrostepDone = false;
+			while (_global._running && !macrostepDone)
+			{
+				selectEventlessTransitions();
+				if (_ws._enabledCount == 0)
+				{
+					if (_global._internalQueue.isEmpty())
+						macrostepDone = true;
+					else
+						selectTransitions(_global._internalQueue.dequeue());
+				}
+				if (_ws._enabledCount > 0)
+					microstep();
+			}
+			if (!_global._running)
+				return;
+
+			// W3C says: Either we're in a final state, and we break out of the loop, or we've completed a macrostep,
+			// so we start a new macrostep by waiting for an external event.
+			// Here we invoke whatever needs to be invoked. The implementation of 'invoke' is platform-specific.
+			for (int s : _machine._invokingStates)
+			{
+				if (_global.statesToInvoke.isMember(s))
+				{
+					for (Invoke inv : _machine._states[s]._invoke)
+						invoke(_machine._states[s], inv);
+				}
+			}
+			_global.statesToInvoke.clear();
+			// Invoking may have raised internal error events and we iterate to handle them.
+			if (_global._internalQueue.isEmpty())
+				return;
+		}
+	}
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * The purpose of this procedure is to exit the current SCXML process by exiting all active states.
+	 * If the machine is in a top-level final state, a Done event is generated.<br>
+	 * <strong>Actual Implementation:</strong><br>
+	 * Can be called multiple times, later calls have no effect.
+	 */
+	protected void exitInterpreter()
+	{
+		for (int s = _configuration.previousMember(Integer.MAX_VALUE); s >= 0; s = _configuration.previousMember(s - 1))
+		{
+			State state = _machine._states[s];
+			executeContent(state._onExit, _machine._onExitProgram[s]);
+			if (state._invoke != null)
+				for (Invoke inv : state._invoke)
+					cancelInvoke(inv);
+			setActive(s, false);
+			if (_machine._final[s] && _machine._parent[s] == _machine._root)
+				returnDoneEvent(state);
+		}
+		cancelPendingSends();
+		if (_invocations != null)
+		{
+			// Invocations of states that are still active when the session is stopped from outside.
+			for (int i = _invocations.size() - 1; i >= 0; --i)
+				removeInvocation(i);
+		}
+		_global._running = false;
+		// The datamodel is not used after this point, let it release its resources (e.g. pooled script scopes).
+		_datamodel.clear();
+		closeTracer();
+	}
+
+	/**
+	 * Closes the tracer of a terminated session, so the {@link TraceWriter} forgets it after the remaining records
+	 * are written. Sessions that terminate by themselves are often never destroyed.
+	 */
+	private void closeTracer()
+	{
+		if (_tracer instanceof RingBufferTracer)
+			((RingBufferTracer) _tracer).close();
+	}
+
+	/**
+	 * Cancels all delayed events that are not yet delivered, so the scheduler doesn't keep them after the session ended.
+	 */
+	protected void cancelPendingSends()
+	{
+		if (!_global._pendingSends.isEmpty())
+		{
+			for (ScheduledEvent pending : _global._pendingSends.clear())
+				_global._scheduler.cancel(pending);
+		}
+	}
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * The purpose of this procedure is to execute a set of transitions.
+	 */
+	protected void microstep()
+	{
+		++_microsteps;
+		if ((_traceMask & TRACE_STATES) != 0)
+			for (int i = 0; i < _ws._enabledCount; ++i)
+				_tracer.transitionTaken(_machine._transitions[_ws._enabled[i]]);
+		if (_metrics != null)
+			for (int i = 0; i < _ws._enabledCount; ++i)
+				_metrics.recordTransition(_ws._enabled[i]);
+		exitStates();
+		executeTransitionContent();
+		enterStates();
+	}
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * Enabled transitions are those that don't have events, and have a condition that evaluates to true.
+	 * Find all such transitions in all atomic states in the active configuration. Remove conflicting transitions.<br>
+	 * <strong>Actual Implementation:</strong><br>
+	 * Result is stored in the enabled-transition scratch list.
+	 */
+	protected void selectEventlessTransitions()
+	{
+		selectTransitions(null);
+	}
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * The purpose of the selectTransitions() procedure is to collect the transitions that are enabled by this event in
+	 * the current configuration.<br>
+	 * <strong>Actual Implementation:</strong><br>
+	 * If event is null, eventless transitions are selected. Result is stored in the enabled-transition scratch list.
+	 *
+	 * @param event The event or null.
+	 */
+	protected void selectTransitions(Event event)
+	{
+		if (event != null)
+		{
+			if ((_traceMask & TRACE_EVENTS) != 0)
+				_tracer.eventProcessed(event);
+			_datamodel.setEvent(event);
+		}
+		final JfrEvents.TransitionSelection jfr = new JfrEvents.TransitionSelection();
+		jfr.begin();
+		_ws._enabledCount = 0;
+		final String eventName = event == null ? null : event._name;
+		final int symbol = event == null ? EventSymbols.NO_SYMBOL : event._symbol;
+		for (int state = _configuration.nextMember(0); state >= 0; state = _configuration.nextMember(state + 1))
+		{
+			if (!_machine.isAtomic(state))
+				continue;
+			int t = findEnabledTransition(state, eventName, symbol);
+			if (t < 0)
+			{
+				for (int anc : _machine._ancestors[state])
+				{
+					t = findEnabledTransition(anc, eventName, symbol);
+					if (t >= 0)
+						break;
+				}
+			}
+			if (t >= 0)
+				addEnabled(t);
+		}
+		if (_ws._enabledCount > 1)
+			removeConflictingTransitions();
+		jfr.end();
+		if (jfr.shouldCommit())
+		{
+			jfr.sessionId = _global._sessionId;
+			jfr.event = eventName;
+			jfr.enabled = _ws._enabledCount;
+			jfr.commit();
+		}
+	}
+
+	private int findEnabledTransition(int state, String eventName, int symbol)
+	{
+		final int[] candidates;
+		if (eventName == null)
+			candidates = _machine._eventlessTransitions[state];
+		else
+		{
+			final EventTrie trie = _machine._eventTries[state];
+			if (trie == null)
+				return -1;
+			candidates = trie.match(eventName, symbol);
+		}
+		for (int t : candidates)
+		{
+			if (conditionMatch(t))
+				return t;
+		}
+		return -1;
+	}
+
+	private void addEnabled(int t)
+	{
+		for (int i = 0; i < _ws._enabledCount; ++i)
+		{
+			if (_ws._enabled[i] == t)
+				return;
+		}
+		_ws._enabled[_ws._enabledCount++] = t;
+	}
+
+	/**
+	 * Evaluates the condition of a transition.
+	 *
+	 * @param t The transition index.
+	 * @return true if the transition has no condition or the condition evaluates to true.
+	 */
+	protected boolean conditionMatch(int t)
+	{
+		Expression cond = _machine._transitionCondition[t];
+		if (cond == null)
+			return true;
+		try
+		{
+			final boolean result = _datamodel.executeCondition(_fsm, cond);
+			if ((_traceMask & TRACE_RESULTS) != 0)
+				_tracer.conditionEvaluated(_machine._transitions[t], result);
+			return result;
+		}
+		catch (RuntimeException e)
+		{
+			raiseError(e);
+			return false;
+		}
+	}
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * A transition T is enabled by named event E in atomic state S if a) T's source state is S or one of S's ancestors,
+	 * b) T matches E's name (see 3.12.1 Event Descriptors) and c) T lacks a 'cond' attribute or its 'cond' attribute
+	 * evaluates to "true". A transition is enabled by NULL in atomic state S if a) T lacks an 'event' attribute, b) T's
+	 * source state is S or one of S's ancestors, and c) T lacks an 'cond' attribute or its 'cond' attribute evaluates to "true".
+	 * (Note that such a transition can never be triggered by an actual event.)<br>
+	 * The purpose of this procedure is to remove conflicting transitions, two transitions conflict if their exit sets intersect.<br>
+	 * <strong>Actual Implementation:</strong><br>
+	 * Exit sets are all active descendants of the transition domain. The domains form intervals in the state index,
+	 * so two exit sets can only intersect if one interval contains the other.
+	 */
+	protected void removeConflictingTransitions()
+	{
+		int filteredCount = 0;
+		for (int i = 0; i < _ws._enabledCount; ++i)
+		{
+			final int t1 = _ws._enabled[i];
+			final int d1 = getTransitionDomain(t1);
+			boolean t1Preempted = false;
+			for (int j = 0; j < filteredCount; ++j)
+			{
+				final int t2 = _ws._filtered[j];
+				if (exitSetsIntersect(d1, getTransitionDomain(t2))
+						&& !_machine.isDescendant(_machine._transitionSource[t1], _machine._transitionSource[t2]))
+				{
+					t1Preempted = true;
+					break;
+				}
+			}
+			if (!t1Preempted)
+			{
+				// Remove all transitions that are preempted by t1.
+				int keep = 0;
+				for (int j = 0; j < filteredCount; ++j)
+				{
+					final int t2 = _ws._filtered[j];
+					if (!exitSetsIntersect(d1, getTransitionDomain(t2)))
+						_ws._filtered[keep++] = t2;
+				}
+				filteredCount = keep;
+				_ws._filtered[filteredCount++] = t1;
+			}
+		}
+		System.arraycopy(_ws._filtered, 0, _ws._enabled, 0, filteredCount);
+		_ws._enabledCount = filteredCount;
+	}
+
+	private boolean exitSetsIntersect(int domain1, int domain2)
+	{
+		if (domain1 < 0 || domain2 < 0)
+			return false;
+		final int from = Math.max(domain1, domain2) + 1;
+		final int to = Math.min(_machine._subtreeEnd[domain1], _machine._subtreeEnd[domain2]);
+		return _configuration.intersectsRange(from, to);
+	}
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * Compute the set of states to exit. Remove all the states on statesToExit from the set of states that will have invoke processing done at the start of the next macrostep.
+	 * (Suppose macrostep M1 consists of microsteps m11 and m12. We may enter state s in m11 and exit it in m12.
+	 * We will add s to statesToInvoke in m11, and must remove it here to avoid starting an invocation in m12.)
+	 * Convert statesToExit to a list and sort it in exitOrder.<br>
+	 * We then iterate through the list of states that we will exit, in exitOrder. First we record the history for each state.
+	 * Then we execute the onexit handlers and cancel the invocations.
+	 */
+	protected void exitStates()
+	{
+		computeExitSet();
+		if (_ws._statesToExit.isEmpty())
+			return;
+
+		final StateSet exit = _ws._statesToExit;
+		for (int s = exit.previousMember(Integer.MAX_VALUE); s >= 0; s = exit.previousMember(s - 1))
+		{
+			_global.statesToInvoke.delete(s);
+			for (int h : _machine._historyStates[s])
+				recordHistory(h, s);
+		}
+		for (int s = exit.previousMember(Integer.MAX_VALUE); s >= 0; s = exit.previousMember(s - 1))
+		{
+			State state = _machine._states[s];
+			executeContent(state._onExit, _machine._onExitProgram[s]);
+			if (state._invoke != null)
+				for (Invoke inv : state._invoke)
+					cancelInvoke(inv);
+			setActive(s, false);
+		}
+		_ws._statesToExit.clear();
+	}
+
+	private void recordHistory(int h, int s)
+	{
+		StateSet value = _history[h];
+		if (value == null)
+			_history[h] = value = new StateSet(_machine.getStateCount());
+		else
+			value.clear();
+		final boolean deep = _machine._deepHistory[h];
+		final int end = _machine._subtreeEnd[s];
+		for (int s0 = _configuration.nextMember(s + 1); s0 >= 0 && s0 < end; s0 = _configuration.nextMember(s0 + 1))
+		{
+			if (deep ? _machine.isAtomic(s0) : _machine._parent[s0] == s)
+				value.add(s0);
+		}
+	}
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * For each transition t in enabledTransitions, if t is targetless then do nothing, else compute the transition's domain.
+	 * (This will be the source state in the case of internal transitions) or the least common compound ancestor
+	 * state (LCCA) of the source state and target states of t (in the case of external transitions. Add to the
+	 * statesToExit set all states in the configuration that are descendants of the domain.
+	 */
+	protected void computeExitSet()
+	{
+		for (int i = 0; i < _ws._enabledCount; ++i)
+		{
+			final int domain = getTransitionDomain(_ws._enabled[i]);
+			if (domain < 0)
+				continue;
+			final int end = _machine._subtreeEnd[domain];
+			for (int s = _configuration.nextMember(domain + 1); s >= 0 && s < end; s = _configuration.nextMember(s + 1))
+				_ws._statesToExit.add(s);
+		}
+	}
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * For each transition in the list, execute its executable content.
+	 */
+	protected void executeTransitionContent()
+	{
+		for (int i = 0; i < _ws._enabledCount; ++i)
+		{
+			final int t = _ws._enabled[i];
+			executeContent(_machine._transitions[t]._content, _machine._transitionProgram[t]);
+		}
+	}
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * First, compute the list of all the states that will be entered as a result of taking the transitions in enabledTransitions.
+	 * Add them to statesToInvoke so that invoke processing can be done at the start of the next macrostep.
+	 * Convert statesToEnter to a list and sort it in entryOrder. For each state s in the list, first add s to the current configuration.
+	 * Then if we are using late binding, and this is the first time we have entered s, initialize its data model.
+	 * Then execute any onentry handlers. If s's initial state is being entered by default, execute any executable content
+	 * in the initial transition. If a history state in s was the target of a transition,
+	 * and s has not been entered before, execute the content inside the history state's default transition.
+	 * Finally, if s is a final state, generate relevant Done events. If we have reached a top-level final state, set running to false as a signal to stop processing.
+	 */
+	protected void enterStates()
+	{
+		computeEntrySet();
+		final StateSet entered = _entered;
+		final StateSet enter = _ws._statesToEnter;
+		for (int s = enter.nextMember(0); s >= 0; s = enter.nextMember(s + 1))
+		{
+			State state = _machine._states[s];
+			setActive(s, true);
+			_global.statesToInvoke.add(s);
+			if (entered != null && _machine._hasData[s] && !entered.isMember(s))
+			{
+				// First entry of this session: create the data of the state now.
+				entered.add(s);
+				initializeDataModel(state);
+			}
+			executeContent(state._onEntry, _machine._onEntryProgram[s]);
+			if (_ws._statesForDefaultEntry.isMember(s))
+			{
+				final int t = _machine._initialTransition[s];
+				executeContent(_machine._transitions[t]._content, _machine._transitionProgram[t]);
+			}
+			if (_ws._defaultHistoryContent[s] >= 0)
+			{
+				final int t = _ws._defaultHistoryContent[s];
+				executeContent(_machine._transitions[t]._content, _machine._transitionProgram[t]);
+				_ws._defaultHistoryContent[s] = -1;
+			}
+			if (_machine._final[s])
+			{
+				final int parent = _machine._parent[s];
+				if (parent == _machine._root)
+					_global._running = false;
+				else
+				{
+					if (state._doneData == null)
+						_global._internalQueue.enqueue(_machine._doneEvent[parent]);
+					else
+					{
+						Event done = new Event(_machine._doneEventName[parent], EventType.internal, _machine._doneEvent[parent]._symbol);
+						done._data = state._doneData;
+						_global._internalQueue.enqueue(done);
+					}
+					final int grandparent = _machine._parent[parent];
+					if (grandparent >= 0 && _machine.isParallel(grandparent))
+					{
+						boolean allFinal = true;
+						for (int child : _machine._children[grandparent])
+						{
+							if (!isInFinalState(child))
+							{
+								allFinal = false;
+								break;
+							}
+						}
+						if (allFinal)
+							_global._internalQueue.enqueue(_machine._doneEvent[grandparent]);
+					}
+				}
+			}
+		}
+		_ws._statesToEnter.clear();
+		_ws._statesForDefaultEntry.clear();
+	}
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * Compute the complete set of states that will be entered as a result of taking 'transitions'.
+	 * This value will be returned in 'statesToEnter' (which is modified by this procedure). Also place in 'statesForDefaultEntry'
+	 * the set of all states whose default initial states were entered. First gather up all the target states in 'transitions'.
+	 * Then add them and, for all that are not atomic states, add all of their (default) descendants until we reach one or more atomic states.
+	 * Then add any ancestors that will be entered within the domain of the transition. (Ancestors outside of the domain of the transition will not have been exited.)
+	 */
+	protected void computeEntrySet()
+	{
+		for (int i = 0; i < _ws._enabledCount; ++i)
+		{
+			final int t = _ws._enabled[i];
+			for (int s : _machine._transitionTargets[t])
+				addDescendantStatesToEnter(s);
+			final int ancestor = getTransitionDomain(t);
+			final int count = getEffectiveTargetStates(t);
+			for (int k = 0; k < count; ++k)
+				addAncestorStatesToEnter(_ws._effectiveTargets[k], ancestor);
+		}
+	}
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * The purpose of this procedure is to add to statesToEnter 'state' and any of its descendants that the state machine will end up entering when it enters 'state'.
+	 * (N.B. If 'state' is a history pseudo-state, we dereference it and add the history value instead.)
+	 * Note that this procedure permanently modifies both statesToEnter and statesForDefaultEntry.
+	 *
+	 * @param state The state index.
+	 */
+	protected void addDescendantStatesToEnter(int state)
+	{
+		if (_machine.isHistory(state))
+		{
+			final int parent = _machine._parent[state];
+			final StateSet history = getHistoryValue(state);
+			if (history != null)
+			{
+				for (int s = history.nextMember(0); s >= 0; s = history.nextMember(s + 1))
+					addDescendantStatesToEnter(s);
+				for (int s = history.nextMember(0); s >= 0; s = history.nextMember(s + 1))
+					addAncestorStatesToEnter(s, parent);
+			}
+			else
+			{
+				final int t = _machine._initialTransition[state];
+				if (t >= 0)
+				{
+					_ws._defaultHistoryContent[parent] = t;
+					for (int s : _machine._transitionTargets[t])
+						addDescendantStatesToEnter(s);
+					for (int s : _machine._transitionTargets[t])
+						addAncestorStatesToEnter(s, parent);
+				}
+			}
+		}
+		else
+		{
+			_ws._statesToEnter.add(state);
+			if (_machine.isCompound(state))
+			{
+				_ws._statesForDefaultEntry.add(state);
+				final int t = _machine._initialTransition[state];
+				for (int s : _machine._transitionTargets[t])
+					addDescendantStatesToEnter(s);
+				for (int s : _machine._transitionTargets[t])
+					addAncestorStatesToEnter(s, state);
+			}
+			else if (_machine.isParallel(state))
+				addMissingChildrenToEnter(state);
+		}
+	}
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * Add to statesToEnter any ancestors of 'state' up to, but not including, 'ancestor' that must be entered in order to enter 'state'.
+	 * If any of these ancestor states is a parallel state, we must fill in its descendants as well.
+	 *
+	 * @param state    The state index.
+	 * @param ancestor The ancestor index.
+	 */
+	protected void addAncestorStatesToEnter(int state, int ancestor)
+	{
+		for (int anc : _machine._ancestors[state])
+		{
+			if (anc == ancestor)
+				break;
+			_ws._statesToEnter.add(anc);
+			if (_machine.isParallel(anc))
+				addMissingChildrenToEnter(anc);
+		}
+	}
+
+	private void addMissingChildrenToEnter(int parallel)
+	{
+		for (int child : _machine._children[parallel])
+		{
+			if (!_ws._statesToEnter.intersectsRange(child, _machine._subtreeEnd[child]))
+				addDescendantStatesToEnter(child);
+		}
+	}
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * Return true if s is a compound &lt;state&gt; and one of its children is an active &lt;final&gt; state
+	 * (i.e. is a member of the current configuration), or if s is a &lt;parallel&gt; state and isInFinalState is true of all its children.
+	 *
+	 * @param s The state index.
+	 * @return true if in final state.
+	 */
+	protected boolean isInFinalState(int s)
+	{
+		if (_machine.isCompound(s))
+		{
+			for (int child : _machine._children[s])
+				if (_machine._final[child] && _configuration.isMember(child))
+					return true;
+			return false;
+		}
+		else if (_machine.isParallel(s))
+		{
+			for (int child : _machine._children[s])
+				if (!isInFinalState(child))
+					return false;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * Return the compound state such that 1) all states that are exited or entered as a result of taking 'transition' are
+	 * descendants of it 2) no descendant of it has this property.<br>
+	 * <strong>Actual Implementation:</strong><br>
+	 * Pre-computed by the compiler, only transitions with history targets are computed here.
+	 *
+	 * @param t The transition index.
+	 * @return The index of the domain state or a negative value if the transition has no targets.
+	 */
+	protected int getTransitionDomain(int t)
+	{
+		final int domain = _machine._transitionDomain[t];
+		if (domain != CompiledMachine.DYNAMIC_DOMAIN)
+			return domain;
+		return _machine.computeDomain(t, _ws._effectiveTargets, getEffectiveTargetStates(t));
+	}
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * Returns the states that will be the target when 'transition' is taken, dereferencing any history states.<br>
+	 * <strong>Actual Implementation:</strong><br>
+	 * The result is stored in the effective-targets scratch array.
+	 *
+	 * @param t The transition index.
+	 * @return The number of effective targets.
+	 */
+	protected int getEffectiveTargetStates(int t)
+	{
+		int[] targets = _machine._transitionTargets[t];
+		if (!_machine._transitionHasHistoryTarget[t])
+		{
+			System.arraycopy(targets, 0, _ws._effectiveTargets, 0, targets.length);
+			return targets.length;
+		}
+		_ws._effectiveTargetSet.clear();
+		addEffectiveTargetStates(t);
+		int count = 0;
+		for (int s = _ws._effectiveTargetSet.nextMember(0); s >= 0; s = _ws._effectiveTargetSet.nextMember(s + 1))
+			_ws._effectiveTargets[count++] = s;
+		return count;
+	}
+
+	private void addEffectiveTargetStates(int t)
+	{
+		for (int s : _machine._transitionTargets[t])
+		{
+			if (_machine.isHistory(s))
+			{
+				final StateSet history = getHistoryValue(s);
+				if (history != null)
+					_ws._effectiveTargetSet.union(history);
+				else if (_machine._initialTransition[s] >= 0)
+					addEffectiveTargetStates(_machine._initialTransition[s]);
+			}
+			else
+				_ws._effectiveTargetSet.add(s);
+		}
+	}
+
+	/**
+	 * Get the recorded history of a history state.
+	 *
+	 * @param h The index of the history state.
+	 * @return The recorded states or null if nothing was recorded. The set must not be modified.
+	 */
+	protected StateSet getHistoryValue(int h)
+	{
+		return _history[h];
+	}
+
+	/**
+	 * Adds or removes a state from the configuration and reports it to the tracer and the metrics.
+	 *
+	 * @param s      The state index.
+	 * @param active true to add, false to remove.
+	 */
+	protected void setActive(int s, boolean active)
+	{
+		if (active)
+			_configuration.add(s);
+		else
+			_configuration.delete(s);
+		if ((_traceMask & TRACE_STATES) != 0 || _metrics != null)
+			reportStateChange(s, active);
+	}
+
+	/**
+	 * Reports the entry or exit of a state to the tracer and the metrics.
+	 */
+	private void reportStateChange(int s, boolean active)
+	{
+		if ((_traceMask & TRACE_STATES) != 0)
+		{
+			if (active)
+				_tracer.stateEntered(_machine._states[s]);
+			else
+				_tracer.stateExited(_machine._states[s]);
+		}
+		if (_metrics != null)
+		{
+			final long now = System.nanoTime();
+			if (active)
+				_enteredAt[s] = now;
+			else if (_enteredAt[s] != 0)
+			{
+				_metrics.recordDwell(s, now - _enteredAt[s]);
+				_enteredAt[s] = 0;
+			}
+		}
+	}
+
+	/**
+	 * Executes content. Errors are reported as "error.execution" events.
+	 *
+	 * @param content The content, can be null.
+	 */
+	protected void executeContent(ExecutableContent content)
+	{
+		executeContent(content, null);
+	}
+
+	/**
+	 * Executes content, via its program if the machine was compiled with {@link ContentProgram}s.
+	 * During a JFR recording the elements are executed one by one, so each of them is recorded.
+	 * Errors are reported as "error.execution" events.
+	 *
+	 * @param content The content, can be null.
+	 * @param program The compiled content or null.
+	 */
+	protected void executeContent(ExecutableContent content, ContentProgram program)
+	{
+		if (content != null)
+		{
+			final JfrEvents.Content jfr = new JfrEvents.Content();
+			try
+			{
+				if (jfr.isEnabled())
+				{
+					if (content instanceof Block)
+					{
+						// A block is only a container, record the elements. An error stops the block, as Block does.
+						for (ExecutableContent element : ((Block) content).content)
+							executeRecorded(element);
+					}
+					else
+						executeRecorded(content);
+				}
+				else if (program != null)
+					program.execute(_datamodel, _fsm);
+				else
+					_datamodel.executeContent(_fsm, content);
+			}
+			catch (RuntimeException e)
+			{
+				raiseError(e);
+			}
+		}
+	}
+
+	/**
+	 * Executes content and records the time as {@link JfrEvents.Content}.
+	 */
+	private void executeRecorded(ExecutableContent content)
+	{
+		final JfrEvents.Content jfr = new JfrEvents.Content();
+		jfr.begin();
+		try
+		{
+			_datamodel.executeContent(_fsm, content);
+		}
+		finally
+		{
+			jfr.end();
+			if (jfr.shouldCommit())
+			{
+				jfr.sessionId = _global._sessionId;
+				jfr.type = content.getType();
+				jfr.configuration = getActiveStateNames();
+				jfr.commit();
+			}
+		}
+	}
+
+	/**
+	 * Initializes the data of a state. Errors are reported as "error.execution" events.
+	 *
+	 * @param state The state.
+	 */
+	protected void initializeDataModel(State state)
+	{
+		try
+		{
+			_datamodel.initializeDataModel(_fsm, state);
+		}
+		catch (RuntimeException e)
+		{
+			raiseError(e);
+		}
+	}
+
+	/**
+	 * Puts a "error.execution" event into the internal queue.
+	 *
+	 * @param e The exception that caused the error.
+	 */
+	protected void raiseError(Exception e)
+	{
+		LOG.log(Level.FINE, e.getMessage(), e);
+		_global._internalQueue.enqueue(_machine._errorExecutionEvent);
+	}
+
+	/**
+	 * Starts an invocation. Only SCXML sessions are supported, they run in-process on the executor of
+	 * {@link #setInvokeExecutor(SessionExecutor)}. Errors are reported as "error.execution" events.
+	 *
+	 * @param state The invoking state.
+	 * @param inv   The invoke element.
+	 */
+	protected void invoke(State state, Invoke inv)
+	{
+		try
+		{
+			final String type = inv._typeName != null ? inv._typeName : inv._compiledTypeExpr != null ? _datamodel.execute(_fsm, inv._compiledTypeExpr) : null;
+			if (type != null && !type.isEmpty() && !INVOKE_TYPE_SCXML.equals(type) && !"scxml".equals(type))
+				throw new IllegalArgumentException(String.format("Unsupported <invoke> type '%s'", type));
+			final SessionManager definition = getInvokedDefinition(inv);
+			// W3C says: the id has the form stateid.platformid.
+			final String id = inv._id != null ? inv._id : state._name + "." + Send.createSendId(_global._sessionId);
+			if (inv._idLocation != null)
+				_datamodel.set(inv._idLocation, new DataValue(id));
+
+			final Session child = definition.createSession();
+			final GlobalData childGlobal = child.getDatamodel()
+												.global();
+			childGlobal._callerInvokeId = id;
+			childGlobal._callerQueue = _global._externalQueue;
+			childGlobal._scheduler = _global._scheduler;
+			if (_invocations == null)
+			{
+				_invocations = new ArrayList<>();
+				_global._invokedQueues = new HashMap<>();
+			}
+			final Invocation invocation = new Invocation(inv, id, child);
+			_invocations.add(invocation);
+			_global._invokedQueues.put(id, invocation._queue);
+			(_invokeExecutor != null ? _invokeExecutor : SessionExecutor.getShared()).execute(child);
+			if (LOG.isLoggable(Level.FINE))
+				LOG.fine(String.format("Session %s invoked %s as %s", _global._sessionId, child.getId(), id));
+		}
+		catch (Exception e)
+		{
+			raiseError(e);
+		}
+	}
+
+	/**
+	 * Gets the definition of an invocation. Definitions are loaded once and shared by all sessions of this machine.
+	 * The invoked machine uses the symbol table of this machine, so events are passed without translation.
+	 */
+	private SessionManager getInvokedDefinition(Invoke inv) throws IOException, ParserException, CompilerException
+	{
+		final String src = inv._src != null ? inv._src : inv._compiledSrcExpr != null ? _datamodel.execute(_fsm, inv._compiledSrcExpr) : null;
+		final Path file;
+		final String key;
+		if (src != null)
+		{
+			final URI uri = URI.create(src);
+			if (uri.getScheme() != null)
+				file = Paths.get(uri);
+			else
+				file = (_fsm._file == null ? Paths.get(src) : _fsm._file.resolveSibling(src)).toAbsolutePath()
+																							 .normalize();
+			key = file.toString();
+		}
+		else
+		{
+			key = inv._content != null ? inv._content : inv._compiledContentExpr != null ? _datamodel.execute(_fsm, inv._compiledContentExpr) : null;
+			if (key == null)
+				throw new IllegalArgumentException("<invoke> without 'src' or <content>");
+			file = _fsm._file == null ? Paths.get("invoke.scxml") : _fsm._file;
+		}
+		SessionManager definition = _machine._invokedDefinitions.get(key);
+		if (definition == null)
+		{
+			final String xml = src != null ? Files.readString(file) : key;
+			final FiniteStateMachine fsm = new XmlParser().parse(file, xml, _fsm._eventSymbols);
+			if (fsm == null)
+				throw new ParserException(String.format("Invoked document '%s' is not valid", src != null ? src : "<content>"));
+			definition = new SessionManager(fsm);
+			// Children get queues like the caller.
+			definition.setExternalQueue(_global._externalQueue.capacity(), _global._externalQueue.getWaitStrategy());
+			final SessionManager loaded = _machine._invokedDefinitions.putIfAbsent(key, definition);
+			if (loaded != null)
+				definition = loaded;
+		}
+		return definition;
+	}
+
+	/**
+	 * Cancels an invocation. The invoked session is stopped, events it sent and that are not yet processed are ignored.
+	 *
+	 * @param inv The invoke element.
+	 */
+	protected void cancelInvoke(Invoke inv)
+	{
+		if (_invocations == null)
+			return;
+		for (int i = _invocations.size() - 1; i >= 0; --i)
+		{
+			final Invocation invocation = _invocations.get(i);
+			if (invocation._invoke == inv)
+			{
+				removeInvocation(i);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Removes an invocation and destroys the invoked session. Events of the invocation that are not yet processed are
+	 * ignored.
+	 *
+	 * @param i The index in {@link #_invocations}.
+	 */
+	private void removeInvocation(int i)
+	{
+		final Invocation invocation = _invocations.remove(i);
+		_global._invokedQueues.remove(invocation._id);
+		invocation._session.destroy();
+	}
+
+	/**
+	 * Applies the &lt;finalize&gt; content of an invocation to an event returned by the invoked process.<br>
+	 * <strong>W3C says:</strong><br>
+	 * When the &lt;finalize&gt; element is executed, _event must refer to the event that is being processed.
+	 *
+	 * @param inv   The invoke element.
+	 * @param event The returned event.
+	 */
+	protected void applyFinalize(Invoke inv, Event event)
+	{
+		if (inv._finalize != null)
+		{
+			_datamodel.setEvent(event);
+			executeContent(inv._finalize);
+		}
+	}
+
+	/**
+	 * <strong>W3C says:</strong><br>
+	 * If the machine is in a top-level final state, a Done event is generated.
+	 * (Note that in this case, the Done event is the last event that the machine will generate.)<br>
+	 * <strong>Actual Implementation:</strong><br>
+	 * Invoked sessions send "done.invoke.&lt;invokeid&gt;" to the caller. Sessions without caller have nobody to inform.
+	 *
+	 * @param finalState The final state.
+	 */
+	protected void returnDoneEvent(State finalState)
+	{
+		final BlockingQueue<Event> caller = _global._callerQueue;
+		if (caller != null)
+		{
+			final String name = DONE_INVOKE_PREFIX + _global._callerInvokeId;
+			final Event done = new Event(name, EventType.external, _fsm._eventSymbols.lookup(name));
+			done._invokeId = _global._callerInvokeId;
+			caller.enqueueNonBlocking(done);
+		}
+	}
+}
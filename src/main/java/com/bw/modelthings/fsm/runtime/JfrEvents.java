@@ -0,0 +1,114 @@
+package com.bw.modelthings.fsm.runtime;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events of the interpreter.<br>
+ * The interpreter creates the events on the stack and fills the fields only if {@link Event#shouldCommit()}, so
+ * without a recording the events cost almost nothing. Stack traces are disabled, the fields identify the session.
+ */
+final class JfrEvents
+{
+	/**
+	 * Type of {@link Macrostep}. The macrostep event lives across the whole step, escape analysis can't remove it
+	 * if the step is not inlined. So it's only created if the type is enabled.
+	 */
+	static final EventType MACROSTEP = EventType.getEventType(Macrostep.class);
+
+	private JfrEvents()
+	{
+	}
+
+	/**
+	 * Processing of one external event (or of the start) up to the stable configuration.
+	 */
+	@Name("com.bw.modelthings.fsm.Macrostep")
+	@Label("SCXML Macrostep")
+	@Category("SCXML")
+	@Description("Processing of an external event up to the next stable configuration")
+	@StackTrace(false)
+	static final class Macrostep extends Event
+	{
+		@Label("Session Id")
+		String sessionId;
+
+		@Label("Event")
+		@Description("Name of the external event, null for the start")
+		String event;
+
+		@Label("Microsteps")
+		int microsteps;
+
+		@Label("Flat")
+		@Description("The step was a lookup in the flat transition table")
+		boolean flat;
+
+		@Label("Configuration")
+		@Description("The active atomic states after the step")
+		String configuration;
+	}
+
+	/**
+	 * Selection of the enabled transitions for one event.
+	 */
+	@Name("com.bw.modelthings.fsm.TransitionSelection")
+	@Label("SCXML Transition Selection")
+	@Category("SCXML")
+	@StackTrace(false)
+	static final class TransitionSelection extends Event
+	{
+		@Label("Session Id")
+		String sessionId;
+
+		@Label("Event")
+		@Description("Name of the event, null for eventless transitions")
+		String event;
+
+		@Label("Enabled Transitions")
+		int enabled;
+	}
+
+	/**
+	 * Execution of one element of executable content.
+	 */
+	@Name("com.bw.modelthings.fsm.ExecutableContent")
+	@Label("SCXML Executable Content")
+	@Category("SCXML")
+	@StackTrace(false)
+	static final class Content extends Event
+	{
+		@Label("Session Id")
+		String sessionId;
+
+		@Label("Type")
+		@Description("Type of the content, see ExecutableContent.getType()")
+		String type;
+
+		@Label("State")
+		@Description("The states that are active when the content starts")
+		String configuration;
+	}
+
+	/**
+	 * Events taken from the external queue.
+	 */
+	@Name("com.bw.modelthings.fsm.Dequeue")
+	@Label("SCXML Dequeue")
+	@Category("SCXML")
+	@StackTrace(false)
+	static final class Dequeue extends Event
+	{
+		@Label("Session Id")
+		String sessionId;
+
+		@Label("Queue Depth")
+		@Description("Number of queued events at the time of the dequeue, including the taken ones")
+		int depth;
+	}
+}
@@ -0,0 +1,499 @@
+package com.bw.modelthings.fsm.runtime;
+
+import com.bw.modelthings.fsm.model.State;
+import com.bw.modelthings.fsm.model.Transition;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Run-time metrics of all sessions of one definition: latency of external events (enqueue to end of the macrostep),
+ * time spent in each state, number of times each transition was taken and the depth of the external queues.<br>
+ * All values are lock-free counters and histograms, sessions of any thread record concurrently.
+ * Set the metrics via {@link Interpreter#setMetrics(MachineMetrics)} or {@link SessionManager#enableMetrics()}.
+ * The values are exported via JMX ({@link #register()}) and as Prometheus text ({@link #dumpPrometheus(Path)}).
+ */
+public final class MachineMetrics implements MachineMetricsMXBean
+{
+	/**
+	 * Histogram with buckets of powers of 2. Bucket i holds the values in [2^(i-1), 2^i), bucket 0 the value 0.
+	 */
+	public static final class Histogram
+	{
+		private static final int BUCKETS = 64;
+
+		private final AtomicLongArray _buckets = new AtomicLongArray(BUCKETS);
+		private final LongAdder _sum = new LongAdder();
+		private final AtomicLong _max = new AtomicLong();
+
+		/**
+		 * Adds a value.
+		 *
+		 * @param value The value, negative values are counted as 0.
+		 */
+		public void record(long value)
+		{
+			if (value < 0)
+				value = 0;
+			// 0 goes to bucket 0, Long.MAX_VALUE to bucket 63.
+			_buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+			_sum.add(value);
+			if (value > _max.get())
+				_max.accumulateAndGet(value, Math::max);
+		}
+
+		/**
+		 * Gets the number of values.
+		 *
+		 * @return The count.
+		 */
+		public long getCount()
+		{
+			long count = 0;
+			for (int i = 0; i < BUCKETS; ++i)
+				count += _buckets.get(i);
+			return count;
+		}
+
+		/**
+		 * Gets the sum of all values.
+		 *
+		 * @return The sum.
+		 */
+		public long getSum()
+		{
+			return _sum.sum();
+		}
+
+		/**
+		 * Gets the maximal value.
+		 *
+		 * @return The maximum, 0 if empty.
+		 */
+		public long getMax()
+		{
+			return _max.get();
+		}
+
+		/**
+		 * Gets the mean value.
+		 *
+		 * @return The mean, 0 if empty.
+		 */
+		public double getMean()
+		{
+			final long count = getCount();
+			return count == 0 ? 0 : getSum() / (double) count;
+		}
+
+		/**
+		 * Gets a quantile, as upper bound of the bucket that contains it.
+		 *
+		 * @param q The quantile, 0..1.
+		 * @return The value, 0 if empty.
+		 */
+		public long getQuantile(double q)
+		{
+			final long count = getCount();
+			if (count == 0)
+				return 0;
+			final long rank = Math.max(1, (long) Math.ceil(q * count));
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; ++i)
+			{
+				seen += _buckets.get(i);
+				if (seen >= rank)
+					return Math.min(upperBound(i), getMax());
+			}
+			return getMax();
+		}
+
+		/**
+		 * Removes all values.
+		 */
+		public void reset()
+		{
+			for (int i = 0; i < BUCKETS; ++i)
+				_buckets.set(i, 0);
+			_sum.reset();
+			_max.set(0);
+		}
+
+		/**
+		 * Largest value of a bucket.
+		 */
+		static long upperBound(int bucket)
+		{
+			return bucket >= BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+		}
+	}
+
+	private final CompiledMachine _machine;
+
+	private final Histogram _eventLatency = new Histogram();
+	private final Histogram _queueDepth = new Histogram();
+
+	/**
+	 * Dwell time by state index of the compiled machine.
+	 */
+	private final Histogram[] _dwell;
+
+	/**
+	 * Number of times taken by transition index of the compiled machine.
+	 */
+	private final AtomicLongArray _fired;
+
+	private ObjectName _objectName;
+
+	/**
+	 * Creates empty metrics.
+	 *
+	 * @param machine The compiled machine.
+	 */
+	public MachineMetrics(CompiledMachine machine)
+	{
+		_machine = machine;
+		_dwell = new Histogram[machine.getStateCount()];
+		for (int s = 0; s < _dwell.length; ++s)
+			_dwell[s] = new Histogram();
+		_fired = new AtomicLongArray(machine._transitions.length);
+	}
+
+	/**
+	 * Records the processing of an external event.
+	 *
+	 * @param latencyNanos Time from enqueue to the end of the macrostep.
+	 */
+	void recordEvent(long latencyNanos)
+	{
+		_eventLatency.record(latencyNanos);
+	}
+
+	/**
+	 * Records the depth of an external queue at dequeue.
+	 *
+	 * @param depth The number of queued events, including the dequeued.
+	 */
+	void recordQueueDepth(int depth)
+	{
+		_queueDepth.record(depth);
+	}
+
+	/**
+	 * Records the time between entry and exit of a state.
+	 *
+	 * @param state The state index of the compiled machine.
+	 * @param nanos The time.
+	 */
+	void recordDwell(int state, long nanos)
+	{
+		_dwell[state].record(nanos);
+	}
+
+	/**
+	 * Records a taken transition.
+	 *
+	 * @param transition The transition index of the compiled machine.
+	 */
+	void recordTransition(int transition)
+	{
+		_fired.incrementAndGet(transition);
+	}
+
+	/**
+	 * Gets the histogram of the event latency in nanoseconds.
+	 *
+	 * @return The histogram.
+	 */
+	public Histogram getEventLatency()
+	{
+		return _eventLatency;
+	}
+
+	/**
+	 * Gets the histogram of the external queue depth at dequeue.
+	 *
+	 * @return The histogram.
+	 */
+	public Histogram getQueueDepth()
+	{
+		return _queueDepth;
+	}
+
+	/**
+	 * Gets the histogram of the dwell time of a state in nanoseconds.
+	 *
+	 * @param state The state index of the compiled machine.
+	 * @return The histogram.
+	 */
+	public Histogram getStateDwell(int state)
+	{
+		return _dwell[state];
+	}
+
+	@Override
+	public String getMachineName()
+	{
+		return _machine._fsm._name;
+	}
+
+	@Override
+	public long getEventCount()
+	{
+		return _eventLatency.getCount();
+	}
+
+	@Override
+	public double getEventLatencyMean()
+	{
+		return _eventLatency.getMean();
+	}
+
+	@Override
+	public long getEventLatencyP50()
+	{
+		return _eventLatency.getQuantile(0.5);
+	}
+
+	@Override
+	public long getEventLatencyP99()
+	{
+		return _eventLatency.getQuantile(0.99);
+	}
+
+	@Override
+	public long getEventLatencyMax()
+	{
+		return _eventLatency.getMax();
+	}
+
+	@Override
+	public double getQueueDepthMean()
+	{
+		return _queueDepth.getMean();
+	}
+
+	@Override
+	public long getQueueDepthMax()
+	{
+		return _queueDepth.getMax();
+	}
+
+	@Override
+	public Map<String, Double> getStateDwellMean()
+	{
+		TreeMap<String, Double> result = new TreeMap<>();
+		for (int s = 0; s < _dwell.length; ++s)
+		{
+			if (_machine._states[s] != null && _dwell[s].getCount() > 0)
+				result.put(_machine._states[s]._name, _dwell[s].getMean());
+		}
+		return result;
+	}
+
+	@Override
+	public Map<Integer, Long> getTransitionFireCounts()
+	{
+		TreeMap<Integer, Long> result = new TreeMap<>();
+		for (int t = 0; t < _fired.length(); ++t)
+		{
+			final long count = _fired.get(t);
+			if (count > 0)
+				result.merge(_machine._transitions[t]._docId, count, Long::sum);
+		}
+		return result;
+	}
+
+	@Override
+	public void reset()
+	{
+		_eventLatency.reset();
+		_queueDepth.reset();
+		for (Histogram h : _dwell)
+			h.reset();
+		for (int t = 0; t < _fired.length(); ++t)
+			_fired.set(t, 0);
+	}
+
+	/**
+	 * Registers the metrics at the platform MBean server as
+	 * "com.bw.modelthings.fsm:type=MachineMetrics,name=&lt;machine name&gt;".
+	 *
+	 * @return The name of the MBean.
+	 * @throws JMException If the registration fails, e.g. because metrics of another machine with the same name are registered.
+	 */
+	public synchronized ObjectName register() throws JMException
+	{
+		if (_objectName == null)
+		{
+			final ObjectName name = new ObjectName("com.bw.modelthings.fsm:type=MachineMetrics,name=" + ObjectName.quote(String.valueOf(getMachineName())));
+			ManagementFactory.getPlatformMBeanServer()
+							 .registerMBean(this, name);
+			_objectName = name;
+		}
+		return _objectName;
+	}
+
+	/**
+	 * Removes the MBean of {@link #register()}.
+	 *
+	 * @throws JMException If the MBean server fails.
+	 */
+	public synchronized void unregister() throws JMException
+	{
+		if (_objectName != null)
+		{
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(_objectName))
+				server.unregisterMBean(_objectName);
+			_objectName = null;
+		}
+	}
+
+	/**
+	 * Writes all metrics in the Prometheus text format. Times are in seconds.
+	 *
+	 * @param out The output.
+	 * @throws IOException If writing fails.
+	 */
+	public void writePrometheus(Appendable out) throws IOException
+	{
+		final String machine = "machine=\"" + escape(getMachineName()) + "\"";
+
+		out.append("# HELP scxml_event_latency_seconds Time from enqueue of an external event to the end of its macrostep.\n")
+		   .append("# TYPE scxml_event_latency_seconds histogram\n");
+		writeHistogram(out, "scxml_event_latency_seconds", machine, _eventLatency, 1e-9);
+
+		out.append("# HELP scxml_queue_depth External queue depth at dequeue.\n")
+		   .append("# TYPE scxml_queue_depth histogram\n");
+		writeHistogram(out, "scxml_queue_depth", machine, _queueDepth, 1);
+
+		out.append("# HELP scxml_state_dwell_seconds Time between entry and exit of a state.\n")
+		   .append("# TYPE scxml_state_dwell_seconds summary\n");
+		for (int s = 0; s < _dwell.length; ++s)
+		{
+			final State state = _machine._states[s];
+			if (state == null || _dwell[s].getCount() == 0)
+				continue;
+			final String labels = machine + ",state=\"" + escape(state._name) + "\"";
+			out.append("scxml_state_dwell_seconds_sum{")
+			   .append(labels)
+			   .append("} ")
+			   .append(number(_dwell[s].getSum() * 1e-9))
+			   .append('\n');
+			out.append("scxml_state_dwell_seconds_count{")
+			   .append(labels)
+			   .append("} ")
+			   .append(Long.toString(_dwell[s].getCount()))
+			   .append('\n');
+		}
+
+		out.append("# HELP scxml_transition_fired_total Number of times a transition was taken.\n")
+		   .append("# TYPE scxml_transition_fired_total counter\n");
+		for (int t = 0; t < _fired.length(); ++t)
+		{
+			final long count = _fired.get(t);
+			if (count == 0)
+				continue;
+			final Transition transition = _machine._transitions[t];
+			out.append("scxml_transition_fired_total{")
+			   .append(machine)
+			   .append(",transition=\"")
+			   .append(Integer.toString(transition._docId))
+			   .append("\",source=\"")
+			   .append(escape(transition._source == null ? "" : transition._source._name))
+			   .append("\"} ")
+			   .append(Long.toString(count))
+			   .append('\n');
+		}
+	}
+
+	/**
+	 * Writes the Prometheus text to a file, e.g. for the textfile collector of the node exporter.
+	 * The file is replaced atomically.
+	 *
+	 * @param file The file.
+	 * @throws IOException If writing fails.
+	 */
+	public void dumpPrometheus(Path file) throws IOException
+	{
+		final Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (Writer w = Files.newBufferedWriter(temp, StandardCharsets.UTF_8))
+		{
+			writePrometheus(w);
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static void writeHistogram(Appendable out, String name, String labels, Histogram histogram, double scale) throws IOException
+	{
+		long cumulative = 0;
+		long total = 0;
+		int last = 0;
+		final long[] counts = new long[Histogram.BUCKETS];
+		for (int i = 0; i < counts.length; ++i)
+		{
+			counts[i] = histogram._buckets.get(i);
+			total += counts[i];
+			if (counts[i] > 0)
+				last = i;
+		}
+		for (int i = 0; i <= last && total > 0; ++i)
+		{
+			cumulative += counts[i];
+			out.append(name)
+			   .append("_bucket{")
+			   .append(labels)
+			   .append(",le=\"")
+			   .append(number(Histogram.upperBound(i) * scale))
+			   .append("\"} ")
+			   .append(Long.toString(cumulative))
+			   .append('\n');
+		}
+		out.append(name)
+		   .append("_bucket{")
+		   .append(labels)
+		   .append(",le=\"+Inf\"} ")
+		   .append(Long.toString(total))
+		   .append('\n');
+		out.append(name)
+		   .append("_sum{")
+		   .append(labels)
+		   .append("} ")
+		   .append(number(histogram.getSum() * scale))
+		   .append('\n');
+		out.append(name)
+		   .append("_count{")
+		   .append(labels)
+		   .append("} ")
+		   .append(Long.toString(total))
+		   .append('\n');
+	}
+
+	private static String number(double value)
+	{
+		return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value) : Double.toString(value);
+	}
+
+	private static String escape(String value)
+	{
+		if (value == null)
+			return "";
+		return value.replace("\\", "\\\\")
+					.replace("\"", "\\\"")
+					.replace("\n", "\\n");
+	}
+}
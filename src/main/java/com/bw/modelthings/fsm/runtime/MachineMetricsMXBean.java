@@ -0,0 +1,84 @@
+package com.bw.modelthings.fsm.runtime;
+
+import java.util.Map;
+
+/**
+ * JMX view of the {@link MachineMetrics} of one definition. Times are in nanoseconds.
+ */
+public interface MachineMetricsMXBean
+{
+	/**
+	 * Gets the name of the state machine.
+	 *
+	 * @return The name.
+	 */
+	String getMachineName();
+
+	/**
+	 * Gets the number of processed external events.
+	 *
+	 * @return The count.
+	 */
+	long getEventCount();
+
+	/**
+	 * Gets the mean time from enqueue of an external event to the end of its macrostep.
+	 *
+	 * @return The mean latency.
+	 */
+	double getEventLatencyMean();
+
+	/**
+	 * Gets the median event latency, as upper bound of its histogram bucket.
+	 *
+	 * @return The latency.
+	 */
+	long getEventLatencyP50();
+
+	/**
+	 * Gets the 99th percentile of the event latency, as upper bound of its histogram bucket.
+	 *
+	 * @return The latency.
+	 */
+	long getEventLatencyP99();
+
+	/**
+	 * Gets the maximal event latency.
+	 *
+	 * @return The latency.
+	 */
+	long getEventLatencyMax();
+
+	/**
+	 * Gets the mean depth of the external queues at dequeue.
+	 *
+	 * @return The depth.
+	 */
+	double getQueueDepthMean();
+
+	/**
+	 * Gets the maximal depth of the external queues at dequeue.
+	 *
+	 * @return The depth.
+	 */
+	long getQueueDepthMax();
+
+	/**
+	 * Gets the mean time spent in each state, for states that were left at least once.
+	 *
+	 * @return The mean dwell time by state name.
+	 */
+	Map<String, Double> getStateDwellMean();
+
+	/**
+	 * Gets the number of times each transition was taken.
+	 *
+	 * @return The counts by transition docId, only transitions that were taken.
+	 */
+	Map<Integer, Long> getTransitionFireCounts();
+
+	/**
+	 * Resets all values.
+	 */
+	void reset();
+}
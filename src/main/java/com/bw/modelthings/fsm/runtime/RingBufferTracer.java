@@ -0,0 +1,200 @@
+package com.bw.modelthings.fsm.runtime;
+
+import com.bw.modelthings.fsm.model.BinaryCodec;
+import com.bw.modelthings.fsm.model.Event;
+import com.bw.modelthings.fsm.model.State;
+import com.bw.modelthings.fsm.model.Tracer;
+import com.bw.modelthings.fsm.model.Transition;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracer of one session that records binary trace records into a ring buffer. The records are written to a file
+ * by the thread of a {@link TraceWriter}, created via {@link TraceWriter#createTracer(String, CompiledMachine, int)}.<br>
+ * The session is the only producer, the writer the only consumer, so recording is two array stores and an ordered
+ * store of the position, without lock or allocation. If the writer doesn't keep up, records are dropped and counted,
+ * the session never waits.
+ */
+public final class RingBufferTracer implements Tracer, AutoCloseable
+{
+	/**
+	 * Default capacity in records. Each session owns a buffer, so it is kept small (about 5 KB).
+	 * Sessions with long bursts of records need a larger capacity, see
+	 * {@link SessionManager#setTraceWriter(TraceWriter, int, int)}.
+	 */
+	public static final int DEFAULT_CAPACITY = 256;
+
+	static final int KIND_ENTER = 1;
+	static final int KIND_EXIT = 2;
+	static final int KIND_TRANSITION = 3;
+	static final int KIND_EVENT = 4;
+	static final int KIND_CONDITION_TRUE = 5;
+	static final int KIND_CONDITION_FALSE = 6;
+
+	private final int _traceMask;
+
+	final String _sessionId;
+	final CompiledMachine _machine;
+
+	/**
+	 * Number of this tracer in the file of the writer.
+	 */
+	final int _number;
+
+	private final long[] _times;
+	private final long[] _values;
+
+	/**
+	 * The events of event records.
+	 */
+	private final Object[] _refs;
+	private final int _indexMask;
+
+	/**
+	 * Position of the next record, only used by the producer.
+	 */
+	private long _tail;
+
+	/**
+	 * Last value of {@link #_consumed} seen by the producer.
+	 */
+	private long _consumedCache;
+
+	private final AtomicLong _published = new AtomicLong();
+	private final AtomicLong _consumed = new AtomicLong();
+	private final AtomicLong _dropped = new AtomicLong();
+
+	/**
+	 * Dropped records already reported by the writer.
+	 */
+	long _reportedDrops;
+
+	/**
+	 * Set if the session header was written by the writer.
+	 */
+	boolean _announced;
+
+	volatile boolean _closed;
+
+	RingBufferTracer(String sessionId, CompiledMachine machine, int traceMask, int capacity, int number)
+	{
+		if (capacity < 2 || capacity > (1 << 26))
+			throw new IllegalArgumentException("Illegal capacity " + capacity);
+		final int size = Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+		_sessionId = sessionId;
+		_machine = machine;
+		_traceMask = traceMask;
+		_number = number;
+		_times = new long[size];
+		_values = new long[size];
+		_refs = new Object[size];
+		_indexMask = size - 1;
+	}
+
+	@Override
+	public int getTraceMask()
+	{
+		return _traceMask;
+	}
+
+	@Override
+	public void stateEntered(State state)
+	{
+		record(KIND_ENTER, state._docId, null);
+	}
+
+	@Override
+	public void stateExited(State state)
+	{
+		record(KIND_EXIT, state._docId, null);
+	}
+
+	@Override
+	public void transitionTaken(Transition transition)
+	{
+		record(KIND_TRANSITION, transition._docId, null);
+	}
+
+	@Override
+	public void eventProcessed(Event event)
+	{
+		record(KIND_EVENT, 0, event);
+	}
+
+	@Override
+	public void conditionEvaluated(Transition transition, boolean result)
+	{
+		record(result ? KIND_CONDITION_TRUE : KIND_CONDITION_FALSE, transition._docId, null);
+	}
+
+	/**
+	 * Gets the number of records that were dropped because the buffer was full.
+	 *
+	 * @return The count.
+	 */
+	public long getDroppedCount()
+	{
+		return _dropped.get();
+	}
+
+	/**
+	 * Stops tracing. The writer writes the remaining records and forgets the tracer.
+	 */
+	@Override
+	public void close()
+	{
+		_closed = true;
+	}
+
+	private void record(int kind, int id, Object ref)
+	{
+		final long tail = _tail;
+		if (tail - _consumedCache > _indexMask)
+		{
+			_consumedCache = _consumed.get();
+			if (tail - _consumedCache > _indexMask)
+			{
+				_dropped.lazySet(_dropped.get() + 1);
+				return;
+			}
+		}
+		final int i = (int) tail & _indexMask;
+		_times[i] = System.nanoTime();
+		_values[i] = ((long) kind << 32) | (id & 0xFFFFFFFFL);
+		_refs[i] = ref;
+		_tail = tail + 1;
+		_published.lazySet(tail + 1);
+	}
+
+	/**
+	 * Writes the published records. Called only by the writer thread.
+	 *
+	 * @param out The output.
+	 * @return The number of records.
+	 * @throws IOException If writing fails.
+	 */
+	int drain(DataOutput out) throws IOException
+	{
+		final long head = _consumed.get();
+		final long tail = _published.get();
+		for (long pos = head; pos < tail; ++pos)
+		{
+			final int i = (int) pos & _indexMask;
+			final int kind = (int) (_values[i] >>> 32);
+			out.writeByte(kind);
+			BinaryCodec.writeVarInt(out, _number);
+			out.writeLong(_times[i]);
+			if (kind == KIND_EVENT)
+			{
+				BinaryCodec.writeString(out, ((Event) _refs[i])._name);
+				_refs[i] = null;
+			}
+			else
+				BinaryCodec.writeVarInt(out, (int) _values[i]);
+		}
+		_consumed.lazySet(tail);
+		return (int) (tail - head);
+	}
+}
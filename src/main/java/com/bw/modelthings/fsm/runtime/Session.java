@@ -0,0 +1,64 @@
+package com.bw.modelthings.fsm.runtime;
+
+import com.bw.modelthings.fsm.model.Datamodel;
+
+/**
+ * One running instance of a state machine, managed by a {@link SessionManager}.<br>
+ * The session owns only its run-time data (configuration, history, queues and data, all held by the datamodel).
+ * The compiled definition is shared with all other sessions of the manager.
+ */
+public class Session extends Interpreter
+{
+	private final SessionManager _manager;
+
+	private final String _id;
+
+	/**
+	 * Creates a new session.
+	 *
+	 * @param manager   The owning manager.
+	 * @param id        The unique session-id.
+	 * @param datamodel The datamodel of this session.
+	 */
+	protected Session(SessionManager manager, String id, Datamodel datamodel)
+	{
+		super(manager.getMachine(), datamodel, manager.getFlatAutomaton());
+		_manager = manager;
+		_id = id;
+		_global._sessionId = id;
+	}
+
+	/**
+	 * Gets the session-id.
+	 *
+	 * @return The id, unique inside this process.
+	 */
+	public String getId()
+	{
+		return _id;
+	}
+
+	/**
+	 * Gets the manager of this session.
+	 *
+	 * @return The manager.
+	 */
+	public SessionManager getManager()
+	{
+		return _manager;
+	}
+
+	/**
+	 * Stops the session and removes it from the manager.
+	 */
+	public void destroy()
+	{
+		_manager.destroySession(this);
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Session " + _id;
+	}
+}
@@ -0,0 +1,293 @@
+package com.bw.modelthings.fsm.runtime;
+
+import com.bw.modelthings.fsm.model.BlockingQueue;
+import com.bw.modelthings.fsm.model.Event;
+import com.bw.modelthings.fsm.model.WaitStrategy;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs sessions according to an {@link ExecutionMode}.<br>
+ * Virtual threads are created via reflection, as the code base has to run on Java 17. If virtual threads are
+ * not available, {@link ExecutionMode#virtualThread} falls back to platform threads.
+ */
+public class SessionExecutor implements AutoCloseable
+{
+	/**
+	 * Logger for this class.
+	 */
+	protected final static Logger LOG = Logger.getLogger(SessionExecutor.class.getName());
+
+	private static SessionExecutor _shared;
+
+	private final ExecutionMode _mode;
+
+	private final ExecutorService _executor;
+
+	/**
+	 * Creates an executor that runs each session on its own platform thread.
+	 *
+	 * @return The new executor.
+	 */
+	public static SessionExecutor platformThreads()
+	{
+		return new SessionExecutor(ExecutionMode.platformThread, Executors.newCachedThreadPool(newThreadFactory("scxml-session-")));
+	}
+
+	/**
+	 * Creates an executor that runs each session on its own virtual thread.
+	 * Falls back to platform threads if virtual threads are not supported by the runtime.
+	 *
+	 * @return The new executor.
+	 */
+	public static SessionExecutor virtualThreads()
+	{
+		try
+		{
+			ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+																		 .invoke(null);
+			return new SessionExecutor(ExecutionMode.virtualThread, executor);
+		}
+		catch (ReflectiveOperationException | RuntimeException e)
+		{
+			LOG.log(Level.WARNING, "Virtual threads are not supported, using platform threads", e);
+			return platformThreads();
+		}
+	}
+
+	/**
+	 * Creates an executor that schedules sessions on demand on a fixed pool of carrier threads.
+	 *
+	 * @param carrierThreads The number of carrier threads.
+	 * @return The new executor.
+	 */
+	public static SessionExecutor pooled(int carrierThreads)
+	{
+		return new SessionExecutor(ExecutionMode.pooled, Executors.newFixedThreadPool(carrierThreads, newThreadFactory("scxml-carrier-")));
+	}
+
+	/**
+	 * Gets the executor that is shared by all invoked sessions, see {@link Interpreter#setInvokeExecutor(SessionExecutor)}.
+	 * Created on first use, pooled with one carrier thread per processor.
+	 *
+	 * @return The shared executor.
+	 */
+	public static synchronized SessionExecutor getShared()
+	{
+		if (_shared == null)
+			_shared = pooled(Runtime.getRuntime()
+									.availableProcessors());
+		return _shared;
+	}
+
+	/**
+	 * Checks if the runtime supports virtual threads.
+	 *
+	 * @return true if {@link #virtualThreads()} will use virtual threads.
+	 */
+	public static boolean isVirtualThreadSupported()
+	{
+		try
+		{
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		}
+		catch (NoSuchMethodException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Creates a new executor.
+	 *
+	 * @param mode     The mode.
+	 * @param executor The executor service to use. For thread-per-session modes it must create a thread per task.
+	 *                 Null for subclasses that run the sessions themselves.
+	 */
+	protected SessionExecutor(ExecutionMode mode, ExecutorService executor)
+	{
+		_mode = mode;
+		_executor = executor;
+	}
+
+	/**
+	 * Gets the execution mode.
+	 *
+	 * @return The mode.
+	 */
+	public ExecutionMode getMode()
+	{
+		return _mode;
+	}
+
+	/**
+	 * Starts the session and runs it until it terminates or is stopped.
+	 *
+	 * @param session The session, not yet started.
+	 */
+	public void execute(Interpreter session)
+	{
+		final BlockingQueue<Event> queue = session.getDatamodel()
+												  .global()._externalQueue;
+		if (_mode == ExecutionMode.pooled)
+			new PooledRunner(session, queue).schedule();
+		else
+		{
+			if (_mode == ExecutionMode.virtualThread && queue.getWaitStrategy() != WaitStrategy.park)
+				LOG.warning("External queue doesn't park, virtual threads will pin their carrier");
+			_executor.execute(() ->
+			{
+				try
+				{
+					session.interpret();
+				}
+				catch (RuntimeException e)
+				{
+					failed(session, e);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Handles a session that threw an exception: logs it and destroys the session, so it doesn't stay
+	 * registered without anyone processing its events.
+	 *
+	 * @param session The session.
+	 * @param e       The exception.
+	 */
+	protected void failed(Interpreter session, RuntimeException e)
+	{
+		LOG.log(Level.SEVERE, String.format("%s failed and is destroyed", session), e);
+		if (session instanceof Session)
+			((Session) session).destroy();
+		else
+			session.stop();
+	}
+
+	/**
+	 * Stops accepting new sessions. Running sessions are not stopped.
+	 */
+	@Override
+	public void close()
+	{
+		if (_executor != null)
+			_executor.shutdown();
+	}
+
+	/**
+	 * Waits until all sessions have terminated after {@link #close()}.
+	 *
+	 * @param timeout The maximum time to wait.
+	 * @param unit    The time unit of timeout.
+	 * @return true if all terminated.
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		return _executor == null || _executor.awaitTermination(timeout, unit);
+	}
+
+	private static ThreadFactory newThreadFactory(String prefix)
+	{
+		final AtomicInteger counter = new AtomicInteger();
+		return r ->
+		{
+			Thread t = new Thread(r, prefix + counter.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+	}
+
+	/**
+	 * Runs a session on the pool if events are queued. At most one carrier thread works on a session at any time.
+	 */
+	private final class PooledRunner implements Runnable
+	{
+		private final Interpreter _session;
+		private final BlockingQueue<Event> _queue;
+		private final AtomicBoolean _scheduled = new AtomicBoolean(true);
+		private boolean _started;
+
+		PooledRunner(Interpreter session, BlockingQueue<Event> queue)
+		{
+			_session = session;
+			_queue = queue;
+		}
+
+		void schedule()
+		{
+			_queue.setSignal(this::signal);
+			submit();
+		}
+
+		private void signal()
+		{
+			if (_scheduled.compareAndSet(false, true))
+				submit();
+		}
+
+		private void submit()
+		{
+			try
+			{
+				_executor.execute(this);
+			}
+			catch (RejectedExecutionException e)
+			{
+				_scheduled.set(false);
+				LOG.log(Level.FINE, "Executor is shut down, session not scheduled", e);
+			}
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				if (!_started)
+				{
+					_started = true;
+					_session.start();
+				}
+				runScheduled();
+			}
+			catch (RuntimeException e)
+			{
+				_queue.setSignal(null);
+				failed(_session, e);
+			}
+		}
+
+		private void runScheduled()
+		{
+			while (true)
+			{
+				if (!(_session.isRunning() && _session.processQueuedEvents(Interpreter.EXTERNAL_EVENT_BATCH_SIZE)))
+				{
+					_queue.setSignal(null);
+					return;
+				}
+				if (!_queue.isEmpty() || _queue.isStopped())
+				{
+					// More to do, give other sessions a chance first.
+					submit();
+					return;
+				}
+				_scheduled.set(false);
+				// A producer may have added an event before the flag was reset.
+				if (_queue.isEmpty() && !_queue.isStopped() || !_scheduled.compareAndSet(false, true))
+					return;
+			}
+		}
+	}
+}
@@ -0,0 +1,292 @@
+package com.bw.modelthings.fsm.runtime;
+
+import com.bw.modelthings.fsm.model.BlockingQueue;
+import com.bw.modelthings.fsm.model.Datamodel;
+import com.bw.modelthings.fsm.model.FiniteStateMachine;
+import com.bw.modelthings.fsm.model.WaitStrategy;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates and manages any number of sessions of one state machine definition.<br>
+ * The definition is compiled once and shared, so a session needs only memory for its run-time data.
+ * Scratch data of the algorithm is pooled and shared by all sessions.<br>
+ * Thread-safe.
+ */
+public class SessionManager
+{
+	/**
+	 * Logger for this class.
+	 */
+	protected final static Logger LOG = Logger.getLogger(SessionManager.class.getName());
+
+	/**
+	 * Counter for session-ids, shared by all managers to get ids that are unique inside the process.
+	 */
+	private static final AtomicLong _sessionCounter = new AtomicLong();
+
+	private final CompiledMachine _machine;
+
+	private final Supplier<Datamodel> _datamodelFactory;
+
+	private final FlatAutomaton _flat;
+
+	private final ConcurrentHashMap<String, Session> _sessions = new ConcurrentHashMap<>();
+
+	private volatile TraceWriter _traceWriter;
+	private volatile int _traceMask;
+	private volatile int _traceCapacity = RingBufferTracer.DEFAULT_CAPACITY;
+
+	private volatile MachineMetrics _metrics;
+
+	private volatile int _queueCapacity = BlockingQueue.DEFAULT_CAPACITY;
+	private volatile WaitStrategy _waitStrategy = WaitStrategy.park;
+
+	/**
+	 * Creates a new manager for a compiled definition.
+	 *
+	 * @param machine The compiled machine.
+	 * @throws CompilerException If the datamodel of the machine is not supported.
+	 */
+	public SessionManager(CompiledMachine machine) throws CompilerException
+	{
+		this(machine, FlatAutomaton.DEFAULT_MAX_CONFIGURATIONS);
+	}
+
+	/**
+	 * Creates a new manager for a compiled definition.<br>
+	 * Machines with the Null datamodel are flattened to a transition table if they have not more than
+	 * "maxFlatConfigurations" reachable configurations, see {@link FlatAutomaton}.
+	 *
+	 * @param machine               The compiled machine.
+	 * @param maxFlatConfigurations The limit for flattening, 0 to disable.
+	 * @throws CompilerException If the datamodel of the machine is not supported.
+	 */
+	public SessionManager(CompiledMachine machine, int maxFlatConfigurations) throws CompilerException
+	{
+		_machine = machine;
+		_datamodelFactory = DatamodelFactory.getFactory(machine._fsm._dataModel);
+		_flat = FlatAutomaton.compile(machine, maxFlatConfigurations);
+	}
+
+	/**
+	 * Creates a new manager for a model. The model is compiled once.
+	 *
+	 * @param fsm The state machine.
+	 * @throws CompilerException If the model is inconsistent or the datamodel is not supported.
+	 */
+	public SessionManager(FiniteStateMachine fsm) throws CompilerException
+	{
+		this(CompiledMachine.compile(fsm));
+	}
+
+	/**
+	 * Gets the shared compiled definition.
+	 *
+	 * @return The compiled machine.
+	 */
+	public CompiledMachine getMachine()
+	{
+		return _machine;
+	}
+
+	/**
+	 * Gets the flat transition table that is shared by the sessions.
+	 *
+	 * @return The table or null if the sessions execute the W3C algorithm.
+	 */
+	public FlatAutomaton getFlatAutomaton()
+	{
+		return _flat;
+	}
+
+	/**
+	 * Traces the sessions that are created from now on, each into its own {@link RingBufferTracer}.
+	 *
+	 * @param writer    The writer of the trace file, null to stop tracing of new sessions.
+	 * @param traceMask The {@link com.bw.modelthings.fsm.model.Trace} modes to record.
+	 */
+	public void setTraceWriter(TraceWriter writer, int traceMask)
+	{
+		setTraceWriter(writer, traceMask, RingBufferTracer.DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Traces the sessions that are created from now on, each into its own {@link RingBufferTracer}.
+	 *
+	 * @param writer    The writer of the trace file, null to stop tracing of new sessions.
+	 * @param traceMask The {@link com.bw.modelthings.fsm.model.Trace} modes to record.
+	 * @param capacity  The capacity of the ring buffer of each session in records.
+	 */
+	public void setTraceWriter(TraceWriter writer, int traceMask, int capacity)
+	{
+		_traceMask = traceMask;
+		_traceCapacity = capacity;
+		_traceWriter = writer;
+	}
+
+	/**
+	 * Records {@link MachineMetrics} for the sessions that are created from now on. All sessions of this manager
+	 * share the same metrics.
+	 *
+	 * @return The metrics, e.g. to register them via {@link MachineMetrics#register()}.
+	 */
+	public synchronized MachineMetrics enableMetrics()
+	{
+		if (_metrics == null)
+			_metrics = new MachineMetrics(_machine);
+		return _metrics;
+	}
+
+	/**
+	 * Gets the metrics of the sessions.
+	 *
+	 * @return The metrics or null if {@link #enableMetrics()} was not called.
+	 */
+	public MachineMetrics getMetrics()
+	{
+		return _metrics;
+	}
+
+	/**
+	 * Sets the external queue of the sessions that are created from now on.<br>
+	 * A larger capacity lets producers that are not sessions wait less often, sessions never wait for a queue.
+	 * {@link WaitStrategy#spin} and {@link WaitStrategy#yield} lower the latency of sessions with their own
+	 * thread, but the thread burns a core while it waits. Virtual threads need {@link WaitStrategy#park}.
+	 *
+	 * @param capacity     The capacity of each queue, rounded up to a power of 2.
+	 * @param waitStrategy How the event loop and blocking producers wait.
+	 */
+	public void setExternalQueue(int capacity, WaitStrategy waitStrategy)
+	{
+		if (capacity < 1 || capacity > (1 << 30))
+			throw new IllegalArgumentException("Illegal capacity " + capacity);
+		_waitStrategy = waitStrategy;
+		_queueCapacity = capacity;
+	}
+
+	/**
+	 * Gets the capacity of the external queues of new sessions.
+	 *
+	 * @return The capacity.
+	 */
+	public int getQueueCapacity()
+	{
+		return _queueCapacity;
+	}
+
+	/**
+	 * Gets the wait strategy of the external queues of new sessions.
+	 *
+	 * @return The strategy.
+	 */
+	public WaitStrategy getWaitStrategy()
+	{
+		return _waitStrategy;
+	}
+
+	/**
+	 * Creates a new session. The session is not started.
+	 *
+	 * @return The new session.
+	 */
+	public Session createSession()
+	{
+		final String id = Long.toString(_sessionCounter.incrementAndGet());
+		final Datamodel datamodel = _datamodelFactory.get();
+		final int capacity = _queueCapacity;
+		final WaitStrategy waitStrategy = _waitStrategy;
+		if (capacity != BlockingQueue.DEFAULT_CAPACITY || waitStrategy != WaitStrategy.park)
+			datamodel.global()._externalQueue = new BlockingQueue<>(capacity, waitStrategy);
+		final Session session = newSession(id, datamodel);
+		final TraceWriter writer = _traceWriter;
+		if (writer != null)
+			session.setTracer(writer.createTracer(id, _machine, _traceMask, _traceCapacity));
+		final MachineMetrics metrics = _metrics;
+		if (metrics != null)
+			session.setMetrics(metrics);
+		_sessions.put(id, session);
+		if (LOG.isLoggable(Level.FINE))
+			LOG.fine(String.format("Created session %s of '%s'", id, _machine._fsm._name));
+		return session;
+	}
+
+	/**
+	 * Creates the session instance. Can be overridden to use specialized sessions.
+	 *
+	 * @param id        The new session-id.
+	 * @param datamodel The new datamodel instance.
+	 * @return The new session.
+	 */
+	protected Session newSession(String id, Datamodel datamodel)
+	{
+		return new Session(this, id, datamodel);
+	}
+
+	/**
+	 * Gets a session by id.
+	 *
+	 * @param id The session-id.
+	 * @return The session or null.
+	 */
+	public Session getSession(String id)
+	{
+		return _sessions.get(id);
+	}
+
+	/**
+	 * Stops a session and removes it.<br>
+	 * Sessions that terminated by themselves (reached a top-level final state) stay registered until destroyed.
+	 *
+	 * @param session The session.
+	 * @return true if the session was managed by this manager.
+	 */
+	public boolean destroySession(Session session)
+	{
+		if (_sessions.remove(session.getId(), session))
+		{
+			session.stop();
+			if (session.getTracer() instanceof RingBufferTracer)
+				((RingBufferTracer) session.getTracer()).close();
+			if (LOG.isLoggable(Level.FINE))
+				LOG.fine(String.format("Destroyed session %s", session.getId()));
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Stops and removes all sessions.
+	 */
+	public void destroyAll()
+	{
+		for (Session session : _sessions.values())
+			destroySession(session);
+	}
+
+	/**
+	 * Gets the number of sessions.
+	 *
+	 * @return The number of sessions.
+	 */
+	public int getSessionCount()
+	{
+		return _sessions.size();
+	}
+
+	/**
+	 * Gets all sessions.
+	 *
+	 * @return Unmodifiable live view of the sessions.
+	 */
+	public Collection<Session> getSessions()
+	{
+		return Collections.unmodifiableCollection(_sessions.values());
+	}
+}
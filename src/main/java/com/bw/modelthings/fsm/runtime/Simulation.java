@@ -0,0 +1,191 @@
+package com.bw.modelthings.fsm.runtime;
+
+import com.bw.modelthings.fsm.model.Event;
+
+import java.util.ArrayList;
+
+/**
+ * Discrete-event simulation of sessions on a virtual clock.<br>
+ * All sessions of a simulation use the same {@link TimingWheel} as scheduler, which is not driven by
+ * real time, but advanced by the simulation. The simulation processes all queued events of all sessions,
+ * then jumps the clock to the next expiring delayed event. So time passes as fast as the CPU allows and runs
+ * are reproducible.<br>
+ * Sessions are executed by the thread that calls the run-methods, they must not run a {@link Interpreter#mainEventLoop()}.
+ * Sessions that are invoked by sessions of the simulation are also part of it, they are started by the next run.
+ * Not thread-safe.
+ */
+public class Simulation
+{
+	private final TimingWheel _clock;
+
+	private final ArrayList<Interpreter> _sessions = new ArrayList<>();
+
+	/**
+	 * Invoked sessions that are not yet started.
+	 */
+	private final ArrayList<Interpreter> _invoked = new ArrayList<>();
+
+	/**
+	 * Invoke executor of all sessions, adds invoked sessions to the simulation.
+	 */
+	private final SessionExecutor _invokeExecutor = new SessionExecutor(ExecutionMode.simulated, null)
+	{
+		@Override
+		public void execute(Interpreter session)
+		{
+			// Called during the macrostep of the invoking session, the child is started after it.
+			_invoked.add(session);
+		}
+	};
+
+	/**
+	 * Creates a new simulation.
+	 *
+	 * @param tickMillis The resolution of the virtual clock in milliseconds.
+	 */
+	public Simulation(long tickMillis)
+	{
+		_clock = new TimingWheel(tickMillis);
+	}
+
+	/**
+	 * Gets the virtual clock, also the scheduler of all sessions.
+	 *
+	 * @return The clock.
+	 */
+	public TimingWheel getClock()
+	{
+		return _clock;
+	}
+
+	/**
+	 * Gets the current virtual time.
+	 *
+	 * @return The time in milliseconds since start of the simulation.
+	 */
+	public long getTimeMillis()
+	{
+		return _clock.getTimeMillis();
+	}
+
+	/**
+	 * Adds and starts a session. The session must not be started yet.
+	 *
+	 * @param session The session.
+	 */
+	public void add(Interpreter session)
+	{
+		session.getDatamodel()
+			   .global()._scheduler = _clock;
+		session.setInvokeExecutor(_invokeExecutor);
+		_sessions.add(session);
+		session.start();
+	}
+
+	/**
+	 * Creates a new session and adds it. The session is destroyed when it terminates.
+	 *
+	 * @param manager The manager to create the session.
+	 * @return The started session.
+	 */
+	public Session createSession(SessionManager manager)
+	{
+		Session session = manager.createSession();
+		add(session);
+		return session;
+	}
+
+	/**
+	 * Puts an event into the external queue of a session. The event is processed by the next run.
+	 * Doesn't wait if the queue is full, the simulation thread is also the consumer of the queue.
+	 *
+	 * @param session The session.
+	 * @param event   The event.
+	 */
+	public void send(Interpreter session, Event event)
+	{
+		session.getDatamodel()
+			   .global()._externalQueue.enqueueNonBlocking(event);
+	}
+
+	/**
+	 * Processes queued events of all sessions until no session has events left. The clock doesn't advance.
+	 * Terminated sessions are removed. Sessions of a {@link SessionManager} are also destroyed, so the manager
+	 * doesn't keep them.
+	 */
+	public void runUntilIdle()
+	{
+		boolean busy = true;
+		while (busy)
+		{
+			startInvoked();
+			for (int i = 0; i < _sessions.size(); )
+			{
+				Interpreter session = _sessions.get(i);
+				if (session.processQueuedEvents(Interpreter.EXTERNAL_EVENT_BATCH_SIZE))
+					++i;
+				else
+				{
+					_sessions.remove(i);
+					if (session instanceof Session)
+						((Session) session).destroy();
+				}
+			}
+			// Invoked sessions and their callers send each other events, so all queues are checked after the pass.
+			busy = !_invoked.isEmpty();
+			for (int i = 0; !busy && i < _sessions.size(); ++i)
+				busy = !_sessions.get(i)
+								 .getDatamodel()
+								 .global()._externalQueue.isEmpty();
+		}
+	}
+
+	/**
+	 * Starts the invoked sessions in the order of their invocation. Sessions that were cancelled before are skipped.
+	 */
+	private void startInvoked()
+	{
+		for (int i = 0; i < _invoked.size(); ++i)
+		{
+			Interpreter session = _invoked.get(i);
+			if (!session.getDatamodel()
+						.global()._externalQueue.isStopped())
+				add(session);
+		}
+		_invoked.clear();
+	}
+
+	/**
+	 * Runs the simulation for some virtual time.
+	 *
+	 * @param millis The time to advance the clock.
+	 */
+	public void runFor(long millis)
+	{
+		runUntil(getTimeMillis() + millis);
+	}
+
+	/**
+	 * Runs the simulation until the virtual time is reached. Delayed events that expire at the same tick are
+	 * processed before the clock advances further.
+	 *
+	 * @param timeMillis The virtual time to stop at.
+	 */
+	public void runUntil(long timeMillis)
+	{
+		final long tick = timeMillis / _clock.getTickMillis();
+		runUntilIdle();
+		while (_clock.advance(tick))
+			runUntilIdle();
+	}
+
+	/**
+	 * Gets the number of active sessions.
+	 *
+	 * @return The number of sessions that are not yet terminated.
+	 */
+	public int getSessionCount()
+	{
+		return _sessions.size();
+	}
+}
@@ -0,0 +1,464 @@
+package com.bw.modelthings.fsm.runtime;
+
+import com.bw.modelthings.fsm.model.BlockingQueue;
+import com.bw.modelthings.fsm.model.Event;
+import com.bw.modelthings.fsm.model.EventScheduler;
+import com.bw.modelthings.fsm.model.ScheduledEvent;
+
+import java.util.ArrayList;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hierarchical timing wheel for delayed events, shared by any number of sessions.<br>
+ * Time is divided in ticks of configurable length. The first wheel has 256 slots of one tick, each of the
+ * following three wheels has 64 slots that cover one turn of the wheel below. Entries are kept in doubly linked
+ * lists per slot, so schedule and cancel are O(1). If the lowest wheel wraps, one slot of the next wheel is moved down
+ * ("cascade"). Expired events are collected per tick and put into the target queues outside the lock.<br>
+ * If a target queue is full, the event is retried on the next tick. After delivery the callback of the entry is called.<br>
+ * The wheel is driven by a daemon thread in real time after {@link #start()}, or manually via {@link #advanceTo(long)}.
+ * While the wheel is empty, the thread waits without ticking. If the lowest wheel is empty, advancing jumps to the next cascade.
+ */
+public class TimingWheel implements EventScheduler, AutoCloseable
+{
+	/**
+	 * Logger for this class.
+	 */
+	protected final static Logger LOG = Logger.getLogger(TimingWheel.class.getName());
+
+	/**
+	 * Default tick length in milliseconds.
+	 */
+	public static final long DEFAULT_TICK_MILLIS = 10;
+
+	private static final int ROOT_BITS = 8;
+	private static final int LEVEL_BITS = 6;
+	private static final int LEVELS = 4;
+	private static final int ROOT_MASK = (1 << ROOT_BITS) - 1;
+	private static final int LEVEL_MASK = (1 << LEVEL_BITS) - 1;
+
+	/**
+	 * Maximal delay in ticks that fits into the wheels. Larger delays are cascaded more than once.
+	 */
+	private static final long MAX_DELTA = (1L << (ROOT_BITS + (LEVELS - 1) * LEVEL_BITS)) - 1;
+
+	private static TimingWheel _shared;
+
+	/**
+	 * An entry in the wheel.
+	 */
+	private static final class Entry implements ScheduledEvent
+	{
+		Entry _prev;
+		Entry _next;
+		final Event _event;
+		final BlockingQueue<Event> _target;
+		final Consumer<ScheduledEvent> _delivered;
+		long _deadline;
+		int _level;
+
+		Entry(Event event, BlockingQueue<Event> target, Consumer<ScheduledEvent> delivered, long deadline)
+		{
+			_event = event;
+			_target = target;
+			_delivered = delivered;
+			_deadline = deadline;
+		}
+
+		@Override
+		public Event getEvent()
+		{
+			return _event;
+		}
+	}
+
+	/**
+	 * Slots of all levels. Each slot is a sentinel of a circular list.
+	 */
+	private final Entry[][] _wheels = new Entry[LEVELS][];
+
+	private final long _tickMillis;
+
+	/**
+	 * Current tick. All entries with deadline &lt;= current tick are delivered.
+	 */
+	private long _tick;
+
+	private int _size;
+
+	/**
+	 * Number of entries in the lowest wheel. If zero, the wheel can jump to the next cascade.
+	 */
+	private int _rootSize;
+
+	private final ArrayList<Entry> _expired = new ArrayList<>();
+
+	private long _startNanos;
+
+	private boolean _realTime;
+
+	private Thread _thread;
+
+	private boolean _closed;
+
+	/**
+	 * Gets the wheel that is shared by all sessions that have no own scheduler.
+	 * Created and started on first use with {@link #DEFAULT_TICK_MILLIS}.
+	 *
+	 * @return The shared wheel.
+	 */
+	public static synchronized TimingWheel getShared()
+	{
+		if (_shared == null)
+		{
+			_shared = new TimingWheel(DEFAULT_TICK_MILLIS);
+			_shared.start();
+		}
+		return _shared;
+	}
+
+	/**
+	 * Creates a new wheel. The wheel doesn't advance until {@link #start()} or {@link #advanceTo(long)} is called.
+	 *
+	 * @param tickMillis The length of a tick in milliseconds, the resolution of the wheel.
+	 */
+	public TimingWheel(long tickMillis)
+	{
+		if (tickMillis < 1)
+			throw new IllegalArgumentException("Illegal tick length " + tickMillis);
+		_tickMillis = tickMillis;
+		for (int level = 0; level < LEVELS; ++level)
+		{
+			Entry[] slots = new Entry[level == 0 ? (1 << ROOT_BITS) : (1 << LEVEL_BITS)];
+			for (int i = 0; i < slots.length; ++i)
+			{
+				Entry sentinel = new Entry(null, null, null, 0);
+				sentinel._prev = sentinel;
+				sentinel._next = sentinel;
+				slots[i] = sentinel;
+			}
+			_wheels[level] = slots;
+		}
+	}
+
+	/**
+	 * Gets the tick length.
+	 *
+	 * @return The length of a tick in milliseconds.
+	 */
+	public long getTickMillis()
+	{
+		return _tickMillis;
+	}
+
+	/**
+	 * Gets the current tick.
+	 *
+	 * @return The number of ticks the wheel has advanced.
+	 */
+	public synchronized long getTick()
+	{
+		return _tick;
+	}
+
+	/**
+	 * Gets the number of scheduled events.
+	 *
+	 * @return The number of events not yet delivered or cancelled.
+	 */
+	public synchronized int size()
+	{
+		return _size;
+	}
+
+	/**
+	 * Advances the wheel in real time from now on. The daemon thread that drives the wheel is created on
+	 * the first call to {@link #schedule(Event, long, BlockingQueue)}.
+	 */
+	public synchronized void start()
+	{
+		if (_realTime || _closed)
+			return;
+		_realTime = true;
+		_startNanos = System.nanoTime() - _tick * _tickMillis * 1_000_000L;
+	}
+
+	/**
+	 * Stops the thread. Scheduled events are not delivered anymore.
+	 */
+	@Override
+	public void close()
+	{
+		Thread t;
+		synchronized (this)
+		{
+			_closed = true;
+			t = _thread;
+			notifyAll();
+		}
+		if (t != null)
+			t.interrupt();
+	}
+
+	@Override
+	public ScheduledEvent schedule(Event event, long delayMillis, BlockingQueue<Event> target, Consumer<ScheduledEvent> delivered)
+	{
+		synchronized (this)
+		{
+			long now = _tick;
+			if (_realTime)
+			{
+				now = Math.max(now, realTimeTick());
+				// The wheel doesn't advance while empty, skip the idle time.
+				if (_size == 0)
+					_tick = now;
+				if (_thread == null && !_closed)
+				{
+					_thread = new Thread(this::run, "scxml-timer");
+					_thread.setDaemon(true);
+					_thread.start();
+				}
+			}
+			final Entry e = new Entry(event, target, delivered, now + Math.max(1, (delayMillis + _tickMillis - 1) / _tickMillis));
+			insert(e);
+			if (++_size == 1)
+				notifyAll();
+			return e;
+		}
+	}
+
+	@Override
+	public synchronized boolean cancel(ScheduledEvent scheduled)
+	{
+		final Entry e = (Entry) scheduled;
+		if (e._next == null)
+			return false;
+		unlink(e);
+		--_size;
+		return true;
+	}
+
+	@Override
+	public synchronized long getRemainingDelay(ScheduledEvent scheduled)
+	{
+		final Entry e = (Entry) scheduled;
+		if (e._next == null)
+			return -1;
+		final long now = _realTime ? Math.max(_tick, realTimeTick()) : _tick;
+		return Math.max(0, e._deadline - now) * _tickMillis;
+	}
+
+	/**
+	 * Advances the wheel and delivers all events with deadline up to the tick.
+	 *
+	 * @param tick The new current tick. Ignored if not after the current tick.
+	 */
+	public void advanceTo(long tick)
+	{
+		while (advance(tick))
+		{
+			// Continue with next expired tick.
+		}
+	}
+
+	/**
+	 * Advances the wheel until some events expire or the tick is reached. The expired events are delivered.
+	 * Used for simulations, where the sessions shall process the events before the time advances further.
+	 *
+	 * @param tick The maximal new current tick.
+	 * @return true if events were delivered, false if the tick was reached without expired events.
+	 */
+	public boolean advance(long tick)
+	{
+		synchronized (this)
+		{
+			while (_tick < tick && _expired.isEmpty())
+			{
+				if (_size == 0)
+					_tick = tick;
+				else
+				{
+					if (_rootSize == 0)
+						// Nothing due before the next cascade, jump to the tick before.
+						_tick = Math.max(_tick, Math.min(tick - 1, _tick | ROOT_MASK));
+					step();
+				}
+			}
+			if (_expired.isEmpty())
+				return false;
+		}
+		deliverExpired();
+		return true;
+	}
+
+	/**
+	 * Gets the current time of the wheel.
+	 *
+	 * @return The time in milliseconds since the wheel was created (for real time since {@link #start()}).
+	 */
+	public synchronized long getTimeMillis()
+	{
+		return _tick * _tickMillis;
+	}
+
+	private void deliverExpired()
+	{
+		final ArrayList<Entry> retry = new ArrayList<>(0);
+		final Entry[] expired;
+		synchronized (this)
+		{
+			expired = _expired.toArray(new Entry[0]);
+			_expired.clear();
+		}
+		for (Entry e : expired)
+		{
+			if (!e._target.isStopped() && !e._target.offer(e._event))
+				retry.add(e);
+			else if (e._delivered != null)
+				e._delivered.accept(e);
+		}
+		if (!retry.isEmpty())
+		{
+			LOG.log(Level.FINE, "{0} events not delivered, queue full", retry.size());
+			synchronized (this)
+			{
+				for (Entry e : retry)
+				{
+					e._deadline = _tick + 1;
+					insert(e);
+					++_size;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Advances one tick. Must be called with lock.
+	 */
+	private void step()
+	{
+		final long tick = ++_tick;
+		if ((tick & ROOT_MASK) == 0)
+		{
+			for (int level = 1; level < LEVELS; ++level)
+			{
+				final int shift = ROOT_BITS + (level - 1) * LEVEL_BITS;
+				final int index = (int) (tick >>> shift) & LEVEL_MASK;
+				cascade(_wheels[level][index]);
+				if (index != 0)
+					break;
+			}
+		}
+		final Entry sentinel = _wheels[0][(int) tick & ROOT_MASK];
+		Entry e = sentinel._next;
+		while (e != sentinel)
+		{
+			final Entry next = e._next;
+			unlink(e);
+			if (e._deadline <= tick)
+			{
+				--_size;
+				_expired.add(e);
+			}
+			else
+				insert(e);
+			e = next;
+		}
+	}
+
+	private void cascade(Entry sentinel)
+	{
+		Entry e = sentinel._next;
+		while (e != sentinel)
+		{
+			final Entry next = e._next;
+			unlink(e);
+			insert(e);
+			e = next;
+		}
+	}
+
+	/**
+	 * Inserts an entry. Entries that are due in the current tick (only possible during cascade) go to the
+	 * current slot of the lowest wheel, which is processed after the cascade.
+	 */
+	private void insert(Entry e)
+	{
+		final long delta = Math.min(Math.max(0, e._deadline - _tick), MAX_DELTA);
+		final long deadline = _tick + delta;
+		final Entry sentinel;
+		if (delta <= ROOT_MASK)
+		{
+			sentinel = _wheels[0][(int) deadline & ROOT_MASK];
+			e._level = 0;
+			++_rootSize;
+		}
+		else
+		{
+			int level = 1;
+			int shift = ROOT_BITS;
+			while (level < LEVELS - 1 && delta >= (1L << (shift + LEVEL_BITS)))
+			{
+				++level;
+				shift += LEVEL_BITS;
+			}
+			sentinel = _wheels[level][(int) (deadline >>> shift) & LEVEL_MASK];
+			e._level = level;
+		}
+		e._prev = sentinel._prev;
+		e._next = sentinel;
+		sentinel._prev._next = e;
+		sentinel._prev = e;
+	}
+
+	private void unlink(Entry e)
+	{
+		if (e._level == 0)
+			--_rootSize;
+		e._prev._next = e._next;
+		e._next._prev = e._prev;
+		e._prev = null;
+		e._next = null;
+	}
+
+	private long realTimeTick()
+	{
+		return (System.nanoTime() - _startNanos) / (_tickMillis * 1_000_000L);
+	}
+
+	private void run()
+	{
+		try
+		{
+			while (true)
+			{
+				synchronized (this)
+				{
+					if (_closed)
+						return;
+					if (_size == 0)
+						wait();
+					else
+					{
+						final long nextNanos = _startNanos + (_tick + 1) * _tickMillis * 1_000_000L;
+						final long waitNanos = nextNanos - System.nanoTime();
+						if (waitNanos > 0)
+							wait(waitNanos / 1_000_000L, (int) (waitNanos % 1_000_000L));
+					}
+					if (_closed)
+						return;
+				}
+				advanceTo(realTimeTick());
+			}
+		}
+		catch (InterruptedException e)
+		{
+			// Closed
+		}
+		catch (RuntimeException e)
+		{
+			LOG.log(Level.SEVERE, "Timer thread failed", e);
+		}
+	}
+}
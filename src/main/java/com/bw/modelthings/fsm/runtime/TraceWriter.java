@@ -0,0 +1,327 @@
+package com.bw.modelthings.fsm.runtime;
+
+import com.bw.modelthings.fsm.model.BinaryCodec;
+import com.bw.modelthings.fsm.model.State;
+import com.bw.modelthings.fsm.model.Transition;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes the records of {@link RingBufferTracer}s to a binary trace file. A daemon thread drains the buffers of all
+ * tracers periodically, so the sessions never do I/O.<br>
+ * The file starts with a header, each tracer starts with a record that holds the session-id and the names of the
+ * states and transitions. Use {@link #print(Path, PrintStream)} to convert a file to text.
+ */
+public final class TraceWriter implements AutoCloseable
+{
+	/**
+	 * Logger for this class.
+	 */
+	protected final static Logger LOG = Logger.getLogger(TraceWriter.class.getName());
+
+	/**
+	 * Default interval between two flushes.
+	 */
+	public static final long DEFAULT_FLUSH_MILLIS = 100;
+
+	private static final int FILE_MAGIC = 0x53435854;
+	private static final int FILE_VERSION = 1;
+
+	private static final int RECORD_SESSION = 16;
+	private static final int RECORD_DROPPED = 17;
+	private static final int RECORD_CLOSED = 18;
+
+	private final DataOutputStream _out;
+	private final CopyOnWriteArrayList<RingBufferTracer> _tracers = new CopyOnWriteArrayList<>();
+	private final AtomicInteger _numbers = new AtomicInteger();
+	private final long _flushNanos;
+	private final Thread _thread;
+	private volatile boolean _closed;
+
+	/**
+	 * Creates a writer and starts its thread.
+	 *
+	 * @param file        The trace file, replaced if it exists.
+	 * @param flushMillis The interval between two flushes.
+	 * @throws IOException If the file can't be created.
+	 */
+	public TraceWriter(Path file, long flushMillis) throws IOException
+	{
+		_out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024));
+		_out.writeInt(FILE_MAGIC);
+		BinaryCodec.writeVarInt(_out, FILE_VERSION);
+		// Record times are System.nanoTime(), the pair allows to convert them to wall-clock time.
+		_out.writeLong(System.currentTimeMillis());
+		_out.writeLong(System.nanoTime());
+		_flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+		_thread = new Thread(this::run, "scxml-trace");
+		_thread.setDaemon(true);
+		_thread.start();
+	}
+
+	/**
+	 * Creates a writer that flushes every {@link #DEFAULT_FLUSH_MILLIS}.
+	 *
+	 * @param file The trace file, replaced if it exists.
+	 * @throws IOException If the file can't be created.
+	 */
+	public TraceWriter(Path file) throws IOException
+	{
+		this(file, DEFAULT_FLUSH_MILLIS);
+	}
+
+	/**
+	 * Creates the tracer of a session with {@link RingBufferTracer#DEFAULT_CAPACITY}.
+	 *
+	 * @param sessionId The session-id, used in the file.
+	 * @param machine   The compiled machine of the session.
+	 * @param traceMask The {@link com.bw.modelthings.fsm.model.Trace} modes to record.
+	 * @return The tracer, set it via {@link Interpreter#setTracer(com.bw.modelthings.fsm.model.Tracer)}.
+	 */
+	public RingBufferTracer createTracer(String sessionId, CompiledMachine machine, int traceMask)
+	{
+		return createTracer(sessionId, machine, traceMask, RingBufferTracer.DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates the tracer of a session.
+	 *
+	 * @param sessionId The session-id, used in the file.
+	 * @param machine   The compiled machine of the session.
+	 * @param traceMask The {@link com.bw.modelthings.fsm.model.Trace} modes to record.
+	 * @param capacity  The capacity of the ring buffer in records.
+	 * @return The tracer, set it via {@link Interpreter#setTracer(com.bw.modelthings.fsm.model.Tracer)}.
+	 */
+	public RingBufferTracer createTracer(String sessionId, CompiledMachine machine, int traceMask, int capacity)
+	{
+		RingBufferTracer tracer = new RingBufferTracer(sessionId, machine, traceMask, capacity, _numbers.incrementAndGet());
+		if (!_closed)
+			_tracers.add(tracer);
+		return tracer;
+	}
+
+	/**
+	 * Writes all records and closes the file.
+	 */
+	@Override
+	public void close()
+	{
+		_closed = true;
+		LockSupport.unpark(_thread);
+		try
+		{
+			_thread.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread()
+				  .interrupt();
+		}
+	}
+
+	private void run()
+	{
+		try
+		{
+			while (!_closed)
+			{
+				LockSupport.parkNanos(_flushNanos);
+				flush();
+			}
+			flush();
+		}
+		catch (IOException e)
+		{
+			LOG.log(Level.WARNING, "Failed to write trace, tracing stopped", e);
+		}
+		finally
+		{
+			try
+			{
+				_out.close();
+			}
+			catch (IOException e)
+			{
+				LOG.log(Level.WARNING, "Failed to close trace", e);
+			}
+			_tracers.clear();
+		}
+	}
+
+	private void flush() throws IOException
+	{
+		for (RingBufferTracer tracer : _tracers)
+		{
+			if (!tracer._announced)
+			{
+				writeSession(tracer);
+				tracer._announced = true;
+			}
+			// Read before draining, so no record is missed after the close.
+			final boolean closed = tracer._closed;
+			tracer.drain(_out);
+			final long dropped = tracer.getDroppedCount();
+			if (dropped != tracer._reportedDrops)
+			{
+				_out.writeByte(RECORD_DROPPED);
+				BinaryCodec.writeVarInt(_out, tracer._number);
+				BinaryCodec.writeVarLong(_out, dropped - tracer._reportedDrops);
+				tracer._reportedDrops = dropped;
+			}
+			if (closed)
+			{
+				_out.writeByte(RECORD_CLOSED);
+				BinaryCodec.writeVarInt(_out, tracer._number);
+				_tracers.remove(tracer);
+			}
+		}
+		_out.flush();
+	}
+
+	private void writeSession(RingBufferTracer tracer) throws IOException
+	{
+		final CompiledMachine machine = tracer._machine;
+		_out.writeByte(RECORD_SESSION);
+		BinaryCodec.writeVarInt(_out, tracer._number);
+		BinaryCodec.writeString(_out, tracer._sessionId);
+		BinaryCodec.writeString(_out, machine._fsm._name);
+		BinaryCodec.writeVarInt(_out, machine._states.length);
+		for (State s : machine._states)
+			BinaryCodec.writeString(_out, s == null ? null : s._name);
+		BinaryCodec.writeVarInt(_out, machine._transitions.length);
+		for (Transition t : machine._transitions)
+		{
+			BinaryCodec.writeVarInt(_out, t._docId);
+			BinaryCodec.writeString(_out, describe(t));
+		}
+	}
+
+	private static String describe(Transition t)
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append(t._source == null ? "?" : t._source._name);
+		if (!t._events.isEmpty())
+			sb.append(' ')
+			  .append(String.join(" ", t._events));
+		if (t._cond != null && !t._cond.isEmpty())
+			sb.append(" [")
+			  .append(t._cond)
+			  .append(']');
+		sb.append(" ->");
+		for (State target : t._target)
+			sb.append(' ')
+			  .append(target._name);
+		return sb.toString();
+	}
+
+	/**
+	 * Converts a trace file to text, one line per record. Times are milliseconds since the start of the file.
+	 *
+	 * @param file The trace file.
+	 * @param out  The output.
+	 * @throws IOException If reading fails or the file is corrupt.
+	 */
+	public static void print(Path file, PrintStream out) throws IOException
+	{
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file))))
+		{
+			if (in.readInt() != FILE_MAGIC || BinaryCodec.readVarInt(in) != FILE_VERSION)
+				throw new IOException(file + " is not a trace file");
+			in.readLong();
+			final long startNanos = in.readLong();
+			final HashMap<Integer, String[]> stateNames = new HashMap<>();
+			final HashMap<Integer, HashMap<Integer, String>> transitionNames = new HashMap<>();
+			final HashMap<Integer, String> sessionIds = new HashMap<>();
+			while (true)
+			{
+				final int kind;
+				try
+				{
+					kind = in.readUnsignedByte();
+				}
+				catch (EOFException e)
+				{
+					break;
+				}
+				final int number = BinaryCodec.readVarInt(in);
+				switch (kind)
+				{
+					case RECORD_SESSION:
+					{
+						final String id = BinaryCodec.readString(in);
+						final String name = BinaryCodec.readString(in);
+						final String[] states = new String[BinaryCodec.readVarInt(in)];
+						for (int i = 0; i < states.length; ++i)
+							states[i] = BinaryCodec.readString(in);
+						final HashMap<Integer, String> transitions = new HashMap<>();
+						for (int i = BinaryCodec.readVarInt(in); i > 0; --i)
+							transitions.put(BinaryCodec.readVarInt(in), BinaryCodec.readString(in));
+						sessionIds.put(number, id);
+						stateNames.put(number, states);
+						transitionNames.put(number, transitions);
+						out.printf("session %s of '%s'%n", id, name);
+						break;
+					}
+					case RECORD_DROPPED:
+						out.printf("session %s dropped %d records%n", sessionIds.get(number), BinaryCodec.readVarLong(in));
+						break;
+					case RECORD_CLOSED:
+						out.printf("session %s closed%n", sessionIds.get(number));
+						break;
+					case RingBufferTracer.KIND_EVENT:
+					{
+						final double millis = (in.readLong() - startNanos) / 1e6;
+						out.printf("%.3f %s event %s%n", millis, sessionIds.get(number), BinaryCodec.readString(in));
+						break;
+					}
+					case RingBufferTracer.KIND_ENTER:
+					case RingBufferTracer.KIND_EXIT:
+					case RingBufferTracer.KIND_TRANSITION:
+					case RingBufferTracer.KIND_CONDITION_TRUE:
+					case RingBufferTracer.KIND_CONDITION_FALSE:
+					{
+						final double millis = (in.readLong() - startNanos) / 1e6;
+						final int id = BinaryCodec.readVarInt(in);
+						final String what;
+						switch (kind)
+						{
+							case RingBufferTracer.KIND_ENTER:
+								what = "enter " + stateNames.get(number)[id];
+								break;
+							case RingBufferTracer.KIND_EXIT:
+								what = "exit " + stateNames.get(number)[id];
+								break;
+							case RingBufferTracer.KIND_TRANSITION:
+								what = "transition " + transitionNames.get(number)
+																	  .get(id);
+								break;
+							default:
+								what = "condition " + (kind == RingBufferTracer.KIND_CONDITION_TRUE) + " " + transitionNames.get(number)
+																											 .get(id);
+								break;
+						}
+						out.printf("%.3f %s %s%n", millis, sessionIds.get(number), what);
+						break;
+					}
+					default:
+						throw new IOException("Unknown trace record " + kind);
+				}
+			}
+		}
+	}
+}
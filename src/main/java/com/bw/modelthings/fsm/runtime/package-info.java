@@ -0,0 +1,4 @@
+/**
+ * Execution of SCXML state machines according to the W3C algorithm.
+ */
+package com.bw.modelthings.fsm.runtime;